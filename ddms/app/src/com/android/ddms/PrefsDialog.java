@@ -21,6 +21,7 @@ import com.android.ddmlib.DdmConstants;
 import com.android.ddmlib.DdmPreferences;
 import com.android.ddmlib.Log;
 import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.log.LogBuffer;
 import com.android.ddmuilib.DdmUiPreferences;
 import com.android.ddmuilib.PortFieldEditor;
 import com.android.sdkstats.SdkStatsService;
@@ -85,6 +86,7 @@ public final class PrefsDialog {
     private final static String PREFS_THREAD_REFRESH_INTERVAL = "threadStatusInterval"; //$NON-NLS-1$
     private final static String PREFS_LOG_LEVEL = "ddmsLogLevel"; //$NON-NLS-1$
     private final static String PREFS_TIMEOUT = "timeOut"; //$NON-NLS-1$
+    private final static String PREFS_LOGCAT_BUFFER_SIZE = "logcatBufferSize"; //$NON-NLS-1$
 
 
     /**
@@ -168,6 +170,7 @@ public final class PrefsDialog {
         // Now the ddmui lib
         DdmUiPreferences.setStore(mPrefStore);
         DdmUiPreferences.setThreadRefreshInterval(mPrefStore.getInt(PREFS_THREAD_REFRESH_INTERVAL));
+        DdmUiPreferences.setLogCatBufferSize(mPrefStore.getInt(PREFS_LOGCAT_BUFFER_SIZE));
     }
 
     /*
@@ -197,6 +200,9 @@ public final class PrefsDialog {
 
         mPrefStore.setDefault(PREFS_TIMEOUT, DdmPreferences.DEFAULT_TIMEOUT);
 
+        mPrefStore.setDefault(PREFS_LOGCAT_BUFFER_SIZE,
+            DdmUiPreferences.DEFAULT_LOGCAT_BUFFER_SIZE);
+
         // choose a default font for the text output
         FontData fdat = new FontData("Courier", 10, SWT.NORMAL); //$NON-NLS-1$
         mPrefStore.setDefault("textOutputFont", fdat.toString()); //$NON-NLS-1$
@@ -239,6 +245,8 @@ public final class PrefsDialog {
                     (String) event.getNewValue());
             } else if (changed.equals(PREFS_TIMEOUT)) {
                 DdmPreferences.setTimeOut(mPrefStore.getInt(PREFS_TIMEOUT));
+            } else if (changed.equals(PREFS_LOGCAT_BUFFER_SIZE)) {
+                DdmUiPreferences.setLogCatBufferSize(mPrefStore.getInt(PREFS_LOGCAT_BUFFER_SIZE));
             } else {
                 Log.v("ddms", "Preference change: " + event.getProperty()
                     + ": '" + event.getOldValue()
@@ -393,6 +401,11 @@ public final class PrefsDialog {
             FontFieldEditor ffe = new FontFieldEditor(PrefsDialog.LOGCAT_FONT, "Text output font:",
                     getFieldEditorParent());
             addField(ffe);
+
+            IntegerFieldEditor ife = new IntegerFieldEditor(PREFS_LOGCAT_BUFFER_SIZE,
+                    "Buffer size (lines, applied on restart):", getFieldEditorParent());
+            ife.setValidRange(LogBuffer.MIN_CAPACITY, LogBuffer.MAX_CAPACITY);
+            addField(ife);
         }
     }
 
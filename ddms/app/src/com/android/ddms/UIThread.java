@@ -353,11 +353,17 @@ public class UIThread implements IUiSelectionListener, IClientChangeListener {
             });
         }
 
-        public void onSuccess(final byte[] data, final Client client) {
+        public void onSuccess(final File hprofFile, final Client client) {
             mDisplay.asyncExec(new Runnable() {
                 public void run() {
-                    promptAndSave(client.getClientData().getClientDescription() + ".hprof", data,
-                            "Save HPROF file");
+                    try {
+                        promptAndSave(client.getClientData().getClientDescription() + ".hprof",
+                                hprofFile, "Save HPROF file");
+                    } finally {
+                        // this will make sure the dump hprof button is re-enabled for the
+                        // current selection. as the client is finished dumping an hprof file
+                        enableButtons();
+                    }
                 }
             });
         }
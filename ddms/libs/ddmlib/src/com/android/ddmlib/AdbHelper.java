@@ -23,21 +23,38 @@ import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 
 /**
  * Helper class to handle requests and connections to adb.
  * <p/>{@link DebugBridgeServer} is the public API to connection to adb, while {@link AdbHelper}
  * does the low level stuff.
- * <p/>This currently uses spin-wait non-blocking I/O. A Selector would be more efficient,
- * but seems like overkill for what we're doing here.
+ * <p/>This uses non-blocking I/O. When a channel is not ready, the calling thread waits on a
+ * {@link Selector} until the channel becomes readable/writable or the timeout expires, so data
+ * is handled as soon as it arrives. The selectors are reused from one wait to the next.
  */
 final class AdbHelper {
 
     // public static final long kOkay = 0x59414b4fL;
     // public static final long kFail = 0x4c494146L;
 
-    static final int WAIT_TIME = 5; // spin-wait sleep, in ms
+    /**
+     * Max time to wait for shell/log output before checking whether the receiver was cancelled,
+     * in ms. This does not delay the processing of output, which is handled as soon as it arrives.
+     */
+    static final int CANCEL_CHECK_INTERVAL = 25;
+
+    /** Deadline value meaning "wait forever". */
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    /** Max number of idle selectors kept for {@link #waitForChannel(SocketChannel, int, long)}. */
+    private static final int MAX_IDLE_SELECTORS = 8;
+
+    /** Selectors not used by any wait. Each one holds a few file descriptors. */
+    private static final ArrayList<Selector> sIdleSelectors = new ArrayList<Selector>();
 
     static final String DEFAULT_ENCODING = "ISO-8859-1"; //$NON-NLS-1$
 
@@ -267,6 +284,19 @@ final class AdbHelper {
      */
     static RawImage getFrameBuffer(InetSocketAddress adbSockAddr, Device device)
             throws TimeoutException, AdbCommandRejectedException, IOException {
+        return getFrameBuffer(adbSockAddr, device, null);
+    }
+
+    /**
+     * Retrieve the frame buffer from the device, reading it into an existing buffer if it has
+     * the size of the frame.
+     * @param buffer the buffer to reuse, or null.
+     * @throws TimeoutException in case of timeout on the connection.
+     * @throws AdbCommandRejectedException if adb rejects the command
+     * @throws IOException in case of I/O error on the connection.
+     */
+    static RawImage getFrameBuffer(InetSocketAddress adbSockAddr, Device device, byte[] buffer)
+            throws TimeoutException, AdbCommandRejectedException, IOException {
 
         RawImage imageParams = new RawImage();
         byte[] request = formAdbRequest("framebuffer:"); //$NON-NLS-1$
@@ -322,7 +352,11 @@ final class AdbHelper {
 
             write(adbChan, nudge);
 
-            reply = new byte[imageParams.size];
+            if (buffer != null && buffer.length == imageParams.size) {
+                reply = buffer;
+            } else {
+                reply = new byte[imageParams.size];
+            }
             read(adbChan, reply);
 
             imageParams.data = reply;
@@ -383,7 +417,7 @@ final class AdbHelper {
 
             byte[] data = new byte[16384];
             ByteBuffer buf = ByteBuffer.wrap(data);
-            int timeToResponseCount = 0;
+            long deadline = getDeadline(maxTimeToOutputResponse);
             while (true) {
                 int count;
 
@@ -400,19 +434,16 @@ final class AdbHelper {
                             + count);
                     break;
                 } else if (count == 0) {
-                    try {
-                        int wait = WAIT_TIME * 5;
-                        timeToResponseCount += wait;
-                        if (maxTimeToOutputResponse > 0 &&
-                                timeToResponseCount > maxTimeToOutputResponse) {
-                            throw new ShellCommandUnresponsiveException();
-                        }
-                        Thread.sleep(wait);
-                    } catch (InterruptedException ie) {
+                    if (maxTimeToOutputResponse > 0 && isExpired(deadline)) {
+                        throw new ShellCommandUnresponsiveException();
                     }
+
+                    // wait for output, but wake up regularly to check for cancellation.
+                    waitForChannel(adbChan, SelectionKey.OP_READ,
+                            Math.min(deadline, getDeadline(CANCEL_CHECK_INTERVAL)));
                 } else {
                     // reset timeout
-                    timeToResponseCount = 0;
+                    deadline = getDeadline(maxTimeToOutputResponse);
 
                     // send data to receiver if present
                     if (rcvr != null) {
@@ -489,10 +520,9 @@ final class AdbHelper {
                 if (count < 0) {
                     break;
                 } else if (count == 0) {
-                    try {
-                        Thread.sleep(WAIT_TIME * 5);
-                    } catch (InterruptedException ie) {
-                    }
+                    // wait for data, but wake up regularly to check for cancellation.
+                    waitForChannel(adbChan, SelectionKey.OP_READ,
+                            getDeadline(CANCEL_CHECK_INTERVAL));
                 } else {
                     if (rcvr != null) {
                         rcvr.parseNewData(buf.array(), buf.arrayOffset(), buf.position());
@@ -631,8 +661,23 @@ final class AdbHelper {
      */
     static void read(SocketChannel chan, byte[] data, int length, int timeout)
             throws TimeoutException, IOException {
-        ByteBuffer buf = ByteBuffer.wrap(data, 0, length != -1 ? length : data.length);
-        int numWaits = 0;
+        read(chan, ByteBuffer.wrap(data, 0, length != -1 ? length : data.length), timeout);
+    }
+
+    /**
+     * Reads from the socket until the buffer is full, or no more data is coming (because the
+     * socket closed or the timeout expired). After "timeout" milliseconds since the
+     * previous successful read, this will return whether or not new data has
+     * been found.
+     *
+     * @param chan the opened socket to read from. It must be in non-blocking
+     *      mode for timeouts to work
+     * @param buf the buffer to store the read data into, between its position and its limit.
+     * @param timeout The timeout value. A timeout of zero means "wait forever".
+     */
+    static void read(SocketChannel chan, ByteBuffer buf, int timeout)
+            throws TimeoutException, IOException {
+        long deadline = getDeadline(timeout);
 
         while (buf.position() != buf.limit()) {
             int count;
@@ -642,19 +687,12 @@ final class AdbHelper {
                 Log.d("ddms", "read: channel EOF");
                 throw new IOException("EOF");
             } else if (count == 0) {
-                // TODO: need more accurate timeout?
-                if (timeout != 0 && numWaits * WAIT_TIME > timeout) {
+                if (waitForChannel(chan, SelectionKey.OP_READ, deadline) == false) {
                     Log.d("ddms", "read: timeout");
                     throw new TimeoutException();
                 }
-                // non-blocking spin
-                try {
-                    Thread.sleep(WAIT_TIME);
-                } catch (InterruptedException ie) {
-                }
-                numWaits++;
             } else {
-                numWaits = 0;
+                deadline = getDeadline(timeout);
             }
         }
     }
@@ -684,8 +722,21 @@ final class AdbHelper {
      */
     static void write(SocketChannel chan, byte[] data, int length, int timeout)
             throws TimeoutException, IOException {
-        ByteBuffer buf = ByteBuffer.wrap(data, 0, length != -1 ? length : data.length);
-        int numWaits = 0;
+        write(chan, ByteBuffer.wrap(data, 0, length != -1 ? length : data.length), timeout);
+    }
+
+    /**
+     * Write until the content of the buffer, between its position and its limit, is written,
+     * the timeout expires, or the connection fails.
+     * @param chan the opened socket to write to.
+     * @param buf the buffer to send.
+     * @param timeout The timeout value. A timeout of zero means "wait forever".
+     * @throws TimeoutException in case of timeout on the connection.
+     * @throws IOException in case of I/O error on the connection.
+     */
+    static void write(SocketChannel chan, ByteBuffer buf, int timeout)
+            throws TimeoutException, IOException {
+        long deadline = getDeadline(timeout);
 
         while (buf.position() != buf.limit()) {
             int count;
@@ -695,23 +746,125 @@ final class AdbHelper {
                 Log.d("ddms", "write: channel EOF");
                 throw new IOException("channel EOF");
             } else if (count == 0) {
-                // TODO: need more accurate timeout?
-                if (timeout != 0 && numWaits * WAIT_TIME > timeout) {
+                if (waitForChannel(chan, SelectionKey.OP_WRITE, deadline) == false) {
                     Log.d("ddms", "write: timeout");
                     throw new TimeoutException();
                 }
-                // non-blocking spin
-                try {
-                    Thread.sleep(WAIT_TIME);
-                } catch (InterruptedException ie) {
-                }
-                numWaits++;
             } else {
-                numWaits = 0;
+                deadline = getDeadline(timeout);
             }
         }
     }
 
+    /**
+     * Returns the deadline matching a timeout starting now.
+     * @param timeout the timeout in ms. A timeout of zero means "wait forever".
+     * @return a value to compare against {@link System#nanoTime()}, or {@link #NO_DEADLINE}.
+     */
+    static long getDeadline(int timeout) {
+        if (timeout == 0) {
+            return NO_DEADLINE;
+        }
+
+        return System.nanoTime() + timeout * 1000000L;
+    }
+
+    /**
+     * Returns whether a deadline returned by {@link #getDeadline(int)} has passed.
+     */
+    static boolean isExpired(long deadline) {
+        return deadline != NO_DEADLINE && System.nanoTime() - deadline >= 0;
+    }
+
+    /**
+     * Blocks until a non-blocking channel is ready for the given operation, or until the
+     * deadline is reached.
+     * <p/>If the channel is in blocking mode, this returns immediately since the next I/O
+     * operation will block anyway.
+     * <p/>The selector used for the wait is closed before returning, which deregisters the
+     * channel and lets callers switch it back to blocking mode.
+     *
+     * @param chan the channel to wait for.
+     * @param op the operation to wait for, {@link SelectionKey#OP_READ} or
+     *      {@link SelectionKey#OP_WRITE}.
+     * @param deadline the deadline as returned by {@link #getDeadline(int)}.
+     * @return false if the deadline had already passed when this was called, true otherwise. A
+     *      true value does not guarantee that the channel is ready, only that the caller should
+     *      retry the operation.
+     * @throws IOException in case of I/O error on the selector.
+     */
+    static boolean waitForChannel(SocketChannel chan, int op, long deadline) throws IOException {
+        if (chan.isBlocking()) {
+            return true;
+        }
+
+        long timeout = 0;
+        if (deadline != NO_DEADLINE) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+
+            // round up so that we never wake up before the deadline. Note that 0 would mean
+            // "wait forever" to the selector.
+            timeout = (remaining + 999999L) / 1000000L;
+        }
+
+        Selector selector = acquireSelector();
+        boolean reusable = false;
+        try {
+            SelectionKey key = chan.register(selector, op);
+            selector.select(timeout);
+            selector.selectedKeys().clear();
+
+            // deregister the channel right away, so that it can be closed or made blocking.
+            key.cancel();
+            selector.selectNow();
+            reusable = true;
+        } finally {
+            if (reusable) {
+                releaseSelector(selector);
+            } else {
+                selector.close();
+            }
+        }
+
+        // the selector is woken up by interrupts. Like the previous sleep-based
+        // implementation, we ignore them and let the caller continue.
+        Thread.interrupted();
+
+        return true;
+    }
+
+    /**
+     * Returns an idle selector, or a new one if there is none.
+     */
+    private static Selector acquireSelector() throws IOException {
+        synchronized (sIdleSelectors) {
+            int count = sIdleSelectors.size();
+            if (count > 0) {
+                return sIdleSelectors.remove(count - 1);
+            }
+        }
+
+        return Selector.open();
+    }
+
+    /**
+     * Keeps a selector with no registered channel for the next wait, or closes it if enough
+     * selectors are already idle.
+     */
+    private static void releaseSelector(Selector selector) throws IOException {
+        synchronized (sIdleSelectors) {
+            if (sIdleSelectors.size() < MAX_IDLE_SELECTORS) {
+                sIdleSelectors.add(selector);
+                return;
+            }
+        }
+
+        selector.close();
+    }
+
     /**
      * tells adb to talk to a specific device
      *
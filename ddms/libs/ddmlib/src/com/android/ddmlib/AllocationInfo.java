@@ -18,54 +18,55 @@ package com.android.ddmlib;
 
 /**
  * Holds an Allocation information.
+ * <p/>This is a view of an allocation of an {@link AllocationTable}. The stack trace is only
+ * built when it is requested.
  */
 public class AllocationInfo implements Comparable<AllocationInfo>, IStackTraceInfo {
-    private String mAllocatedClass;
-    private int mAllocationSize;
-    private short mThreadId;
+    private final AllocationTable mTable;
+    private final int mIndex;
     private StackTraceElement[] mStackTrace;
 
     /*
      * Simple constructor.
      */
-    AllocationInfo(String allocatedClass, int allocationSize,
-        short threadId, StackTraceElement[] stackTrace) {
-        mAllocatedClass = allocatedClass;
-        mAllocationSize = allocationSize;
-        mThreadId = threadId;
-        mStackTrace = stackTrace;
+    AllocationInfo(AllocationTable table, int index) {
+        mTable = table;
+        mIndex = index;
     }
-    
+
     /**
      * Returns the name of the allocated class.
      */
     public String getAllocatedClass() {
-        return mAllocatedClass;
+        return mTable.getAllocatedClass(mIndex);
     }
 
     /**
      * Returns the size of the allocation.
      */
     public int getSize() {
-        return mAllocationSize;
+        return mTable.getSize(mIndex);
     }
 
     /**
      * Returns the id of the thread that performed the allocation.
      */
     public short getThreadId() {
-        return mThreadId;
+        return mTable.getThreadId(mIndex);
     }
 
     /*
      * (non-Javadoc)
      * @see com.android.ddmlib.IStackTraceInfo#getStackTrace()
      */
-    public StackTraceElement[] getStackTrace() {
+    public synchronized StackTraceElement[] getStackTrace() {
+        if (mStackTrace == null) {
+            mStackTrace = mTable.getStackTrace(mIndex);
+        }
         return mStackTrace;
     }
 
     public int compareTo(AllocationInfo otherAlloc) {
-        return otherAlloc.mAllocationSize - mAllocationSize;
+        return otherAlloc.getSize() - getSize();
     }
 }
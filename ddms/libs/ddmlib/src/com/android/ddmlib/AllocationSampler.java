@@ -0,0 +1,635 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.ddmlib.AndroidDebugBridge.IClientChangeListener;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Continuously samples the allocation tracker of a {@link Client}, and accumulates the
+ * allocations into a histogram of their call sites.
+ * <p/>The VM only keeps its most recent allocations, so the sampler periodically requests them
+ * with {@link Client#requestAllocationDetails()}. Each snapshot overlaps the previous one: the
+ * allocations that were already counted are recognized and skipped, so that each allocation is
+ * counted once, as long as the sampling is frequent enough for the VM to not drop allocations
+ * between two snapshots. {@link #getGapCount()} tells how many times this was not the case.
+ * <p/>A full tracker holding the same allocations as the previous snapshot is ambiguous: the VM
+ * either allocated nothing, or made a whole tracker of identical allocations. Such snapshots
+ * are not counted, but reported by {@link #getSaturatedCount()}, and as gaps.
+ * <p/>The histogram has an entry per call site, allocated class and thread. The number of entries
+ * is bounded: when it is reached, the smallest entries are merged into a single
+ * {@link #getOtherEntry() other} entry.
+ * <p/>The histogram can be exported with {@link #exportCsv(Writer)} and
+ * {@link #exportJson(Writer)}.
+ */
+public final class AllocationSampler implements IClientChangeListener {
+
+    /** Default time between two snapshots, in ms. */
+    public final static long DEFAULT_PERIOD = 2000;
+    /** Default max number of entries in the histogram. */
+    public final static int DEFAULT_MAX_ENTRIES = 10000;
+    /** Number of allocations kept by the allocation tracker of the VM. */
+    final static int TRACKER_SIZE = 512;
+
+    private final static String CSV_HEADER =
+        "Call Site,Allocated Class,Thread Id,Count,Bytes"; //$NON-NLS-1$
+
+    /**
+     * An entry of the histogram: the allocations of a class, by a thread, from a call site.
+     */
+    public static final class Entry {
+        private final StackTraceElement mCallSite;
+        private final String mAllocatedClass;
+        private final int mThreadId;
+        private long mCount = 0;
+        private long mBytes = 0;
+
+        Entry(StackTraceElement callSite, String allocatedClass, int threadId) {
+            mCallSite = callSite;
+            mAllocatedClass = allocatedClass;
+            mThreadId = threadId;
+        }
+
+        /**
+         * Returns the method that performed the allocations, or <code>null</code> if the
+         * allocations had no stack trace, or for the {@link AllocationSampler#getOtherEntry()
+         * other} entry.
+         */
+        public StackTraceElement getCallSite() {
+            return mCallSite;
+        }
+
+        /**
+         * Returns the allocated class, or <code>null</code> for the
+         * {@link AllocationSampler#getOtherEntry() other} entry.
+         */
+        public String getAllocatedClass() {
+            return mAllocatedClass;
+        }
+
+        /**
+         * Returns the id of the thread that performed the allocations, or -1 for the
+         * {@link AllocationSampler#getOtherEntry() other} entry.
+         */
+        public int getThreadId() {
+            return mThreadId;
+        }
+
+        /**
+         * Returns the number of allocations.
+         */
+        public long getCount() {
+            return mCount;
+        }
+
+        /**
+         * Returns the total size of the allocations, in bytes.
+         */
+        public long getBytes() {
+            return mBytes;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof Entry) {
+                Entry other = (Entry) obj;
+                return mThreadId == other.mThreadId &&
+                        equals(mCallSite, other.mCallSite) &&
+                        equals(mAllocatedClass, other.mAllocatedClass);
+            }
+
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = mThreadId;
+            h = h * 31 + (mCallSite != null ? mCallSite.hashCode() : 0);
+            h = h * 31 + (mAllocatedClass != null ? mAllocatedClass.hashCode() : 0);
+            return h;
+        }
+
+        private static boolean equals(Object a, Object b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    /** Sorts the entries by total size, biggest first. */
+    private final static Comparator<Entry> BYTES_COMPARATOR = new Comparator<Entry>() {
+        public int compare(Entry e1, Entry e2) {
+            return e1.mBytes > e2.mBytes ? -1 : (e1.mBytes < e2.mBytes ? 1 : 0);
+        }
+    };
+
+    private final Client mClient;
+    private final long mPeriod;
+    private final int mMaxEntries;
+    private final int mTrackerSize;
+
+    private final HashMap<Entry, Entry> mEntries = new HashMap<Entry, Entry>();
+    private final Entry mOther = new Entry(null, null, -1);
+
+    /** fingerprints of the allocations of the last snapshot, oldest first. */
+    private long[] mLastFingerprints = new long[0];
+    private AllocationTable mLastTable;
+
+    private int mSnapshotCount = 0;
+    private int mGapCount = 0;
+    private int mSaturatedCount = 0;
+    private long mTotalCount = 0;
+    private long mTotalBytes = 0;
+
+    private Thread mThread;
+    private volatile boolean mRunning = false;
+
+    /**
+     * Creates a sampler with the default period and max number of entries.
+     * @param client the client to sample.
+     */
+    public AllocationSampler(Client client) {
+        this(client, DEFAULT_PERIOD, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Creates a sampler.
+     * @param client the client to sample.
+     * @param period the time between two snapshots, in ms.
+     * @param maxEntries the max number of entries in the histogram, not counting the
+     * {@link #getOtherEntry() other} entry.
+     */
+    public AllocationSampler(Client client, long period, int maxEntries) {
+        this(client, period, maxEntries, TRACKER_SIZE);
+    }
+
+    /**
+     * Creates a sampler for a VM whose allocation tracker keeps a given number of allocations.
+     */
+    AllocationSampler(Client client, long period, int maxEntries, int trackerSize) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be at least 1"); //$NON-NLS-1$
+        }
+
+        mClient = client;
+        mPeriod = period;
+        mMaxEntries = maxEntries;
+        mTrackerSize = trackerSize;
+    }
+
+    /**
+     * Returns the sampled client.
+     */
+    public Client getClient() {
+        return mClient;
+    }
+
+    /**
+     * Enables the allocation tracker of the client, and starts requesting its allocations
+     * periodically, until {@link #stop()} is called or the client goes away.
+     * <p/>The allocation tracker is left enabled when the sampling stops.
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+
+        AndroidDebugBridge.addClientChangeListener(this);
+        mClient.enableAllocationTracker(true);
+
+        mRunning = true;
+        mThread = new Thread("Allocation Sampler") { //$NON-NLS-1$
+            @Override
+            public void run() {
+                try {
+                    while (mRunning && mClient.isValid()) {
+                        try {
+                            Thread.sleep(mPeriod);
+                        } catch (InterruptedException e) {
+                            // stop() was called, which the loop will see.
+                            continue;
+                        }
+
+                        sample();
+                    }
+                } finally {
+                    // the client may have gone away without stop() being called.
+                    samplingEnded(this);
+                }
+            }
+        };
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Stops the sampling. The histogram is kept.
+     */
+    public synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+
+        mRunning = false;
+        mThread.interrupt();
+        mThread = null;
+        AndroidDebugBridge.removeClientChangeListener(this);
+    }
+
+    /**
+     * Returns whether the sampling is running. It stops when {@link #stop()} is called, or
+     * when the client goes away.
+     */
+    public synchronized boolean isRunning() {
+        return mThread != null;
+    }
+
+    /**
+     * Stops the sampling if it is still done by the given thread, which is ending.
+     */
+    private synchronized void samplingEnded(Thread thread) {
+        if (mThread == thread) {
+            stop();
+        }
+    }
+
+    /**
+     * Requests a snapshot of the allocations now. This is asynchronous: the snapshot is added
+     * to the histogram when the client receives it.
+     */
+    public void sample() {
+        if (mClient.isValid()) {
+            mClient.requestAllocationDetails();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.android.ddmlib.AndroidDebugBridge.IClientChangeListener#clientChanged(com.android.ddmlib.Client, int)
+     */
+    public void clientChanged(Client client, int changeMask) {
+        if (client == mClient && (changeMask & Client.CHANGE_HEAP_ALLOCATIONS) != 0) {
+            AllocationTable table = client.getClientData().getAllocationTable();
+            if (table != null) {
+                addSnapshot(table);
+            }
+        }
+    }
+
+    /**
+     * Adds the allocations of a snapshot that were not in the previous one.
+     * <p/>The allocations of both snapshots are in the order they were made, so the allocations
+     * already counted are the longest start of the new snapshot that matches the end of the
+     * previous one. Allocations are compared by their size, thread, class and stack trace, so
+     * identical allocations made repeatedly at the junction of two snapshots can't be told
+     * apart, and may be undercounted.
+     * <p/>When the tracker is full and the whole snapshot matches the previous one, nothing
+     * tells whether any allocation was made, so the snapshot is only counted as saturated.
+     */
+    synchronized void addSnapshot(AllocationTable table) {
+        if (table == mLastTable) {
+            // the same snapshot, notified again.
+            return;
+        }
+
+        int[] indices = table.getReceivedOrder();
+        long[] fingerprints = new long[indices.length];
+        for (int i = 0 ; i < indices.length ; i++) {
+            fingerprints[i] = getFingerprint(table, indices[i]);
+        }
+
+        int overlap = getOverlap(mLastFingerprints, fingerprints);
+        if (overlap == 0 && mLastFingerprints.length > 0 && fingerprints.length > 0) {
+            // allocations may have been dropped by the VM before this snapshot.
+            mGapCount++;
+        } else if (overlap == fingerprints.length && fingerprints.length >= mTrackerSize) {
+            // either no allocation, or a full tracker of allocations identical to the last ones.
+            mSaturatedCount++;
+            mGapCount++;
+        }
+
+        for (int i = overlap ; i < indices.length ; i++) {
+            add(table, indices[i]);
+        }
+
+        mLastFingerprints = fingerprints;
+        mLastTable = table;
+        mSnapshotCount++;
+    }
+
+    /**
+     * Returns the number of snapshots added to the histogram.
+     */
+    public synchronized int getSnapshotCount() {
+        return mSnapshotCount;
+    }
+
+    /**
+     * Returns the number of snapshots that had no allocation in common with the previous
+     * snapshot. Allocations may have been missed before each of them; sampling more often
+     * avoids this.
+     */
+    public synchronized int getGapCount() {
+        return mGapCount;
+    }
+
+    /**
+     * Returns the number of snapshots of a full tracker that were identical to the previous
+     * snapshot. The allocations made before each of them are unknown, and they are also
+     * counted as gaps.
+     */
+    public synchronized int getSaturatedCount() {
+        return mSaturatedCount;
+    }
+
+    /**
+     * Returns the number of allocations counted.
+     */
+    public synchronized long getTotalCount() {
+        return mTotalCount;
+    }
+
+    /**
+     * Returns the total size of the allocations counted, in bytes.
+     */
+    public synchronized long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    /**
+     * Returns the entries of the histogram, biggest first. The returned entries are copies,
+     * which are not updated by later snapshots.
+     */
+    public synchronized Entry[] getEntries() {
+        Entry[] entries = new Entry[mEntries.size()];
+        int i = 0;
+        for (Entry entry : mEntries.values()) {
+            entries[i++] = copy(entry);
+        }
+        Arrays.sort(entries, BYTES_COMPARATOR);
+
+        return entries;
+    }
+
+    /**
+     * Returns a copy of the entry holding the allocations of the entries that were removed to
+     * keep the histogram under its max number of entries.
+     */
+    public synchronized Entry getOtherEntry() {
+        return copy(mOther);
+    }
+
+    /**
+     * Clears the histogram and the counters. The next snapshot is counted in full.
+     */
+    public synchronized void reset() {
+        mEntries.clear();
+        mOther.mCount = mOther.mBytes = 0;
+        mLastFingerprints = new long[0];
+        mLastTable = null;
+        mSnapshotCount = mGapCount = mSaturatedCount = 0;
+        mTotalCount = mTotalBytes = 0;
+    }
+
+    /**
+     * Writes the histogram as CSV, with a header line, then a line per entry, biggest first.
+     * The {@link #getOtherEntry() other} entry is written last if it is not empty, with
+     * <code>&lt;other&gt;</code> as call site.
+     * @param writer the writer to write to. It is not closed.
+     * @throws IOException
+     */
+    public void exportCsv(Writer writer) throws IOException {
+        Entry[] entries;
+        Entry other;
+        synchronized (this) {
+            entries = getEntries();
+            other = getOtherEntry();
+        }
+
+        writer.write(CSV_HEADER);
+        writer.write('\n');
+        for (Entry entry : entries) {
+            writer.write(csvField(entry.mCallSite != null ? entry.mCallSite.toString() : "")); //$NON-NLS-1$
+            writer.write(',');
+            writer.write(csvField(entry.mAllocatedClass));
+            writer.write(',');
+            writer.write(Integer.toString(entry.mThreadId));
+            writer.write(',');
+            writer.write(Long.toString(entry.mCount));
+            writer.write(',');
+            writer.write(Long.toString(entry.mBytes));
+            writer.write('\n');
+        }
+
+        if (other.mCount > 0) {
+            writer.write("<other>,,," + other.mCount + "," + other.mBytes + "\n"); //$NON-NLS-1$
+        }
+        writer.flush();
+    }
+
+    /**
+     * Writes the histogram and the counters as a JSON object.
+     * @param writer the writer to write to. It is not closed.
+     * @throws IOException
+     */
+    public void exportJson(Writer writer) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        synchronized (this) {
+            sb.append("{\n"); //$NON-NLS-1$
+            sb.append("  \"client\": ").append( //$NON-NLS-1$
+                    jsonString(mClient.getClientData().getClientDescription())).append(",\n");
+            sb.append("  \"pid\": ").append(mClient.getClientData().getPid()).append(",\n"); //$NON-NLS-1$
+            sb.append("  \"snapshots\": ").append(mSnapshotCount).append(",\n"); //$NON-NLS-1$
+            sb.append("  \"gaps\": ").append(mGapCount).append(",\n"); //$NON-NLS-1$
+            sb.append("  \"saturated\": ").append(mSaturatedCount).append(",\n"); //$NON-NLS-1$
+            sb.append("  \"count\": ").append(mTotalCount).append(",\n"); //$NON-NLS-1$
+            sb.append("  \"bytes\": ").append(mTotalBytes).append(",\n"); //$NON-NLS-1$
+            sb.append("  \"other\": { \"count\": ").append(mOther.mCount); //$NON-NLS-1$
+            sb.append(", \"bytes\": ").append(mOther.mBytes).append(" },\n"); //$NON-NLS-1$
+            sb.append("  \"entries\": ["); //$NON-NLS-1$
+
+            Entry[] entries = getEntries();
+            for (int i = 0 ; i < entries.length ; i++) {
+                Entry entry = entries[i];
+                sb.append(i == 0 ? "\n" : ",\n"); //$NON-NLS-1$ //$NON-NLS-2$
+                sb.append("    { \"callSite\": "); //$NON-NLS-1$
+                sb.append(entry.mCallSite != null ?
+                        jsonString(entry.mCallSite.toString()) : "null"); //$NON-NLS-1$
+                sb.append(", \"class\": ").append(jsonString(entry.mAllocatedClass)); //$NON-NLS-1$
+                sb.append(", \"thread\": ").append(entry.mThreadId); //$NON-NLS-1$
+                sb.append(", \"count\": ").append(entry.mCount); //$NON-NLS-1$
+                sb.append(", \"bytes\": ").append(entry.mBytes).append(" }"); //$NON-NLS-1$
+            }
+            sb.append(entries.length > 0 ? "\n  ]\n}\n" : "]\n}\n"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+
+        writer.write(sb.toString());
+        writer.flush();
+    }
+
+    private void add(AllocationTable table, int index) {
+        StackTraceElement callSite = table.getStackDepth(index) > 0 ?
+                table.getStackFrame(index, 0) : null;
+        Entry key = new Entry(callSite, table.getAllocatedClass(index),
+                table.getThreadId(index));
+
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            if (mEntries.size() >= mMaxEntries) {
+                trim();
+            }
+            entry = key;
+            mEntries.put(entry, entry);
+        }
+
+        int size = table.getSize(index);
+        entry.mCount++;
+        entry.mBytes += size;
+        mTotalCount++;
+        mTotalBytes += size;
+    }
+
+    /**
+     * Merges the smallest quarter of the entries into the other entry, so that the entries are
+     * not trimmed on each new call site.
+     */
+    private void trim() {
+        Entry[] entries = mEntries.values().toArray(new Entry[mEntries.size()]);
+        Arrays.sort(entries, BYTES_COMPARATOR);
+
+        int count = Math.max(1, entries.length / 4);
+        for (int i = entries.length - count ; i < entries.length ; i++) {
+            Entry entry = entries[i];
+            mOther.mCount += entry.mCount;
+            mOther.mBytes += entry.mBytes;
+            mEntries.remove(entry);
+        }
+    }
+
+    /**
+     * Returns a hash of the size, thread, class and stack trace of an allocation.
+     */
+    private static long getFingerprint(AllocationTable table, int index) {
+        long h = table.getSize(index);
+        h = h * 0x9E3779B97F4A7C15L + table.getThreadId(index);
+        h = h * 0x9E3779B97F4A7C15L + table.getAllocatedClass(index).hashCode();
+        int depth = table.getStackDepth(index);
+        for (int i = 0 ; i < depth ; i++) {
+            h = h * 0x9E3779B97F4A7C15L + table.getStackFrame(index, i).hashCode();
+        }
+
+        return h ^ (h >>> 29);
+    }
+
+    /**
+     * Returns the length of the longest end of <var>previous</var> that is also the start of
+     * <var>current</var>.
+     * <p/>This runs a Knuth-Morris-Pratt search of <var>current</var> in <var>previous</var>:
+     * what is matched when the end of <var>previous</var> is reached is the overlap.
+     */
+    static int getOverlap(long[] previous, long[] current) {
+        if (previous.length == 0 || current.length == 0) {
+            return 0;
+        }
+
+        // failure function: length of the longest proper prefix of current[0..i] that is also
+        // a suffix of it.
+        int[] failure = new int[current.length];
+        for (int i = 1, k = 0 ; i < current.length ; i++) {
+            while (k > 0 && current[i] != current[k]) {
+                k = failure[k - 1];
+            }
+            if (current[i] == current[k]) {
+                k++;
+            }
+            failure[i] = k;
+        }
+
+        int matched = 0;
+        for (long fingerprint : previous) {
+            while (matched > 0 && (matched == current.length || fingerprint != current[matched])) {
+                matched = failure[matched - 1];
+            }
+            if (fingerprint == current[matched]) {
+                matched++;
+            }
+        }
+
+        return matched;
+    }
+
+    private static Entry copy(Entry entry) {
+        Entry copy = new Entry(entry.mCallSite, entry.mAllocatedClass, entry.mThreadId);
+        copy.mCount = entry.mCount;
+        copy.mBytes = entry.mBytes;
+        return copy;
+    }
+
+    private static String csvField(String value) {
+        if (value == null) {
+            return ""; //$NON-NLS-1$
+        }
+
+        if (value.indexOf(',') == -1 && value.indexOf('"') == -1 &&
+                value.indexOf('\n') == -1 && value.indexOf('\r') == -1) {
+            return value;
+        }
+
+        return '"' + value.replace("\"", "\"\"") + '"'; //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    private static String jsonString(String value) {
+        if (value == null) {
+            return "null"; //$NON-NLS-1$
+        }
+
+        StringBuilder sb = new StringBuilder(value.length() + 2);
+        sb.append('"');
+        for (int i = 0 ; i < value.length() ; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\""); //$NON-NLS-1$
+                    break;
+                case '\\':
+                    sb.append("\\\\"); //$NON-NLS-1$
+                    break;
+                case '\n':
+                    sb.append("\\n"); //$NON-NLS-1$
+                    break;
+                case '\r':
+                    sb.append("\\r"); //$NON-NLS-1$
+                    break;
+                case '\t':
+                    sb.append("\\t"); //$NON-NLS-1$
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c)); //$NON-NLS-1$
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import java.util.Arrays;
+
+/**
+ * Recent allocations of a {@link Client}, as reported by the allocation tracker.
+ * <p/>The allocations are sorted by size, biggest first, and are accessed by their index in
+ * this order.
+ * <p/>The allocations are stored in columns of primitive arrays, and the frames of their
+ * stack traces are stored once in a table of unique frames, which the stack traces reference
+ * by index. {@link AllocationInfo} and {@link StackTraceElement} objects are only created when
+ * they are requested, and are then reused.
+ */
+public final class AllocationTable {
+
+    private final static int INITIAL_FRAME_CAPACITY = 256;
+
+    private final String[] mClassNames;
+    private final String[] mMethodNames;
+    private final String[] mFileNames;
+
+    // allocation columns, in the order the allocations were added.
+    private int mCount = 0;
+    private final int[] mSizes;
+    private final int[] mThreadIds;
+    private final int[] mClassIndices;
+    /** offset of the stack trace of each allocation in {@link #mStacks}, plus the end. */
+    private final int[] mStackOffsets;
+    /** the frames of all the stack traces, as indices in the frame table. */
+    private int[] mStacks = new int[INITIAL_FRAME_CAPACITY];
+    private int mStackLength = 0;
+
+    /** allocation added at each position of the sorted order. */
+    private int[] mOrder;
+
+    // table of unique frames. Each frame is a packed class, method, file and line.
+    private long[] mFrames = new long[INITIAL_FRAME_CAPACITY];
+    private int mFrameCount = 0;
+    /** open addressing hash of the frames, holding frame index + 1, or 0 if empty. */
+    private int[] mFrameHash = new int[INITIAL_FRAME_CAPACITY * 2];
+
+    // lazily created objects.
+    private AllocationInfo[] mInfos;
+    private StackTraceElement[] mFrameElements;
+
+    /**
+     * Creates an empty table.
+     * @param classNames the class names referenced by the allocations and their frames.
+     * @param methodNames the method names referenced by the frames.
+     * @param fileNames the source file names referenced by the frames.
+     * @param capacity the number of allocations that will be added.
+     */
+    AllocationTable(String[] classNames, String[] methodNames, String[] fileNames,
+            int capacity) {
+        mClassNames = classNames;
+        mMethodNames = methodNames;
+        mFileNames = fileNames;
+
+        mSizes = new int[capacity];
+        mThreadIds = new int[capacity];
+        mClassIndices = new int[capacity];
+        mStackOffsets = new int[capacity + 1];
+    }
+
+    /**
+     * Adds an allocation. Its frames must be added next, with {@link #addFrame(int, int, int, int)}.
+     * @param size the size of the allocation.
+     * @param threadId the id of the thread that performed the allocation.
+     * @param classIndex the index of the allocated class in the class names.
+     */
+    void addAllocation(int size, int threadId, int classIndex) {
+        mSizes[mCount] = size;
+        mThreadIds[mCount] = threadId;
+        mClassIndices[mCount] = classIndex;
+        mCount++;
+        mStackOffsets[mCount] = mStackLength;
+    }
+
+    /**
+     * Adds a frame to the stack trace of the last added allocation.
+     * @param classIndex the index of the class of the method in the class names.
+     * @param methodIndex the index of the method in the method names.
+     * @param fileIndex the index of the source file in the file names.
+     * @param lineNumber the line number, or -1 if unknown, -2 for a native method.
+     */
+    void addFrame(int classIndex, int methodIndex, int fileIndex, int lineNumber) {
+        long frame = (long)(classIndex & 0xffff) << 48 |
+                (long)(methodIndex & 0xffff) << 32 |
+                (long)(fileIndex & 0xffff) << 16 |
+                (lineNumber & 0xffff);
+
+        if (mStackLength == mStacks.length) {
+            int[] stacks = new int[mStackLength * 2];
+            System.arraycopy(mStacks, 0, stacks, 0, mStackLength);
+            mStacks = stacks;
+        }
+        mStacks[mStackLength++] = getFrameIndex(frame);
+        mStackOffsets[mCount] = mStackLength;
+    }
+
+    /**
+     * Sorts the allocations, biggest first. This must be called once all the allocations are
+     * added, before the table is used.
+     */
+    void sort() {
+        // the keys hold the negated size, then the position, which keeps the sort stable.
+        long[] keys = new long[mCount];
+        for (int i = 0 ; i < mCount ; i++) {
+            keys[i] = -(long)mSizes[i] << 32 | i;
+        }
+        Arrays.sort(keys);
+
+        mOrder = new int[mCount];
+        for (int i = 0 ; i < mCount ; i++) {
+            mOrder[i] = (int)keys[i];
+        }
+    }
+
+    /**
+     * Returns the number of allocations.
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the size of an allocation.
+     * @param index the index of the allocation, between 0 and {@link #getCount()} - 1.
+     */
+    public int getSize(int index) {
+        return mSizes[mOrder[index]];
+    }
+
+    /**
+     * Returns the id of the thread that performed an allocation.
+     * @param index the index of the allocation, between 0 and {@link #getCount()} - 1.
+     */
+    public short getThreadId(int index) {
+        return (short)mThreadIds[mOrder[index]];
+    }
+
+    /**
+     * Returns the name of the class allocated by an allocation.
+     * @param index the index of the allocation, between 0 and {@link #getCount()} - 1.
+     */
+    public String getAllocatedClass(int index) {
+        return mClassNames[mClassIndices[mOrder[index]]];
+    }
+
+    /**
+     * Returns the number of frames in the stack trace of an allocation.
+     * @param index the index of the allocation, between 0 and {@link #getCount()} - 1.
+     */
+    public int getStackDepth(int index) {
+        int row = mOrder[index];
+        return mStackOffsets[row + 1] - mStackOffsets[row];
+    }
+
+    /**
+     * Returns a frame of the stack trace of an allocation.
+     * @param index the index of the allocation, between 0 and {@link #getCount()} - 1.
+     * @param depth the depth of the frame, 0 being the method that performed the allocation.
+     */
+    public StackTraceElement getStackFrame(int index, int depth) {
+        return getFrameElement(mStacks[mStackOffsets[mOrder[index]] + depth]);
+    }
+
+    /**
+     * Returns the stack trace of an allocation. The {@link StackTraceElement} objects are shared
+     * with the other stack traces containing the same frames.
+     * @param index the index of the allocation, between 0 and {@link #getCount()} - 1.
+     */
+    public StackTraceElement[] getStackTrace(int index) {
+        StackTraceElement[] trace = new StackTraceElement[getStackDepth(index)];
+        for (int i = 0 ; i < trace.length ; i++) {
+            trace[i] = getStackFrame(index, i);
+        }
+
+        return trace;
+    }
+
+    /**
+     * Returns the index of each allocation in the order they were received, which is the order
+     * in which the VM made them, oldest first.
+     */
+    int[] getReceivedOrder() {
+        int[] indices = new int[mCount];
+        for (int i = 0 ; i < mCount ; i++) {
+            indices[mOrder[i]] = i;
+        }
+
+        return indices;
+    }
+
+    /**
+     * Returns the number of unique frames in the stack traces of the allocations.
+     */
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Returns an {@link AllocationInfo} for an allocation. The object is created the first time
+     * it is requested.
+     * @param index the index of the allocation, between 0 and {@link #getCount()} - 1.
+     */
+    public synchronized AllocationInfo getAllocation(int index) {
+        if (mInfos == null) {
+            mInfos = new AllocationInfo[mCount];
+        }
+
+        AllocationInfo info = mInfos[index];
+        if (info == null) {
+            info = mInfos[index] = new AllocationInfo(this, index);
+        }
+
+        return info;
+    }
+
+    /**
+     * Returns an {@link AllocationInfo} for each allocation, biggest first.
+     * <p/>This creates all the objects; {@link #getAllocation(int)} only creates the ones that
+     * are actually used.
+     */
+    public AllocationInfo[] getAllocations() {
+        AllocationInfo[] infos = new AllocationInfo[mCount];
+        for (int i = 0 ; i < mCount ; i++) {
+            infos[i] = getAllocation(i);
+        }
+
+        return infos;
+    }
+
+    private synchronized StackTraceElement getFrameElement(int frameIndex) {
+        if (mFrameElements == null) {
+            mFrameElements = new StackTraceElement[mFrameCount];
+        }
+
+        StackTraceElement element = mFrameElements[frameIndex];
+        if (element == null) {
+            long frame = mFrames[frameIndex];
+            element = mFrameElements[frameIndex] = new StackTraceElement(
+                    mClassNames[(int)(frame >>> 48)],
+                    mMethodNames[(int)(frame >>> 32) & 0xffff],
+                    mFileNames[(int)(frame >>> 16) & 0xffff],
+                    (short)frame);
+        }
+
+        return element;
+    }
+
+    /**
+     * Returns the index of a frame in the frame table, adding it if needed.
+     */
+    private int getFrameIndex(long frame) {
+        int mask = mFrameHash.length - 1;
+        int slot = hash(frame) & mask;
+        int entry;
+        while ((entry = mFrameHash[slot]) != 0) {
+            if (mFrames[entry - 1] == frame) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (mFrameCount == mFrames.length) {
+            long[] frames = new long[mFrameCount * 2];
+            System.arraycopy(mFrames, 0, frames, 0, mFrameCount);
+            mFrames = frames;
+        }
+        int index = mFrameCount++;
+        mFrames[index] = frame;
+        mFrameHash[slot] = index + 1;
+
+        // keep the hash at most half full.
+        if (mFrameCount * 2 > mFrameHash.length) {
+            rehash();
+        }
+
+        return index;
+    }
+
+    private void rehash() {
+        int[] hash = new int[mFrameHash.length * 2];
+        int mask = hash.length - 1;
+        for (int i = 0 ; i < mFrameCount ; i++) {
+            int slot = hash(mFrames[i]) & mask;
+            while (hash[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            hash[slot] = i + 1;
+        }
+        mFrameHash = hash;
+    }
+
+    private static int hash(long frame) {
+        long h = frame * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+}
@@ -442,6 +442,15 @@ public final class AndroidDebugBridge {
         }
     }
 
+    /**
+     * Returns whether the listener is notified when a {@link Client} property changed.
+     */
+    static boolean hasClientChangeListener(IClientChangeListener listener) {
+        synchronized (sLock) {
+            return sClientListeners.contains(listener);
+        }
+    }
+
 
     /**
      * Returns the devices.
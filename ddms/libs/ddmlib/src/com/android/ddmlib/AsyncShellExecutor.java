@@ -0,0 +1,574 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs shell commands on devices without blocking the calling threads.
+ * <p/>All the adb connections are driven by a single thread, waiting on a {@link Selector}.
+ * The number of commands running at the same time on a given device is bounded by
+ * {@link DdmPreferences#getMaxShellCommandsPerDevice()}. Extra commands are queued and started
+ * in order as running ones finish.
+ * <p/>The {@link IShellOutputReceiver} objects are called from the executor thread, and should
+ * therefore not do any lengthy processing.
+ */
+final class AsyncShellExecutor {
+
+    /** Phase: connecting to adb. */
+    private static final int PHASE_CONNECT = 0;
+    /** Phase: selecting the device with a <code>host:transport:</code> request. */
+    private static final int PHASE_TRANSPORT = 1;
+    /** Phase: sending the <code>shell:</code> request. */
+    private static final int PHASE_SHELL = 2;
+    /** Phase: receiving the output of the command. */
+    private static final int PHASE_OUTPUT = 3;
+
+    /** Step of a request: sending it. */
+    private static final int STEP_WRITE = 0;
+    /** Step of a request: reading the OKAY/FAIL status. */
+    private static final int STEP_STATUS = 1;
+    /** Step of a request: reading the length of the FAIL message. */
+    private static final int STEP_FAIL_LENGTH = 2;
+    /** Step of a request: reading the FAIL message. */
+    private static final int STEP_FAIL_MESSAGE = 3;
+
+    private static AsyncShellExecutor sInstance;
+
+    private final Object mLock = new Object();
+
+    /** Commands ready to be started by the executor thread. */
+    private final LinkedList<ShellCommand> mStartQueue = new LinkedList<ShellCommand>();
+
+    /** Commands waiting for a free slot on their device, per device serial number. */
+    private final Map<String, LinkedList<ShellCommand>> mWaitQueues =
+        new HashMap<String, LinkedList<ShellCommand>>();
+
+    /** Number of commands started and not yet finished, per device serial number. */
+    private final Map<String, Integer> mRunningCounts = new HashMap<String, Integer>();
+
+    /** Commands currently driven by the selector. Only accessed by the executor thread. */
+    private final ArrayList<ShellCommand> mActiveCommands = new ArrayList<ShellCommand>();
+
+    private Selector mSelector;
+
+    /**
+     * A shell command running or waiting to run. This is also the {@link Future} handed to
+     * the caller.
+     */
+    private final class ShellCommand implements Future<Void> {
+        private final InetSocketAddress mAdbSockAddr;
+        private final String mCommand;
+        private final IDevice mDevice;
+        private final String mDeviceKey;
+        private final IShellOutputReceiver mReceiver;
+        private final int mMaxTimeToOutputResponse;
+
+        // the fields below are only accessed by the executor thread.
+        private SocketChannel mChannel;
+        private SelectionKey mKey;
+        private int mPhase = PHASE_CONNECT;
+        private int mStep;
+        private ByteBuffer mBuffer;
+        private long mDeadline;
+
+        // the fields below are guarded by "this"
+        private boolean mDone = false;
+        private boolean mCancelled = false;
+        private Throwable mError;
+
+        ShellCommand(InetSocketAddress adbSockAddr, String command, IDevice device,
+                IShellOutputReceiver receiver, int maxTimeToOutputResponse) {
+            mAdbSockAddr = adbSockAddr;
+            mCommand = command;
+            mDevice = device;
+            mDeviceKey = device != null ? device.getSerialNumber() : ""; //$NON-NLS-1$
+            mReceiver = receiver;
+            mMaxTimeToOutputResponse = maxTimeToOutputResponse;
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (this) {
+                if (mDone) {
+                    return false;
+                }
+                mCancelled = true;
+                mDone = true;
+                notifyAll();
+            }
+
+            // let the executor thread close the connection.
+            wakeup();
+            return true;
+        }
+
+        public synchronized boolean isCancelled() {
+            return mCancelled;
+        }
+
+        public synchronized boolean isDone() {
+            return mDone;
+        }
+
+        public synchronized Void get() throws InterruptedException, ExecutionException {
+            while (mDone == false) {
+                wait();
+            }
+
+            return getResult();
+        }
+
+        public synchronized Void get(long timeout, TimeUnit unit) throws InterruptedException,
+                ExecutionException, java.util.concurrent.TimeoutException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (mDone == false) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new java.util.concurrent.TimeoutException();
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+
+            return getResult();
+        }
+
+        private Void getResult() throws ExecutionException {
+            if (mCancelled) {
+                throw new CancellationException();
+            }
+            if (mError != null) {
+                throw new ExecutionException(mError);
+            }
+            return null;
+        }
+
+        /**
+         * Marks the command as finished.
+         * @param error the error that stopped the command, or null if it completed normally.
+         */
+        private synchronized void setDone(Throwable error) {
+            if (mDone == false) {
+                mError = error;
+                mDone = true;
+                notifyAll();
+            }
+        }
+
+        /**
+         * Opens the connection to adb. Called from the executor thread.
+         */
+        private void start() throws IOException {
+            Log.v("ddms", "execute async: running " + mCommand);
+
+            mChannel = SocketChannel.open();
+            mChannel.configureBlocking(false);
+            mChannel.socket().setTcpNoDelay(true);
+            mDeadline = AdbHelper.getDeadline(DdmPreferences.getTimeOut());
+            if (mChannel.connect(mAdbSockAddr)) {
+                mKey = mChannel.register(mSelector, 0, this);
+                onConnected();
+            } else {
+                mKey = mChannel.register(mSelector, SelectionKey.OP_CONNECT, this);
+            }
+        }
+
+        /**
+         * Processes a selection event. Called from the executor thread.
+         * @return true if the command is finished.
+         */
+        private boolean handleEvent() throws IOException, AdbCommandRejectedException {
+            if (mKey.isConnectable()) {
+                if (mChannel.finishConnect() == false) {
+                    return false;
+                }
+                onConnected();
+                return false;
+            }
+
+            if (mPhase == PHASE_OUTPUT) {
+                return readOutput();
+            }
+
+            if (mStep == STEP_WRITE) {
+                if (mChannel.write(mBuffer) > 0) {
+                    mDeadline = AdbHelper.getDeadline(DdmPreferences.getTimeOut());
+                }
+                if (mBuffer.hasRemaining() == false) {
+                    mStep = STEP_STATUS;
+                    mBuffer = ByteBuffer.allocate(4);
+                    mKey.interestOps(SelectionKey.OP_READ);
+                }
+                return false;
+            }
+
+            int count = mChannel.read(mBuffer);
+            if (count < 0) {
+                throw new IOException("EOF");
+            } else if (count > 0) {
+                mDeadline = AdbHelper.getDeadline(DdmPreferences.getTimeOut());
+            }
+
+            if (mBuffer.hasRemaining()) {
+                return false;
+            }
+
+            switch (mStep) {
+                case STEP_STATUS:
+                    if (AdbHelper.isOkay(mBuffer.array())) {
+                        onRequestAccepted();
+                    } else {
+                        mStep = STEP_FAIL_LENGTH;
+                        mBuffer = ByteBuffer.allocate(4);
+                    }
+                    break;
+                case STEP_FAIL_LENGTH:
+                    int length;
+                    try {
+                        length = Integer.parseInt(AdbHelper.replyToString(mBuffer.array()), 16);
+                    } catch (NumberFormatException e) {
+                        length = 0;
+                    }
+                    if (length > 0) {
+                        mStep = STEP_FAIL_MESSAGE;
+                        mBuffer = ByteBuffer.allocate(length);
+                    } else {
+                        onRequestRejected(""); //$NON-NLS-1$
+                    }
+                    break;
+                case STEP_FAIL_MESSAGE:
+                    onRequestRejected(AdbHelper.replyToString(mBuffer.array()));
+                    break;
+            }
+
+            return false;
+        }
+
+        private void onConnected() {
+            if (mDevice != null) {
+                sendRequest(PHASE_TRANSPORT,
+                        "host:transport:" + mDevice.getSerialNumber()); //$NON-NLS-1$
+            } else {
+                sendRequest(PHASE_SHELL, "shell:" + mCommand); //$NON-NLS-1$
+            }
+        }
+
+        private void sendRequest(int phase, String request) {
+            mPhase = phase;
+            mStep = STEP_WRITE;
+            mBuffer = ByteBuffer.wrap(AdbHelper.formAdbRequest(request));
+            mKey.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        private void onRequestAccepted() {
+            if (mPhase == PHASE_TRANSPORT) {
+                sendRequest(PHASE_SHELL, "shell:" + mCommand); //$NON-NLS-1$
+            } else {
+                mPhase = PHASE_OUTPUT;
+                mBuffer = ByteBuffer.allocate(16384);
+                mDeadline = AdbHelper.getDeadline(mMaxTimeToOutputResponse);
+                mKey.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        private void onRequestRejected(String message) throws AdbCommandRejectedException {
+            if (mPhase == PHASE_TRANSPORT) {
+                throw new AdbCommandRejectedException(message,
+                        true /*errorDuringDeviceSelection*/);
+            }
+
+            Log.e("ddms", "ADB rejected shell command (" + mCommand + "): " + message);
+            throw new AdbCommandRejectedException(message);
+        }
+
+        /**
+         * Reads the output available, one buffer at most, so that a chatty command doesn't hold
+         * up the other commands. The selector reports the channel again if more is available.
+         * @return true if the command is finished.
+         */
+        private boolean readOutput() throws IOException {
+            int count = mChannel.read(mBuffer);
+            if (count < 0) {
+                // we're at the end, we flush the output
+                if (mReceiver != null) {
+                    mReceiver.flush();
+                }
+                Log.v("ddms", "execute async '" + mCommand + "' on '" + mDevice
+                        + "' : EOF hit.");
+                return true;
+            } else if (count == 0) {
+                return false;
+            }
+
+            mDeadline = AdbHelper.getDeadline(mMaxTimeToOutputResponse);
+
+            if (mReceiver != null) {
+                mReceiver.addOutput(mBuffer.array(), mBuffer.arrayOffset(),
+                        mBuffer.position());
+                if (mReceiver.isCancelled()) {
+                    return true;
+                }
+            }
+            mBuffer.rewind();
+
+            return false;
+        }
+
+        /**
+         * Checks whether the command should be stopped for reasons other than I/O events.
+         * Called from the executor thread.
+         * @return true if the command is finished.
+         */
+        private boolean checkState() {
+            if (isDone()) {
+                // cancelled through the Future.
+                return true;
+            }
+
+            if (mReceiver != null && mReceiver.isCancelled()) {
+                Log.v("ddms", "execute async: cancelled");
+                return true;
+            }
+
+            if (AdbHelper.isExpired(mDeadline)) {
+                if (mPhase == PHASE_OUTPUT) {
+                    if (mMaxTimeToOutputResponse > 0) {
+                        setDone(new ShellCommandUnresponsiveException());
+                        return true;
+                    }
+                } else {
+                    setDone(new TimeoutException());
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        /**
+         * Closes the connection to adb. Called from the executor thread.
+         */
+        private void close() {
+            if (mKey != null) {
+                mKey.cancel();
+            }
+            if (mChannel != null) {
+                try {
+                    mChannel.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+            Log.v("ddms", "execute async: returning");
+        }
+    }
+
+    /**
+     * Returns the shared executor, creating it if needed.
+     */
+    static synchronized AsyncShellExecutor getInstance() {
+        if (sInstance == null) {
+            sInstance = new AsyncShellExecutor();
+        }
+
+        return sInstance;
+    }
+
+    /**
+     * Starts running a shell command on a device. This call does not block.
+     *
+     * @param adbSockAddr the {@link InetSocketAddress} to adb.
+     * @param command the shell command to execute
+     * @param device the {@link IDevice} on which to execute the command.
+     * @param rcvr the {@link IShellOutputReceiver} that will receives the output of the shell
+     *            command
+     * @param maxTimeToOutputResponse max time between command output. A value of 0 means the
+     *            command will wait forever for command output.
+     * @return a {@link Future} to wait for the completion of the command, or to cancel it.
+     * @throws IOException if the executor thread could not be started.
+     *
+     * @see AdbHelper#executeRemoteCommand(InetSocketAddress, String, IDevice,
+     *      IShellOutputReceiver, int)
+     */
+    Future<Void> execute(InetSocketAddress adbSockAddr, String command, IDevice device,
+            IShellOutputReceiver rcvr, int maxTimeToOutputResponse) throws IOException {
+        ShellCommand shellCommand = new ShellCommand(adbSockAddr, command, device, rcvr,
+                maxTimeToOutputResponse);
+
+        synchronized (mLock) {
+            if (mSelector == null) {
+                startThread();
+            }
+
+            Integer running = mRunningCounts.get(shellCommand.mDeviceKey);
+            int count = running != null ? running.intValue() : 0;
+            if (count < DdmPreferences.getMaxShellCommandsPerDevice()) {
+                mRunningCounts.put(shellCommand.mDeviceKey, count + 1);
+                mStartQueue.add(shellCommand);
+            } else {
+                LinkedList<ShellCommand> queue = mWaitQueues.get(shellCommand.mDeviceKey);
+                if (queue == null) {
+                    queue = new LinkedList<ShellCommand>();
+                    mWaitQueues.put(shellCommand.mDeviceKey, queue);
+                }
+                queue.add(shellCommand);
+            }
+        }
+
+        wakeup();
+        return shellCommand;
+    }
+
+    /**
+     * Starts the executor thread. Must be called with {@link #mLock} held.
+     */
+    private void startThread() throws IOException {
+        mSelector = Selector.open();
+
+        Thread t = new Thread("Shell Command Executor") { //$NON-NLS-1$
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        runOnce();
+                    } catch (IOException e) {
+                        Log.e("ddms", "Shell Command Executor: " + e.getMessage());
+                    } catch (Exception e) {
+                        Log.e("ddms", e);
+                    }
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void wakeup() {
+        synchronized (mLock) {
+            if (mSelector != null) {
+                mSelector.wakeup();
+            }
+        }
+    }
+
+    /**
+     * Runs one iteration of the executor loop.
+     */
+    private void runOnce() throws IOException {
+        // wait for I/O events. When commands are running we wake up regularly to check
+        // for timeouts and cancellations.
+        if (mActiveCommands.size() > 0) {
+            mSelector.select(AdbHelper.CANCEL_CHECK_INTERVAL);
+        } else {
+            mSelector.select();
+        }
+
+        // handle the I/O events
+        Iterator<SelectionKey> iter = mSelector.selectedKeys().iterator();
+        while (iter.hasNext()) {
+            SelectionKey key = iter.next();
+            iter.remove();
+
+            ShellCommand command = (ShellCommand)key.attachment();
+            if (key.isValid() == false || command.isDone()) {
+                continue;
+            }
+
+            try {
+                if (command.handleEvent()) {
+                    command.setDone(null);
+                }
+            } catch (Exception e) {
+                command.setDone(e);
+            }
+        }
+
+        // close the finished commands.
+        for (int i = mActiveCommands.size() - 1 ; i >= 0 ; i--) {
+            ShellCommand command = mActiveCommands.get(i);
+            if (command.checkState()) {
+                command.setDone(null);
+                command.close();
+                mActiveCommands.remove(i);
+                onCommandFinished(command);
+            }
+        }
+
+        // start the new commands.
+        while (true) {
+            ShellCommand command;
+            synchronized (mLock) {
+                command = mStartQueue.poll();
+            }
+            if (command == null) {
+                break;
+            }
+
+            if (command.isDone()) {
+                // cancelled before it could start.
+                onCommandFinished(command);
+                continue;
+            }
+
+            try {
+                command.start();
+                mActiveCommands.add(command);
+            } catch (IOException e) {
+                command.setDone(e);
+                command.close();
+                onCommandFinished(command);
+            }
+        }
+    }
+
+    /**
+     * Releases the device slot of a finished command, and schedules the next waiting command
+     * for the same device, if any.
+     */
+    private void onCommandFinished(ShellCommand command) {
+        synchronized (mLock) {
+            LinkedList<ShellCommand> queue = mWaitQueues.get(command.mDeviceKey);
+            if (queue != null && queue.size() > 0) {
+                // the slot goes to the next command.
+                mStartQueue.add(queue.removeFirst());
+                if (queue.size() == 0) {
+                    mWaitQueues.remove(command.mDeviceKey);
+                }
+            } else {
+                int count = mRunningCounts.get(command.mDeviceKey).intValue() - 1;
+                if (count > 0) {
+                    mRunningCounts.put(command.mDeviceKey, count);
+                } else {
+                    mRunningCounts.remove(command.mDeviceKey);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs the work triggered by the {@link Client} connections, like the handling of the DDM
+ * chunks, outside of the {@link MonitorThread}.
+ * <p/>The tasks of a given client run one at a time, in the order they were dispatched, so
+ * that a {@link ChunkHandler} sees the chunks of a client in the order they arrived. The tasks
+ * of different clients run in parallel on a shared pool of threads, so that a slow handler only
+ * delays the client it is handling.
+ */
+final class ChunkDispatcher {
+
+    /**
+     * Number of threads running the tasks. Handlers can block on I/O, so there are always a
+     * few of them, even with a single processor.
+     */
+    private final static int THREAD_COUNT =
+        Math.max(4, Runtime.getRuntime().availableProcessors());
+
+    private final ExecutorService mExecutor;
+
+    /** Queues of the clients with pending tasks. */
+    private final HashMap<Client, ClientQueue> mQueues = new HashMap<Client, ClientQueue>();
+
+    private boolean mShutdown = false;
+
+    /**
+     * Pending tasks of a client. The queue is submitted to the executor when its first task is
+     * added, and runs until it is empty.
+     */
+    private final class ClientQueue implements Runnable {
+        private final Client mClient;
+        private final LinkedList<Runnable> mTasks = new LinkedList<Runnable>();
+
+        ClientQueue(Client client) {
+            mClient = client;
+        }
+
+        public void run() {
+            while (true) {
+                Runnable task;
+                synchronized (mQueues) {
+                    task = mTasks.poll();
+                    if (task == null) {
+                        mQueues.remove(mClient);
+                        return;
+                    }
+                }
+
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    // the tasks handle their own errors; don't let a bad one stop the others.
+                    Log.e("ddms", e);
+                }
+            }
+        }
+    }
+
+    ChunkDispatcher() {
+        mExecutor = Executors.newFixedThreadPool(THREAD_COUNT, new ThreadFactory() {
+            private int mCount = 0;
+
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Chunk Handler " + mCount++); //$NON-NLS-1$
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Queues a task for a client. The task runs after all the tasks previously dispatched for
+     * the same client.
+     * <p/>Tasks dispatched after {@link #shutdown()} are ignored.
+     */
+    void dispatch(Client client, Runnable task) {
+        synchronized (mQueues) {
+            if (mShutdown) {
+                return;
+            }
+
+            ClientQueue queue = mQueues.get(client);
+            if (queue != null) {
+                // the queue is running, and will pick up the task.
+                queue.mTasks.add(task);
+                return;
+            }
+
+            queue = new ClientQueue(client);
+            queue.mTasks.add(task);
+            try {
+                mExecutor.execute(queue);
+                mQueues.put(client, queue);
+            } catch (RejectedExecutionException e) {
+                Log.e("ddms", e);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of tasks waiting to run for a client.
+     */
+    int getPendingCount(Client client) {
+        synchronized (mQueues) {
+            ClientQueue queue = mQueues.get(client);
+            return queue != null ? queue.mTasks.size() : 0;
+        }
+    }
+
+    /**
+     * Stops accepting new tasks. The tasks already dispatched still run.
+     */
+    void shutdown() {
+        synchronized (mQueues) {
+            mShutdown = true;
+            mExecutor.shutdown();
+        }
+    }
+}
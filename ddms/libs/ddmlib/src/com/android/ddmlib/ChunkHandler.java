@@ -18,6 +18,7 @@ package com.android.ddmlib;
 
 import com.android.ddmlib.DebugPortManager.IDebugPortProvider;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -65,6 +66,26 @@ abstract class ChunkHandler {
     abstract void handleChunk(Client client, int type,
         ByteBuffer data, boolean isReply, int msgId);
 
+    /**
+     * Returns a file to receive the data of a reply chunk that can be too large to be read in
+     * memory, or <code>null</code> if the chunk must be given to {@link #handleChunk}.
+     * <p/>The data of the chunk is written to the file as it arrives, and the file is then
+     * given to {@link #handleStreamedChunk(Client, int, File, int)}.
+     * <p/>The default implementation returns <code>null</code>.
+     */
+    File createStreamedChunkFile(int type) throws IOException {
+        return null;
+    }
+
+    /**
+     * Handle a reply chunk whose data was streamed to the file returned by
+     * {@link #createStreamedChunkFile(int)}.
+     * @param file the file containing the data of the chunk, or <code>null</code> if writing
+     * it failed.
+     */
+    void handleStreamedChunk(Client client, int type, File file, int msgId) {
+    }
+
     /**
      * Handle chunks not recognized by handlers.  The handleChunk() method
      * in sub-classes should call this if the chunk type isn't recognized.
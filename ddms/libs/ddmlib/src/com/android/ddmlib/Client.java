@@ -20,9 +20,14 @@ import com.android.ddmlib.ClientData.MethodProfilingStatus;
 import com.android.ddmlib.DebugPortManager.IDebugPortProvider;
 import com.android.ddmlib.AndroidDebugBridge.IClientChangeListener;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
@@ -95,14 +100,34 @@ public class Client {
      *
      * Pass-through debugger traffic is sent without copying.  "mWriteBuffer"
      * is only used for data generated within Client.
+     *
+     * The read buffers come from the shared ReadBufferPool.  The buffer only
+     * grows to hold a packet that doesn't fit, and goes back to the initial
+     * size once the large packets are consumed.
      */
-    private static final int INITIAL_BUF_SIZE = 2*1024;
+    private static final int INITIAL_BUF_SIZE = ReadBufferPool.MIN_SIZE;
     private static final int MAX_BUF_SIZE = 200*1024*1024;
     private ByteBuffer mReadBuffer;
+    /** Whether the read buffer went back to the pool. Only used by the MonitorThread. */
+    private boolean mReadBufferReleased = false;
 
     private static final int WRITE_BUF_SIZE = 256;
     private ByteBuffer mWriteBuffer;
 
+    /*
+     * Reply chunk being streamed to a file (see ChunkHandler.createStreamedChunkFile).
+     * While "mStreamHandler" is set, the data read from the client goes to
+     * "mStreamChannel" until "mStreamRemaining" bytes are written.  If writing
+     * the file fails, "mStreamChannel" is null and the rest of the chunk is
+     * skipped.
+     */
+    private ChunkHandler mStreamHandler;
+    private int mStreamType;
+    private int mStreamId;
+    private File mStreamFile;
+    private FileChannel mStreamChannel;
+    private long mStreamRemaining;
+
     private Device mDevice;
 
     private int mConnState;
@@ -128,7 +153,7 @@ public class Client {
         mDevice = device;
         mChan = chan;
 
-        mReadBuffer = ByteBuffer.allocate(INITIAL_BUF_SIZE);
+        mReadBuffer = ReadBufferPool.getInstance().acquire(INITIAL_BUF_SIZE);
         mWriteBuffer = ByteBuffer.allocate(WRITE_BUF_SIZE);
 
         mOutstandingReqs = new HashMap<Integer,ChunkHandler>();
@@ -603,27 +628,43 @@ public class Client {
      * This is called when data is known to be available, and we don't yet
      * have a full packet in the buffer.  If the buffer is at capacity,
      * expand it.
+     *
+     * Reply chunks that can be very large, like HPROF dumps, are written to a
+     * file as they arrive, so they never need to fit in the buffer.
      */
     void read()
         throws IOException, BufferOverflowException {
 
         int count;
 
-        if (mReadBuffer.position() == mReadBuffer.capacity()) {
-            if (mReadBuffer.capacity() * 2 > MAX_BUF_SIZE) {
+        if (mReadBufferReleased) {
+            // don't take a new buffer from the pool for a closed client.
+            throw new ClosedChannelException();
+        }
+
+        // the packets before it may have been consumed since the last read.
+        if (mStreamHandler == null) {
+            startStreamedChunk();
+        }
+
+        if (mStreamHandler == null && mReadBuffer.position() == mReadBuffer.capacity()) {
+            // the buffer only holds the start of a packet.  If we know its
+            // length, make room for all of it at once.
+            int newSize = mReadBuffer.capacity() * 2;
+            if (mConnState != ST_AWAIT_SHAKE) {
+                JdwpPacket packet = JdwpPacket.findPacketHeader(mReadBuffer);
+                if (packet != null && packet.getLength() > newSize) {
+                    newSize = packet.getLength();
+                }
+            }
+
+            if (newSize > MAX_BUF_SIZE) {
                 Log.e("ddms", "Exceeded MAX_BUF_SIZE!");
                 throw new BufferOverflowException();
             }
-            Log.d("ddms", "Expanding read buffer to "
-                + mReadBuffer.capacity() * 2);
-
-            ByteBuffer newBuffer = ByteBuffer.allocate(mReadBuffer.capacity() * 2);
-
-            // copy entire buffer to new buffer
-            mReadBuffer.position(0);
-            newBuffer.put(mReadBuffer);  // leaves "position" at end of copied
+            Log.d("ddms", "Expanding read buffer to " + newSize);
 
-            mReadBuffer = newBuffer;
+            replaceReadBuffer(newSize);
         }
 
         count = mChan.read(mReadBuffer);
@@ -633,6 +674,190 @@ public class Client {
         if (Log.Config.LOGV) Log.v("ddms", "Read " + count + " bytes from " + this);
         //Log.hexDump("ddms", Log.DEBUG, mReadBuffer.array(),
         //    mReadBuffer.arrayOffset(), mReadBuffer.position());
+
+        if (mStreamHandler == null) {
+            startStreamedChunk();
+        } else {
+            writeStreamedChunk();
+        }
+    }
+
+    /**
+     * Starts streaming the chunk at the start of the read buffer to a file, if
+     * it is a reply chunk whose handler wants it streamed.
+     *
+     * Only packets holding a single chunk, and not yet fully read, are
+     * streamed.  The JDWP and chunk headers are consumed, and the data
+     * already in the buffer is written to the file.
+     */
+    private void startStreamedChunk() throws IOException {
+        if (mConnState != ST_READY || mReadBuffer.position() <
+                JdwpPacket.JDWP_HEADER_LEN + ChunkHandler.CHUNK_HEADER_LEN) {
+            return;
+        }
+
+        JdwpPacket packet = JdwpPacket.findPacketHeader(mReadBuffer);
+        if (packet.isReply() == false || packet.isError() ||
+                packet.getLength() <= mReadBuffer.position()) {
+            return;
+        }
+
+        ChunkHandler handler = isResponseToUs(packet.getId());
+        if (handler == null) {
+            return;
+        }
+
+        ByteOrder oldOrder = mReadBuffer.order();
+        mReadBuffer.order(ChunkHandler.CHUNK_ORDER);
+        int type = mReadBuffer.getInt(JdwpPacket.JDWP_HEADER_LEN);
+        int length = mReadBuffer.getInt(JdwpPacket.JDWP_HEADER_LEN + 4);
+        mReadBuffer.order(oldOrder);
+
+        if (JdwpPacket.JDWP_HEADER_LEN + ChunkHandler.CHUNK_HEADER_LEN + length !=
+                packet.getLength()) {
+            return;
+        }
+
+        File file = handler.createStreamedChunkFile(type);
+        if (file == null) {
+            return;
+        }
+
+        Log.d("ddms", "Streaming " + ChunkHandler.name(type) + " (len=" + length
+                + ") from " + this + " to " + file);
+
+        mStreamHandler = handler;
+        mStreamType = type;
+        mStreamId = packet.getId();
+        mStreamFile = file;
+        mStreamRemaining = length;
+        try {
+            mStreamChannel = new FileOutputStream(file).getChannel();
+        } catch (IOException ioe) {
+            Log.e("ddms", "Failed to open " + file + ": " + ioe.getMessage());
+            closeStreamedChunk(false /* keepFile */);
+        }
+
+        // drop the headers, and write the data we already have.
+        consumeReadBuffer(JdwpPacket.JDWP_HEADER_LEN + ChunkHandler.CHUNK_HEADER_LEN);
+        writeStreamedChunk();
+    }
+
+    /**
+     * Writes the data at the start of the read buffer to the file of the
+     * streamed chunk, and consumes it.  The data following the chunk is left
+     * in the buffer.
+     */
+    private void writeStreamedChunk() {
+        int length = (int) Math.min(mReadBuffer.position(), mStreamRemaining);
+
+        if (mStreamChannel != null) {
+            ByteBuffer data = mReadBuffer.duplicate();
+            data.position(0);
+            data.limit(length);
+            try {
+                while (data.hasRemaining()) {
+                    mStreamChannel.write(data);
+                }
+            } catch (IOException ioe) {
+                Log.e("ddms", "Failed to write " + mStreamFile + ": " + ioe.getMessage());
+                closeStreamedChunk(false /* keepFile */);
+            }
+        }
+
+        consumeReadBuffer(length);
+        mStreamRemaining -= length;
+
+        if (mStreamRemaining == 0) {
+            ChunkHandler handler = mStreamHandler;
+            int type = mStreamType;
+            int id = mStreamId;
+            File file = closeStreamedChunk(true /* keepFile */);
+
+            mStreamHandler = null;
+            removeRequestId(id);
+
+            // like other chunks, the file is handled away from the monitor thread.
+            MonitorThread monitorThread = MonitorThread.getInstance();
+            if (monitorThread != null) {
+                monitorThread.callStreamedHandler(this, handler, type, file, id);
+            } else {
+                handler.handleStreamedChunk(this, type, file, id);
+            }
+        }
+    }
+
+    /**
+     * Closes the file of the streamed chunk.
+     * @param keepFile whether the file is kept, or deleted.
+     * @return the file, or null if it was deleted or couldn't be written.
+     */
+    private File closeStreamedChunk(boolean keepFile) {
+        File file = mStreamFile;
+        if (mStreamChannel != null) {
+            try {
+                mStreamChannel.close();
+            } catch (IOException ioe) {
+                Log.e("ddms", "Failed to close " + file + ": " + ioe.getMessage());
+                keepFile = false;
+            }
+            mStreamChannel = null;
+        } else {
+            // it was never opened, or writing to it failed.
+            keepFile = false;
+        }
+
+        mStreamFile = null;
+        if (keepFile == false && file != null) {
+            file.delete();
+            file = null;
+        }
+
+        return file;
+    }
+
+    /**
+     * Gives the read buffer back to the pool if it is larger than needed for
+     * the data it holds and the next packet.
+     */
+    private void shrinkReadBuffer() {
+        if (mReadBuffer.capacity() == INITIAL_BUF_SIZE ||
+                mReadBuffer.position() > INITIAL_BUF_SIZE) {
+            return;
+        }
+
+        JdwpPacket packet = JdwpPacket.findPacketHeader(mReadBuffer);
+        if (packet != null && packet.getLength() > INITIAL_BUF_SIZE) {
+            // the next packet still needs the large buffer.
+            return;
+        }
+
+        Log.d("ddms", "Shrinking read buffer to " + INITIAL_BUF_SIZE);
+        replaceReadBuffer(INITIAL_BUF_SIZE);
+    }
+
+    /**
+     * Moves the content of the read buffer to a new buffer from the pool,
+     * and gives the old one back to the pool.
+     */
+    private void replaceReadBuffer(int minCapacity) {
+        ReadBufferPool pool = ReadBufferPool.getInstance();
+        ByteBuffer newBuffer = pool.acquire(minCapacity);
+
+        mReadBuffer.flip();
+        newBuffer.put(mReadBuffer);  // leaves "position" at end of copied
+
+        pool.release(mReadBuffer);
+        mReadBuffer = newBuffer;
+    }
+
+    /**
+     * Removes the first "length" bytes of the read buffer.
+     */
+    private void consumeReadBuffer(int length) {
+        mReadBuffer.flip();         // limit<-posn, posn<-0
+        mReadBuffer.position(length);
+        mReadBuffer.compact();      // shift posn...limit, posn<-pending data
     }
 
     /**
@@ -700,6 +925,11 @@ public class Client {
                 if (Log.Config.LOGV) Log.v("ddms",
                     "Checking " + mReadBuffer.position() + " bytes");
             }
+
+            // the previous packet has been consumed. If it was a large one, the
+            // buffer isn't needed anymore.
+            shrinkReadBuffer();
+
             return JdwpPacket.findPacket(mReadBuffer);
         } else {
             /*
@@ -804,6 +1034,11 @@ public class Client {
 
         mOutstandingReqs.clear();
 
+        if (mStreamHandler != null) {
+            closeStreamedChunk(false /* keepFile */);
+            mStreamHandler = null;
+        }
+
         try {
             if (mChan != null) {
                 mChan.close();
@@ -823,6 +1058,31 @@ public class Client {
         mDevice.removeClient(this, notify);
     }
 
+    /**
+     * Gives the read buffer of a closed client back to the pool.
+     * <p/>The buffer is read into by the MonitorThread, so this must be called from the
+     * MonitorThread, or once it's stopped, after {@link #close(boolean)}: no read can be in
+     * progress, and the reads that would follow fail.
+     */
+    void releaseReadBuffer() {
+        if (mReadBufferReleased) {
+            return;
+        }
+
+        // packets are copied before being handled, so nothing refers to the buffer anymore.
+        ReadBufferPool.getInstance().release(mReadBuffer);
+        mReadBuffer = ByteBuffer.allocate(0);
+        mReadBufferReleased = true;
+    }
+
+    /**
+     * Returns the number of bytes held by the buffer receiving the data from the client.
+     * <p/>This is small, unless a large packet is being received.
+     */
+    public int getReadBufferSize() {
+        return mReadBuffer.capacity();
+    }
+
     /**
      * Returns whether this {@link Client} has a valid connection to the application VM.
      */
@@ -18,6 +18,7 @@ package com.android.ddmlib;
 
 import com.android.ddmlib.HeapSegment.HeapSegmentElement;
 
+import java.io.File;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -185,7 +186,7 @@ public class ClientData {
         new ArrayList<NativeAllocationInfo>();
     private int mNativeTotalMemory;
 
-    private AllocationInfo[] mAllocations;
+    private AllocationTable mAllocations;
     private AllocationTrackingStatus mAllocationStatus = AllocationTrackingStatus.UNKNOWN;
 
     private String mPendingHprofDump;
@@ -304,10 +305,12 @@ public class ClientData {
 
         /**
          * Called when a HPROF dump was successful.
-         * @param data the data containing the HPROF file, streamed from the VM
+         * <p/>The HPROF data streamed from the VM is written to a local temp file as it
+         * arrives. The handler is responsible for moving or deleting the file.
+         * @param hprofFile the local file containing the HPROF data.
          * @param client the client that was profiled.
          */
-        void onSuccess(byte[] data, Client client);
+        void onSuccess(File hprofFile, Client client);
 
         /**
          * Called when a hprof dump failed to end on the VM side
@@ -617,15 +620,25 @@ public class ClientData {
         return mAllocationStatus;
     }
 
-    synchronized void setAllocations(AllocationInfo[] allocs) {
+    synchronized void setAllocations(AllocationTable allocs) {
         mAllocations = allocs;
     }
 
     /**
      * Returns the list of tracked allocations.
+     * <p/>This creates an {@link AllocationInfo} for each allocation. {@link #getAllocationTable()}
+     * gives access to the same allocations without creating all the objects.
      * @see Client#requestAllocationDetails()
      */
     public synchronized AllocationInfo[] getAllocations() {
+        return mAllocations != null ? mAllocations.getAllocations() : null;
+    }
+
+    /**
+     * Returns the tracked allocations, or <code>null</code> if they were not received yet.
+     * @see Client#requestAllocationDetails()
+     */
+    public synchronized AllocationTable getAllocationTable() {
         return mAllocations;
     }
 
@@ -42,6 +42,8 @@ public final class DdmPreferences {
     public final static LogLevel DEFAULT_LOG_LEVEL = LogLevel.ERROR;
     /** Default timeout values for adb connection (milliseconds) */
     public static final int DEFAULT_TIMEOUT = 5000; // standard delay, in ms
+    /** Default value for the max number of asynchronous shell commands running on a device */
+    public static final int DEFAULT_MAX_SHELL_COMMANDS_PER_DEVICE = 4;
 
     private static boolean sThreadUpdate = DEFAULT_INITIAL_THREAD_UPDATE;
     private static boolean sInitialHeapUpdate = DEFAULT_INITIAL_HEAP_UPDATE;
@@ -50,6 +52,7 @@ public final class DdmPreferences {
     private static int sDebugPortBase = DEFAULT_DEBUG_PORT_BASE;
     private static LogLevel sLogLevel = DEFAULT_LOG_LEVEL;
     private static int sTimeOut = DEFAULT_TIMEOUT;
+    private static int sMaxShellCommandsPerDevice = DEFAULT_MAX_SHELL_COMMANDS_PER_DEVICE;
 
     /**
      * Returns the initial {@link Client} flag for thread updates.
@@ -157,6 +160,25 @@ public final class DdmPreferences {
         sTimeOut = timeOut;
     }
 
+    /**
+     * Returns the maximum number of asynchronous shell commands running at the same time on a
+     * given device.
+     * @see IDevice#executeShellCommandAsync(String, IShellOutputReceiver)
+     */
+    public static int getMaxShellCommandsPerDevice() {
+        return sMaxShellCommandsPerDevice;
+    }
+
+    /**
+     * Sets the maximum number of asynchronous shell commands running at the same time on a
+     * given device. Extra commands are queued until running ones finish.
+     * <p/>This change takes effect for newly started commands only.
+     * @param max the maximum number of commands. Must be at least 1.
+     */
+    public static void setMaxShellCommandsPerDevice(int max) {
+        sMaxShellCommandsPerDevice = Math.max(1, max);
+    }
+
     /**
      * Non accessible constructor.
      */
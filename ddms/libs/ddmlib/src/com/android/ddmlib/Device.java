@@ -27,6 +27,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -36,7 +37,7 @@ import java.util.regex.Pattern;
  */
 final class Device implements IDevice {
 
-    private final static int INSTALL_TIMEOUT = 2*60*1000; //2min
+    final static int INSTALL_TIMEOUT = 2*60*1000; //2min
 
     /** Emulator Serial Number regexp. */
     final static String RE_EMULATOR_SN = "emulator-(\\d+)"; //$NON-NLS-1$
@@ -57,6 +58,11 @@ final class Device implements IDevice {
     private final ArrayList<Client> mClients = new ArrayList<Client>();
     private DeviceMonitor mMonitor;
 
+    /** Time the device was last seen coming online, in ms, or 0. */
+    private long mOnlineTime = 0;
+    /** Time between the device coming online and its first client, in ms, or -1. */
+    private long mTimeToFirstClient = -1;
+
     private static final String LOG_TAG = "Device";
 
     /**
@@ -67,7 +73,7 @@ final class Device implements IDevice {
     /**
      * Output receiver for "pm install package.apk" command line.
      */
-    private static final class InstallReceiver extends MultiLineReceiver {
+    static final class InstallReceiver extends MultiLineReceiver {
 
         private static final String SUCCESS_OUTPUT = "Success"; //$NON-NLS-1$
         private static final Pattern FAILURE_PATTERN = Pattern.compile("Failure\\s+\\[(.*)\\]"); //$NON-NLS-1$
@@ -271,6 +277,13 @@ final class Device implements IDevice {
         return AdbHelper.getFrameBuffer(AndroidDebugBridge.getSocketAddress(), this);
     }
 
+    public ScreenCapture startScreenCapture(int fps, ScreenCapture.IFrameListener listener) {
+        ScreenCapture capture = new ScreenCapture(AndroidDebugBridge.getSocketAddress(), this,
+                fps, listener);
+        capture.start();
+        return capture;
+    }
+
     public void executeShellCommand(String command, IShellOutputReceiver receiver)
             throws TimeoutException, AdbCommandRejectedException, ShellCommandUnresponsiveException,
             IOException {
@@ -286,6 +299,18 @@ final class Device implements IDevice {
                 receiver, maxTimeToOutputResponse);
     }
 
+    public Future<Void> executeShellCommandAsync(String command, IShellOutputReceiver receiver)
+            throws IOException {
+        return AsyncShellExecutor.getInstance().execute(AndroidDebugBridge.getSocketAddress(),
+                command, this, receiver, DdmPreferences.getTimeOut());
+    }
+
+    public Future<Void> executeShellCommandAsync(String command, IShellOutputReceiver receiver,
+            int maxTimeToOutputResponse) throws IOException {
+        return AsyncShellExecutor.getInstance().execute(AndroidDebugBridge.getSocketAddress(),
+                command, this, receiver, maxTimeToOutputResponse);
+    }
+
     public void runEventLogService(LogReceiver receiver)
             throws TimeoutException, AdbCommandRejectedException, IOException {
         AdbHelper.runEventLogService(AndroidDebugBridge.getSocketAddress(), this, receiver);
@@ -336,6 +361,32 @@ final class Device implements IDevice {
     void addClient(Client client) {
         synchronized (mClients) {
             mClients.add(client);
+
+            if (mTimeToFirstClient == -1 && mOnlineTime != 0) {
+                mTimeToFirstClient = System.currentTimeMillis() - mOnlineTime;
+                Log.d("DeviceMonitor", String.format("First client of %1$s after %2$dms", //$NON-NLS-1$
+                        mSerialNumber, mTimeToFirstClient));
+            }
+        }
+    }
+
+    /**
+     * Records that the device just came online, to measure the time until its first client.
+     */
+    void setOnline() {
+        synchronized (mClients) {
+            mOnlineTime = System.currentTimeMillis();
+            mTimeToFirstClient = -1;
+        }
+    }
+
+    /**
+     * Returns the time between the device coming online and the creation of its first
+     * {@link Client}, in ms, or -1 if no client was created since.
+     */
+    long getTimeToFirstClient() {
+        synchronized (mClients) {
+            return mTimeToFirstClient;
         }
     }
 
@@ -503,6 +554,7 @@ final class Device implements IDevice {
      */
     public void reboot(String into)
             throws TimeoutException, AdbCommandRejectedException, IOException {
+        DeviceMonitor.invalidateDeviceInfo(mSerialNumber);
         AdbHelper.reboot(into, AndroidDebugBridge.getSocketAddress(), this);
     }
 }
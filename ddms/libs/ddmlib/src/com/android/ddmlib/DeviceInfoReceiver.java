@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A receiver able to parse the result of the execution of {@link #DEVICE_INFO_COMMAND} on a
+ * device, which gets the build info and the mount points of the device in a single shell
+ * command.
+ * <p/>The output is the output of <code>getprop</code>, followed by {@link #MOUNT_POINTS_MARKER}
+ * and a <code>NAME=value</code> line per mount point.
+ */
+final class DeviceInfoReceiver extends MultiLineReceiver {
+    final static String MOUNT_POINTS_MARKER = "@@mount-points@@"; //$NON-NLS-1$
+
+    /** The mount points queried from the environment of the shell. */
+    private final static String[] MOUNT_POINTS = new String[] {
+        IDevice.MNT_EXTERNAL_STORAGE, IDevice.MNT_DATA, IDevice.MNT_ROOT
+    };
+
+    final static String DEVICE_INFO_COMMAND;
+    static {
+        StringBuilder sb = new StringBuilder("getprop;echo " + MOUNT_POINTS_MARKER); //$NON-NLS-1$
+        for (String name : MOUNT_POINTS) {
+            sb.append(";echo ").append(name).append("=$").append(name); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        DEVICE_INFO_COMMAND = sb.toString();
+    }
+
+    private final static Pattern GETPROP_PATTERN = Pattern.compile("^\\[([^]]+)\\]\\:\\s*\\[(.*)\\]$"); //$NON-NLS-1$
+
+    private final Device mDevice;
+    private final Map<String, String> mProperties = new HashMap<String, String>();
+    private final Map<String, String> mMountPoints = new HashMap<String, String>();
+    private boolean mInMountPoints = false;
+
+    /**
+     * Creates the receiver with the device the receiver will modify.
+     * @param device The device to modify
+     */
+    public DeviceInfoReceiver(Device device) {
+        mDevice = device;
+    }
+
+    @Override
+    public void processNewLines(String[] lines) {
+        for (String line : lines) {
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+
+            if (mInMountPoints) {
+                int index = line.indexOf('=');
+                if (index > 0 && index < line.length() - 1) {
+                    mMountPoints.put(line.substring(0, index), line.substring(index + 1));
+                }
+            } else if (line.equals(MOUNT_POINTS_MARKER)) {
+                mInMountPoints = true;
+            } else {
+                Matcher m = GETPROP_PATTERN.matcher(line);
+                if (m.matches()) {
+                    String label = m.group(1);
+                    String value = m.group(2);
+
+                    if (label.length() > 0) {
+                        mProperties.put(label, value);
+                    }
+                }
+            }
+        }
+    }
+
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public void done() {
+        apply(mDevice, mProperties, mMountPoints);
+
+        // only keep a complete output, of a device still online.
+        if (mInMountPoints && mDevice.isOnline()) {
+            DeviceMonitor.cacheDeviceInfo(mDevice.getSerialNumber(), mProperties, mMountPoints);
+        }
+    }
+
+    /**
+     * Sets the build info and mount points of a device, and notifies the listeners.
+     */
+    static void apply(Device device, Map<String, String> properties,
+            Map<String, String> mountPoints) {
+        for (Map.Entry<String, String> entry : properties.entrySet()) {
+            device.addProperty(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, String> entry : mountPoints.entrySet()) {
+            device.setMountingPoint(entry.getKey(), entry.getValue());
+        }
+
+        device.update(Device.CHANGE_BUILD_INFO);
+    }
+}
@@ -16,16 +16,14 @@
 
 package com.android.ddmlib;
 
-import com.android.ddmlib.AdbHelper.AdbResponse;
 import com.android.ddmlib.ClientData.DebuggerStatus;
 import com.android.ddmlib.DebugPortManager.IDebugPortProvider;
 import com.android.ddmlib.IDevice.DeviceState;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.net.UnknownHostException;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
@@ -33,28 +31,279 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
  * A Device monitor. This connects to the Android Debug Bridge and get device and
  * debuggable process information from it.
+ * <p/>All the adb connections of the monitor (the device list, the process list of each device,
+ * and the connections to new processes) are driven by a single thread, waiting on a
+ * {@link Selector}. No connection blocks the other ones, so that processes of many devices
+ * coming online at the same time are discovered in parallel.
  */
 final class DeviceMonitor {
-    private byte[] mLengthBuffer = new byte[4];
-    private byte[] mLengthBuffer2 = new byte[4];
+    /** Delay before connecting to adb again after a failed attempt, in ms. */
+    private final static int RECONNECT_DELAY = 1000;
+    /** Number of failed connections to adb after which adb is restarted. */
+    private final static int MAX_CONNECTION_ATTEMPTS = 10;
+    /**
+     * Delay between dropping a client and connecting to it again, in ms. If we don't wait a bit,
+     * the client will never answer the second handshake!
+     */
+    private final static int REOPEN_DELAY = 1000;
+
+    /** Connection type: the device list, from <code>host:track-devices</code>. */
+    private final static int TYPE_DEVICE_LIST = 0;
+    /** Connection type: the process list of a device, from <code>track-jdwp</code>. */
+    private final static int TYPE_CLIENT_LIST = 1;
+    /** Connection type: a process, from <code>jdwp:&lt;pid&gt;</code>. */
+    private final static int TYPE_CLIENT = 2;
+
+    /** Step of a connection: connecting to adb. */
+    private final static int STEP_CONNECT = 0;
+    /** Step of a connection: sending a request. */
+    private final static int STEP_WRITE = 1;
+    /** Step of a connection: reading the OKAY/FAIL status of a request. */
+    private final static int STEP_STATUS = 2;
+    /** Step of a connection: reading the length of the FAIL message. */
+    private final static int STEP_FAIL_LENGTH = 3;
+    /** Step of a connection: reading the FAIL message. */
+    private final static int STEP_FAIL_MESSAGE = 4;
+    /** Step of a connection: reading the length of a list. */
+    private final static int STEP_LENGTH = 5;
+    /** Step of a connection: reading a list. */
+    private final static int STEP_DATA = 6;
+
+    /**
+     * A connection to adb. It sends its requests one after the other, and then either reads
+     * the lists sent by adb, or is handed to the {@link MonitorThread} for a process.
+     * <p/>Connections are only accessed by the monitor thread.
+     */
+    private final class Connection {
+        final int mType;
+        final Device mDevice;
+        final int mPid;
+        final int mPort;
+        private final String[] mRequests;
+        private int mRequest = 0;
+
+        SocketChannel mChannel;
+        private SelectionKey mKey;
+        int mStep = STEP_CONNECT;
+        private ByteBuffer mBuffer;
+        private final ByteBuffer mLengthBuffer = ByteBuffer.allocate(4);
+        /** Time by which the requests must be accepted, in ms. */
+        long mDeadline;
+
+        Connection(int type, Device device, int pid, int port, String... requests) {
+            mType = type;
+            mDevice = device;
+            mPid = pid;
+            mPort = port;
+            mRequests = requests;
+        }
+
+        /**
+         * Starts connecting to adb.
+         */
+        void open() throws IOException {
+            mDeadline = System.currentTimeMillis() + DdmPreferences.getTimeOut();
+            mChannel = SocketChannel.open();
+            mChannel.configureBlocking(false);
+            mChannel.socket().setTcpNoDelay(true);
+            mKey = mChannel.register(mSelector, 0, this);
+            mConnections.add(this);
+
+            if (mChannel.connect(mAddress)) {
+                // the request is written once the selector finds the channel writable.
+                startRequest();
+                mKey.interestOps(SelectionKey.OP_WRITE);
+            } else {
+                mKey.interestOps(SelectionKey.OP_CONNECT);
+            }
+        }
+
+        /**
+         * Advances the connection as far as possible without blocking.
+         * @throws IOException if the connection failed.
+         */
+        void process() throws IOException {
+            if (mStep == STEP_CONNECT) {
+                if (mChannel.finishConnect() == false) {
+                    return;
+                }
+                startRequest();
+            }
+
+            while (true) {
+                if (mStep == STEP_WRITE) {
+                    mChannel.write(mBuffer);
+                    if (mBuffer.hasRemaining()) {
+                        mKey.interestOps(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    setStep(STEP_STATUS, 4);
+                }
+
+                if (mChannel.read(mBuffer) < 0) {
+                    throw new IOException("EOF"); //$NON-NLS-1$
+                }
+                if (mBuffer.hasRemaining()) {
+                    mKey.interestOps(SelectionKey.OP_READ);
+                    return;
+                }
+
+                if (mStep == STEP_STATUS) {
+                    if (isOkay(mBuffer.array())) {
+                        if (++mRequest < mRequests.length) {
+                            startRequest();
+                        } else if (connected(this) == false) {
+                            return;
+                        }
+                    } else {
+                        setStep(STEP_FAIL_LENGTH, 4);
+                    }
+                } else if (mStep == STEP_FAIL_LENGTH) {
+                    int length = getLength();
+                    if (length == 0) {
+                        throw new IOException("adb refused request"); //$NON-NLS-1$
+                    }
+                    setStep(STEP_FAIL_MESSAGE, length);
+                } else if (mStep == STEP_FAIL_MESSAGE) {
+                    throw new IOException("adb refused request: " + getString()); //$NON-NLS-1$
+                } else if (mStep == STEP_LENGTH) {
+                    int length = getLength();
+                    if (length == 0) {
+                        listReceived(this, ""); //$NON-NLS-1$
+                        setStep(STEP_LENGTH, 4);
+                    } else {
+                        setStep(STEP_DATA, length);
+                    }
+                } else if (mStep == STEP_DATA) {
+                    listReceived(this, getString());
+                    setStep(STEP_LENGTH, 4);
+                }
+            }
+        }
+
+        /**
+         * Returns whether the connection is still sending its requests.
+         */
+        boolean isPending() {
+            return mStep < STEP_LENGTH;
+        }
+
+        /**
+         * Stops driving the channel from the monitor thread, without closing it.
+         */
+        void detach() {
+            mKey.cancel();
+            mConnections.remove(this);
+        }
+
+        void close() {
+            mConnections.remove(this);
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                // doesn't really matter if the close fails.
+            }
+        }
+
+        private void startRequest() throws UnsupportedEncodingException {
+            mStep = STEP_WRITE;
+            mBuffer = ByteBuffer.wrap(AdbHelper.formAdbRequest(mRequests[mRequest]));
+        }
+
+        private void setStep(int step, int length) {
+            mStep = step;
+            if (length == 4) {
+                mLengthBuffer.clear();
+                mBuffer = mLengthBuffer;
+            } else {
+                mBuffer = ByteBuffer.allocate(length);
+            }
+        }
+
+        private int getLength() throws IOException {
+            try {
+                return Integer.parseInt(getString(), 16);
+            } catch (NumberFormatException nfe) {
+                // we receive something we can't read. It's better to reset the connection at
+                // this point.
+                throw new IOException("Unable to read length"); //$NON-NLS-1$
+            }
+        }
+
+        private String getString() throws UnsupportedEncodingException {
+            return new String(mBuffer.array(), 0, mBuffer.position(), AdbHelper.DEFAULT_ENCODING);
+        }
+
+        @Override
+        public String toString() {
+            return mRequests[mRequests.length - 1] + (mDevice != null ? " on " + mDevice : ""); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+    }
+
+    /**
+     * A process to connect to once its time has come.
+     */
+    private static final class PendingClient {
+        final Device mDevice;
+        final int mPid;
+        final int mPort;
+        final long mTime;
+
+        PendingClient(Device device, int pid, int port, long time) {
+            mDevice = device;
+            mPid = pid;
+            mPort = port;
+            mTime = time;
+        }
+    }
 
-    private boolean mQuit = false;
+    /**
+     * Build info and mount points of a device.
+     */
+    private static final class DeviceInfo {
+        final Map<String, String> mProperties;
+        final Map<String, String> mMountPoints;
 
-    private AndroidDebugBridge mServer;
+        DeviceInfo(Map<String, String> properties, Map<String, String> mountPoints) {
+            mProperties = properties;
+            mMountPoints = mountPoints;
+        }
+    }
 
-    private SocketChannel mMainAdbConnection = null;
-    private boolean mMonitoring = false;
-    private int mConnectionAttempt = 0;
-    private int mRestartAttemptCount = 0;
-    private boolean mInitialDeviceListDone = false;
+    /**
+     * Build info and mount points of the devices, per serial number. This lets a new monitor,
+     * after adb is restarted for instance, skip querying the devices. An entry is dropped when
+     * its device goes offline or disconnects, which is what a reboot looks like.
+     */
+    private final static HashMap<String, DeviceInfo> sDeviceInfoCache =
+        new HashMap<String, DeviceInfo>();
+
+    private volatile boolean mQuit = false;
+
+    private final AndroidDebugBridge mServer;
+    private final InetSocketAddress mAddress;
+    private final boolean mClientSupport;
+
+    private Connection mDeviceListConnection = null;
+    private long mNextConnectionTime = 0;
+    private volatile boolean mMonitoring = false;
+    private volatile int mConnectionAttempt = 0;
+    private volatile int mRestartAttemptCount = 0;
+    private volatile boolean mInitialDeviceListDone = false;
 
     private Selector mSelector;
 
+    // the fields below are only accessed by the monitor thread.
+    private final ArrayList<Connection> mConnections = new ArrayList<Connection>();
+    private final ArrayList<PendingClient> mPendingClients = new ArrayList<PendingClient>();
+    private final ArrayList<Device> mClientListChanges = new ArrayList<Device>();
+
     private final ArrayList<Device> mDevices = new ArrayList<Device>();
 
     private final ArrayList<Integer> mDebuggerPorts = new ArrayList<Integer>();
@@ -67,7 +316,19 @@ final class DeviceMonitor {
      * @param server the running {@link AndroidDebugBridge}.
      */
     DeviceMonitor(AndroidDebugBridge server) {
+        this(server, AndroidDebugBridge.getSocketAddress(), AndroidDebugBridge.getClientSupport());
+    }
+
+    /**
+     * Creates a new {@link DeviceMonitor} object for a given adb server.
+     * @param server the running {@link AndroidDebugBridge}.
+     * @param address the address of the adb server.
+     * @param clientSupport whether the processes of the devices are monitored.
+     */
+    DeviceMonitor(AndroidDebugBridge server, InetSocketAddress address, boolean clientSupport) {
         mServer = server;
+        mAddress = address;
+        mClientSupport = clientSupport;
 
         mDebuggerPorts.add(DdmPreferences.getDebugPortBase());
     }
@@ -76,7 +337,14 @@ final class DeviceMonitor {
      * Starts the monitoring.
      */
     void start() {
-        new Thread("Device List Monitor") { //$NON-NLS-1$
+        try {
+            mSelector = Selector.open();
+        } catch (IOException e) {
+            Log.e("DeviceMonitor", "Unable to start device monitoring: " + e.getMessage());
+            return;
+        }
+
+        new Thread("Device Monitor") { //$NON-NLS-1$
             @Override
             public void run() {
                 deviceMonitorLoop();
@@ -90,22 +358,12 @@ final class DeviceMonitor {
     void stop() {
         mQuit = true;
 
-        // wakeup the main loop thread by closing the main connection to adb.
-        try {
-            if (mMainAdbConnection != null) {
-                mMainAdbConnection.close();
-            }
-        } catch (IOException e1) {
-        }
-
-        // wake up the secondary loop by closing the selector.
+        // wake up the loop, which closes the connections.
         if (mSelector != null) {
             mSelector.wakeup();
         }
     }
 
-
-
     /**
      * Returns if the monitor is currently connected to the debug bridge server.
      * @return
@@ -139,6 +397,39 @@ final class DeviceMonitor {
         return mServer;
     }
 
+    /**
+     * Stores the build info and mount points of a device.
+     * @param serialNumber the serial number of the device.
+     */
+    static void cacheDeviceInfo(String serialNumber, Map<String, String> properties,
+            Map<String, String> mountPoints) {
+        synchronized (sDeviceInfoCache) {
+            sDeviceInfoCache.put(serialNumber, new DeviceInfo(
+                    new HashMap<String, String>(properties),
+                    new HashMap<String, String>(mountPoints)));
+        }
+    }
+
+    /**
+     * Forgets the build info and mount points of a device, which will be queried again when it
+     * comes online.
+     * @param serialNumber the serial number of the device.
+     */
+    static void invalidateDeviceInfo(String serialNumber) {
+        synchronized (sDeviceInfoCache) {
+            sDeviceInfoCache.remove(serialNumber);
+        }
+    }
+
+    /**
+     * Forgets the build info and mount points of all the devices.
+     */
+    static void clearDeviceInfoCache() {
+        synchronized (sDeviceInfoCache) {
+            sDeviceInfoCache.clear();
+        }
+    }
+
     void addClientToDropAndReopen(Client client, int port) {
         synchronized (mClientsToReopen) {
             Log.d("DeviceMonitor",
@@ -151,145 +442,277 @@ final class DeviceMonitor {
     }
 
     /**
-     * Monitors the devices. This connects to the Debug Bridge
+     * Monitors the devices and their processes.
      */
     private void deviceMonitorLoop() {
-        do {
-            try {
-                if (mMainAdbConnection == null) {
-                    Log.d("DeviceMonitor", "Opening adb connection");
-                    mMainAdbConnection = openAdbConnection();
-                    if (mMainAdbConnection == null) {
-                        mConnectionAttempt++;
-                        Log.e("DeviceMonitor", "Connection attempts: " + mConnectionAttempt);
-                        if (mConnectionAttempt > 10) {
-                            if (mServer.startAdb() == false) {
-                                mRestartAttemptCount++;
-                                Log.e("DeviceMonitor",
-                                        "adb restart attempts: " + mRestartAttemptCount);
-                            } else {
-                                mRestartAttemptCount = 0;
-                            }
-                        }
-                        waitABit();
-                    } else {
-                        Log.d("DeviceMonitor", "Connected to adb for device monitoring");
-                        mConnectionAttempt = 0;
-                    }
-                }
+        try {
+            while (mQuit == false) {
+                long timeout = processTimers(System.currentTimeMillis());
+
+                mSelector.select(timeout);
 
-                if (mMainAdbConnection != null && mMonitoring == false) {
-                    mMonitoring = sendDeviceListMonitoringRequest();
+                if (mQuit) {
+                    break;
                 }
 
-                if (mMonitoring) {
-                    // read the length of the incoming message
-                    int length = readLength(mMainAdbConnection, mLengthBuffer);
+                processClientsToReopen();
 
-                    if (length >= 0) {
-                        // read the incoming message
-                        processIncomingDeviceData(length);
+                Set<SelectionKey> keys = mSelector.selectedKeys();
+                Iterator<SelectionKey> iter = keys.iterator();
+
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
 
-                        // flag the fact that we have build the list at least once.
-                        mInitialDeviceListDone = true;
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isValid() && mConnections.contains(connection)) {
+                        try {
+                            connection.process();
+                        } catch (IOException e) {
+                            connectionFailed(connection, e.getMessage());
+                        }
                     }
                 }
-            } catch (AsynchronousCloseException ace) {
-                // this happens because of a call to Quit. We do nothing, and the loop will break.
-            } catch (TimeoutException ioe) {
-                handleExpectioninMonitorLoop(ioe);
-            } catch (IOException ioe) {
-                handleExpectioninMonitorLoop(ioe);
-            }
-        } while (mQuit == false);
-    }
 
-    private void handleExpectioninMonitorLoop(Exception e) {
-        if (mQuit == false) {
-            if (e instanceof TimeoutException) {
-                Log.e("DeviceMonitor", "Adb connection Error: timeout");
-            } else {
-                Log.e("DeviceMonitor", "Adb connection Error:" + e.getMessage());
+                notifyClientListChanges();
             }
+        } catch (IOException e) {
+            Log.e("DeviceMonitor", "Device monitoring failed: " + e.getMessage());
+        } finally {
             mMonitoring = false;
-            if (mMainAdbConnection != null) {
-                try {
-                    mMainAdbConnection.close();
-                } catch (IOException ioe) {
-                    // we can safely ignore that one.
-                }
-                mMainAdbConnection = null;
+            for (Connection connection : mConnections.toArray(
+                    new Connection[mConnections.size()])) {
+                connection.close();
+            }
+            try {
+                mSelector.close();
+            } catch (IOException e) {
+                // ignore
             }
         }
     }
 
     /**
-     * Sleeps for a little bit.
+     * Opens the connections whose time has come, and fails the connections whose requests
+     * timed out.
+     * @param now the current time, in ms.
+     * @return the time to wait for the next timer, in ms, or 0 if there is none.
      */
-    private void waitABit() {
-        try {
-            Thread.sleep(1000);
-        } catch (InterruptedException e1) {
+    private long processTimers(long now) {
+        long next = Long.MAX_VALUE;
+
+        if (mDeviceListConnection == null) {
+            if (now >= mNextConnectionTime) {
+                openDeviceListConnection();
+            } else {
+                next = mNextConnectionTime;
+            }
+        }
+
+        for (Connection connection : mConnections.toArray(new Connection[mConnections.size()])) {
+            if (connection.isPending()) {
+                if (now >= connection.mDeadline) {
+                    connectionFailed(connection, "timeout"); //$NON-NLS-1$
+                } else {
+                    next = Math.min(next, connection.mDeadline);
+                }
+            }
+        }
+
+        for (int i = 0 ; i < mPendingClients.size() ;) {
+            PendingClient pending = mPendingClients.get(i);
+            if (now >= pending.mTime) {
+                mPendingClients.remove(i);
+                Log.d("DeviceMonitor", "Reopening " + pending.mPid + " on " + pending.mDevice);
+                openClient(pending.mDevice, pending.mPid, pending.mPort);
+            } else {
+                next = Math.min(next, pending.mTime);
+                i++;
+            }
         }
+
+        // opening connections may have set new timers, which are caught on the next loop.
+        return next == Long.MAX_VALUE ? 0 : Math.max(1, next - now);
     }
 
     /**
-     * Attempts to connect to the debug bridge server.
-     * @return a connect socket if success, null otherwise
+     * Starts connecting to adb for the device list.
      */
-    private SocketChannel openAdbConnection() {
+    private void openDeviceListConnection() {
         Log.d("DeviceMonitor", "Connecting to adb for Device List Monitoring...");
 
-        SocketChannel adbChannel = null;
+        Connection connection = new Connection(TYPE_DEVICE_LIST, null, 0, 0,
+                "host:track-devices"); //$NON-NLS-1$
         try {
-            adbChannel = SocketChannel.open(AndroidDebugBridge.getSocketAddress());
-            adbChannel.socket().setTcpNoDelay(true);
+            mDeviceListConnection = connection;
+            connection.open();
         } catch (IOException e) {
+            connectionFailed(connection, e.getMessage());
         }
+    }
 
-        return adbChannel;
+    /**
+     * Called when all the requests of a connection were accepted.
+     * @return true if the connection is still driven by the monitor thread.
+     */
+    private boolean connected(Connection connection) {
+        switch (connection.mType) {
+            case TYPE_DEVICE_LIST:
+                Log.d("DeviceMonitor", "Connected to adb for device monitoring");
+                mConnectionAttempt = 0;
+                mMonitoring = true;
+                break;
+            case TYPE_CLIENT:
+                connection.detach();
+                boolean known;
+                synchronized (mDevices) {
+                    known = mDevices.contains(connection.mDevice);
+                }
+                MonitorThread monitorThread = MonitorThread.getInstance();
+                if (known && monitorThread != null) {
+                    createClient(connection.mDevice, connection.mPid, connection.mChannel,
+                            connection.mPort, monitorThread);
+                    if (mClientListChanges.contains(connection.mDevice) == false) {
+                        mClientListChanges.add(connection.mDevice);
+                    }
+                } else {
+                    connection.close();
+                    addPortToAvailableList(connection.mPort);
+                }
+                return false;
+        }
+
+        connection.setStep(STEP_LENGTH, 4);
+        return true;
     }
 
     /**
-     *
-     * @return
-     * @throws IOException
+     * Called when a list was received from a connection.
      */
-    private boolean sendDeviceListMonitoringRequest() throws TimeoutException, IOException {
-        byte[] request = AdbHelper.formAdbRequest("host:track-devices"); //$NON-NLS-1$
+    private void listReceived(Connection connection, String list) {
+        if (connection.mType == TYPE_DEVICE_LIST) {
+            processIncomingDeviceData(list);
 
-        try {
-            AdbHelper.write(mMainAdbConnection, request);
+            // flag the fact that we have build the list at least once.
+            mInitialDeviceListDone = true;
+        } else {
+            processIncomingJdwpData(connection.mDevice, list);
+        }
+    }
 
-            AdbResponse resp = AdbHelper.readAdbResponse(mMainAdbConnection,
-                    false /* readDiagString */);
+    /**
+     * Called when a connection failed. The connection is closed, and opened again if needed.
+     * @param connection the connection.
+     * @param reason the reason of the failure.
+     */
+    private void connectionFailed(Connection connection, String reason) {
+        boolean wasPending = connection.isPending();
+        connection.close();
+        if (mQuit) {
+            return;
+        }
 
-            if (resp.okay == false) {
-                // request was refused by adb!
-                Log.e("DeviceMonitor", "adb refused request: " + resp.message);
+        switch (connection.mType) {
+            case TYPE_DEVICE_LIST:
+                Log.e("DeviceMonitor", "Adb connection Error:" + reason);
+                mMonitoring = false;
+                mDeviceListConnection = null;
+                if (wasPending) {
+                    mConnectionAttempt++;
+                    Log.e("DeviceMonitor", "Connection attempts: " + mConnectionAttempt);
+                    if (mConnectionAttempt > MAX_CONNECTION_ATTEMPTS) {
+                        if (mServer.startAdb() == false) {
+                            mRestartAttemptCount++;
+                            Log.e("DeviceMonitor",
+                                    "adb restart attempts: " + mRestartAttemptCount);
+                        } else {
+                            mRestartAttemptCount = 0;
+                        }
+                    }
+                    mNextConnectionTime = System.currentTimeMillis() + RECONNECT_DELAY;
+                } else {
+                    // the connection was working, try again right away.
+                    mNextConnectionTime = 0;
+                }
+                break;
+            case TYPE_CLIENT_LIST:
+                Device device = connection.mDevice;
+                if (device.getClientMonitoringSocket() == connection.mChannel) {
+                    device.setClientMonitoringSocket(null);
+                }
+                if (wasPending) {
+                    Log.d("DeviceMonitor",
+                            "Failed to start monitoring device '" + device + "' : " + reason);
+                } else {
+                    Log.d("DeviceMonitor", "Error reading jdwp list: " + reason);
+
+                    // restart the monitoring of that device
+                    synchronized (mDevices) {
+                        if (mDevices.contains(device)) {
+                            Log.d("DeviceMonitor",
+                                    "Restarting monitoring service for " + device);
+                            startMonitoringDevice(device);
+                        }
+                    }
+                }
+                break;
+            case TYPE_CLIENT:
+                Log.w("DeviceMonitor",
+                        "Failed to connect to client '" + connection.mPid + "': " + reason);
+                addPortToAvailableList(connection.mPort);
+                break;
+        }
+    }
+
+    /**
+     * Drops the clients to reopen, and schedules their reopening.
+     */
+    private void processClientsToReopen() {
+        synchronized (mClientsToReopen) {
+            if (mClientsToReopen.size() > 0) {
+                MonitorThread monitorThread = MonitorThread.getInstance();
+                long time = System.currentTimeMillis() + REOPEN_DELAY;
+
+                for (Map.Entry<Client, Integer> entry : mClientsToReopen.entrySet()) {
+                    Client client = entry.getKey();
+                    Device device = client.getDeviceImpl();
+                    int pid = client.getClientData().getPid();
+
+                    monitorThread.dropClient(client, false /* notify */);
+                    if (mClientListChanges.contains(device) == false) {
+                        mClientListChanges.add(device);
+                    }
+
+                    int port = entry.getValue();
+                    if (port == IDebugPortProvider.NO_STATIC_PORT) {
+                        port = getNextDebuggerPort();
+                    }
+                    mPendingClients.add(new PendingClient(device, pid, port, time));
+                }
+
+                mClientsToReopen.clear();
             }
+        }
+    }
 
-            return resp.okay;
-        } catch (IOException e) {
-            Log.e("DeviceMonitor", "Sending Tracking request failed!");
-            mMainAdbConnection.close();
-            throw e;
+    /**
+     * Notifies the changes of client lists of the last round, once per device.
+     */
+    private void notifyClientListChanges() {
+        for (Device device : mClientListChanges) {
+            mServer.deviceChanged(device, Device.CHANGE_CLIENT_LIST);
         }
+        mClientListChanges.clear();
     }
 
     /**
      * Processes an incoming device message from the socket
-     * @param socket
-     * @param length
-     * @throws IOException
+     * @param result the list of devices.
      */
-    private void processIncomingDeviceData(int length) throws IOException {
+    private void processIncomingDeviceData(String result) {
         ArrayList<Device> list = new ArrayList<Device>();
 
-        if (length > 0) {
-            byte[] buffer = new byte[length];
-            String result = read(mMainAdbConnection, buffer);
-
+        if (result.length() > 0) {
             String[] devices = result.split("\n"); // $NON-NLS-1$
 
             for (String d : devices) {
@@ -317,8 +740,6 @@ final class DeviceMonitor {
         // we lock it first, so that the AndroidDebugBridge lock is always locked first.
         synchronized (AndroidDebugBridge.getLock()) {
             // array to store the devices that must be queried for information.
-            // it's important to not do it inside the synchronized loop as this could block
-            // the whole workspace (this lock is acquired during build too).
             ArrayList<Device> devicesToQuery = new ArrayList<Device>();
             synchronized (mDevices) {
                 // For each device in the current list, we look for a matching the new list.
@@ -350,17 +771,17 @@ final class DeviceMonitor {
                                 // if the device just got ready/online, we need to start
                                 // monitoring it.
                                 if (device.isOnline()) {
-                                    if (AndroidDebugBridge.getClientSupport() == true) {
-                                        if (startMonitoringDevice(device) == false) {
-                                            Log.e("DeviceMonitor",
-                                                    "Failed to start monitoring "
-                                                    + device.getSerialNumber());
-                                        }
+                                    device.setOnline();
+                                    if (mClientSupport == true) {
+                                        startMonitoringDevice(device);
                                     }
 
                                     if (device.getPropertyCount() == 0) {
                                         devicesToQuery.add(device);
                                     }
+                                } else {
+                                    // the device may be rebooting.
+                                    invalidateDeviceInfo(device.getSerialNumber());
                                 }
                             }
 
@@ -374,6 +795,7 @@ final class DeviceMonitor {
                         // the device is gone, we need to remove it, and keep current index
                         // to process the next one.
                         removeDevice(device);
+                        invalidateDeviceInfo(device.getSerialNumber());
                         mServer.deviceDisconnected(device);
                     } else {
                         // process the next one
@@ -388,15 +810,15 @@ final class DeviceMonitor {
                     mDevices.add(newDevice);
                     mServer.deviceConnected(newDevice);
 
-                    // start monitoring them.
-                    if (AndroidDebugBridge.getClientSupport() == true) {
-                        if (newDevice.isOnline()) {
+                    if (newDevice.isOnline()) {
+                        newDevice.setOnline();
+
+                        // start monitoring them.
+                        if (mClientSupport == true) {
                             startMonitoringDevice(newDevice);
                         }
-                    }
 
-                    // look for their build info.
-                    if (newDevice.isOnline()) {
+                        // look for their build info.
                         devicesToQuery.add(newDevice);
                     }
                 }
@@ -413,399 +835,203 @@ final class DeviceMonitor {
     private void removeDevice(Device device) {
         device.clearClientList();
         mDevices.remove(device);
+        device.setClientMonitoringSocket(null);
+
+        // close the connections of the device, including the ones still connecting.
+        for (Connection connection : mConnections.toArray(new Connection[mConnections.size()])) {
+            if (connection.mDevice == device) {
+                connection.close();
+                if (connection.mType == TYPE_CLIENT) {
+                    addPortToAvailableList(connection.mPort);
+                }
+            }
+        }
 
-        SocketChannel channel = device.getClientMonitoringSocket();
-        if (channel != null) {
-            try {
-                channel.close();
-            } catch (IOException e) {
-                // doesn't really matter if the close fails.
+        for (int i = 0 ; i < mPendingClients.size() ;) {
+            if (mPendingClients.get(i).mDevice == device) {
+                addPortToAvailableList(mPendingClients.remove(i).mPort);
+            } else {
+                i++;
             }
         }
     }
 
     /**
-     * Queries a device for its build info.
+     * Queries a device for its build info and mount points, unless they are cached.
+     * <p/>Everything is queried with a single shell command, run in the background, so that
+     * many devices are queried at the same time. The info is sent to the listeners when it is
+     * received.
      * @param device the device to query.
      */
-    private void queryNewDeviceForInfo(Device device) {
-        // TODO: do this in a separate thread.
-        try {
-            // first get the list of properties.
-            device.executeShellCommand(GetPropReceiver.GETPROP_COMMAND,
-                    new GetPropReceiver(device));
-
-            queryNewDeviceForMountingPoint(device, IDevice.MNT_EXTERNAL_STORAGE);
-            queryNewDeviceForMountingPoint(device, IDevice.MNT_DATA);
-            queryNewDeviceForMountingPoint(device, IDevice.MNT_ROOT);
-
-            // now get the emulator Virtual Device name (if applicable).
-            if (device.isEmulator()) {
-                EmulatorConsole console = EmulatorConsole.getConsole(device);
-                if (console != null) {
-                    device.setAvdName(console.getAvdName());
-                }
-            }
-        } catch (TimeoutException e) {
-            Log.w("DeviceMonitor", String.format("Connection timeout getting info for device %s",
-                    device.getSerialNumber()));
-
-        } catch (AdbCommandRejectedException e) {
-            // This should never happen as we only do this once the device is online.
-            Log.w("DeviceMonitor", String.format(
-                    "Adb rejected command to get  device %1$s info: %2$s",
-                    device.getSerialNumber(), e.getMessage()));
-
-        } catch (ShellCommandUnresponsiveException e) {
-            Log.w("DeviceMonitor", String.format(
-                    "Adb shell command took too long returning info for device %s",
-                    device.getSerialNumber()));
-
-        } catch (IOException e) {
-            Log.w("DeviceMonitor", String.format(
-                    "IO Error getting info for device %s",
-                    device.getSerialNumber()));
+    private void queryNewDeviceForInfo(final Device device) {
+        DeviceInfo info;
+        synchronized (sDeviceInfoCache) {
+            info = sDeviceInfoCache.get(device.getSerialNumber());
         }
-    }
 
-    private void queryNewDeviceForMountingPoint(final Device device, final String name)
-            throws TimeoutException, AdbCommandRejectedException, ShellCommandUnresponsiveException,
-            IOException {
-        device.executeShellCommand("echo $" + name, new MultiLineReceiver() { //$NON-NLS-1$
-            public boolean isCancelled() {
-                return false;
+        if (info != null) {
+            DeviceInfoReceiver.apply(device, info.mProperties, info.mMountPoints);
+        } else {
+            try {
+                AsyncShellExecutor.getInstance().execute(mAddress,
+                        DeviceInfoReceiver.DEVICE_INFO_COMMAND, device,
+                        new DeviceInfoReceiver(device), DdmPreferences.getTimeOut());
+            } catch (IOException e) {
+                Log.w("DeviceMonitor", String.format(
+                        "IO Error getting info for device %s",
+                        device.getSerialNumber()));
             }
+        }
 
-            @Override
-            public void processNewLines(String[] lines) {
-                for (String line : lines) {
-                    if (line.length() > 0) {
-                        // this should be the only one.
-                        device.setMountingPoint(name, line);
+        // now get the emulator Virtual Device name (if applicable). The console is a blocking
+        // connection, so it's queried on its own thread.
+        if (device.isEmulator()) {
+            new Thread("Emulator Console Query") { //$NON-NLS-1$
+                @Override
+                public void run() {
+                    EmulatorConsole console = EmulatorConsole.getConsole(device);
+                    if (console != null) {
+                        device.setAvdName(console.getAvdName());
                     }
                 }
-            }
-        });
+            }.start();
+        }
     }
 
     /**
      * Starts a monitoring service for a device.
      * @param device the device to monitor.
-     * @return true if success.
      */
-    private boolean startMonitoringDevice(Device device) {
-        SocketChannel socketChannel = openAdbConnection();
-
-        if (socketChannel != null) {
-            try {
-                boolean result = sendDeviceMonitoringRequest(socketChannel, device);
-                if (result) {
-
-                    if (mSelector == null) {
-                        startDeviceMonitorThread();
-                    }
-
-                    device.setClientMonitoringSocket(socketChannel);
+    private void startMonitoringDevice(Device device) {
+        Connection connection = new Connection(TYPE_CLIENT_LIST, device, 0, 0,
+                "host:transport:" + device.getSerialNumber(), //$NON-NLS-1$
+                "track-jdwp"); //$NON-NLS-1$
+        try {
+            connection.open();
+            device.setClientMonitoringSocket(connection.mChannel);
+        } catch (IOException e) {
+            connectionFailed(connection, e.getMessage());
+        }
+    }
 
-                    synchronized (mDevices) {
-                        // always wakeup before doing the register. The synchronized block
-                        // ensure that the selector won't select() before the end of this block.
-                        // @see deviceClientMonitorLoop
-                        mSelector.wakeup();
+    private void processIncomingJdwpData(Device device, String result) {
+        // array for the current pids.
+        ArrayList<Integer> pidList = new ArrayList<Integer>();
 
-                        socketChannel.configureBlocking(false);
-                        socketChannel.register(mSelector, SelectionKey.OP_READ, device);
-                    }
+        // get the string data if there are any
+        if (result.length() > 0) {
+            // split each line in its own list and create an array of integer pid
+            String[] pids = result.split("\n"); //$NON-NLS-1$
 
-                    return true;
-                }
-            } catch (TimeoutException e) {
-                try {
-                    // attempt to close the socket if needed.
-                    socketChannel.close();
-                } catch (IOException e1) {
-                    // we can ignore that one. It may already have been closed.
-                }
-                Log.d("DeviceMonitor",
-                        "Connection Failure when starting to monitor device '"
-                        + device + "' : timeout");
-            } catch (AdbCommandRejectedException e) {
+            for (String pid : pids) {
                 try {
-                    // attempt to close the socket if needed.
-                    socketChannel.close();
-                } catch (IOException e1) {
-                    // we can ignore that one. It may already have been closed.
-                }
-                Log.d("DeviceMonitor",
-                        "Adb refused to start monitoring device '"
-                        + device + "' : " + e.getMessage());
-            } catch (IOException e) {
-                try {
-                    // attempt to close the socket if needed.
-                    socketChannel.close();
-                } catch (IOException e1) {
-                    // we can ignore that one. It may already have been closed.
+                    pidList.add(Integer.valueOf(pid));
+                } catch (NumberFormatException nfe) {
+                    // looks like this pid is not really a number. Lets ignore it.
+                    continue;
                 }
-                Log.d("DeviceMonitor",
-                        "Connection Failure when starting to monitor device '"
-                        + device + "' : " + e.getMessage());
             }
         }
 
-        return false;
-    }
-
-    private void startDeviceMonitorThread() throws IOException {
-        mSelector = Selector.open();
-        new Thread("Device Client Monitor") { //$NON-NLS-1$
-            @Override
-            public void run() {
-                deviceClientMonitorLoop();
-            }
-        }.start();
-    }
-
-    private void deviceClientMonitorLoop() {
-        do {
-            try {
-                // This synchronized block stops us from doing the select() if a new
-                // Device is being added.
-                // @see startMonitoringDevice()
-                synchronized (mDevices) {
-                }
-
-                int count = mSelector.select();
-
-                if (mQuit) {
-                    return;
-                }
-
-                synchronized (mClientsToReopen) {
-                    if (mClientsToReopen.size() > 0) {
-                        Set<Client> clients = mClientsToReopen.keySet();
-                        MonitorThread monitorThread = MonitorThread.getInstance();
-
-                        for (Client client : clients) {
-                            Device device = client.getDeviceImpl();
-                            int pid = client.getClientData().getPid();
-
-                            monitorThread.dropClient(client, false /* notify */);
-
-                            // This is kinda bad, but if we don't wait a bit, the client
-                            // will never answer the second handshake!
-                            waitABit();
-
-                            int port = mClientsToReopen.get(client);
+        MonitorThread monitorThread = MonitorThread.getInstance();
+        if (monitorThread == null) {
+            return;
+        }
 
-                            if (port == IDebugPortProvider.NO_STATIC_PORT) {
-                                port = getNextDebuggerPort();
-                            }
-                            Log.d("DeviceMonitor", "Reopening " + client);
-                            openClient(device, pid, port, monitorThread);
-                            device.update(Device.CHANGE_CLIENT_LIST);
+        // Now we merge the current list with the old one.
+        // this is the same mechanism as the merging of the device list.
+
+        // For each client in the current list, we look for a matching the pid in the new list.
+        // * if we find it, we do nothing, except removing the pid from its list,
+        //   to mark it as "processed"
+        // * if we do not find any match, we remove the client from the current list.
+        // Once this is done, the new list contains pids for which we don't have clients yet,
+        // so we create clients for them, add them to the list, and start monitoring them.
+
+        List<Client> clients = device.getClientList();
+
+        boolean changed = false;
+
+        // because MonitorThread#dropClient acquires first the monitorThread lock and then the
+        // Device client list lock (when removing the Client from the list), we have to make
+        // sure we acquire the locks in the same order, since another thread (MonitorThread),
+        // could call dropClient itself.
+        synchronized (monitorThread) {
+            synchronized (clients) {
+                for (int c = 0 ; c < clients.size() ;) {
+                    Client client = clients.get(c);
+                    int pid = client.getClientData().getPid();
+
+                    // look for a matching pid
+                    Integer match = null;
+                    for (Integer matchingPid : pidList) {
+                        if (pid == matchingPid.intValue()) {
+                            match = matchingPid;
+                            break;
                         }
-
-                        mClientsToReopen.clear();
                     }
-                }
-
-                if (count == 0) {
-                    continue;
-                }
-
-                Set<SelectionKey> keys = mSelector.selectedKeys();
-                Iterator<SelectionKey> iter = keys.iterator();
-
-                while (iter.hasNext()) {
-                    SelectionKey key = iter.next();
-                    iter.remove();
-
-                    if (key.isValid() && key.isReadable()) {
-                        Object attachment = key.attachment();
-
-                        if (attachment instanceof Device) {
-                            Device device = (Device)attachment;
-
-                            SocketChannel socket = device.getClientMonitoringSocket();
 
-                            if (socket != null) {
-                                try {
-                                    int length = readLength(socket, mLengthBuffer2);
-
-                                    processIncomingJdwpData(device, socket, length);
-                                } catch (IOException ioe) {
-                                    Log.d("DeviceMonitor",
-                                            "Error reading jdwp list: " + ioe.getMessage());
-                                    socket.close();
-
-                                    // restart the monitoring of that device
-                                    synchronized (mDevices) {
-                                        if (mDevices.contains(device)) {
-                                            Log.d("DeviceMonitor",
-                                                    "Restarting monitoring service for " + device);
-                                            startMonitoringDevice(device);
-                                        }
-                                    }
-                                }
-                            }
-                        }
+                    if (match != null) {
+                        pidList.remove(match);
+                        c++; // move on to the next client.
+                    } else {
+                        // we need to drop the client. the client will remove itself from the
+                        // list of its device which is 'clients', so there's no need to
+                        // increment c.
+                        // We ask the monitor thread to not send notification, as we'll do
+                        // it once at the end.
+                        monitorThread.dropClient(client, false /* notify */);
+                        changed = true;
                     }
                 }
-            } catch (IOException e) {
-                if (mQuit == false) {
-
-                }
             }
+        }
 
-        } while (mQuit == false);
-    }
-
-    private boolean sendDeviceMonitoringRequest(SocketChannel socket, Device device)
-            throws TimeoutException, AdbCommandRejectedException, IOException {
-
-        try {
-            AdbHelper.setDevice(socket, device);
-
-            byte[] request = AdbHelper.formAdbRequest("track-jdwp"); //$NON-NLS-1$
-
-            AdbHelper.write(socket, request);
-
-            AdbResponse resp = AdbHelper.readAdbResponse(socket, false /* readDiagString */);
-
-            if (resp.okay == false) {
-                // request was refused by adb!
-                Log.e("DeviceMonitor", "adb refused request: " + resp.message);
+        // at this point whatever pid is left in the list needs to be converted into Clients,
+        // unless this is already in progress.
+        for (int newPid : pidList) {
+            if (isOpeningClient(device, newPid) == false) {
+                openClient(device, newPid, getNextDebuggerPort());
             }
+        }
 
-            return resp.okay;
-        } catch (TimeoutException e) {
-            Log.e("DeviceMonitor", "Sending jdwp tracking request timed out!");
-            throw e;
-        } catch (IOException e) {
-            Log.e("DeviceMonitor", "Sending jdwp tracking request failed!");
-            throw e;
+        if (changed && mClientListChanges.contains(device) == false) {
+            mClientListChanges.add(device);
         }
     }
 
-    private void processIncomingJdwpData(Device device, SocketChannel monitorSocket, int length)
-            throws IOException {
-        if (length >= 0) {
-            // array for the current pids.
-            ArrayList<Integer> pidList = new ArrayList<Integer>();
-
-            // get the string data if there are any
-            if (length > 0) {
-                byte[] buffer = new byte[length];
-                String result = read(monitorSocket, buffer);
-
-                // split each line in its own list and create an array of integer pid
-                String[] pids = result.split("\n"); //$NON-NLS-1$
-
-                for (String pid : pids) {
-                    try {
-                        pidList.add(Integer.valueOf(pid));
-                    } catch (NumberFormatException nfe) {
-                        // looks like this pid is not really a number. Lets ignore it.
-                        continue;
-                    }
-                }
-            }
-
-            MonitorThread monitorThread = MonitorThread.getInstance();
-
-            // Now we merge the current list with the old one.
-            // this is the same mechanism as the merging of the device list.
-
-            // For each client in the current list, we look for a matching the pid in the new list.
-            // * if we find it, we do nothing, except removing the pid from its list,
-            //   to mark it as "processed"
-            // * if we do not find any match, we remove the client from the current list.
-            // Once this is done, the new list contains pids for which we don't have clients yet,
-            // so we create clients for them, add them to the list, and start monitoring them.
-
-            List<Client> clients = device.getClientList();
-
-            boolean changed = false;
-
-            // because MonitorThread#dropClient acquires first the monitorThread lock and then the
-            // Device client list lock (when removing the Client from the list), we have to make
-            // sure we acquire the locks in the same order, since another thread (MonitorThread),
-            // could call dropClient itself.
-            synchronized (monitorThread) {
-                synchronized (clients) {
-                    for (int c = 0 ; c < clients.size() ;) {
-                        Client client = clients.get(c);
-                        int pid = client.getClientData().getPid();
-
-                        // look for a matching pid
-                        Integer match = null;
-                        for (Integer matchingPid : pidList) {
-                            if (pid == matchingPid.intValue()) {
-                                match = matchingPid;
-                                break;
-                            }
-                        }
-
-                        if (match != null) {
-                            pidList.remove(match);
-                            c++; // move on to the next client.
-                        } else {
-                            // we need to drop the client. the client will remove itself from the
-                            // list of its device which is 'clients', so there's no need to
-                            // increment c.
-                            // We ask the monitor thread to not send notification, as we'll do
-                            // it once at the end.
-                            monitorThread.dropClient(client, false /* notify */);
-                            changed = true;
-                        }
-                    }
-                }
-            }
-
-            // at this point whatever pid is left in the list needs to be converted into Clients.
-            for (int newPid : pidList) {
-                openClient(device, newPid, getNextDebuggerPort(), monitorThread);
-                changed = true;
+    /**
+     * Returns whether a connection to a process is opening, or scheduled.
+     */
+    private boolean isOpeningClient(Device device, int pid) {
+        for (Connection connection : mConnections) {
+            if (connection.mType == TYPE_CLIENT && connection.mDevice == device &&
+                    connection.mPid == pid) {
+                return true;
             }
+        }
 
-            if (changed) {
-                mServer.deviceChanged(device, Device.CHANGE_CLIENT_LIST);
+        for (PendingClient pending : mPendingClients) {
+            if (pending.mDevice == device && pending.mPid == pid) {
+                return true;
             }
         }
+
+        return false;
     }
 
     /**
-     * Opens and creates a new client.
-     * @return
+     * Starts connecting to a process. The client is created once adb accepted the connection.
      */
-    private void openClient(Device device, int pid, int port, MonitorThread monitorThread) {
-
-        SocketChannel clientSocket;
+    private void openClient(Device device, int pid, int port) {
+        Connection connection = new Connection(TYPE_CLIENT, device, pid, port,
+                "host:transport:" + device.getSerialNumber(), //$NON-NLS-1$
+                "jdwp:" + pid); //$NON-NLS-1$
         try {
-            clientSocket = AdbHelper.createPassThroughConnection(
-                    AndroidDebugBridge.getSocketAddress(), device, pid);
-
-            // required for Selector
-            clientSocket.configureBlocking(false);
-        } catch (UnknownHostException uhe) {
-            Log.d("DeviceMonitor", "Unknown Jdwp pid: " + pid);
-            return;
-        } catch (TimeoutException e) {
-            Log.w("DeviceMonitor",
-                    "Failed to connect to client '" + pid + "': timeout");
-            return;
-        } catch (AdbCommandRejectedException e) {
-            Log.w("DeviceMonitor",
-                    "Adb rejected connection to client '" + pid + "': " + e.getMessage());
-            return;
-
-        } catch (IOException ioe) {
-            Log.w("DeviceMonitor",
-                    "Failed to connect to client '" + pid + "': " + ioe.getMessage());
-            return ;
+            connection.open();
+        } catch (IOException e) {
+            connectionFailed(connection, e.getMessage());
         }
-
-        createClient(device, pid, clientSocket, port, monitorThread);
     }
 
     /**
@@ -828,7 +1054,7 @@ final class DeviceMonitor {
 
         if (client.sendHandshake()) {
             try {
-                if (AndroidDebugBridge.getClientSupport()) {
+                if (mClientSupport) {
                     client.listenForDebugger(debuggerPort);
                 }
             } catch (IOException ioe) {
@@ -899,52 +1125,10 @@ final class DeviceMonitor {
     }
 
     /**
-     * Reads the length of the next message from a socket.
-     * @param socket The {@link SocketChannel} to read from.
-     * @return the length, or 0 (zero) if no data is available from the socket.
-     * @throws IOException if the connection failed.
+     * Returns whether an adb status is OKAY.
      */
-    private int readLength(SocketChannel socket, byte[] buffer) throws IOException {
-        String msg = read(socket, buffer);
-
-        if (msg != null) {
-            try {
-                return Integer.parseInt(msg, 16);
-            } catch (NumberFormatException nfe) {
-                // we'll throw an exception below.
-            }
-       }
-
-        // we receive something we can't read. It's better to reset the connection at this point.
-        throw new IOException("Unable to read length");
+    private static boolean isOkay(byte[] status) {
+        return status[0] == (byte)'O' && status[1] == (byte)'K'
+                && status[2] == (byte)'A' && status[3] == (byte)'Y';
     }
-
-    /**
-     * Fills a buffer from a socket.
-     * @param socket
-     * @param buffer
-     * @return the content of the buffer as a string, or null if it failed to convert the buffer.
-     * @throws IOException
-     */
-    private String read(SocketChannel socket, byte[] buffer) throws IOException {
-        ByteBuffer buf = ByteBuffer.wrap(buffer, 0, buffer.length);
-
-        while (buf.position() != buf.limit()) {
-            int count;
-
-            count = socket.read(buf);
-            if (count < 0) {
-                throw new IOException("EOF");
-            }
-        }
-
-        try {
-            return new String(buffer, 0, buf.position(), AdbHelper.DEFAULT_ENCODING);
-        } catch (UnsupportedEncodingException e) {
-            // we'll return null below.
-        }
-
-        return null;
-    }
-
 }
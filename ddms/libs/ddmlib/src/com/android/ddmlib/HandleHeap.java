@@ -19,11 +19,12 @@ package com.android.ddmlib;
 import com.android.ddmlib.ClientData.AllocationTrackingStatus;
 import com.android.ddmlib.ClientData.IHprofDumpHandler;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.nio.channels.FileChannel;
 
 /**
  * Handle heap status updates.
@@ -53,6 +54,8 @@ final class HandleHeap extends ChunkHandler {
     public static final int HPIF_WHEN_NEXT_GC = 2;
     public static final int HPIF_WHEN_EVERY_GC = 3;
 
+    private static final String HPROF_SUFFIX = ".hprof"; //$NON-NLS-1$
+
     private static final HandleHeap mInst = new HandleHeap();
 
     private HandleHeap() {}
@@ -301,20 +304,75 @@ final class HandleHeap extends ChunkHandler {
         }
     }
 
+    /**
+     * HPDS replies contain the full hprof dump, which can be hundreds of MB. They are streamed
+     * to a temp file instead of being read in memory.
+     */
+    @Override
+    File createStreamedChunkFile(int type) throws IOException {
+        if (type == CHUNK_HPDS) {
+            return File.createTempFile("ddms", HPROF_SUFFIX); //$NON-NLS-1$
+        }
+
+        return null;
+    }
+
+    /**
+     * Handle a HeaP Dump Streaming response that was streamed to a file.
+     */
+    @Override
+    void handleStreamedChunk(Client client, int type, File file, int msgId) {
+        if (type != CHUNK_HPDS) {
+            Log.w("ddm-heap", "Unexpected streamed chunk " + name(type));
+            if (file != null) {
+                file.delete();
+            }
+            return;
+        }
+
+        IHprofDumpHandler handler = ClientData.getHprofDumpHandler();
+        if (file == null) {
+            if (handler != null) {
+                handler.onEndFailure(client, "Failed to write the HPROF data to disk.");
+            }
+        } else {
+            Log.d("ddm-hprof", "got hprof file, size: " + file.length() + " bytes");
+
+            if (handler != null) {
+                handler.onSuccess(file, client);
+            } else {
+                file.delete();
+            }
+        }
+    }
+
     /*
      * Handle HeaP Dump Streaming response.  "data" contains the full
      * hprof dump.
+     *
+     * This is only used if the reply could not be streamed to a file as it arrived.
      */
     private void handleHPDS(Client client, ByteBuffer data) {
-        IHprofDumpHandler handler = ClientData.getHprofDumpHandler();
-        if (handler != null) {
-            byte[] stuff = new byte[data.capacity()];
-            data.get(stuff, 0, stuff.length);
-
-            Log.d("ddm-hprof", "got hprof file, size: " + data.capacity() + " bytes");
-
-            handler.onSuccess(stuff, client);
+        File file = null;
+        try {
+            file = createStreamedChunkFile(CHUNK_HPDS);
+            FileChannel channel = new FileOutputStream(file).getChannel();
+            try {
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            Log.e("ddm-hprof", e);
+            if (file != null) {
+                file.delete();
+                file = null;
+            }
         }
+
+        handleStreamedChunk(client, CHUNK_HPDS, file, -1);
     }
 
     /**
@@ -383,7 +441,7 @@ final class HandleHeap extends ChunkHandler {
      * Converts a VM class descriptor string ("Landroid/os/Debug;") to
      * a dot-notation class name ("android.os.Debug").
      */
-    private String descriptorToDot(String str) {
+    private static String descriptorToDot(String str) {
         // count the number of arrays.
         int array = 0;
         while (str.startsWith("[")) {
@@ -432,7 +490,7 @@ final class HandleHeap extends ChunkHandler {
      * This is just a serial collection of strings, each of which is a
      * four-byte length followed by UTF-16 data.
      */
-    private void readStringTable(ByteBuffer data, String[] strings) {
+    private static void readStringTable(ByteBuffer data, String[] strings) {
         int count = strings.length;
         int i;
 
@@ -474,6 +532,17 @@ final class HandleHeap extends ChunkHandler {
      */
     private void handleREAL(Client client, ByteBuffer data) {
         Log.e("ddm-heap", "*** Received " + name(CHUNK_REAL));
+
+        client.getClientData().setAllocations(decodeREAL(data));
+        client.update(Client.CHANGE_HEAP_ALLOCATIONS);
+    }
+
+    /**
+     * Decodes the content of a REAL chunk, described above.
+     * <p/>The allocations are stored directly in an {@link AllocationTable}, without creating
+     * objects for each allocation or frame.
+     */
+    static AllocationTable decodeREAL(ByteBuffer data) {
         int messageHdrLen, entryHdrLen, stackFrameLen;
         int numEntries, offsetToStrings;
         int numClassNames, numMethodNames, numFileNames;
@@ -512,56 +581,44 @@ final class HandleHeap extends ChunkHandler {
          */
         data.position(messageHdrLen);
 
-        ArrayList<AllocationInfo> list = new ArrayList<AllocationInfo>(numEntries);
+        AllocationTable table = new AllocationTable(classNames, methodNames, fileNames,
+                numEntries);
         for (int i = 0; i < numEntries; i++) {
             int totalSize;
             int threadId, classNameIndex, stackDepth;
 
+            int entryStart = data.position();
             totalSize = data.getInt();
             threadId = (data.getShort() & 0xffff);
             classNameIndex = (data.getShort() & 0xffff);
             stackDepth = (data.get() & 0xff);
-            /* we've consumed 9 bytes; gobble up any extra */
-            for (int skip = 9; skip < entryHdrLen; skip++)
-                data.get();
+            /* we've consumed 9 bytes; skip any extra */
+            data.position(entryStart + entryHdrLen);
 
-            StackTraceElement[] steArray = new StackTraceElement[stackDepth];
+            table.addAllocation(totalSize, threadId, classNameIndex);
 
             /*
              * Pull out the stack trace.
              */
             for (int sti = 0; sti < stackDepth; sti++) {
-                int methodClassNameIndex, methodNameIndex;
-                int methodSourceFileIndex;
-                short lineNumber;
-                String methodClassName, methodName, methodSourceFile;
-
-                methodClassNameIndex = (data.getShort() & 0xffff);
-                methodNameIndex = (data.getShort() & 0xffff);
-                methodSourceFileIndex = (data.getShort() & 0xffff);
-                lineNumber = data.getShort();
-
-                methodClassName = classNames[methodClassNameIndex];
-                methodName = methodNames[methodNameIndex];
-                methodSourceFile = fileNames[methodSourceFileIndex];
-
-                steArray[sti] = new StackTraceElement(methodClassName,
-                    methodName, methodSourceFile, lineNumber);
-
-                /* we've consumed 8 bytes; gobble up any extra */
-                for (int skip = 9; skip < stackFrameLen; skip++)
-                    data.get();
-            }
+                int frameStart = data.position();
+                int methodClassNameIndex = (data.getShort() & 0xffff);
+                int methodNameIndex = (data.getShort() & 0xffff);
+                int methodSourceFileIndex = (data.getShort() & 0xffff);
+                short lineNumber = data.getShort();
+
+                table.addFrame(methodClassNameIndex, methodNameIndex, methodSourceFileIndex,
+                        lineNumber);
 
-            list.add(new AllocationInfo(classNames[classNameIndex],
-                totalSize, (short) threadId, steArray));
+                /* we've consumed 8 bytes; skip any extra */
+                data.position(frameStart + stackFrameLen);
+            }
         }
 
         // sort biggest allocations first.
-        Collections.sort(list);
+        table.sort();
 
-        client.getClientData().setAllocations(list.toArray(new AllocationInfo[numEntries]));
-        client.update(Client.CHANGE_HEAP_ALLOCATIONS);
+        return table;
     }
 
     /*
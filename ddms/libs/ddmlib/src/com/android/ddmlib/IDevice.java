@@ -20,6 +20,8 @@ import com.android.ddmlib.log.LogReceiver;
 
 import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  *  A Device. It can be a physical device or an emulator.
@@ -201,6 +203,20 @@ public interface IDevice {
     public RawImage getScreenshot() throws TimeoutException, AdbCommandRejectedException,
             IOException;
 
+    /**
+     * Starts capturing the screen of the device continuously, and returns immediately.
+     * <p/>Frames are captured on a dedicated thread, at most <var>fps</var> times per second.
+     * Only the frames that changed are sent to the <var>listener</var>, along with the regions
+     * that changed since the previous frame.
+     *
+     * @param fps the target number of frames per second.
+     * @param listener the {@link ScreenCapture.IFrameListener} receiving the frames.
+     * @return the {@link ScreenCapture}, to stop it.
+     *
+     * @see ScreenCapture
+     */
+    public ScreenCapture startScreenCapture(int fps, ScreenCapture.IFrameListener listener);
+
     /**
      * Executes a shell command on the device, and sends the result to a <var>receiver</var>
      * <p/>This is similar to calling
@@ -254,6 +270,52 @@ public interface IDevice {
             throws TimeoutException, AdbCommandRejectedException, ShellCommandUnresponsiveException,
             IOException;
 
+    /**
+     * Starts executing a shell command on the device, and returns immediately. The output is
+     * sent to the <var>receiver</var> as it arrives.
+     * <p/>This is similar to calling
+     * <code>executeShellCommandAsync(command, receiver, DdmPreferences.getTimeOut())</code>.
+     *
+     * @param command the shell command to execute
+     * @param receiver the {@link IShellOutputReceiver} that will receives the output of the shell
+     *            command
+     * @return a {@link Future} to wait for the end of the command, or cancel it.
+     * @throws IOException if the command could not be scheduled.
+     *
+     * @see #executeShellCommandAsync(String, IShellOutputReceiver, int)
+     */
+    public Future<Void> executeShellCommandAsync(String command, IShellOutputReceiver receiver)
+            throws IOException;
+
+    /**
+     * Starts executing a shell command on the device, and returns immediately. The output is
+     * sent to the <var>receiver</var> as it arrives.
+     * <p/>All asynchronous commands, for all devices, are driven by a single thread. The
+     * <var>receiver</var> is called from that thread and should return quickly.
+     * <p/>The number of commands running at the same time on a device is limited by
+     * {@link DdmPreferences#getMaxShellCommandsPerDevice()}. Extra commands are queued.
+     * <p/>Errors are reported through the returned {@link Future}: {@link Future#get()} throws an
+     * {@link ExecutionException} whose cause is a {@link TimeoutException},
+     * {@link AdbCommandRejectedException}, {@link ShellCommandUnresponsiveException} or
+     * {@link IOException}, matching the exceptions thrown by
+     * {@link #executeShellCommand(String, IShellOutputReceiver, int)}.
+     * <p/>The command is stopped if {@link Future#cancel(boolean)} is called, or if the
+     * receiver's {@link IShellOutputReceiver#isCancelled()} returns <code>true</code>.
+     *
+     * @param command the shell command to execute
+     * @param receiver the {@link IShellOutputReceiver} that will receives the output of the shell
+     *            command
+     * @param maxTimeToOutputResponse the maximum amount of time during which the command is allowed
+     *            to not output any response. A value of 0 means the command will wait forever
+     *            (until it is cancelled) for command output.
+     * @return a {@link Future} to wait for the end of the command, or cancel it.
+     * @throws IOException if the command could not be scheduled.
+     *
+     * @see DdmPreferences#getTimeOut()
+     */
+    public Future<Void> executeShellCommandAsync(String command, IShellOutputReceiver receiver,
+            int maxTimeToOutputResponse) throws IOException;
+
     /**
      * Runs the event log service and outputs the event log to the {@link LogReceiver}.
      * <p/>This call is blocking until {@link LogReceiver#isCancelled()} returns true.
@@ -283,6 +283,20 @@ final class JdwpPacket {
      * a valid JDWP packet.
      */
     static JdwpPacket findPacket(ByteBuffer buf) {
+        JdwpPacket pkt = findPacketHeader(buf);
+        if (pkt == null || buf.position() < pkt.mLength)
+            return null;
+
+        return pkt;
+    }
+
+    /**
+     * Like findPacket(), but only requires the packet header to be in "buf".
+     *
+     * This is used to look at large packets before they are fully read.
+     * The returned packet must not be consumed until it is complete.
+     */
+    static JdwpPacket findPacketHeader(ByteBuffer buf) {
         int count = buf.position();
         int length, id, flags, cmdSet, cmd;
 
@@ -302,8 +316,6 @@ final class JdwpPacket {
 
         if (length < JDWP_HEADER_LEN)
             throw new BadPacketException();
-        if (count < length)
-            return null;
 
         JdwpPacket pkt = new JdwpPacket(buf);
         //pkt.mBuffer = buf;
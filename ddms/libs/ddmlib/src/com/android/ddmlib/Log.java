@@ -90,6 +90,24 @@ public final class Log {
             return null;
         }
 
+        /**
+         * Returns the {@link LogLevel} enum matching the specified numerical priority, as used
+         * by the device logger.
+         * <p/>Priorities lower than {@link #VERBOSE} are returned as {@link #VERBOSE}, and
+         * priorities higher than {@link #ASSERT} are returned as {@link #ASSERT}.
+         * @param priority the numerical priority.
+         */
+        public static LogLevel getByPriority(int priority) {
+            LogLevel[] values = values();
+            for (LogLevel mode : values) {
+                if (mode.mPriorityLevel >= priority) {
+                    return mode;
+                }
+            }
+
+            return values[values.length - 1];
+        }
+
         /**
          * Returns the letter identifying the priority of the {@link LogLevel}.
          */
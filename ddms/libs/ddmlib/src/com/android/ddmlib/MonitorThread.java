@@ -20,6 +20,7 @@ package com.android.ddmlib;
 import com.android.ddmlib.DebugPortManager.IDebugPortProvider;
 import com.android.ddmlib.Log.LogLevel;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -55,12 +56,21 @@ final class MonitorThread extends Thread {
     // List of clients we're paying attention to
     private ArrayList<Client> mClientList;
 
+    // Clients whose chunk handler failed, dropped by the monitor thread before the next select
+    private final ArrayList<Client> mDroppedClients = new ArrayList<Client>();
+
+    // Clients closed since the last select, whose read buffer goes back to the pool
+    private final ArrayList<Client> mClosedClients = new ArrayList<Client>();
+
     // The almighty mux
     private Selector mSelector;
 
     // Map chunk types to handlers
     private HashMap<Integer, ChunkHandler> mHandlerMap;
 
+    // Runs the chunk handlers, in order for each client
+    private final ChunkDispatcher mDispatcher;
+
     // port for "debug selected"
     private ServerSocketChannel mDebugSelectedChan;
 
@@ -83,6 +93,7 @@ final class MonitorThread extends Thread {
         super("Monitor");
         mClientList = new ArrayList<Client>();
         mHandlerMap = new HashMap<Integer, ChunkHandler>();
+        mDispatcher = new ChunkDispatcher();
 
         mNewDebugSelectedPort = DdmPreferences.getSelectedDebugPort();
     }
@@ -235,6 +246,9 @@ final class MonitorThread extends Thread {
                     mNewDebugSelectedPort = mDebugSelectedPort; // no retry
                 }
 
+                dropClients();
+                releaseReadBuffers();
+
                 int count;
                 try {
                     count = mSelector.select();
@@ -375,13 +389,17 @@ final class MonitorThread extends Thread {
      * Process an incoming DDM packet. If this is a reply to an earlier request,
      * "handler" will be set to the handler responsible for the original
      * request. The spec allows a JDWP message to include multiple DDM chunks.
+     *
+     * The handler doesn't run on this thread, so that a slow handler doesn't
+     * hold up the other clients and debuggers.  It runs after the handlers of
+     * the chunks received before from the same client.
      */
-    private void callHandler(Client client, JdwpPacket packet,
+    private void callHandler(final Client client, JdwpPacket packet,
             ChunkHandler handler) {
 
         // on first DDM packet received, broadcast a "ready" message
         if (!client.ddmSeen())
-            broadcast(CLIENT_READY, client);
+            broadcastLater(CLIENT_READY, client);
 
         ByteBuffer buf = packet.getPayload();
         int type, length;
@@ -404,18 +422,60 @@ final class MonitorThread extends Thread {
         } else {
             Log.d("ddms", "Calling handler for " + ChunkHandler.name(type)
                     + " [" + handler + "] (len=" + length + ")");
-            ByteBuffer ibuf = buf.slice();
-            ByteBuffer roBuf = ibuf.asReadOnlyBuffer(); // enforce R/O
+            // the packet is in the read buffer of the client, which is reused
+            // as soon as the packet is consumed, so the handler gets a copy.
+            ByteBuffer ibuf = ByteBuffer.allocate(buf.remaining());
+            ibuf.put(buf);
+            ibuf.flip();
+            final ByteBuffer roBuf = ibuf.asReadOnlyBuffer(); // enforce R/O
             roBuf.order(ChunkHandler.CHUNK_ORDER);
-            // do the handling of the chunk synchronized on the client list
-            // to be sure there's no concurrency issue when we look for HOME
-            // in hasApp()
-            synchronized (mClientList) {
-                handler.handleChunk(client, type, roBuf, reply, packet.getId());
-            }
+
+            final ChunkHandler chunkHandler = handler;
+            final int chunkType = type;
+            final boolean isReply = reply;
+            final int msgId = packet.getId();
+            mDispatcher.dispatch(client, new Runnable() {
+                public void run() {
+                    try {
+                        chunkHandler.handleChunk(client, chunkType, roBuf, isReply, msgId);
+                    } catch (Exception e) {
+                        // same as a failure while reading the client.
+                        Log.e("ddms", e);
+                        dropClientLater(client);
+                    }
+                }
+            });
         }
     }
 
+    /**
+     * Gives the file of a streamed chunk to its handler, after the chunks of the client
+     * received before it.
+     * <p/>This is called by the monitor thread, which keeps reading the other clients while the
+     * handler runs.
+     */
+    void callStreamedHandler(final Client client, final ChunkHandler handler, final int type,
+            final File file, final int msgId) {
+        mDispatcher.dispatch(client, new Runnable() {
+            public void run() {
+                try {
+                    handler.handleStreamedChunk(client, type, file, msgId);
+                } catch (Exception e) {
+                    // same as a failure while reading the client.
+                    Log.e("ddms", e);
+                    dropClientLater(client);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the number of chunks of a client waiting to be handled.
+     */
+    int getPendingChunkCount(Client client) {
+        return mDispatcher.getPendingCount(client);
+    }
+
     /**
      * Drops a client from the monitor.
      * <p/>This will lock the {@link Client} list of the {@link Device} running <var>client</var>.
@@ -433,7 +493,12 @@ final class MonitorThread extends Thread {
             }
         }
         client.close(notify);
-        broadcast(CLIENT_DISCONNECTED, client);
+        broadcastLater(CLIENT_DISCONNECTED, client);
+
+        // this may not be the monitor thread, which could be reading into the buffer.
+        synchronized (mClosedClients) {
+            mClosedClients.add(client);
+        }
 
         /*
          * http://forum.java.sun.com/thread.jspa?threadID=726715&start=0
@@ -442,6 +507,51 @@ final class MonitorThread extends Thread {
         wakeup();
     }
 
+    /**
+     * Drops a client from the monitor thread, which may be reading it.
+     * <p/>This is used by the threads handling chunks. The client is dropped (and its
+     * listeners notified) before the next select.
+     */
+    private void dropClientLater(Client client) {
+        synchronized (mDroppedClients) {
+            mDroppedClients.add(client);
+        }
+
+        wakeup();
+    }
+
+    /**
+     * Drops the clients given to {@link #dropClientLater(Client)} since the last call.
+     */
+    private void dropClients() {
+        Client[] clients;
+        synchronized (mDroppedClients) {
+            clients = mDroppedClients.toArray(new Client[mDroppedClients.size()]);
+            mDroppedClients.clear();
+        }
+
+        for (Client client : clients) {
+            dropClient(client, true /* notify */);
+        }
+    }
+
+    /**
+     * Gives the read buffers of the clients closed since the last call back to the pool.
+     * <p/>This runs on the monitor thread, so no read is in progress. The channels of the
+     * clients are closed, so they are not read anymore.
+     */
+    private void releaseReadBuffers() {
+        Client[] clients;
+        synchronized (mClosedClients) {
+            clients = mClosedClients.toArray(new Client[mClosedClients.size()]);
+            mClosedClients.clear();
+        }
+
+        for (Client client : clients) {
+            client.releaseReadBuffer();
+        }
+    }
+
     /*
      * Process activity from one of the debugger sockets. This could be a new
      * connection or a data packet.
@@ -582,12 +692,15 @@ final class MonitorThread extends Thread {
             // since we're quitting, lets drop all the client and disconnect
             // the DebugSelectedPort
             synchronized (mClientList) {
+                // the thread is done, so the buffers can't be read into anymore.
                 for (Client c : mClientList) {
                     c.close(false /* notify */);
+                    c.releaseReadBuffer();
                     broadcast(CLIENT_DISCONNECTED, c);
                 }
                 mClientList.clear();
             }
+            releaseReadBuffers();
 
             if (mDebugSelectedChan != null) {
                 mDebugSelectedChan.close();
@@ -595,6 +708,7 @@ final class MonitorThread extends Thread {
                 mDebugSelectedChan = null;
             }
             mSelector.close();
+            mDispatcher.shutdown();
         } catch (InterruptedException ie) {
             ie.printStackTrace();
         } catch (IOException e) {
@@ -645,6 +759,18 @@ final class MonitorThread extends Thread {
         }
     }
 
+    /*
+     * Broadcast an event to all message handlers, after the chunks of the
+     * client already received are handled.
+     */
+    private void broadcastLater(final int event, final Client client) {
+        mDispatcher.dispatch(client, new Runnable() {
+            public void run() {
+                broadcast(event, client);
+            }
+        });
+    }
+
     /*
      * Broadcast an event to all message handlers.
      */
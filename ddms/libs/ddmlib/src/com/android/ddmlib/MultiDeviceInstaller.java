@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.ddmlib.SyncService.SyncResult;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Installs a package on several devices at once.
+ * <p/>The package is read once, and the same buffer is pushed to all the devices. Each device
+ * is then handled like by {@link IDevice#installPackage(String, boolean)}: the package is
+ * installed with <code>pm install</code> and the pushed file is removed. Up to
+ * {@link #getConcurrency()} devices are handled at the same time, each on its own thread.
+ */
+public final class MultiDeviceInstaller {
+
+    /** Default number of devices handled at the same time. */
+    public final static int DEFAULT_CONCURRENCY = 4;
+
+    private final static String REMOTE_DIRECTORY = "/data/local/tmp/"; //$NON-NLS-1$
+
+    /**
+     * Result of the installation of the package on a device.
+     */
+    public static final class InstallResult {
+        private final IDevice mDevice;
+        private String mErrorMessage;
+        private long mPushTime;
+        private long mInstallTime;
+
+        InstallResult(IDevice device) {
+            mDevice = device;
+        }
+
+        /**
+         * Returns the device.
+         */
+        public IDevice getDevice() {
+            return mDevice;
+        }
+
+        /**
+         * Returns whether the package was installed.
+         */
+        public boolean isSuccess() {
+            return mErrorMessage == null;
+        }
+
+        /**
+         * Returns the reason of the failure, or <code>null</code> if the package was installed.
+         * This is either the error reported by the package manager, or the reason the device
+         * couldn't be reached.
+         */
+        public String getErrorMessage() {
+            return mErrorMessage;
+        }
+
+        /**
+         * Returns the time spent pushing the package, in ms.
+         */
+        public long getPushTime() {
+            return mPushTime;
+        }
+
+        /**
+         * Returns the time spent installing the pushed package, in ms.
+         */
+        public long getInstallTime() {
+            return mInstallTime;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%1$s: %2$s (push %3$dms, install %4$dms)", //$NON-NLS-1$
+                    mDevice.getSerialNumber(), isSuccess() ? "Success" : mErrorMessage, //$NON-NLS-1$
+                    mPushTime, mInstallTime);
+        }
+    }
+
+    /**
+     * The devices of an installation, shared by the installer threads.
+     */
+    private static final class DeviceQueue {
+        private final int mCount;
+        private int mNext = 0;
+
+        DeviceQueue(int count) {
+            mCount = count;
+        }
+
+        /**
+         * Returns the index of the next device to handle, or -1 if all the devices are handled.
+         */
+        synchronized int next() {
+            if (mNext == mCount) {
+                return -1;
+            }
+            return mNext++;
+        }
+    }
+
+    private final InetSocketAddress mAddress;
+    private int mConcurrency = DEFAULT_CONCURRENCY;
+
+    /**
+     * Creates an installer for the devices of the {@link AndroidDebugBridge}.
+     */
+    public MultiDeviceInstaller() {
+        this(AndroidDebugBridge.getSocketAddress());
+    }
+
+    /**
+     * Creates an installer for the devices of a given adb server.
+     * @param address the address of the adb server.
+     */
+    MultiDeviceInstaller(InetSocketAddress address) {
+        mAddress = address;
+    }
+
+    /**
+     * Sets the max number of devices handled at the same time.
+     * @param concurrency the number of devices. Must be at least 1.
+     */
+    public void setConcurrency(int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be at least 1"); //$NON-NLS-1$
+        }
+        mConcurrency = concurrency;
+    }
+
+    /**
+     * Returns the max number of devices handled at the same time.
+     */
+    public int getConcurrency() {
+        return mConcurrency;
+    }
+
+    /**
+     * Installs a package on devices, and waits for all the installations to be finished.
+     * <p/>A failure on a device doesn't stop the installation on the other ones.
+     * @param packageFilePath the absolute file system path to file on local host to install
+     * @param devices the devices.
+     * @param reinstall set to <code>true</code> if re-install of app should be performed
+     * @return the results, in the order of the devices.
+     * @throws IOException if the package cannot be read.
+     */
+    public InstallResult[] install(String packageFilePath, IDevice[] devices,
+            final boolean reinstall) throws IOException {
+        final ByteBuffer data = readPackage(new File(packageFilePath));
+        final String remotePath = REMOTE_DIRECTORY + new File(packageFilePath).getName();
+
+        final InstallResult[] results = new InstallResult[devices.length];
+        for (int i = 0 ; i < devices.length ; i++) {
+            results[i] = new InstallResult(devices[i]);
+        }
+
+        final DeviceQueue queue = new DeviceQueue(devices.length);
+        long start = System.currentTimeMillis();
+
+        Thread[] threads = new Thread[Math.min(mConcurrency, devices.length)];
+        for (int i = 0 ; i < threads.length ; i++) {
+            threads[i] = new Thread("Package Installer " + i) { //$NON-NLS-1$
+                @Override
+                public void run() {
+                    int index;
+                    while ((index = queue.next()) != -1) {
+                        install(data, remotePath, reinstall, results[index]);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        // the results are filled as the installations finish, so wait for all of them.
+        for (Thread t : threads) {
+            while (t.isAlive()) {
+                try {
+                    t.join();
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+        }
+
+        Log.d("ddms", String.format("Installed %1$s on %2$d devices in %3$dms", //$NON-NLS-1$
+                packageFilePath, devices.length, System.currentTimeMillis() - start));
+
+        return results;
+    }
+
+    /**
+     * Installs the package on a device.
+     * @param data the content of the package.
+     * @param remotePath the remote file to push the package to.
+     * @param reinstall set to <code>true</code> if re-install of app should be performed
+     * @param result the result of the device, filled by this method.
+     */
+    private void install(ByteBuffer data, String remotePath, boolean reinstall,
+            InstallResult result) {
+        IDevice device = result.getDevice();
+        long start = System.currentTimeMillis();
+        try {
+            SyncService sync;
+            if (device instanceof Device) {
+                sync = new SyncService(mAddress, (Device) device);
+                if (sync.openSync() == false) {
+                    sync = null;
+                }
+            } else {
+                sync = device.getSyncService();
+            }
+            if (sync == null) {
+                result.mErrorMessage = "Unable to open sync connection!";
+                return;
+            }
+
+            try {
+                SyncResult syncResult = sync.pushData(data, remotePath,
+                        SyncService.getNullProgressMonitor());
+                if (syncResult.getCode() != SyncService.RESULT_OK) {
+                    result.mErrorMessage = String.format("Unable to upload file: %1$s",
+                            syncResult.getMessage());
+                    return;
+                }
+            } finally {
+                sync.close();
+            }
+
+            long pushed = System.currentTimeMillis();
+            result.mPushTime = pushed - start;
+
+            Device.InstallReceiver receiver = new Device.InstallReceiver();
+            String cmd = String.format(reinstall ? "pm install -r \"%1$s\"" : "pm install \"%1$s\"", //$NON-NLS-1$ //$NON-NLS-2$
+                    remotePath);
+            executeShellCommand(device, cmd, receiver);
+            result.mErrorMessage = receiver.getErrorMessage();
+            result.mInstallTime = System.currentTimeMillis() - pushed;
+
+            try {
+                executeShellCommand(device, "rm " + remotePath, new NullOutputReceiver()); //$NON-NLS-1$
+            } catch (IOException e) {
+                Log.e("ddms", String.format("Failed to delete temporary package on %1$s: %2$s", //$NON-NLS-1$
+                        device.getSerialNumber(), e.getMessage()));
+            }
+        } catch (TimeoutException e) {
+            result.mErrorMessage = "Connection timeout";
+        } catch (AdbCommandRejectedException e) {
+            result.mErrorMessage = e.getMessage();
+        } catch (ShellCommandUnresponsiveException e) {
+            result.mErrorMessage = "The package manager did not respond";
+        } catch (IOException e) {
+            result.mErrorMessage = e.getMessage();
+        } finally {
+            Log.d("ddms", "Install: " + result); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+    }
+
+    private void executeShellCommand(IDevice device, String command,
+            IShellOutputReceiver receiver)
+            throws TimeoutException, AdbCommandRejectedException,
+            ShellCommandUnresponsiveException, IOException {
+        if (device instanceof Device) {
+            AdbHelper.executeRemoteCommand(mAddress, command, device, receiver,
+                    Device.INSTALL_TIMEOUT);
+        } else {
+            device.executeShellCommand(command, receiver, Device.INSTALL_TIMEOUT);
+        }
+    }
+
+    /**
+     * Reads the content of a package.
+     * @return a read-only buffer with the content of the package.
+     * @throws IOException
+     */
+    private static ByteBuffer readPackage(File f) throws IOException {
+        FileChannel fc = new FileInputStream(f).getChannel();
+        try {
+            long size = fc.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Package too large: " + f); //$NON-NLS-1$
+            }
+
+            ByteBuffer data = ByteBuffer.allocate((int) size);
+            while (data.hasRemaining()) {
+                if (fc.read(data) == -1) {
+                    throw new IOException("Unexpected end of file: " + f); //$NON-NLS-1$
+                }
+            }
+
+            data.flip();
+            return data.asReadOnlyBuffer();
+        } finally {
+            fc.close();
+        }
+    }
+}
@@ -25,16 +25,61 @@ import java.util.ArrayList;
  * <p/>Additionally, it splits the string by lines.
  * <p/>Classes extending it must implement {@link #processNewLines(String[])} which receives
  * new parsed lines as they become available.
+ * <p/>Classes that don't need {@link String} objects can instead override
+ * {@link #processNewLine(byte[], int, int)} or {@link #processNewLine(CharSequence)}, which
+ * receive each line as it is found without any allocation. In that case,
+ * {@link #processNewLines(String[])} is never called.
  */
 public abstract class MultiLineReceiver implements IShellOutputReceiver {
 
     private boolean mTrimLines = true;
 
     /** unfinished message line, stored for next packet */
-    private String mUnfinishedLine = null;
+    private byte[] mUnfinishedLine = new byte[256];
+    private int mUnfinishedLength = 0;
+    /** whether any output was received. */
+    private boolean mHasOutput = false;
 
     private final ArrayList<String> mArray = new ArrayList<String>();
 
+    /** reusable view given to {@link #processNewLine(CharSequence)} */
+    private final ByteCharSequence mLineView = new ByteCharSequence();
+
+    /**
+     * A {@link CharSequence} view of a range of ISO-8859-1 bytes.
+     */
+    private static final class ByteCharSequence implements CharSequence {
+        private byte[] mData;
+        private int mOffset;
+        private int mLength;
+
+        void set(byte[] data, int offset, int length) {
+            mData = data;
+            mOffset = offset;
+            mLength = length;
+        }
+
+        public char charAt(int index) {
+            if (index < 0 || index >= mLength) {
+                throw new IndexOutOfBoundsException();
+            }
+            return (char)(mData[mOffset + index] & 0xFF);
+        }
+
+        public int length() {
+            return mLength;
+        }
+
+        public CharSequence subSequence(int start, int end) {
+            return toString().substring(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return decode(mData, mOffset, mLength);
+        }
+    }
+
     /**
      * Set the trim lines flag.
      * @param trim hether the lines are trimmed, or not.
@@ -49,55 +94,57 @@ public abstract class MultiLineReceiver implements IShellOutputReceiver {
      */
     public final void addOutput(byte[] data, int offset, int length) {
         if (isCancelled() == false) {
-            String s = null;
-            try {
-                s = new String(data, offset, length, "ISO-8859-1"); //$NON-NLS-1$
-            } catch (UnsupportedEncodingException e) {
-                // normal encoding didn't work, try the default one
-                s = new String(data, offset,length);
-            }
-
-            // ok we've got a string
-            if (s != null) {
-                // if we had an unfinished line we add it.
-                if (mUnfinishedLine != null) {
-                    s = mUnfinishedLine + s;
-                    mUnfinishedLine = null;
-                }
+            mHasOutput = true;
+            mArray.clear();
 
-                // now we split the lines
-                mArray.clear();
-                int start = 0;
-                do {
-                    int index = s.indexOf("\r\n", start); //$NON-NLS-1$
+            int end = offset + length;
+            int start = offset;
 
-                    // if \r\n was not found, this is an unfinished line
-                    // and we store it to be processed for the next packet
+            // if we had an unfinished line, complete it first.
+            if (mUnfinishedLength > 0 && start < end) {
+                if (mUnfinishedLine[mUnfinishedLength - 1] == '\r' && data[start] == '\n') {
+                    // the \r\n was split between the two packets.
+                    emitLine(mUnfinishedLine, 0, mUnfinishedLength - 1);
+                    mUnfinishedLength = 0;
+                    start++;
+                } else {
+                    int index = indexOfLineEnd(data, start, end);
                     if (index == -1) {
-                        mUnfinishedLine = s.substring(start);
-                        break;
+                        appendUnfinished(data, start, end - start);
+                        start = end;
+                    } else {
+                        appendUnfinished(data, start, index - start);
+                        emitLine(mUnfinishedLine, 0, mUnfinishedLength);
+                        mUnfinishedLength = 0;
+                        start = index + 2;
                     }
+                }
+            }
 
-                    // so we found a \r\n;
-                    // extract the line
-                    String line = s.substring(start, index);
-                    if (mTrimLines) {
-                        line = line.trim();
-                    }
-                    mArray.add(line);
+            // now we split the lines, directly from the packet.
+            while (start < end) {
+                int index = indexOfLineEnd(data, start, end);
 
-                    // move start to after the \r\n we found
-                    start = index + 2;
-                } while (true);
+                // if \r\n was not found, this is an unfinished line
+                // and we store it to be processed for the next packet
+                if (index == -1) {
+                    appendUnfinished(data, start, end - start);
+                    break;
+                }
 
-                if (mArray.size() > 0) {
-                    // at this point we've split all the lines.
-                    // make the array
-                    String[] lines = mArray.toArray(new String[mArray.size()]);
+                emitLine(data, start, index - start);
 
-                    // send it for final processing
-                    processNewLines(lines);
-                }
+                // move start to after the \r\n we found
+                start = index + 2;
+            }
+
+            if (mArray.size() > 0) {
+                // at this point we've split all the lines.
+                // make the array
+                String[] lines = mArray.toArray(new String[mArray.size()]);
+
+                // send it for final processing
+                processNewLines(lines);
             }
         }
     }
@@ -106,8 +153,14 @@ public abstract class MultiLineReceiver implements IShellOutputReceiver {
      * @see com.android.ddmlib.adb.IShellOutputReceiver#flush()
      */
     public final void flush() {
-        if (mUnfinishedLine != null) {
-            processNewLines(new String[] { mUnfinishedLine });
+        if (mHasOutput) {
+            // the unfinished line is given as is, without trimming.
+            mArray.clear();
+            processNewLine(mUnfinishedLine, 0, mUnfinishedLength);
+            mUnfinishedLength = 0;
+            if (mArray.size() > 0) {
+                processNewLines(mArray.toArray(new String[mArray.size()]));
+            }
         }
 
         done();
@@ -127,4 +180,86 @@ public abstract class MultiLineReceiver implements IShellOutputReceiver {
      * @param lines The array containing the new lines.
      */
     public abstract void processNewLines(String[] lines);
+
+    /**
+     * Called for each new line received by the remote process, as a range of bytes.
+     * <p/>The line does not include the line terminator and is already trimmed if needed. The
+     * array is owned by the receiver and its content is only valid during the call.
+     * <p/>The default implementation calls {@link #processNewLine(CharSequence)}.
+     * @param data the array containing the line.
+     * @param offset the offset of the line in the array.
+     * @param length the length of the line.
+     */
+    protected void processNewLine(byte[] data, int offset, int length) {
+        mLineView.set(data, offset, length);
+        processNewLine(mLineView);
+    }
+
+    /**
+     * Called for each new line received by the remote process.
+     * <p/>The {@link CharSequence} object is reused for all the lines and is only valid during
+     * the call. Use {@link CharSequence#toString()} to keep it.
+     * <p/>The default implementation collects the lines and sends them to
+     * {@link #processNewLines(String[])} once the current packet is processed.
+     * @param line the new line.
+     */
+    protected void processNewLine(CharSequence line) {
+        mArray.add(line.toString());
+    }
+
+    /**
+     * Trims the line if needed, and sends it to {@link #processNewLine(byte[], int, int)}.
+     */
+    private void emitLine(byte[] data, int offset, int length) {
+        if (mTrimLines) {
+            // same as String.trim()
+            int end = offset + length;
+            while (offset < end && (data[offset] & 0xFF) <= ' ') {
+                offset++;
+            }
+            while (end > offset && (data[end - 1] & 0xFF) <= ' ') {
+                end--;
+            }
+            length = end - offset;
+        }
+
+        processNewLine(data, offset, length);
+    }
+
+    /**
+     * Appends data to the unfinished line, growing its buffer if needed.
+     */
+    private void appendUnfinished(byte[] data, int offset, int length) {
+        int needed = mUnfinishedLength + length;
+        if (needed > mUnfinishedLine.length) {
+            byte[] newBuffer = new byte[Math.max(needed, mUnfinishedLine.length * 2)];
+            System.arraycopy(mUnfinishedLine, 0, newBuffer, 0, mUnfinishedLength);
+            mUnfinishedLine = newBuffer;
+        }
+
+        System.arraycopy(data, offset, mUnfinishedLine, mUnfinishedLength, length);
+        mUnfinishedLength = needed;
+    }
+
+    /**
+     * Returns the index of the next \r\n in the given range, or -1 if there is none.
+     */
+    private static int indexOfLineEnd(byte[] data, int start, int end) {
+        for (int i = start ; i < end - 1 ; i++) {
+            if (data[i] == '\r' && data[i + 1] == '\n') {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private static String decode(byte[] data, int offset, int length) {
+        try {
+            return new String(data, offset, length, AdbHelper.DEFAULT_ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            // normal encoding didn't work, try the default one
+            return new String(data, offset, length);
+        }
+    }
 }
@@ -168,6 +168,7 @@ public final class RawImage {
 
     /**
      * Returns an ARGB integer value for the pixel at <var>index</var> in {@link #data}.
+     * <p/>To convert the whole image, use {@link RawImageConverter}.
      */
     public int getARGB(int index) {
         int value;
@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Converts the content of a {@link RawImage} into ARGB pixels, as returned one at a time by
+ * {@link RawImage#getARGB(int)}.
+ * <p/>The frame buffer is read in bulk, and the common layouts (RGB565, RGBA8888, RGBX8888,
+ * BGRA8888 and BGRX8888) are converted with dedicated loops. Other layouts go through the
+ * masks and shifts of the image.
+ */
+public final class RawImageConverter {
+
+    /** Minimum number of pixels converted by a task when converting in parallel. */
+    private static final int MIN_PIXELS_PER_TASK = 128 * 1024;
+
+    private static final int LAYOUT_GENERIC = 0;
+    private static final int LAYOUT_RGB565 = 1;
+    private static final int LAYOUT_RGBA8888 = 2;
+    private static final int LAYOUT_RGBX8888 = 3;
+    private static final int LAYOUT_BGRA8888 = 4;
+    private static final int LAYOUT_BGRX8888 = 5;
+
+    private RawImageConverter() {
+    }
+
+    /**
+     * Returns a new {@link BufferedImage#TYPE_INT_ARGB} image with the content of a
+     * {@link RawImage}.
+     */
+    public static BufferedImage toBufferedImage(RawImage rawImage) {
+        BufferedImage image = new BufferedImage(rawImage.width, rawImage.height,
+                BufferedImage.TYPE_INT_ARGB);
+        convert(rawImage, image);
+        return image;
+    }
+
+    /**
+     * Converts a {@link RawImage} into an existing image, writing directly into its raster.
+     * @param rawImage the image to convert.
+     * @param image a {@link BufferedImage#TYPE_INT_ARGB} image of the same size.
+     */
+    public static void convert(RawImage rawImage, BufferedImage image) {
+        convert(rawImage, getPixels(rawImage, image));
+    }
+
+    /**
+     * Converts a {@link RawImage} into an existing image, splitting the rows between the
+     * threads of an executor.
+     * @param rawImage the image to convert.
+     * @param image a {@link BufferedImage#TYPE_INT_ARGB} image of the same size.
+     * @param executor the executor running the conversion.
+     * @throws InterruptedException if the thread is interrupted while waiting for the
+     * conversion.
+     */
+    public static void convert(RawImage rawImage, BufferedImage image, ExecutorService executor)
+            throws InterruptedException {
+        convert(rawImage, getPixels(rawImage, image), executor);
+    }
+
+    /**
+     * Converts regions of a {@link RawImage} into an existing image, leaving the rest of the
+     * image as is. This updates an image with the regions of a frame that changed, as sent by
+     * a {@link ScreenCapture}.
+     * @param rawImage the image to convert.
+     * @param image a {@link BufferedImage#TYPE_INT_ARGB} image of the same size.
+     * @param regions the regions to convert. They must be inside the image.
+     */
+    public static void convert(RawImage rawImage, BufferedImage image, Rectangle[] regions) {
+        int[] argb = getPixels(rawImage, image);
+        for (Rectangle region : regions) {
+            for (int y = region.y ; y < region.y + region.height ; y++) {
+                int start = y * rawImage.width + region.x;
+                convertPixels(rawImage, argb, start, start + region.width);
+            }
+        }
+    }
+
+    /**
+     * Converts a {@link RawImage} into an array of ARGB pixels, row after row.
+     * @param rawImage the image to convert.
+     * @param argb the destination, with at least <code>width * height</code> pixels.
+     */
+    public static void convert(RawImage rawImage, int[] argb) {
+        convertPixels(rawImage, argb, 0, rawImage.width * rawImage.height);
+    }
+
+    /**
+     * Converts a {@link RawImage} into an array of ARGB pixels, splitting the rows between
+     * the threads of an executor.
+     * @param rawImage the image to convert.
+     * @param argb the destination, with at least <code>width * height</code> pixels.
+     * @param executor the executor running the conversion.
+     * @throws InterruptedException if the thread is interrupted while waiting for the
+     * conversion.
+     */
+    public static void convert(final RawImage rawImage, final int[] argb,
+            ExecutorService executor) throws InterruptedException {
+        int pixelCount = rawImage.width * rawImage.height;
+        int rowsPerTask = Math.max(1, MIN_PIXELS_PER_TASK / Math.max(1, rawImage.width));
+        if (rowsPerTask >= rawImage.height) {
+            convertPixels(rawImage, argb, 0, pixelCount);
+            return;
+        }
+
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int row = 0 ; row < rawImage.height ; row += rowsPerTask) {
+            final int start = row * rawImage.width;
+            final int end = Math.min(row + rowsPerTask, rawImage.height) * rawImage.width;
+            futures.add(executor.submit(new Runnable() {
+                public void run() {
+                    convertPixels(rawImage, argb, start, end);
+                }
+            }));
+        }
+
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+
+    private static int[] getPixels(RawImage rawImage, BufferedImage image) {
+        if (image.getWidth() != rawImage.width || image.getHeight() != rawImage.height) {
+            throw new IllegalArgumentException("Image size doesn't match the RawImage size.");
+        }
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        if (image.getType() != BufferedImage.TYPE_INT_ARGB
+                || (buffer instanceof DataBufferInt) == false) {
+            throw new IllegalArgumentException("Image must be of type TYPE_INT_ARGB.");
+        }
+        return ((DataBufferInt) buffer).getData();
+    }
+
+    /**
+     * Converts the pixels of a {@link RawImage}, from <var>start</var> inclusive to
+     * <var>end</var> exclusive, into the same indices of <var>argb</var>.
+     */
+    private static void convertPixels(RawImage rawImage, int[] argb, int start, int end) {
+        int count = end - start;
+        if (count <= 0) {
+            return;
+        }
+
+        if (rawImage.bpp == 32) {
+            IntBuffer buffer = ByteBuffer.wrap(rawImage.data).order(ByteOrder.LITTLE_ENDIAN)
+                    .asIntBuffer();
+            buffer.position(start);
+            buffer.get(argb, start, count);
+        } else if (rawImage.bpp == 16) {
+            // the 16 bit values are read a row at a time, to keep the copy small.
+            ShortBuffer buffer = ByteBuffer.wrap(rawImage.data).order(ByteOrder.LITTLE_ENDIAN)
+                    .asShortBuffer();
+            buffer.position(start);
+            short[] values = new short[Math.min(count, Math.max(rawImage.width, 1024))];
+            for (int i = start ; i < end ; i += values.length) {
+                int length = Math.min(values.length, end - i);
+                buffer.get(values, 0, length);
+                for (int j = 0 ; j < length ; j++) {
+                    argb[i + j] = values[j] & 0x0FFFF;
+                }
+            }
+        } else {
+            throw new UnsupportedOperationException(
+                    "RawImageConverter only works in 16 and 32 bit mode.");
+        }
+
+        // the pixels now hold the raw values, in place.
+        switch (getLayout(rawImage)) {
+            case LAYOUT_RGB565:
+                for (int i = start ; i < end ; i++) {
+                    int value = argb[i];
+                    argb[i] = 0xFF000000 | (value & 0xF800) << 8 | (value & 0x07E0) << 5
+                            | (value & 0x001F) << 3;
+                }
+                break;
+            case LAYOUT_RGBA8888:
+                for (int i = start ; i < end ; i++) {
+                    int value = argb[i];
+                    argb[i] = (value & 0xFF00FF00) | (value & 0x0FF) << 16
+                            | (value >>> 16) & 0x0FF;
+                }
+                break;
+            case LAYOUT_RGBX8888:
+                for (int i = start ; i < end ; i++) {
+                    int value = argb[i];
+                    argb[i] = 0xFF000000 | (value & 0x0FF00) | (value & 0x0FF) << 16
+                            | (value >>> 16) & 0x0FF;
+                }
+                break;
+            case LAYOUT_BGRA8888:
+                // the raw values are already ARGB.
+                break;
+            case LAYOUT_BGRX8888:
+                for (int i = start ; i < end ; i++) {
+                    argb[i] |= 0xFF000000;
+                }
+                break;
+            default:
+                convertGeneric(rawImage, argb, start, end);
+                break;
+        }
+    }
+
+    /**
+     * Converts raw values in place, with the same computation as {@link RawImage#getARGB(int)}.
+     */
+    private static void convertGeneric(RawImage rawImage, int[] argb, int start, int end) {
+        final int redOffset = rawImage.red_offset;
+        final int redMask = getMask(rawImage.red_length);
+        final int redShift = 8 - rawImage.red_length;
+        final int greenOffset = rawImage.green_offset;
+        final int greenMask = getMask(rawImage.green_length);
+        final int greenShift = 8 - rawImage.green_length;
+        final int blueOffset = rawImage.blue_offset;
+        final int blueMask = getMask(rawImage.blue_length);
+        final int blueShift = 8 - rawImage.blue_length;
+        final int alphaLength = rawImage.alpha_length;
+        final int alphaOffset = rawImage.alpha_offset;
+        final int alphaMask = getMask(alphaLength);
+        final int alphaShift = 8 - alphaLength;
+
+        for (int i = start ; i < end ; i++) {
+            int value = argb[i];
+            int r = ((value >>> redOffset) & redMask) << redShift;
+            int g = ((value >>> greenOffset) & greenMask) << greenShift;
+            int b = ((value >>> blueOffset) & blueMask) << blueShift;
+            int a;
+            if (alphaLength == 0) {
+                a = 0xFF;
+            } else {
+                a = ((value >>> alphaOffset) & alphaMask) << alphaShift;
+            }
+            argb[i] = a << 24 | r << 16 | g << 8 | b;
+        }
+    }
+
+    /**
+     * Returns the layout of a {@link RawImage} with a dedicated conversion, or
+     * {@link #LAYOUT_GENERIC}.
+     */
+    private static int getLayout(RawImage rawImage) {
+        if (rawImage.bpp == 16) {
+            if (isChannel(rawImage.red_offset, rawImage.red_length, 11, 5)
+                    && isChannel(rawImage.green_offset, rawImage.green_length, 5, 6)
+                    && isChannel(rawImage.blue_offset, rawImage.blue_length, 0, 5)
+                    && rawImage.alpha_length == 0) {
+                return LAYOUT_RGB565;
+            }
+        } else if (rawImage.bpp == 32 && isChannel(rawImage.green_offset,
+                rawImage.green_length, 8, 8)) {
+            boolean rgb = isChannel(rawImage.red_offset, rawImage.red_length, 0, 8)
+                    && isChannel(rawImage.blue_offset, rawImage.blue_length, 16, 8);
+            boolean bgr = isChannel(rawImage.red_offset, rawImage.red_length, 16, 8)
+                    && isChannel(rawImage.blue_offset, rawImage.blue_length, 0, 8);
+            boolean alpha = isChannel(rawImage.alpha_offset, rawImage.alpha_length, 24, 8);
+            boolean noAlpha = rawImage.alpha_length == 0;
+            if (rgb && alpha) {
+                return LAYOUT_RGBA8888;
+            } else if (rgb && noAlpha) {
+                return LAYOUT_RGBX8888;
+            } else if (bgr && alpha) {
+                return LAYOUT_BGRA8888;
+            } else if (bgr && noAlpha) {
+                return LAYOUT_BGRX8888;
+            }
+        }
+        return LAYOUT_GENERIC;
+    }
+
+    private static boolean isChannel(int offset, int length, int expectedOffset,
+            int expectedLength) {
+        return offset == expectedOffset && length == expectedLength;
+    }
+
+    private static int getMask(int length) {
+        return (1 << length) - 1;
+    }
+}
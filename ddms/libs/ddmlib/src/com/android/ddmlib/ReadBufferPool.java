@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Pool of read buffers shared by the {@link Client} connections.
+ * <p/>Buffers are handed out in power of two sizes, from {@link #MIN_SIZE} to
+ * {@link #MAX_POOLED_SIZE}. These are direct buffers, and released buffers are kept for
+ * reuse, up to {@link #MAX_IDLE_BYTES_PER_SIZE} bytes per size.
+ * <p/>Larger buffers are only needed for the rare very large packets. They are allocated in
+ * the Java heap with the exact size requested, and dropped when released, so that the memory
+ * goes back to the VM as soon as the packet is processed.
+ * <p/>All the methods are synchronized on the pool.
+ */
+final class ReadBufferPool {
+
+    /** Size of the smallest buffers. */
+    static final int MIN_SIZE = 2 * 1024;
+
+    /** Size of the largest pooled buffers. */
+    static final int MAX_POOLED_SIZE = 1024 * 1024;
+
+    /** Max number of bytes kept in idle buffers, for each buffer size. */
+    static final int MAX_IDLE_BYTES_PER_SIZE = 1024 * 1024;
+
+    private static final ReadBufferPool sInstance = new ReadBufferPool();
+
+    /** Idle buffers, per size. The index is log2(size / MIN_SIZE). */
+    private final ArrayList<ArrayList<ByteBuffer>> mIdleBuffers =
+        new ArrayList<ArrayList<ByteBuffer>>();
+
+    // metrics
+    private long mIdleBytes = 0;
+    private long mAllocationCount = 0;
+    private long mAllocatedBytes = 0;
+    private long mReuseCount = 0;
+    private long mLargeAllocationCount = 0;
+
+    /**
+     * Returns the pool shared by all the clients.
+     */
+    static ReadBufferPool getInstance() {
+        return sInstance;
+    }
+
+    ReadBufferPool() {
+        for (int size = MIN_SIZE ; size <= MAX_POOLED_SIZE ; size *= 2) {
+            mIdleBuffers.add(new ArrayList<ByteBuffer>());
+        }
+    }
+
+    /**
+     * Returns an empty buffer of at least <var>minCapacity</var> bytes.
+     * <p/>The buffer must be given back with {@link #release(ByteBuffer)} once it is not
+     * needed anymore.
+     */
+    synchronized ByteBuffer acquire(int minCapacity) {
+        if (minCapacity > MAX_POOLED_SIZE) {
+            mLargeAllocationCount++;
+            mAllocatedBytes += minCapacity;
+            return ByteBuffer.allocate(minCapacity);
+        }
+
+        int index = 0;
+        int size = MIN_SIZE;
+        while (size < minCapacity) {
+            size *= 2;
+            index++;
+        }
+
+        ArrayList<ByteBuffer> idle = mIdleBuffers.get(index);
+        if (idle.size() > 0) {
+            mReuseCount++;
+            mIdleBytes -= size;
+            return idle.remove(idle.size() - 1);
+        }
+
+        mAllocationCount++;
+        mAllocatedBytes += size;
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    /**
+     * Gives back a buffer obtained from {@link #acquire(int)}. The buffer must not be used
+     * after this call.
+     */
+    synchronized void release(ByteBuffer buffer) {
+        int size = buffer.capacity();
+        if (buffer.isDirect() == false || size > MAX_POOLED_SIZE) {
+            return;
+        }
+
+        int index = 0;
+        for (int s = MIN_SIZE ; s < size ; s *= 2) {
+            index++;
+        }
+
+        ArrayList<ByteBuffer> idle = mIdleBuffers.get(index);
+        if ((idle.size() + 1) * (long) size <= MAX_IDLE_BYTES_PER_SIZE) {
+            buffer.clear();
+            idle.add(buffer);
+            mIdleBytes += size;
+        }
+    }
+
+    /**
+     * Returns the number of bytes in idle buffers, kept for reuse.
+     */
+    synchronized long getIdleBytes() {
+        return mIdleBytes;
+    }
+
+    /**
+     * Returns the number of pooled buffers allocated, as opposed to reused.
+     */
+    synchronized long getAllocationCount() {
+        return mAllocationCount;
+    }
+
+    /**
+     * Returns the number of times a pooled buffer was reused.
+     */
+    synchronized long getReuseCount() {
+        return mReuseCount;
+    }
+
+    /**
+     * Returns the number of buffers allocated for packets too large to use pooled buffers.
+     */
+    synchronized long getLargeAllocationCount() {
+        return mLargeAllocationCount;
+    }
+
+    /**
+     * Returns the total number of bytes allocated by the pool.
+     */
+    synchronized long getAllocatedBytes() {
+        return mAllocatedBytes;
+    }
+}
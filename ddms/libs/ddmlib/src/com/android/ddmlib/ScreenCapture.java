@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Continuous capture of the screen of a device, started with
+ * {@link IDevice#startScreenCapture(int, IFrameListener)}.
+ * <p/>The <code>framebuffer:</code> service of adb sends a single frame per connection, so
+ * each frame still needs its own connection. Everything else is reused from one frame to the
+ * next: a single thread does all the captures, and frames are read into two buffers used in
+ * turn.
+ * <p/>Each frame is compared with the previous one, in tiles of {@link #TILE_SIZE} pixels, and
+ * only the regions made of the tiles that changed are sent to the listener. Frames identical to
+ * the previous one are not sent at all.
+ * <p/>Captures are paced to a target frame rate. If a capture takes longer than the frame
+ * period, the next one starts right away.
+ */
+public final class ScreenCapture {
+
+    /** Size, in pixels, of the square tiles compared between frames. */
+    public static final int TILE_SIZE = 32;
+
+    /**
+     * Classes which implement this interface receive the frames of a {@link ScreenCapture}.
+     * <p/>The methods are called from the capture thread. The next frame isn't captured until
+     * they return.
+     */
+    public interface IFrameListener {
+        /**
+         * Sent when a frame different from the previous one is captured.
+         * <p/>The data of <var>image</var> is reused for later frames: it is only valid until
+         * the listener returns from the next call.
+         * @param capture the capture sending the frame.
+         * @param image the frame.
+         * @param dirtyRegions the non overlapping regions that changed since the previous frame.
+         * This is the whole frame for the first frame, and when the size or format of the frame
+         * changes.
+         */
+        public void frameCaptured(ScreenCapture capture, RawImage image,
+                Rectangle[] dirtyRegions);
+
+        /**
+         * Sent when a frame can't be captured. The capture is stopped.
+         * @param capture the capture that failed.
+         * @param e a {@link TimeoutException}, {@link AdbCommandRejectedException} or
+         * {@link IOException}.
+         */
+        public void captureFailed(ScreenCapture capture, Exception e);
+    }
+
+    private final InetSocketAddress mAdbSockAddr;
+    private final Device mDevice;
+    private final IFrameListener mListener;
+    /** Target time between two captures, in ns. */
+    private final long mFramePeriod;
+    private final Thread mThread;
+
+    /** Guarded by this, and also read without locking by the capture thread. */
+    private volatile boolean mRunning = false;
+
+    // metrics
+    private volatile int mCaptureCount = 0;
+    private volatile int mFrameCount = 0;
+    private volatile long mCpuTime = -1;
+
+    /**
+     * Creates a capture. It doesn't start until {@link #start()} is called.
+     * @param adbSockAddr the {@link InetSocketAddress} to adb.
+     * @param device the device to capture.
+     * @param fps the target number of frames per second.
+     * @param listener the listener receiving the frames.
+     */
+    ScreenCapture(InetSocketAddress adbSockAddr, Device device, int fps,
+            IFrameListener listener) {
+        if (fps <= 0) {
+            throw new IllegalArgumentException("fps must be positive.");
+        }
+        mAdbSockAddr = adbSockAddr;
+        mDevice = device;
+        mListener = listener;
+        mFramePeriod = 1000000000L / fps;
+
+        mThread = new Thread("Screen Capture " + device.getSerialNumber()) { //$NON-NLS-1$
+            @Override
+            public void run() {
+                captureLoop();
+            }
+        };
+        mThread.setDaemon(true);
+    }
+
+    /**
+     * Starts capturing frames.
+     */
+    synchronized void start() {
+        mRunning = true;
+        mThread.start();
+    }
+
+    /**
+     * Stops the capture. This doesn't wait for the capture thread: a frame being sent to the
+     * listener when this is called still completes.
+     */
+    public synchronized void stop() {
+        mRunning = false;
+        notifyAll();
+    }
+
+    /**
+     * Returns whether the capture is running. It stops when {@link #stop()} is called, or when
+     * a frame can't be captured.
+     */
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Returns the number of frames captured so far, including the ones identical to the previous
+     * frame.
+     */
+    public int getCaptureCount() {
+        return mCaptureCount;
+    }
+
+    /**
+     * Returns the number of frames sent to the listener so far.
+     */
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Returns the CPU time, in ns, used so far by the capture thread, or -1 if the VM doesn't
+     * measure it.
+     */
+    public long getCpuTime() {
+        return mCpuTime;
+    }
+
+    private void captureLoop() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        boolean measureCpu = threads.isCurrentThreadCpuTimeSupported();
+
+        RawImage previous = null;
+        byte[] spare = null;
+        long nextCapture = System.nanoTime();
+        try {
+            while (waitUntil(nextCapture)) {
+                RawImage frame = AdbHelper.getFrameBuffer(mAdbSockAddr, mDevice, spare);
+                if (frame == null) {
+                    throw new IOException("Unsupported frame buffer protocol.");
+                }
+                mCaptureCount++;
+
+                Rectangle[] dirtyRegions = getDirtyRegions(previous, frame);
+                if (dirtyRegions.length > 0 && mRunning) {
+                    mListener.frameCaptured(this, frame, dirtyRegions);
+                    mFrameCount++;
+                    // the frame sent before this one is not used by the listener anymore.
+                    spare = previous != null ? previous.data : null;
+                    previous = frame;
+                } else {
+                    spare = frame.data;
+                }
+
+                if (measureCpu) {
+                    mCpuTime = threads.getCurrentThreadCpuTime();
+                }
+                nextCapture = Math.max(nextCapture + mFramePeriod, System.nanoTime());
+            }
+        } catch (TimeoutException e) {
+            captureFailed(e);
+        } catch (AdbCommandRejectedException e) {
+            captureFailed(e);
+        } catch (IOException e) {
+            captureFailed(e);
+        }
+    }
+
+    private void captureFailed(Exception e) {
+        boolean running;
+        synchronized (this) {
+            running = mRunning;
+            mRunning = false;
+        }
+        // errors happening once the capture is stopped are expected, and ignored.
+        if (running) {
+            Log.e("ddms", "Screen capture failed: " + e.getMessage()); //$NON-NLS-1$
+            mListener.captureFailed(this, e);
+        }
+    }
+
+    /**
+     * Waits until the given {@link System#nanoTime()}, or until the capture is stopped.
+     * @return true if the capture is still running.
+     */
+    private synchronized boolean waitUntil(long time) {
+        long delay;
+        while (mRunning && (delay = time - System.nanoTime()) > 0) {
+            try {
+                wait(delay / 1000000, (int) (delay % 1000000));
+            } catch (InterruptedException e) {
+                mRunning = false;
+            }
+        }
+        return mRunning;
+    }
+
+    /**
+     * Returns the regions of a frame that are different in the previous frame. Tiles that
+     * changed are merged into rectangles, first along their row, and then with the rectangle of
+     * the same columns in the row above.
+     * @param previous the previous frame, or null.
+     * @param current the new frame.
+     * @return the regions, or the whole frame if the previous frame is null or has a different
+     * size or format.
+     */
+    static Rectangle[] getDirtyRegions(RawImage previous, RawImage current) {
+        int width = current.width;
+        int height = current.height;
+        if (previous == null || isSameFormat(previous, current) == false
+                || (current.bpp & 7) != 0) {
+            return new Rectangle[] { new Rectangle(0, 0, width, height) };
+        }
+
+        int bytesPerPixel = current.bpp >> 3;
+        ByteBuffer previousData = ByteBuffer.wrap(previous.data);
+        ByteBuffer currentData = ByteBuffer.wrap(current.data);
+
+        int tileColumns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        boolean[] dirtyTiles = new boolean[tileColumns];
+        ArrayList<Rectangle> regions = new ArrayList<Rectangle>();
+        // regions ending on the bottom of the previous row of tiles, by tile column.
+        Rectangle[] openRegions = new Rectangle[tileColumns];
+        Rectangle[] newOpenRegions = new Rectangle[tileColumns];
+
+        for (int top = 0 ; top < height ; top += TILE_SIZE) {
+            int bottom = Math.min(top + TILE_SIZE, height);
+
+            Arrays.fill(dirtyTiles, false);
+            int dirtyCount = 0;
+            for (int y = top ; y < bottom && dirtyCount < tileColumns ; y++) {
+                int rowStart = y * width * bytesPerPixel;
+                for (int t = 0 ; t < tileColumns ; t++) {
+                    if (dirtyTiles[t] == false) {
+                        int start = rowStart + t * TILE_SIZE * bytesPerPixel;
+                        int end = rowStart + Math.min((t + 1) * TILE_SIZE, width) * bytesPerPixel;
+                        if (equals(previousData, currentData, start, end) == false) {
+                            dirtyTiles[t] = true;
+                            dirtyCount++;
+                        }
+                    }
+                }
+            }
+
+            Arrays.fill(newOpenRegions, null);
+            int t = 0;
+            while (t < tileColumns) {
+                if (dirtyTiles[t] == false) {
+                    t++;
+                    continue;
+                }
+                int first = t;
+                while (t < tileColumns && dirtyTiles[t]) {
+                    t++;
+                }
+                int x = first * TILE_SIZE;
+                int regionWidth = Math.min(t * TILE_SIZE, width) - x;
+
+                Rectangle region = openRegions[first];
+                if (region != null && region.width == regionWidth) {
+                    region.height = bottom - region.y;
+                } else {
+                    region = new Rectangle(x, top, regionWidth, bottom - top);
+                    regions.add(region);
+                }
+                newOpenRegions[first] = region;
+            }
+
+            Rectangle[] swap = openRegions;
+            openRegions = newOpenRegions;
+            newOpenRegions = swap;
+        }
+
+        return regions.toArray(new Rectangle[regions.size()]);
+    }
+
+    private static boolean isSameFormat(RawImage a, RawImage b) {
+        return a.width == b.width && a.height == b.height && a.bpp == b.bpp
+                && a.red_offset == b.red_offset && a.red_length == b.red_length
+                && a.green_offset == b.green_offset && a.green_length == b.green_length
+                && a.blue_offset == b.blue_offset && a.blue_length == b.blue_length
+                && a.alpha_offset == b.alpha_offset && a.alpha_length == b.alpha_length;
+    }
+
+    /**
+     * Returns whether two buffers have the same bytes, from <var>start</var> inclusive to
+     * <var>end</var> exclusive. The bytes are compared 8 at a time.
+     */
+    private static boolean equals(ByteBuffer a, ByteBuffer b, int start, int end) {
+        int i = start;
+        for ( ; i + 8 <= end ; i += 8) {
+            if (a.getLong(i) != b.getLong(i)) {
+                return false;
+            }
+        }
+        for ( ; i < end ; i++) {
+            if (a.get(i) != b.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
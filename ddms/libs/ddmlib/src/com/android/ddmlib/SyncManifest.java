@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Local record of the files synced to a device by
+ * {@link SyncService#syncDirectory(String, String, SyncManifest, int,
+ * SyncService.ISyncProgressMonitor)}.
+ * <p/>For each remote file, the manifest holds the size and modification time the local file
+ * had when it was synced, and the size and modification time of the remote file. This lets the
+ * next sync recognize the files that didn't change without comparing their content again, and,
+ * if requested, without querying the device at all.
+ * <p/>A manifest is stored in a file per device, named after its serial number.
+ */
+public final class SyncManifest {
+
+    private final static int VERSION = 1;
+    private final static String EXTENSION = ".manifest"; //$NON-NLS-1$
+
+    /**
+     * State of a synced file.
+     */
+    static final class Entry {
+        final long mLocalSize;
+        final long mLocalTime;
+        final int mRemoteSize;
+        final int mRemoteTime;
+
+        /**
+         * @param localSize the size of the local file.
+         * @param localTime the modification time of the local file, in ms.
+         * @param remoteSize the size of the remote file.
+         * @param remoteTime the modification time of the remote file, in seconds.
+         */
+        Entry(long localSize, long localTime, int remoteSize, int remoteTime) {
+            mLocalSize = localSize;
+            mLocalTime = localTime;
+            mRemoteSize = remoteSize;
+            mRemoteTime = remoteTime;
+        }
+
+        /**
+         * Returns whether a local file has the size and modification time of the entry.
+         */
+        boolean matchesLocal(File f) {
+            return f.length() == mLocalSize && f.lastModified() == mLocalTime;
+        }
+
+        /**
+         * Returns whether a remote file has the size and modification time of the entry.
+         */
+        boolean matchesRemote(int size, int time) {
+            return size == mRemoteSize && time == mRemoteTime;
+        }
+    }
+
+    private final File mFile;
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+
+    private SyncManifest(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Loads the manifest of a device. If the device has no manifest yet, or if it cannot be read,
+     * the returned manifest is empty.
+     * @param directory the directory holding the manifests.
+     * @param serialNumber the serial number of the device.
+     */
+    public static SyncManifest load(File directory, String serialNumber) {
+        // serial numbers of network devices contain ':'.
+        SyncManifest manifest = new SyncManifest(new File(directory,
+                serialNumber.replaceAll("[^A-Za-z0-9._-]", "_") + EXTENSION)); //$NON-NLS-1$ //$NON-NLS-2$
+
+        if (manifest.mFile.isFile()) {
+            try {
+                manifest.read();
+            } catch (IOException e) {
+                Log.w("ddms", "Failed to read sync manifest " + manifest.mFile + ": " //$NON-NLS-1$
+                        + e.getMessage());
+                manifest.mEntries.clear();
+            }
+        }
+
+        return manifest;
+    }
+
+    /**
+     * Returns the file the manifest is stored in.
+     */
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Returns the number of files in the manifest.
+     */
+    public synchronized int getEntryCount() {
+        return mEntries.size();
+    }
+
+    /**
+     * Forgets all the files, for instance after the device was wiped.
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    /**
+     * Saves the manifest in its file, creating its directory if needed.
+     * @throws IOException
+     */
+    public synchronized void save() throws IOException {
+        File directory = mFile.getParentFile();
+        if (directory != null && directory.isDirectory() == false && directory.mkdirs() == false) {
+            throw new IOException("Failed to create " + directory); //$NON-NLS-1$
+        }
+
+        // write a temporary file first, so that a failure doesn't lose the previous manifest.
+        File tmp = new File(mFile.getPath() + ".tmp"); //$NON-NLS-1$
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp)));
+        try {
+            out.writeInt(VERSION);
+            out.writeInt(mEntries.size());
+            for (Map.Entry<String, Entry> e : mEntries.entrySet()) {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.mLocalSize);
+                out.writeLong(entry.mLocalTime);
+                out.writeInt(entry.mRemoteSize);
+                out.writeInt(entry.mRemoteTime);
+            }
+        } finally {
+            out.close();
+        }
+
+        if (mFile.exists() && mFile.delete() == false) {
+            throw new IOException("Failed to replace " + mFile); //$NON-NLS-1$
+        }
+        if (tmp.renameTo(mFile) == false) {
+            throw new IOException("Failed to rename " + tmp + " to " + mFile); //$NON-NLS-1$
+        }
+    }
+
+    synchronized Entry get(String remotePath) {
+        return mEntries.get(remotePath);
+    }
+
+    synchronized void put(String remotePath, Entry entry) {
+        mEntries.put(remotePath, entry);
+    }
+
+    private void read() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(mFile)));
+        try {
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("unknown version " + version); //$NON-NLS-1$
+            }
+
+            int count = in.readInt();
+            for (int i = 0 ; i < count ; i++) {
+                String path = in.readUTF();
+                mEntries.put(path, new Entry(in.readLong(), in.readLong(), in.readInt(),
+                        in.readInt()));
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -27,8 +27,17 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
 
 /**
  * Sync service class to push/pull to/from devices/emulators, through the debug bridge.
@@ -78,6 +87,42 @@ public final class SyncService {
     private final static int SYNC_DATA_MAX = 64*1024;
     private final static int REMOTE_PATH_MAX_LENGTH = 1024;
 
+    /**
+     * Max number of files a connection sends, or requests, ahead of the ones the device
+     * acknowledged, or sent.
+     */
+    private final static int MAX_PENDING_FILES = 16;
+
+    /** Min time between two updates of the throughput of a bulk transfer, in ms. */
+    private final static long THROUGHPUT_UPDATE_INTERVAL = 500;
+
+    /** Default number of connections used by the bulk transfers. */
+    public final static int DEFAULT_CONNECTION_COUNT = 4;
+
+    /**
+     * Flag for {@link #syncDirectory(String, String, SyncManifest, int, ISyncProgressMonitor)}:
+     * compare the files that differ only by their modification time by their checksum.
+     */
+    public final static int SYNC_CHECKSUM = 0x01;
+    /**
+     * Flag for {@link #syncDirectory(String, String, SyncManifest, int, ISyncProgressMonitor)}:
+     * don't check on the device the files that didn't change locally since they were recorded
+     * in the manifest.
+     */
+    public final static int SYNC_TRUST_MANIFEST = 0x02;
+
+    /** Max number of STAT requests sent ahead of their answers. */
+    private final static int MAX_PENDING_STATS = 64;
+
+    // indices in the results of readStats().
+    private final static int STAT_MODE = 0;
+    private final static int STAT_SIZE = 1;
+    private final static int STAT_TIME = 2;
+
+    private final static String CHECKSUM_COMMAND = "md5sum"; //$NON-NLS-1$
+    /** Max length of a command computing checksums, kept under the limit of adb. */
+    private final static int MAX_CHECKSUM_COMMAND_LENGTH = 1000;
+
     /** Result code for transfer success. */
     public static final int RESULT_OK = 0;
     /** Result code for canceled transfer */
@@ -190,14 +235,156 @@ public final class SyncService {
         }
     }
 
+    /**
+     * List of files of a bulk transfer, shared by the connections doing the transfer.
+     */
+    private static final class BulkTransfer {
+        final String[] mSources;
+        final String[] mDestinations;
+        final boolean mPush;
+
+        private int mNext = 0;
+        private SyncResult mFailure;
+
+        BulkTransfer(String[] sources, String[] destinations, boolean push) {
+            mSources = sources;
+            mDestinations = destinations;
+            mPush = push;
+        }
+
+        /**
+         * Returns the index of the next file to transfer, or -1 if there are no more files or if
+         * a transfer failed.
+         */
+        synchronized int next() {
+            if (mFailure != null || mNext == mSources.length) {
+                return -1;
+            }
+
+            return mNext++;
+        }
+
+        /**
+         * Records a failure, which stops the transfer of the remaining files.
+         */
+        synchronized void fail(SyncResult result) {
+            if (mFailure == null) {
+                mFailure = result;
+            }
+        }
+
+        synchronized SyncResult getResult() {
+            return mFailure != null ? mFailure : new SyncResult(RESULT_OK);
+        }
+    }
+
+    /**
+     * Reads the remaining content of a buffer, without modifying it.
+     */
+    private static final class BufferChannel implements ReadableByteChannel {
+        private final ByteBuffer mData;
+
+        BufferChannel(ByteBuffer data) {
+            mData = data.duplicate();
+        }
+
+        public int read(ByteBuffer dst) {
+            if (mData.hasRemaining() == false) {
+                return -1;
+            }
+
+            int count = Math.min(dst.remaining(), mData.remaining());
+            int limit = mData.limit();
+            mData.limit(mData.position() + count);
+            dst.put(mData);
+            mData.limit(limit);
+            return count;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
+    /**
+     * Forwards the progress of the connections of a bulk transfer to a single monitor, and
+     * adds the throughput of the transfer to the sub task names.
+     */
+    private static final class BulkMonitor implements ISyncProgressMonitor {
+        private final ISyncProgressMonitor mMonitor;
+        private long mStartTime;
+        private long mLastUpdate;
+        private long mBytes = 0;
+        private String mSubTask = ""; //$NON-NLS-1$
+
+        BulkMonitor(ISyncProgressMonitor monitor) {
+            mMonitor = monitor;
+        }
+
+        public synchronized void start(int totalWork) {
+            mStartTime = mLastUpdate = System.currentTimeMillis();
+            mMonitor.start(totalWork);
+        }
+
+        public synchronized void stop() {
+            mMonitor.stop();
+        }
+
+        public synchronized boolean isCanceled() {
+            return mMonitor.isCanceled();
+        }
+
+        public synchronized void startSubTask(String name) {
+            mSubTask = name;
+            mMonitor.startSubTask(getSubTaskName());
+        }
+
+        public synchronized void advance(int work) {
+            mBytes += work;
+            mMonitor.advance(work);
+
+            long now = System.currentTimeMillis();
+            if (now - mLastUpdate >= THROUGHPUT_UPDATE_INTERVAL) {
+                mLastUpdate = now;
+                mMonitor.startSubTask(getSubTaskName());
+            }
+        }
+
+        /**
+         * Returns the number of bytes transferred so far.
+         */
+        synchronized long getBytes() {
+            return mBytes;
+        }
+
+        /**
+         * Returns the throughput of the transfer so far, in bytes per second.
+         */
+        synchronized double getThroughput() {
+            long elapsed = Math.max(1, System.currentTimeMillis() - mStartTime);
+            return mBytes * 1000.0 / elapsed;
+        }
+
+        private String getSubTaskName() {
+            return String.format("%1$s (%2$.1f KB/s)", mSubTask, getThroughput() / 1024);
+        }
+    }
+
     private InetSocketAddress mAddress;
     private Device mDevice;
     private SocketChannel mChannel;
 
     /**
-     * Buffer used to send data. Allocated when needed and reused afterward.
+     * Buffer used to transfer the file data, with room for the header of the sync packets.
+     * Allocated when needed and reused afterward.
      */
-    private byte[] mBuffer;
+    private ByteBuffer mDataBuffer;
+
+    /** Buffer used to read the headers of the sync packets. */
+    private final byte[] mHeader = new byte[8];
 
     /**
      * Creates a Sync service object.
@@ -222,6 +409,10 @@ public final class SyncService {
             mChannel = SocketChannel.open(mAddress);
             mChannel.configureBlocking(false);
 
+            // the sync protocol sends small packets (requests, headers, DONE) and then waits for
+            // the answer: don't let them be delayed.
+            mChannel.socket().setTcpNoDelay(true);
+
             // target a specific device
             AdbHelper.setDevice(mChannel, mDevice);
 
@@ -468,6 +659,260 @@ public final class SyncService {
         return result;
     }
 
+    /**
+     * Pushes the content of a buffer as a remote file.
+     * <p/>The remaining bytes of the buffer are sent, without modifying the buffer or its
+     * position. This lets several threads push the same buffer to different devices.
+     * @param data the content of the file.
+     * @param remote The remote filepath.
+     * @param monitor The progress monitor. Cannot be null.
+     * @return a {@link SyncResult} object with a code and an optional message.
+     */
+    public SyncResult pushData(ByteBuffer data, String remote, ISyncProgressMonitor monitor) {
+        monitor.start(data.remaining());
+
+        SyncResult result;
+        try {
+            byte[] remotePathContent = remote.getBytes(AdbHelper.DEFAULT_ENCODING);
+            if (remotePathContent.length > REMOTE_PATH_MAX_LENGTH) {
+                result = new SyncResult(RESULT_REMOTE_PATH_LENGTH);
+            } else {
+                byte[] msg = createSendFileReq(ID_SEND, remotePathContent, 0644);
+                result = sendFileContent(new BufferChannel(data), msg,
+                        (int)(System.currentTimeMillis() / 1000), monitor);
+                if (result == null) {
+                    result = readSendResult();
+                }
+            }
+        } catch (UnsupportedEncodingException e) {
+            result = new SyncResult(RESULT_REMOTE_PATH_ENCODING, e);
+        }
+
+        monitor.stop();
+
+        return result;
+    }
+
+    /**
+     * Pushes files, using several connections in parallel.
+     * <p/>Each connection sends its files one after the other, without waiting for the device to
+     * acknowledge each of them, and the connections share the list of files, taking the next
+     * one when they are ready. This is much faster than {@link #pushFile(String, String,
+     * ISyncProgressMonitor)} for many small files.
+     * <p/>The monitor receives the progress of all the connections, and the sub task names
+     * include the aggregate throughput of the transfer.
+     * @param localFiles the local filepaths.
+     * @param remoteFiles the remote filepaths, in the same order as the local ones.
+     * @param connectionCount the max number of connections to use, including the connection of
+     *      this object. The other ones are opened and closed by this method.
+     * @param monitor The progress monitor. Cannot be null.
+     * @return a {@link SyncResult} object with a code and an optional message. If several files
+     *      fail, this is the result of the first failure. After a failure, the connection may
+     *      still have answers of the device pending, and should be closed.
+     *
+     * @see #DEFAULT_CONNECTION_COUNT
+     */
+    public SyncResult pushFiles(String[] localFiles, String[] remoteFiles, int connectionCount,
+            ISyncProgressMonitor monitor) {
+        if (localFiles.length != remoteFiles.length) {
+            throw new IllegalArgumentException(
+                    "localFiles and remoteFiles must have the same length"); //$NON-NLS-1$
+        }
+
+        long total = 0;
+        for (String local : localFiles) {
+            File f = new File(local);
+            if (f.exists() == false) {
+                return new SyncResult(RESULT_NO_LOCAL_FILE);
+            }
+
+            if (f.isDirectory()) {
+                return new SyncResult(RESULT_LOCAL_IS_DIRECTORY);
+            }
+
+            total += f.length();
+        }
+
+        return doBulkTransfer(new BulkTransfer(localFiles, remoteFiles, true /* push */),
+                total, connectionCount, monitor);
+    }
+
+    /**
+     * Pulls files, using several connections in parallel.
+     * <p/>Each connection requests its files ahead of their reception, and the connections
+     * share the list of files, taking the next ones when they are ready.
+     * <p/>Because this method deals with Strings for the remote files, the size of the files
+     * being pulled is unknown and the {@link ISyncProgressMonitor} will not properly show the
+     * progress. The sub task names include the aggregate throughput of the transfer.
+     * @param remoteFiles the full paths to the remote files.
+     * @param localFiles the local destinations, in the same order as the remote files.
+     * @param connectionCount the max number of connections to use, including the connection of
+     *      this object. The other ones are opened and closed by this method.
+     * @param monitor The progress monitor. Cannot be null.
+     * @return a {@link SyncResult} object with a code and an optional message. If several files
+     *      fail, this is the result of the first failure. After a failure, the connection may
+     *      still have answers of the device pending, and should be closed.
+     *
+     * @see #DEFAULT_CONNECTION_COUNT
+     */
+    public SyncResult pullFiles(String[] remoteFiles, String[] localFiles, int connectionCount,
+            ISyncProgressMonitor monitor) {
+        if (localFiles.length != remoteFiles.length) {
+            throw new IllegalArgumentException(
+                    "localFiles and remoteFiles must have the same length"); //$NON-NLS-1$
+        }
+
+        return doBulkTransfer(new BulkTransfer(remoteFiles, localFiles, false /* push */),
+                0, connectionCount, monitor);
+    }
+
+    /**
+     * Pushes the files of a local directory that are missing or different on the device.
+     * <p/>A remote file is considered unchanged if it has the size and modification time of the
+     * local file, which is what a previous push sets.
+     * @param localPath the local directory.
+     * @param remotePath the remote directory.
+     * @param monitor The progress monitor. Cannot be null.
+     * @return a {@link SyncResult} object with a code and an optional message.
+     *
+     * @see #syncDirectory(String, String, SyncManifest, int, ISyncProgressMonitor)
+     */
+    public SyncResult syncDirectory(String localPath, String remotePath,
+            ISyncProgressMonitor monitor) {
+        return syncDirectory(localPath, remotePath, null, 0, monitor);
+    }
+
+    /**
+     * Pushes the files of a local directory that are missing or different on the device.
+     * <p/>The remote files are checked with STAT requests, sent without waiting for the previous
+     * answers. A remote file is considered unchanged if it has the size and modification time of
+     * the local file, which is what a previous push sets, or if it is as it was recorded in the
+     * manifest, and the local file didn't change since.
+     * <p/>With {@link #SYNC_CHECKSUM}, the files that have the right size but not the right
+     * modification time are compared by their MD5 checksum, computed on the device with
+     * <code>md5sum</code>. This avoids pushing trees that were regenerated locally with the same
+     * content.
+     * <p/>With {@link #SYNC_TRUST_MANIFEST}, the files that didn't change locally since they were
+     * recorded in the manifest are not checked on the device at all.
+     * <p/>The remote files that don't exist locally are left on the device.
+     * @param localPath the local directory.
+     * @param remotePath the remote directory.
+     * @param manifest the manifest of the device, or <code>null</code>. It is updated with the
+     *      files found unchanged and the files pushed, but not saved.
+     * @param flags a combination of {@link #SYNC_CHECKSUM} and {@link #SYNC_TRUST_MANIFEST}.
+     * @param monitor The progress monitor, which receives the progress of the push of the files
+     *      found different. Cannot be null.
+     * @return a {@link SyncResult} object with a code and an optional message.
+     */
+    public SyncResult syncDirectory(String localPath, String remotePath, SyncManifest manifest,
+            int flags, ISyncProgressMonitor monitor) {
+        File dir = new File(localPath);
+        if (dir.isDirectory() == false) {
+            return new SyncResult(RESULT_NO_LOCAL_FILE);
+        }
+
+        ArrayList<File> files = new ArrayList<File>();
+        ArrayList<String> remoteFiles = new ArrayList<String>();
+        collectFiles(dir, remotePath, files, remoteFiles);
+        int count = files.size();
+
+        // the state of the unchanged remote files, as size and time.
+        int[][] unchanged = new int[count][];
+
+        // check the remote files that the manifest can't vouch for.
+        ArrayList<Integer> toStat = new ArrayList<Integer>();
+        for (int i = 0 ; i < count ; i++) {
+            SyncManifest.Entry entry = manifest != null ? manifest.get(remoteFiles.get(i)) : null;
+            if ((flags & SYNC_TRUST_MANIFEST) != 0 && entry != null &&
+                    entry.matchesLocal(files.get(i))) {
+                unchanged[i] = new int[] { entry.mRemoteSize, entry.mRemoteTime };
+            } else {
+                toStat.add(i);
+            }
+        }
+
+        String[] statPaths = new String[toStat.size()];
+        for (int i = 0 ; i < statPaths.length ; i++) {
+            statPaths[i] = remoteFiles.get(toStat.get(i));
+        }
+
+        int[][] stats = new int[statPaths.length][];
+        SyncResult statResult = readStats(statPaths, stats);
+        if (statResult != null) {
+            return statResult;
+        }
+
+        ArrayList<Integer> toChecksum = new ArrayList<Integer>();
+        for (int k = 0 ; k < stats.length ; k++) {
+            int[] stat = stats[k];
+            if (stat == null) {
+                // missing on the device.
+                continue;
+            }
+
+            int i = toStat.get(k);
+            File f = files.get(i);
+            int size = stat[STAT_SIZE];
+            int time = stat[STAT_TIME];
+            if (size != f.length()) {
+                continue;
+            }
+
+            SyncManifest.Entry entry = manifest != null ? manifest.get(remoteFiles.get(i)) : null;
+            if (time == (int)(f.lastModified() / 1000) ||
+                    (entry != null && entry.matchesLocal(f) && entry.matchesRemote(size, time))) {
+                unchanged[i] = new int[] { size, time };
+            } else if ((flags & SYNC_CHECKSUM) != 0) {
+                unchanged[i] = new int[] { size, time };
+                toChecksum.add(i);
+            }
+        }
+
+        if (toChecksum.size() > 0) {
+            compareChecksums(files, remoteFiles, toChecksum, unchanged);
+        }
+
+        // push the others.
+        ArrayList<String> localPushes = new ArrayList<String>();
+        ArrayList<String> remotePushes = new ArrayList<String>();
+        for (int i = 0 ; i < count ; i++) {
+            if (unchanged[i] == null) {
+                localPushes.add(files.get(i).getAbsolutePath());
+                remotePushes.add(remoteFiles.get(i));
+            } else if (manifest != null) {
+                File f = files.get(i);
+                manifest.put(remoteFiles.get(i), new SyncManifest.Entry(f.length(),
+                        f.lastModified(), unchanged[i][0], unchanged[i][1]));
+            }
+        }
+
+        SyncResult result;
+        if (localPushes.size() > 0) {
+            result = pushFiles(localPushes.toArray(new String[localPushes.size()]),
+                    remotePushes.toArray(new String[remotePushes.size()]),
+                    DEFAULT_CONNECTION_COUNT, monitor);
+        } else {
+            monitor.start(0);
+            monitor.stop();
+            result = new SyncResult(RESULT_OK);
+        }
+
+        if (result.mCode == RESULT_OK && manifest != null) {
+            for (int i = 0 ; i < count ; i++) {
+                if (unchanged[i] == null) {
+                    File f = files.get(i);
+                    manifest.put(remoteFiles.get(i), new SyncManifest.Entry(f.length(),
+                            f.lastModified(), (int)f.length(), (int)(f.lastModified() / 1000)));
+                }
+            }
+        }
+
+        Log.d("ddms", String.format("Synced %1$s to %2$s: %3$d files pushed, %4$d unchanged", //$NON-NLS-1$
+                localPath, remotePath, localPushes.size(), count - localPushes.size()));
+
+        return result;
+    }
+
     /**
      * compute the recursive file size of all the files in the list. Folder
      * have a weight of 1.
@@ -514,6 +959,101 @@ public final class SyncService {
         return count;
     }
 
+    /**
+     * Runs a bulk transfer on this connection and on additional ones, each in its own thread.
+     * @param transfer the transfer.
+     * @param total the total size of the files, or 0 if unknown.
+     * @param connectionCount the max number of connections to use.
+     * @param monitor The progress monitor. Cannot be null.
+     * @return a {@link SyncResult} object with a code and an optional message.
+     */
+    private SyncResult doBulkTransfer(final BulkTransfer transfer, long total,
+            int connectionCount, ISyncProgressMonitor monitor) {
+        final BulkMonitor bulkMonitor = new BulkMonitor(monitor);
+        bulkMonitor.start((int) Math.min(total, Integer.MAX_VALUE));
+
+        // no more connections than files.
+        connectionCount = Math.max(1, Math.min(connectionCount, transfer.mSources.length));
+
+        ArrayList<SyncService> services = new ArrayList<SyncService>();
+        for (int i = 1 ; i < connectionCount ; i++) {
+            SyncService service = new SyncService(mAddress, mDevice);
+            try {
+                if (service.openSync() == false) {
+                    break;
+                }
+            } catch (TimeoutException e) {
+                Log.w("ddms", "Failed to open sync connection: timeout"); //$NON-NLS-1$
+                break;
+            } catch (AdbCommandRejectedException e) {
+                Log.w("ddms", "Failed to open sync connection: " + e.getMessage()); //$NON-NLS-1$
+                break;
+            } catch (IOException e) {
+                Log.w("ddms", "Failed to open sync connection: " + e.getMessage()); //$NON-NLS-1$
+                break;
+            }
+            services.add(service);
+        }
+
+        // the additional connections run in their own thread, this one in the current thread.
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0 ; i < services.size() ; i++) {
+            final SyncService service = services.get(i);
+            Thread t = new Thread("Sync Transfer " + (i + 1)) { //$NON-NLS-1$
+                @Override
+                public void run() {
+                    service.runBulkTransfer(transfer, bulkMonitor);
+                }
+            };
+            t.setDaemon(true);
+            t.start();
+            threads.add(t);
+        }
+
+        runBulkTransfer(transfer, bulkMonitor);
+
+        for (Thread t : threads) {
+            while (true) {
+                try {
+                    t.join();
+                    break;
+                } catch (InterruptedException e) {
+                    // the thread ends on its own, we just need to wait for it.
+                }
+            }
+        }
+
+        for (SyncService service : services) {
+            service.close();
+        }
+
+        bulkMonitor.stop();
+
+        Log.d("ddms", String.format( //$NON-NLS-1$
+                "Transferred %1$d files, %2$d bytes on %3$d connections at %4$.1f KB/s",
+                transfer.mSources.length, bulkMonitor.getBytes(), services.size() + 1,
+                bulkMonitor.getThroughput() / 1024));
+
+        return transfer.getResult();
+    }
+
+    /**
+     * Transfers files of a bulk transfer on this connection, until there are no more files to
+     * transfer, or a transfer failed.
+     */
+    private void runBulkTransfer(BulkTransfer transfer, ISyncProgressMonitor monitor) {
+        SyncResult result;
+        if (transfer.mPush) {
+            result = doPushFiles(transfer, monitor);
+        } else {
+            result = doPullFiles(transfer, monitor);
+        }
+
+        if (result.mCode != RESULT_OK) {
+            transfer.fail(result);
+        }
+    }
+
     /**
      * Pulls multiple files/folders recursively.
      * @param entries The list of entry to pull
@@ -572,11 +1112,62 @@ public final class SyncService {
      */
     private SyncResult doPullFile(String remotePath, String localPath,
             ISyncProgressMonitor monitor) {
-        byte[] msg = null;
-        byte[] pullResult = new byte[8];
+        SyncResult result = requestFile(remotePath);
+        if (result != null) {
+            return result;
+        }
 
-        final int timeOut = DdmPreferences.getTimeOut();
+        return receiveFile(new File(localPath), monitor);
+    }
+
+    /**
+     * Pulls the files of a bulk transfer, until there are no more files to pull.
+     * <p/>The files are requested ahead of their reception, so that the device can send them one
+     * after the other without waiting for a new request.
+     * @param transfer the bulk transfer.
+     * @param monitor the monitor. The monitor must be started already.
+     * @return a {@link SyncResult} object with a code and an optional message.
+     */
+    private SyncResult doPullFiles(BulkTransfer transfer, ISyncProgressMonitor monitor) {
+        LinkedList<Integer> requested = new LinkedList<Integer>();
 
+        while (true) {
+            int index;
+            while (requested.size() < MAX_PENDING_FILES && (index = transfer.next()) != -1) {
+                SyncResult result = requestFile(transfer.mSources[index]);
+                if (result != null) {
+                    return result;
+                }
+                requested.add(index);
+            }
+
+            Integer next = requested.poll();
+            if (next == null) {
+                break;
+            }
+
+            // check if we're cancelled
+            if (monitor.isCanceled() == true) {
+                return new SyncResult(RESULT_CANCELED);
+            }
+
+            monitor.startSubTask(transfer.mSources[next]);
+            SyncResult result = receiveFile(new File(transfer.mDestinations[next]), monitor);
+            if (result.mCode != RESULT_OK) {
+                return result;
+            }
+        }
+
+        return new SyncResult(RESULT_OK);
+    }
+
+    /**
+     * Sends the request for a remote file. The file must then be received with
+     * {@link #receiveFile(File, ISyncProgressMonitor)}.
+     * @param remotePath the remote file (length max is 1024)
+     * @return null if the request was sent, or a {@link SyncResult} object with the error.
+     */
+    private SyncResult requestFile(String remotePath) {
         try {
             byte[] remotePathContent = remotePath.getBytes(AdbHelper.DEFAULT_ENCODING);
 
@@ -584,43 +1175,78 @@ public final class SyncService {
                 return new SyncResult(RESULT_REMOTE_PATH_LENGTH);
             }
 
-            // create the full request message
-            msg = createFileReq(ID_RECV, remotePathContent);
+            // create the full request message and send it.
+            byte[] msg = createFileReq(ID_RECV, remotePathContent);
+            AdbHelper.write(mChannel, msg, -1, DdmPreferences.getTimeOut());
+        } catch (UnsupportedEncodingException e) {
+            return new SyncResult(RESULT_REMOTE_PATH_ENCODING, e);
+        } catch (TimeoutException e) {
+            return new SyncResult(RESULT_CONNECTION_TIMEOUT, e);
+        } catch (IOException e) {
+            return new SyncResult(RESULT_CONNECTION_ERROR, e);
+        }
 
-            // and send it.
-            AdbHelper.write(mChannel, msg, -1, timeOut);
+        return null;
+    }
+
+    /**
+     * Receives a file requested with {@link #requestFile(String)}.
+     * @param f the local destination
+     * @param monitor the monitor. The monitor must be started already.
+     * @return a {@link SyncResult} object with a code and an optional message.
+     */
+    private SyncResult receiveFile(File f, ISyncProgressMonitor monitor) {
+        final int timeOut = DdmPreferences.getTimeOut();
 
+        try {
             // read the result, in a byte array containing 2 ints
             // (id, size)
-            AdbHelper.read(mChannel, pullResult, -1, timeOut);
+            AdbHelper.read(mChannel, mHeader, -1, timeOut);
+
+            if (checkResult(mHeader, ID_FAIL)) {
+                return readFailure(timeOut);
+            }
 
             // check we have the proper data back
-            if (checkResult(pullResult, ID_DATA) == false &&
-                    checkResult(pullResult, ID_DONE) == false) {
+            if (checkResult(mHeader, ID_DATA) == false &&
+                    checkResult(mHeader, ID_DONE) == false) {
                 return new SyncResult(RESULT_CONNECTION_ERROR);
             }
-        } catch (UnsupportedEncodingException e) {
-            return new SyncResult(RESULT_REMOTE_PATH_ENCODING, e);
         } catch (TimeoutException e) {
             return new SyncResult(RESULT_CONNECTION_TIMEOUT, e);
         } catch (IOException e) {
             return new SyncResult(RESULT_CONNECTION_ERROR, e);
         }
 
-        // access the destination file
-        File f = new File(localPath);
-
-        // create the stream to write in the file. We use a new try/catch block to differentiate
-        // between file and network io exceptions.
-        FileOutputStream fos = null;
+        // create the channel to write in the file. We use a new try/catch block to
+        // differentiate between file and network io exceptions.
+        FileChannel fc = null;
         try {
-            fos = new FileOutputStream(f);
+            fc = new FileOutputStream(f).getChannel();
         } catch (FileNotFoundException e) {
             return new SyncResult(RESULT_FILE_WRITE_ERROR, e);
         }
 
-        // the buffer to read the data
-        byte[] data = new byte[SYNC_DATA_MAX];
+        SyncResult result = receiveFileContent(fc, monitor, timeOut);
+
+        try {
+            fc.close();
+        } catch (IOException e) {
+            if (result.mCode == RESULT_OK) {
+                result = new SyncResult(RESULT_FILE_WRITE_ERROR, e);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Receives the DATA packets of a file, until the DONE packet. The header of the first
+     * packet must be in {@link #mHeader} already.
+     */
+    private SyncResult receiveFileContent(FileChannel fc, ISyncProgressMonitor monitor,
+            int timeOut) {
+        ByteBuffer data = getDataBuffer();
 
         // loop to get data until we're done.
         while (true) {
@@ -630,14 +1256,14 @@ public final class SyncService {
             }
 
             // if we're done, we stop the loop
-            if (checkResult(pullResult, ID_DONE)) {
+            if (checkResult(mHeader, ID_DONE)) {
                 break;
             }
-            if (checkResult(pullResult, ID_DATA) == false) {
+            if (checkResult(mHeader, ID_DATA) == false) {
                 // hmm there's an error
                 return new SyncResult(RESULT_CONNECTION_ERROR);
             }
-            int length = ArrayHelper.swap32bitFromArray(pullResult, 4);
+            int length = ArrayHelper.swap32bitFromArray(mHeader, 4);
             if (length > SYNC_DATA_MAX) {
                 // buffer overrun!
                 // error and exit
@@ -646,10 +1272,12 @@ public final class SyncService {
 
             try {
                 // now read the length we received
-                AdbHelper.read(mChannel, data, length, timeOut);
+                data.clear();
+                data.limit(length);
+                AdbHelper.read(mChannel, data, timeOut);
 
                 // get the header for the next packet.
-                AdbHelper.read(mChannel, pullResult, -1, timeOut);
+                AdbHelper.read(mChannel, mHeader, -1, timeOut);
             } catch (TimeoutException e) {
                 return new SyncResult(RESULT_CONNECTION_TIMEOUT, e);
             } catch (IOException e) {
@@ -658,7 +1286,10 @@ public final class SyncService {
 
             // write the content in the file
             try {
-                fos.write(data, 0, length);
+                data.flip();
+                while (data.hasRemaining()) {
+                    fc.write(data);
+                }
             } catch (IOException e) {
                 return new SyncResult(RESULT_FILE_WRITE_ERROR, e);
             }
@@ -666,11 +1297,6 @@ public final class SyncService {
             monitor.advance(length);
         }
 
-        try {
-            fos.flush();
-        } catch (IOException e) {
-            return new SyncResult(RESULT_FILE_WRITE_ERROR, e);
-        }
         return new SyncResult(RESULT_OK);
     }
 
@@ -691,7 +1317,7 @@ public final class SyncService {
             if (f.exists()) {
                 if (f.isDirectory()) {
                     // append the name of the directory to the remote path
-                    String dest = remotePath + "/" + f.getName(); // $NON-NLS-1S
+                    String dest = remotePath + "/" + f.getName(); //$NON-NLS-1$
                     monitor.startSubTask(dest);
                     SyncResult result = doPush(f.listFiles(), dest, monitor);
 
@@ -702,7 +1328,7 @@ public final class SyncService {
                     monitor.advance(1);
                 } else if (f.isFile()) {
                     // append the name of the file to the remote path
-                    String remoteFile = remotePath + "/" + f.getName(); // $NON-NLS-1S
+                    String remoteFile = remotePath + "/" + f.getName(); //$NON-NLS-1$
                     monitor.startSubTask(remoteFile);
                     SyncResult result = doPushFile(f.getAbsolutePath(), remoteFile, monitor);
                     if (result.mCode != RESULT_OK) {
@@ -724,10 +1350,69 @@ public final class SyncService {
      */
     private SyncResult doPushFile(String localPath, String remotePath,
             ISyncProgressMonitor monitor) {
-        FileInputStream fis = null;
-        byte[] msg;
+        SyncResult result = sendFile(new File(localPath), remotePath, monitor);
+        if (result != null) {
+            return result;
+        }
 
-        final int timeOut = DdmPreferences.getTimeOut();
+        return readSendResult();
+    }
+
+    /**
+     * Pushes the files of a bulk transfer, until there are no more files to push.
+     * <p/>The files are sent one after the other, without waiting for the device to acknowledge
+     * them, up to {@link #MAX_PENDING_FILES} files ahead.
+     * @param transfer the bulk transfer.
+     * @param monitor the monitor. The monitor must be started already.
+     * @return a {@link SyncResult} object with a code and an optional message.
+     */
+    private SyncResult doPushFiles(BulkTransfer transfer, ISyncProgressMonitor monitor) {
+        int pending = 0;
+
+        int index;
+        while ((index = transfer.next()) != -1) {
+            // check if we're canceled
+            if (monitor.isCanceled() == true) {
+                return new SyncResult(RESULT_CANCELED);
+            }
+
+            monitor.startSubTask(transfer.mDestinations[index]);
+            SyncResult result = sendFile(new File(transfer.mSources[index]),
+                    transfer.mDestinations[index], monitor);
+            if (result != null) {
+                return result;
+            }
+
+            if (++pending == MAX_PENDING_FILES) {
+                result = readSendResult();
+                if (result.mCode != RESULT_OK) {
+                    return result;
+                }
+                pending--;
+            }
+        }
+
+        for ( ; pending > 0 ; pending--) {
+            SyncResult result = readSendResult();
+            if (result.mCode != RESULT_OK) {
+                return result;
+            }
+        }
+
+        return new SyncResult(RESULT_OK);
+    }
+
+    /**
+     * Sends a file, without waiting for the device to acknowledge it. The result must then be
+     * read with {@link #readSendResult()}.
+     * @param f the local file to push
+     * @param remotePath the remote file (length max is 1024)
+     * @param monitor the monitor. The monitor must be started already.
+     * @return null if the file was sent, or a {@link SyncResult} object with the error.
+     */
+    private SyncResult sendFile(File f, String remotePath, ISyncProgressMonitor monitor) {
+        FileChannel fc = null;
+        byte[] msg;
 
         try {
             byte[] remotePathContent = remotePath.getBytes(AdbHelper.DEFAULT_ENCODING);
@@ -736,15 +1421,13 @@ public final class SyncService {
                 return new SyncResult(RESULT_REMOTE_PATH_LENGTH);
             }
 
-            File f = new File(localPath);
-
             // this shouldn't happen but still...
             if (f.exists() == false) {
                 return new SyncResult(RESULT_NO_LOCAL_FILE);
             }
 
-            // create the stream to read the file
-            fis = new FileInputStream(f);
+            // create the channel to read the file
+            fc = new FileInputStream(f).getChannel();
 
             // create the header for the action
             msg = createSendFileReq(ID_SEND, remotePathContent, 0644);
@@ -754,7 +1437,36 @@ public final class SyncService {
             return new SyncResult(RESULT_FILE_READ_ERROR, e);
         }
 
-        // and send it. We use a custom try/catch block to make the difference between
+        // the remote file gets the modification time of the local one, which lets
+        // syncDirectory() recognize the files that didn't change.
+        long time = f.lastModified();
+        if (time == 0) {
+            time = System.currentTimeMillis();
+        }
+        SyncResult result = sendFileContent(fc, msg, (int)(time / 1000), monitor);
+
+        // close the local file
+        try {
+            fc.close();
+        } catch (IOException e) {
+            if (result == null) {
+                result = new SyncResult(RESULT_FILE_READ_ERROR, e);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Sends the SEND request, the content of the file in DATA packets, and the DONE packet.
+     * @param time the modification time of the remote file, in seconds.
+     * @return null if the file was sent, or a {@link SyncResult} object with the error.
+     */
+    private SyncResult sendFileContent(ReadableByteChannel fc, byte[] msg, int time,
+            ISyncProgressMonitor monitor) {
+        final int timeOut = DdmPreferences.getTimeOut();
+
+        // We use a custom try/catch block to make the difference between
         // file and network IO exceptions.
         try {
             AdbHelper.write(mChannel, msg, -1, timeOut);
@@ -764,12 +1476,7 @@ public final class SyncService {
             return new SyncResult(RESULT_CONNECTION_ERROR, e);
         }
 
-        // create the buffer used to read.
-        // we read max SYNC_DATA_MAX, but we need 2 4 bytes at the beginning.
-        if (mBuffer == null) {
-            mBuffer = new byte[SYNC_DATA_MAX + 8];
-        }
-        System.arraycopy(ID_DATA, 0, mBuffer, 0, ID_DATA.length);
+        ByteBuffer data = getDataBuffer();
 
         // look while there is something to read
         while (true) {
@@ -778,26 +1485,29 @@ public final class SyncService {
                 return new SyncResult(RESULT_CANCELED);
             }
 
-            // read up to SYNC_DATA_MAX
-            int readCount = 0;
+            // read up to SYNC_DATA_MAX, after the room for the header.
+            data.clear();
+            data.position(8);
             try {
-                readCount = fis.read(mBuffer, 8, SYNC_DATA_MAX);
+                while (data.hasRemaining() && fc.read(data) != -1) {
+                    // fill the packet as much as possible.
+                }
             } catch (IOException e) {
                 return new SyncResult(RESULT_FILE_READ_ERROR, e);
             }
 
-            if (readCount == -1) {
+            int readCount = data.position() - 8;
+            if (readCount == 0) {
                 // we reached the end of the file
                 break;
             }
 
-            // now send the data to the device
-            // first write the amount read
-            ArrayHelper.swap32bitsToArray(readCount, mBuffer, 4);
-
-            // now write it
+            // now write the header, with the amount read, and the data.
+            data.put(0, ID_DATA[0]).put(1, ID_DATA[1]).put(2, ID_DATA[2]).put(3, ID_DATA[3]);
+            data.putInt(4, readCount);
+            data.flip();
             try {
-                AdbHelper.write(mChannel, mBuffer, readCount+8, timeOut);
+                AdbHelper.write(mChannel, data, timeOut);
             } catch (TimeoutException e) {
                 return new SyncResult(RESULT_CONNECTION_TIMEOUT, e);
             } catch (IOException e) {
@@ -807,37 +1517,37 @@ public final class SyncService {
             // and advance the monitor
             monitor.advance(readCount);
         }
-        // close the local file
-        try {
-            fis.close();
-        } catch (IOException e) {
-            return new SyncResult(RESULT_FILE_READ_ERROR, e);
-        }
 
         try {
             // create the DONE message
-            long time = System.currentTimeMillis() / 1000;
-            msg = createReq(ID_DONE, (int)time);
+            msg = createReq(ID_DONE, time);
 
             // and send it.
             AdbHelper.write(mChannel, msg, -1, timeOut);
+        } catch (TimeoutException e) {
+            return new SyncResult(RESULT_CONNECTION_TIMEOUT, e);
+        } catch (IOException e) {
+            return new SyncResult(RESULT_CONNECTION_ERROR, e);
+        }
 
-            // read the result, in a byte array containing 2 ints
-            // (id, size)
-            byte[] result = new byte[8];
-            AdbHelper.read(mChannel, result, -1 /* full length */, timeOut);
+        return null;
+    }
 
-            if (checkResult(result, ID_OKAY) == false) {
-                if (checkResult(result, ID_FAIL)) {
-                    // read some error message...
-                    int len = ArrayHelper.swap32bitFromArray(result, 4);
+    /**
+     * Reads the result of a file sent with {@link #sendFile(File, String, ISyncProgressMonitor)}.
+     * @return a {@link SyncResult} object with a code and an optional message.
+     */
+    private SyncResult readSendResult() {
+        final int timeOut = DdmPreferences.getTimeOut();
 
-                    AdbHelper.read(mChannel, mBuffer, len, timeOut);
+        try {
+            // read the result, in a byte array containing 2 ints
+            // (id, size)
+            AdbHelper.read(mChannel, mHeader, -1, timeOut);
 
-                    // output the result?
-                    String message = new String(mBuffer, 0, len);
-                    Log.e("ddms", "transfer error: " + message);
-                    return new SyncResult(RESULT_UNKNOWN_ERROR, message);
+            if (checkResult(mHeader, ID_OKAY) == false) {
+                if (checkResult(mHeader, ID_FAIL)) {
+                    return readFailure(timeOut);
                 }
 
                 return new SyncResult(RESULT_UNKNOWN_ERROR);
@@ -851,6 +1561,224 @@ public final class SyncService {
         return new SyncResult(RESULT_OK);
     }
 
+    /**
+     * Reads the message following a FAIL header, which is in {@link #mHeader}.
+     * @return a {@link SyncResult} object with the message.
+     */
+    private SyncResult readFailure(int timeOut) throws TimeoutException, IOException {
+        int len = ArrayHelper.swap32bitFromArray(mHeader, 4);
+        if (len < 0 || len > SYNC_DATA_MAX) {
+            return new SyncResult(RESULT_BUFFER_OVERRUN);
+        }
+
+        // read some error message...
+        byte[] message = new byte[len];
+        AdbHelper.read(mChannel, message, -1, timeOut);
+
+        // output the result?
+        String text = new String(message);
+        Log.e("ddms", "transfer error: " + text);
+        return new SyncResult(RESULT_UNKNOWN_ERROR, text);
+    }
+
+    /**
+     * Returns the buffer used to transfer the file data, with room for the header of the
+     * DATA packets.
+     */
+    private ByteBuffer getDataBuffer() {
+        if (mDataBuffer == null) {
+            mDataBuffer = ByteBuffer.allocateDirect(SYNC_DATA_MAX + 8);
+            mDataBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        return mDataBuffer;
+    }
+
+    /**
+     * Lists the files of a local directory and its sub-directories, with their remote path.
+     */
+    private static void collectFiles(File dir, String remotePath, ArrayList<File> files,
+            ArrayList<String> remoteFiles) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+
+        Arrays.sort(children);
+        for (File f : children) {
+            String remote = remotePath + "/" + f.getName(); //$NON-NLS-1$
+            if (f.isDirectory()) {
+                collectFiles(f, remote, files, remoteFiles);
+            } else if (f.isFile()) {
+                files.add(f);
+                remoteFiles.add(remote);
+            }
+        }
+    }
+
+    /**
+     * Reads the mode, size and time of remote files. The requests are sent in batches, without
+     * waiting for the answers of the previous requests of the batch.
+     * @param paths the remote files (length max is 1024)
+     * @param stats receives, for each file, an array indexed by {@link #STAT_MODE},
+     *      {@link #STAT_SIZE} and {@link #STAT_TIME}, or null if the file doesn't exist.
+     * @return null if the files were read, or a {@link SyncResult} object with the error.
+     */
+    private SyncResult readStats(String[] paths, int[][] stats) {
+        final int timeOut = DdmPreferences.getTimeOut();
+        byte[] statResult = new byte[16];
+
+        try {
+            // check all the paths first, so that no request is left unanswered.
+            byte[][] pathContents = new byte[paths.length][];
+            for (int i = 0 ; i < paths.length ; i++) {
+                pathContents[i] = paths[i].getBytes(AdbHelper.DEFAULT_ENCODING);
+                if (pathContents[i].length > REMOTE_PATH_MAX_LENGTH) {
+                    return new SyncResult(RESULT_REMOTE_PATH_LENGTH);
+                }
+            }
+
+            for (int start = 0 ; start < paths.length ; start += MAX_PENDING_STATS) {
+                int end = Math.min(paths.length, start + MAX_PENDING_STATS);
+                for (int i = start ; i < end ; i++) {
+                    byte[] msg = createFileReq(ID_STAT, pathContents[i]);
+                    AdbHelper.write(mChannel, msg, -1, timeOut);
+                }
+
+                for (int i = start ; i < end ; i++) {
+                    // read the result, in a byte array containing 4 ints
+                    // (id, mode, size, time)
+                    AdbHelper.read(mChannel, statResult, -1, timeOut);
+                    if (checkResult(statResult, ID_STAT) == false) {
+                        throw new IOException("Unexpected answer to STAT"); //$NON-NLS-1$
+                    }
+
+                    int mode = ArrayHelper.swap32bitFromArray(statResult, 4);
+                    if (mode != 0) {
+                        stats[i] = new int[] { mode,
+                                ArrayHelper.swap32bitFromArray(statResult, 8),
+                                ArrayHelper.swap32bitFromArray(statResult, 12) };
+                    }
+                }
+            }
+        } catch (UnsupportedEncodingException e) {
+            return new SyncResult(RESULT_REMOTE_PATH_ENCODING, e);
+        } catch (TimeoutException e) {
+            return new SyncResult(RESULT_CONNECTION_TIMEOUT, e);
+        } catch (IOException e) {
+            return new SyncResult(RESULT_CONNECTION_ERROR, e);
+        }
+
+        return null;
+    }
+
+    /**
+     * Compares local files with remote ones by their MD5 checksum, and clears the state of the
+     * remote files that differ, or that couldn't be compared.
+     * @param files the local files.
+     * @param remoteFiles the remote files.
+     * @param indices the indices of the files to compare.
+     * @param unchanged the state of the remote files, cleared for the files that differ.
+     */
+    private void compareChecksums(ArrayList<File> files, ArrayList<String> remoteFiles,
+            ArrayList<Integer> indices, int[][] unchanged) {
+        final HashMap<String, String> remoteSums = new HashMap<String, String>();
+        MultiLineReceiver receiver = new MultiLineReceiver() {
+            @Override
+            public void processNewLines(String[] lines) {
+                // md5sum outputs "<checksum>  <path>"
+                for (String line : lines) {
+                    int index = line.indexOf(' ');
+                    if (index > 0) {
+                        remoteSums.put(line.substring(index).trim(),
+                                line.substring(0, index).toLowerCase());
+                    }
+                }
+            }
+
+            public boolean isCancelled() {
+                return false;
+            }
+        };
+
+        // run md5sum on as many files as possible at once.
+        StringBuilder command = new StringBuilder();
+        for (int k = 0 ; k <= indices.size() ; k++) {
+            String arg = k < indices.size() ?
+                    " " + quote(remoteFiles.get(indices.get(k))) : null; //$NON-NLS-1$
+            if (command.length() > 0 && (arg == null ||
+                    command.length() + arg.length() > MAX_CHECKSUM_COMMAND_LENGTH)) {
+                try {
+                    AdbHelper.executeRemoteCommand(mAddress, command.toString(), mDevice,
+                            receiver, DdmPreferences.getTimeOut());
+                } catch (Exception e) {
+                    // the files without checksum are pushed.
+                    Log.w("ddms", "Failed to compute checksums: " + e.getMessage()); //$NON-NLS-1$
+                }
+                command.setLength(0);
+            }
+
+            if (arg != null) {
+                if (command.length() == 0) {
+                    command.append(CHECKSUM_COMMAND);
+                }
+                command.append(arg);
+            }
+        }
+
+        for (int i : indices) {
+            String remoteSum = remoteSums.get(remoteFiles.get(i));
+            String localSum = getChecksum(files.get(i));
+            if (remoteSum == null || localSum == null || remoteSum.equals(localSum) == false) {
+                unchanged[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Returns a path quoted for the device shell. The path is put between single quotes, which
+     * keep all the characters but the single quote itself. Those are ended, escaped and opened
+     * again.
+     */
+    private static String quote(String path) {
+        return "'" + path.replace("'", "'\\''") //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+                + "'"; //$NON-NLS-1$
+    }
+
+    /**
+     * Returns the MD5 checksum of a local file, as a lower case hexadecimal string, or null if
+     * it couldn't be computed.
+     */
+    private String getChecksum(File f) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5"); //$NON-NLS-1$
+            FileChannel fc = new FileInputStream(f).getChannel();
+            try {
+                ByteBuffer data = getDataBuffer();
+                data.clear();
+                while (fc.read(data) != -1) {
+                    data.flip();
+                    digest.update(data);
+                    data.clear();
+                }
+            } finally {
+                fc.close();
+            }
+
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(String.format("%02x", b & 0xff)); //$NON-NLS-1$
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            Log.e("ddms", e);
+        } catch (IOException e) {
+            Log.w("ddms", "Failed to read " + f + ": " + e.getMessage()); //$NON-NLS-1$
+        }
+
+        return null;
+    }
+
     /**
      * Returns the mode of the remote file.
      * @param path the remote file
@@ -0,0 +1,384 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.log;
+
+import com.android.ddmlib.Log;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Ring buffer of log lines, stored outside of the Java heap.
+ * <p/>Each line is stored in a slot, identified by an int between 0 and
+ * {@link #getCapacity()} - 1. When the buffer is full, the oldest lines are removed to make
+ * room for the new ones, and their slots are reused.
+ * <p/>The fixed size part of the lines (priority, pid, tid, time, tag) is stored in a direct
+ * {@link ByteBuffer}, while the messages are stored in a log of direct {@link ByteBuffer}
+ * segments, which are reused in order. Only the tags are kept in the Java heap, since there are
+ * few of them.
+ * <p/>All the methods are synchronized on the buffer itself.
+ */
+public final class LogBuffer {
+
+    /** Average size of a line, used to compute the default size of the message segments. */
+    public final static int AVERAGE_LINE_SIZE = 128;
+
+    /**
+     * Maximum number of lines of a buffer created by {@link #create(int)}. With the default
+     * message size, each line takes 160 bytes of direct memory, which is limited to the max
+     * heap size by default.
+     */
+    public final static int MAX_CAPACITY = 1000000;
+
+    /** Minimum number of lines of a buffer created by {@link #create(int)}. */
+    public final static int MIN_CAPACITY = 1000;
+
+    /** Size of a message segment. This is also the maximum size of a message. */
+    private final static int SEGMENT_SIZE = 64 * 1024;
+
+    private final static String ENCODING = "UTF-8"; //$NON-NLS-1$
+
+    // layout of a line record.
+    private final static int RECORD_SIZE = 32;
+    private final static int PRIORITY_OFFSET = 0;
+    private final static int PID_OFFSET = 4;
+    private final static int TID_OFFSET = 8;
+    private final static int SEC_OFFSET = 12;
+    private final static int NSEC_OFFSET = 16;
+    private final static int TAG_OFFSET = 20;
+    private final static int DATA_OFFSET = 24;
+    private final static int LENGTH_OFFSET = 28;
+
+    private final int mCapacity;
+    private final ByteBuffer mRecords;
+    private final ByteBuffer[] mSegments;
+
+    /** slot of the oldest line */
+    private int mFirst = 0;
+    /** number of lines in the buffer */
+    private int mCount = 0;
+
+    /** segment receiving the new messages, and the offset of the next message in it. */
+    private int mSegment = 0;
+    private int mSegmentOffset = 0;
+
+    /** number of times the content of the buffer changed */
+    private long mModificationCount = 0;
+
+    /** number of lines added since the creation of the buffer */
+    private long mNextLine = 0;
+
+    private final ArrayList<String> mTags = new ArrayList<String>();
+    private final HashMap<String, Integer> mTagIds = new HashMap<String, Integer>();
+
+    /** temporary buffer used to decode the messages. */
+    private final byte[] mDecodeBuffer = new byte[SEGMENT_SIZE];
+
+    /**
+     * Creates a buffer for a given number of lines, with room for lines of
+     * {@link #AVERAGE_LINE_SIZE} bytes on average.
+     * @param capacity the maximum number of lines.
+     */
+    public LogBuffer(int capacity) {
+        this(capacity, (long)capacity * AVERAGE_LINE_SIZE);
+    }
+
+    /**
+     * Creates a buffer for a given number of lines.
+     * <p/>Old lines are removed either when the buffer contains <var>capacity</var> lines, or
+     * when their messages use all the <var>messageSize</var> bytes.
+     * @param capacity the maximum number of lines.
+     * @param messageSize the number of bytes available for the messages. This is rounded up to
+     * the size of the segments.
+     */
+    public LogBuffer(int capacity, long messageSize) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1"); //$NON-NLS-1$
+        }
+
+        mCapacity = capacity;
+        mRecords = ByteBuffer.allocateDirect(capacity * RECORD_SIZE);
+
+        // there must be at least 2 segments, so that filling one segment never removes
+        // all the lines.
+        int segmentCount = (int)Math.max(2, (messageSize + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        mSegments = new ByteBuffer[segmentCount];
+        for (int i = 0 ; i < segmentCount ; i++) {
+            mSegments[i] = ByteBuffer.allocateDirect(SEGMENT_SIZE);
+        }
+    }
+
+    /**
+     * Creates a buffer for at most a given number of lines, with room for lines of
+     * {@link #AVERAGE_LINE_SIZE} bytes on average.
+     * <p/>The number of lines is capped to {@link #MAX_CAPACITY}, and halved, down to
+     * {@link #MIN_CAPACITY}, while the direct memory can't hold the buffer.
+     * @param capacity the requested number of lines.
+     * @throws OutOfMemoryError if even a buffer of {@link #MIN_CAPACITY} lines doesn't fit.
+     */
+    public static LogBuffer create(int capacity) {
+        int size = Math.max(MIN_CAPACITY, Math.min(capacity, MAX_CAPACITY));
+        while (true) {
+            try {
+                LogBuffer buffer = new LogBuffer(size);
+                if (size != capacity) {
+                    Log.w("ddms", "Log buffer reduced from " + capacity + " to " //$NON-NLS-1$
+                            + size + " lines"); //$NON-NLS-1$
+                }
+                return buffer;
+            } catch (OutOfMemoryError e) {
+                if (size == MIN_CAPACITY) {
+                    throw e;
+                }
+                // the segments of the failed buffer are collected when the next one needs room.
+                size = Math.max(MIN_CAPACITY, size / 2);
+            }
+        }
+    }
+
+    /**
+     * Returns the maximum number of lines in the buffer.
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Returns the number of lines in the buffer.
+     */
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the slot of the oldest line. This is only valid if {@link #getCount()} is not 0.
+     */
+    public synchronized int getFirstSlot() {
+        return mFirst;
+    }
+
+    /**
+     * Returns the slot of the line at a given position, 0 being the oldest line.
+     * @param index the position of the line, between 0 and {@link #getCount()} - 1.
+     */
+    public synchronized int getSlot(int index) {
+        return (mFirst + index) % mCapacity;
+    }
+
+    /**
+     * Returns the number of the oldest line.
+     * <p/>Lines are numbered in the order they are added, starting at 0 when the buffer is
+     * created. Unlike the slots, line numbers are never reused, which makes it possible to
+     * check whether a line is still in the buffer with {@link #getLineSlot(long)}.
+     */
+    public synchronized long getFirstLine() {
+        return mNextLine - mCount;
+    }
+
+    /**
+     * Returns the number that the next added line will have.
+     * @see #getFirstLine()
+     */
+    public synchronized long getNextLine() {
+        return mNextLine;
+    }
+
+    /**
+     * Returns the slot of a line from its number, or -1 if the line was removed.
+     * @param line the number of the line, as defined by {@link #getFirstLine()}.
+     */
+    public synchronized int getLineSlot(long line) {
+        long first = mNextLine - mCount;
+        if (line < first || line >= mNextLine) {
+            return -1;
+        }
+
+        return (int)((mFirst + (line - first)) % mCapacity);
+    }
+
+    /**
+     * Returns the number of times the content of the buffer changed. This can be used to
+     * check that a slot still contains the same line.
+     */
+    public synchronized long getModificationCount() {
+        return mModificationCount;
+    }
+
+    /**
+     * Adds a line to the buffer, removing the oldest lines if needed.
+     * <p/>The removed lines are always the oldest ones: their number is
+     * <code>count + 1 - {@link #getCount()}</code>, and the first one is at
+     * <var>firstSlot</var>, <var>count</var> and <var>firstSlot</var> being the values returned
+     * by {@link #getCount()} and {@link #getFirstSlot()} before the call.
+     * @param priority the priority of the line.
+     * @param pid the pid of the process that logged the line.
+     * @param tid the tid of the thread that logged the line.
+     * @param sec the time of the line, in seconds since Epoch.
+     * @param nsec the nanoseconds of the time of the line.
+     * @param tag the tag of the line.
+     * @param message the array containing the message, encoded in UTF-8.
+     * @param offset the offset of the message in the array.
+     * @param length the length of the message. Messages longer than 64KB are truncated.
+     * @return the slot of the new line.
+     */
+    public synchronized int add(int priority, int pid, int tid, int sec, int nsec, String tag,
+            byte[] message, int offset, int length) {
+        if (length > SEGMENT_SIZE) {
+            length = SEGMENT_SIZE;
+        }
+
+        // make room for the message. A full segment is left even for an empty message, so that
+        // the offset of the message is always in the segment it belongs to.
+        if (mSegmentOffset + length > SEGMENT_SIZE || mSegmentOffset == SEGMENT_SIZE) {
+            mSegment = (mSegment + 1) % mSegments.length;
+            mSegmentOffset = 0;
+
+            // the lines whose message is in the new segment are the oldest ones.
+            while (mCount > 0 && getDataOffset(mFirst) / SEGMENT_SIZE == mSegment) {
+                removeFirst();
+            }
+        }
+
+        // make room for the line
+        if (mCount == mCapacity) {
+            removeFirst();
+        }
+
+        int slot = (mFirst + mCount) % mCapacity;
+        mCount++;
+        mNextLine++;
+        mModificationCount++;
+
+        int base = slot * RECORD_SIZE;
+        mRecords.putInt(base + PRIORITY_OFFSET, priority);
+        mRecords.putInt(base + PID_OFFSET, pid);
+        mRecords.putInt(base + TID_OFFSET, tid);
+        mRecords.putInt(base + SEC_OFFSET, sec);
+        mRecords.putInt(base + NSEC_OFFSET, nsec);
+        mRecords.putInt(base + TAG_OFFSET, getTagId(tag));
+        mRecords.putInt(base + DATA_OFFSET, mSegment * SEGMENT_SIZE + mSegmentOffset);
+        mRecords.putInt(base + LENGTH_OFFSET, length);
+
+        ByteBuffer segment = mSegments[mSegment];
+        segment.position(mSegmentOffset);
+        segment.put(message, offset, length);
+        mSegmentOffset += length;
+
+        return slot;
+    }
+
+    /**
+     * Removes all the lines.
+     */
+    public synchronized void clear() {
+        mFirst = 0;
+        mCount = 0;
+        mSegment = 0;
+        mSegmentOffset = 0;
+        mModificationCount++;
+    }
+
+    /**
+     * Returns the priority of a line.
+     * @param slot the slot of the line.
+     */
+    public synchronized int getPriority(int slot) {
+        return mRecords.getInt(slot * RECORD_SIZE + PRIORITY_OFFSET);
+    }
+
+    /**
+     * Returns the pid of the process that logged a line.
+     * @param slot the slot of the line.
+     */
+    public synchronized int getPid(int slot) {
+        return mRecords.getInt(slot * RECORD_SIZE + PID_OFFSET);
+    }
+
+    /**
+     * Returns the tid of the thread that logged a line.
+     * @param slot the slot of the line.
+     */
+    public synchronized int getTid(int slot) {
+        return mRecords.getInt(slot * RECORD_SIZE + TID_OFFSET);
+    }
+
+    /**
+     * Returns the time of a line, in seconds since Epoch.
+     * @param slot the slot of the line.
+     */
+    public synchronized int getSec(int slot) {
+        return mRecords.getInt(slot * RECORD_SIZE + SEC_OFFSET);
+    }
+
+    /**
+     * Returns the nanoseconds of the time of a line.
+     * @param slot the slot of the line.
+     */
+    public synchronized int getNsec(int slot) {
+        return mRecords.getInt(slot * RECORD_SIZE + NSEC_OFFSET);
+    }
+
+    /**
+     * Returns the tag of a line. The same {@link String} object is returned for all the lines
+     * with the same tag.
+     * @param slot the slot of the line.
+     */
+    public synchronized String getTag(int slot) {
+        return mTags.get(mRecords.getInt(slot * RECORD_SIZE + TAG_OFFSET));
+    }
+
+    /**
+     * Returns the message of a line.
+     * @param slot the slot of the line.
+     */
+    public synchronized String getMessage(int slot) {
+        int dataOffset = getDataOffset(slot);
+        int length = mRecords.getInt(slot * RECORD_SIZE + LENGTH_OFFSET);
+
+        ByteBuffer segment = mSegments[dataOffset / SEGMENT_SIZE];
+        segment.position(dataOffset % SEGMENT_SIZE);
+        segment.get(mDecodeBuffer, 0, length);
+
+        try {
+            return new String(mDecodeBuffer, 0, length, ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            return new String(mDecodeBuffer, 0, length);
+        }
+    }
+
+    private int getDataOffset(int slot) {
+        return mRecords.getInt(slot * RECORD_SIZE + DATA_OFFSET);
+    }
+
+    private void removeFirst() {
+        mFirst = (mFirst + 1) % mCapacity;
+        mCount--;
+    }
+
+    private int getTagId(String tag) {
+        Integer id = mTagIds.get(tag);
+        if (id == null) {
+            id = mTags.size();
+            mTags.add(tag);
+            mTagIds.put(tag, id);
+        }
+
+        return id;
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.ddmlib.IDevice.DeviceState;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link AdbHelper} against a {@link FakeAdbServer}.
+ */
+public class AdbHelperTest extends TestCase {
+
+    private static final String SERIAL = "fakeserial"; //$NON-NLS-1$
+
+    /** Number of requests used to measure round-trip latencies. */
+    private static final int LATENCY_ITERATIONS = 50;
+
+    private FakeAdbServer mServer;
+    private Device mDevice;
+
+    @Override
+    protected void setUp() throws Exception {
+        mServer = new FakeAdbServer();
+        mServer.addDevice(SERIAL);
+        mServer.setShellResponse("getprop ro.build.version.sdk", "8\r\n"); //$NON-NLS-1$
+        mServer.setShellResponse("ls", "foo\r\nbar\r\n"); //$NON-NLS-1$
+        mServer.setFrameBuffer(createImage(320, 480));
+        mDevice = new Device(null, SERIAL, DeviceState.ONLINE);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.stop();
+    }
+
+    /**
+     * Tests running a shell command on a specific device.
+     */
+    public void testExecuteRemoteCommand() throws Exception {
+        CollectingReceiver receiver = new CollectingReceiver();
+        AdbHelper.executeRemoteCommand(mServer.getSocketAddress(), "ls", mDevice, receiver,
+                DdmPreferences.getTimeOut());
+
+        assertEquals(2, receiver.mLines.size());
+        assertEquals("foo", receiver.mLines.get(0));
+        assertEquals("bar", receiver.mLines.get(1));
+    }
+
+    /**
+     * Tests that a command sent to an unknown device is rejected during device selection.
+     */
+    public void testUnknownDevice() throws Exception {
+        Device device = new Device(null, "unknown", DeviceState.ONLINE); //$NON-NLS-1$
+        try {
+            AdbHelper.executeRemoteCommand(mServer.getSocketAddress(), "ls", device,
+                    new CollectingReceiver(), DdmPreferences.getTimeOut());
+            fail("AdbCommandRejectedException expected");
+        } catch (AdbCommandRejectedException e) {
+            assertTrue(e.wasErrorDuringDeviceSelection());
+            assertEquals("device not found", e.getMessage());
+        }
+    }
+
+    /**
+     * Tests reading a frame buffer.
+     */
+    public void testGetFrameBuffer() throws Exception {
+        RawImage image = AdbHelper.getFrameBuffer(mServer.getSocketAddress(), mDevice);
+
+        assertEquals(320, image.width);
+        assertEquals(480, image.height);
+        assertEquals(32, image.bpp);
+        assertEquals(320 * 480 * 4, image.data.length);
+        assertEquals(7, image.data[7]);
+    }
+
+    /**
+     * Tests that a shell command that doesn't output anything in time is reported, and that the
+     * timeout is respected.
+     */
+    public void testShellCommandUnresponsive() throws Exception {
+        mServer.setShellDelay(2000);
+        long start = System.currentTimeMillis();
+        try {
+            AdbHelper.executeRemoteCommand(mServer.getSocketAddress(), "ls", mDevice,
+                    new CollectingReceiver(), 200);
+            fail("ShellCommandUnresponsiveException expected");
+        } catch (ShellCommandUnresponsiveException e) {
+            long elapsed = System.currentTimeMillis() - start;
+            assertTrue("timed out too early: " + elapsed, elapsed >= 200);
+            assertTrue("timed out too late: " + elapsed, elapsed < 1000);
+        }
+    }
+
+    /**
+     * Tests that a read from a silent server times out after the given delay.
+     */
+    public void testReadTimeout() throws Exception {
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        SocketChannel chan = null;
+        Socket accepted = null;
+        try {
+            chan = SocketChannel.open(new InetSocketAddress(server.getInetAddress(),
+                    server.getLocalPort()));
+            chan.configureBlocking(false);
+            accepted = server.accept();
+
+            long start = System.currentTimeMillis();
+            try {
+                AdbHelper.read(chan, new byte[4], -1, 100);
+                fail("TimeoutException expected");
+            } catch (TimeoutException e) {
+                long elapsed = System.currentTimeMillis() - start;
+                assertTrue("timed out too early: " + elapsed, elapsed >= 100);
+                assertTrue("timed out too late: " + elapsed, elapsed < 1000);
+            }
+
+            // the channel must be usable in blocking mode after the wait.
+            chan.configureBlocking(true);
+        } finally {
+            if (chan != null) {
+                chan.close();
+            }
+            if (accepted != null) {
+                accepted.close();
+            }
+            server.close();
+        }
+    }
+
+    /**
+     * Runs many <code>getprop</code>, <code>framebuffer:</code> and <code>shell:</code>
+     * requests in a row, and reports their average round-trip latency. The old spin-wait
+     * implementation slept 5 to 25 ms every time a reply wasn't immediately available.
+     * <p/>The latency depends on the machine running the test, so it is only printed.
+     */
+    public void testRoundTripLatency() throws Exception {
+        // warm up
+        runLatencyIteration();
+
+        long start = System.nanoTime();
+        for (int i = 0 ; i < LATENCY_ITERATIONS ; i++) {
+            runLatencyIteration();
+        }
+        long average = (System.nanoTime() - start) / (LATENCY_ITERATIONS * 3 * 1000L);
+
+        System.out.println("average round-trip latency: " + average + "us"); //$NON-NLS-1$
+    }
+
+    private void runLatencyIteration() throws Exception {
+        AdbHelper.executeRemoteCommand(mServer.getSocketAddress(),
+                "getprop ro.build.version.sdk", mDevice, new CollectingReceiver(),
+                DdmPreferences.getTimeOut());
+        AdbHelper.getFrameBuffer(mServer.getSocketAddress(), mDevice);
+        AdbHelper.executeRemoteCommand(mServer.getSocketAddress(), "ls", mDevice,
+                new CollectingReceiver(), DdmPreferences.getTimeOut());
+    }
+
+    private static RawImage createImage(int width, int height) {
+        RawImage image = new RawImage();
+        image.bpp = 32;
+        image.width = width;
+        image.height = height;
+        image.red_offset = 0;
+        image.red_length = 8;
+        image.green_offset = 8;
+        image.green_length = 8;
+        image.blue_offset = 16;
+        image.blue_length = 8;
+        image.alpha_offset = 24;
+        image.alpha_length = 8;
+        image.data = new byte[width * height * 4];
+        for (int i = 0 ; i < image.data.length ; i++) {
+            image.data[i] = (byte) i;
+        }
+        image.size = image.data.length;
+
+        return image;
+    }
+
+    /**
+     * A {@link MultiLineReceiver} that stores all the non empty lines it receives.
+     */
+    private static class CollectingReceiver extends MultiLineReceiver {
+        final List<String> mLines = new ArrayList<String>();
+
+        @Override
+        public void processNewLines(String[] lines) {
+            for (String line : lines) {
+                if (line.length() > 0) {
+                    mLines.add(line);
+                }
+            }
+        }
+
+        public boolean isCancelled() {
+            return false;
+        }
+    }
+}
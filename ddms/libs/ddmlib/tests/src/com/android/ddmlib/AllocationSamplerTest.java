@@ -0,0 +1,431 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.ddmlib.AllocationSampler.Entry;
+import com.android.ddmlib.IDevice.DeviceState;
+
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the {@link AllocationSampler}, with a {@link FakeVm} replaying the REAL chunks of a
+ * simulated allocation tracker.
+ */
+public class AllocationSamplerTest extends TestCase {
+
+    /** Number of allocations kept by the simulated tracker. */
+    private static final int TRACKER_SIZE = 64;
+
+    private static final String[] CLASS_NAMES = new String[] {
+        "Lcom/example/A;", "Lcom/example/B;", "[I", "Ljava/lang/String;" };
+    /** The class names, as reported by the decoded allocations. */
+    private static final String[] DOT_CLASS_NAMES = new String[] {
+        "com.example.A", "com.example.B", "int[]", "java.lang.String" };
+    private static final String[] METHOD_NAMES = new String[] { "run", "alloc" };
+    private static final String[] FILE_NAMES = new String[] { "A.java" };
+
+    /** Number of different call sites of the simulated allocations. */
+    private static final int SITE_COUNT = 5;
+
+    private FakeVm mVm;
+    private Client mClient;
+    private Tracker mTracker;
+
+    @Override
+    protected void setUp() throws Exception {
+        mVm = new FakeVm();
+        mClient = mVm.getClient();
+        mVm.connect();
+        mTracker = new Tracker();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mVm.close();
+    }
+
+    /**
+     * Tests that overlapping snapshots requested from the client count each allocation once.
+     */
+    public void testReplay() throws Exception {
+        AllocationSampler sampler = new AllocationSampler(mClient);
+        HashMap<String, long[]> expected = new HashMap<String, long[]>();
+
+        // rounds of allocations smaller than the tracker, including none.
+        int[] rounds = new int[] { 10, 40, 0, 63, 1, 25, 50 };
+        for (int count : rounds) {
+            for (int i = 0 ; i < count ; i++) {
+                mTracker.allocate(expected);
+            }
+            replaySnapshot(sampler);
+        }
+
+        assertEquals(rounds.length, sampler.getSnapshotCount());
+        assertEquals(0, sampler.getGapCount());
+        checkHistogram(sampler, expected);
+    }
+
+    /**
+     * Tests that the allocations dropped by the tracker between two snapshots are reported as
+     * a gap, and that the visible ones are still counted.
+     */
+    public void testGap() {
+        AllocationSampler sampler = new AllocationSampler(mClient);
+        HashMap<String, long[]> expected = new HashMap<String, long[]>();
+
+        for (int i = 0 ; i < 20 ; i++) {
+            mTracker.allocate(expected);
+        }
+        sampler.addSnapshot(mTracker.getSnapshot());
+
+        // more than the tracker can hold: only the last ones are seen.
+        for (int i = 0 ; i < TRACKER_SIZE * 2 ; i++) {
+            mTracker.allocate(i < TRACKER_SIZE ? null : expected);
+        }
+        sampler.addSnapshot(mTracker.getSnapshot());
+
+        assertEquals(2, sampler.getSnapshotCount());
+        assertEquals(1, sampler.getGapCount());
+        checkHistogram(sampler, expected);
+    }
+
+    /**
+     * Tests that two snapshots of a full tracker holding the same identical allocations are
+     * reported as saturated, since an allocation storm can't be told apart from no allocation,
+     * and that a tracker that isn't full is not.
+     */
+    public void testSaturatedSnapshots() {
+        AllocationSampler sampler = new AllocationSampler(mClient, 1000, 100, TRACKER_SIZE);
+        sampler.addSnapshot(getIdenticalSnapshot(TRACKER_SIZE));
+        sampler.addSnapshot(getIdenticalSnapshot(TRACKER_SIZE));
+
+        assertEquals(2, sampler.getSnapshotCount());
+        assertEquals(1, sampler.getSaturatedCount());
+        assertEquals(1, sampler.getGapCount());
+        assertEquals(TRACKER_SIZE, sampler.getTotalCount());
+
+        // the tracker would have grown if anything had been allocated.
+        sampler = new AllocationSampler(mClient, 1000, 100, TRACKER_SIZE);
+        sampler.addSnapshot(getIdenticalSnapshot(TRACKER_SIZE - 1));
+        sampler.addSnapshot(getIdenticalSnapshot(TRACKER_SIZE - 1));
+
+        assertEquals(0, sampler.getSaturatedCount());
+        assertEquals(0, sampler.getGapCount());
+        assertEquals(TRACKER_SIZE - 1, sampler.getTotalCount());
+    }
+
+    /**
+     * Returns a snapshot of identical allocations.
+     */
+    private static AllocationTable getIdenticalSnapshot(int count) {
+        RealChunkBuilder builder = new RealChunkBuilder(9, 8, CLASS_NAMES, METHOD_NAMES,
+                FILE_NAMES);
+        for (int i = 0 ; i < count ; i++) {
+            builder.addEntry(16, 1, 0, new int[][] { { 0, 0, 0, 10 } });
+        }
+
+        return HandleHeap.decodeREAL(builder.build());
+    }
+
+    /**
+     * Tests that a snapshot notified twice is only counted once.
+     */
+    public void testSameSnapshot() {
+        AllocationSampler sampler = new AllocationSampler(mClient);
+        for (int i = 0 ; i < 10 ; i++) {
+            mTracker.allocate(null);
+        }
+
+        AllocationTable table = mTracker.getSnapshot();
+        mClient.getClientData().setAllocations(table);
+        sampler.clientChanged(mClient, Client.CHANGE_HEAP_ALLOCATIONS);
+        sampler.clientChanged(mClient, Client.CHANGE_HEAP_ALLOCATIONS);
+        sampler.clientChanged(mClient, Client.CHANGE_HEAP_DATA);
+
+        assertEquals(1, sampler.getSnapshotCount());
+        assertEquals(10, sampler.getTotalCount());
+    }
+
+    /**
+     * Tests that the sampling stops, and the sampler stops listening to the clients, when the
+     * client goes away without {@link AllocationSampler#stop()} being called, and that it can
+     * be started again.
+     */
+    public void testClientDisconnected() throws Exception {
+        // closing the client removes it from its device, which needs a monitor.
+        Device device = new Device(new DeviceMonitor(null), "fakeserial", //$NON-NLS-1$
+                DeviceState.ONLINE);
+        FakeVm vm = new FakeVm(device, 1000);
+        try {
+            vm.connect();
+            Client client = vm.getClient();
+            AllocationSampler sampler = new AllocationSampler(client, 10, 100);
+
+            sampler.start();
+            assertTrue(sampler.isRunning());
+            assertTrue(AndroidDebugBridge.hasClientChangeListener(sampler));
+
+            client.close(false /* notify */);
+            waitForStop(sampler);
+            assertFalse(AndroidDebugBridge.hasClientChangeListener(sampler));
+
+            // start() isn't ignored, and the sampling stops again right away.
+            sampler.start();
+            assertTrue(AndroidDebugBridge.hasClientChangeListener(sampler));
+            waitForStop(sampler);
+            assertFalse(AndroidDebugBridge.hasClientChangeListener(sampler));
+        } finally {
+            vm.close();
+        }
+    }
+
+    private static void waitForStop(AllocationSampler sampler) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (sampler.isRunning()) {
+            assertTrue("the sampling didn't stop", System.currentTimeMillis() < end);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Tests the overlap search on its own.
+     */
+    public void testOverlap() {
+        assertEquals(0, AllocationSampler.getOverlap(new long[0], new long[] { 1, 2 }));
+        assertEquals(0, AllocationSampler.getOverlap(new long[] { 1, 2 }, new long[0]));
+        assertEquals(2, AllocationSampler.getOverlap(new long[] { 1, 2, 3 },
+                new long[] { 2, 3, 4 }));
+        assertEquals(3, AllocationSampler.getOverlap(new long[] { 1, 2, 3 },
+                new long[] { 1, 2, 3 }));
+        assertEquals(0, AllocationSampler.getOverlap(new long[] { 1, 2, 3 },
+                new long[] { 4, 5 }));
+        // the longest overlap wins.
+        assertEquals(3, AllocationSampler.getOverlap(new long[] { 7, 1, 1, 1 },
+                new long[] { 1, 1, 1, 2 }));
+        assertEquals(4, AllocationSampler.getOverlap(new long[] { 1, 2, 1, 2, 1, 2 },
+                new long[] { 1, 2, 1, 2, 3 }));
+        assertEquals(2, AllocationSampler.getOverlap(new long[] { 5, 6, 7 },
+                new long[] { 6, 7, 8 }));
+        assertEquals(2, AllocationSampler.getOverlap(new long[] { 1, 2, 3, 4 },
+                new long[] { 3, 4, 3, 4 }));
+    }
+
+    /**
+     * Tests that the number of entries is bounded, and that the totals are kept.
+     */
+    public void testMaxEntries() {
+        AllocationSampler sampler = new AllocationSampler(mClient, 1000, 4);
+
+        RealChunkBuilder builder = new RealChunkBuilder(9, 8, CLASS_NAMES, METHOD_NAMES,
+                FILE_NAMES);
+        long bytes = 0;
+        for (int i = 0 ; i < 40 ; i++) {
+            // each allocation has its own call site, the later ones being bigger.
+            int size = 8 * (i + 1);
+            builder.addEntry(size, 1, 0, new int[][] { { 0, 0, 0, i } });
+            bytes += size;
+        }
+        sampler.addSnapshot(HandleHeap.decodeREAL(builder.build()));
+
+        Entry[] entries = sampler.getEntries();
+        assertTrue(entries.length <= 4);
+        assertEquals(40, sampler.getTotalCount());
+        assertEquals(bytes, sampler.getTotalBytes());
+
+        Entry other = sampler.getOtherEntry();
+        long count = other.getCount();
+        long sum = other.getBytes();
+        for (Entry entry : entries) {
+            count += entry.getCount();
+            sum += entry.getBytes();
+        }
+        assertEquals(40, count);
+        assertEquals(bytes, sum);
+
+        // the biggest call sites are kept.
+        assertEquals(39, entries[0].getCallSite().getLineNumber());
+        assertNull(other.getCallSite());
+        assertEquals(-1, other.getThreadId());
+    }
+
+    /**
+     * Tests the CSV and JSON exports.
+     */
+    public void testExport() throws Exception {
+        AllocationSampler sampler = new AllocationSampler(mClient);
+        RealChunkBuilder builder = new RealChunkBuilder(9, 8,
+                new String[] { "Lcom/example/Foo;", "Lcom/example/Foo$Bar;" },
+                new String[] { "run" }, new String[] { "Foo.java" });
+        builder.addEntry(100, 3, 0, new int[][] { { 1, 0, 0, 12 } });
+        builder.addEntry(100, 3, 0, new int[][] { { 1, 0, 0, 12 } });
+        builder.addEntry(16, 4, 1, new int[0][]);
+        sampler.addSnapshot(HandleHeap.decodeREAL(builder.build()));
+
+        StringWriter csv = new StringWriter();
+        sampler.exportCsv(csv);
+        String[] lines = csv.toString().split("\n");
+        assertEquals(3, lines.length);
+        assertEquals("Call Site,Allocated Class,Thread Id,Count,Bytes", lines[0]);
+        assertEquals("com.example.Foo$Bar.run(Foo.java:12),com.example.Foo,3,2,200", lines[1]);
+        assertEquals(",com.example.Foo$Bar,4,1,16", lines[2]);
+
+        StringWriter json = new StringWriter();
+        sampler.exportJson(json);
+        String s = json.toString();
+        assertTrue(s, s.contains("\"snapshots\": 1,"));
+        assertTrue(s, s.contains("\"count\": 3,"));
+        assertTrue(s, s.contains("\"bytes\": 216,"));
+        assertTrue(s, s.contains("{ \"callSite\": \"com.example.Foo$Bar.run(Foo.java:12)\", " +
+                "\"class\": \"com.example.Foo\", \"thread\": 3, \"count\": 2, \"bytes\": 200 }"));
+        assertTrue(s, s.contains("{ \"callSite\": null, \"class\": \"com.example.Foo$Bar\", " +
+                "\"thread\": 4, \"count\": 1, \"bytes\": 16 }"));
+    }
+
+    /**
+     * Requests a snapshot through the sampler, answers it from the tracker, and hands the
+     * result to the sampler the way the monitor thread and {@link HandleHeap} do.
+     */
+    private void replaySnapshot(AllocationSampler sampler) throws Exception {
+        sampler.sample();
+
+        ByteBuffer request = mVm.readPacket();
+        int id = request.getInt(4);
+        assertEquals(HandleHeap.CHUNK_REAL, request.getInt(JdwpPacket.JDWP_HEADER_LEN));
+
+        ByteBuffer data = mTracker.getChunkData();
+        ByteBuffer reply = ByteBuffer.allocate(JdwpPacket.JDWP_HEADER_LEN +
+                ChunkHandler.CHUNK_HEADER_LEN + data.remaining());
+        FakeVm.putReplyHeader(reply, id, HandleHeap.CHUNK_REAL, data.remaining());
+        reply.put(data);
+        reply.flip();
+        mVm.write(reply);
+
+        JdwpPacket packet = null;
+        while (packet == null) {
+            mClient.read();
+            packet = mClient.getJdwpPacket();
+        }
+        assertNotNull(mClient.isResponseToUs(id));
+
+        ByteBuffer payload = packet.getPayload();
+        assertEquals(HandleHeap.CHUNK_REAL, payload.getInt());
+        payload.getInt();
+        mClient.getClientData().setAllocations(HandleHeap.decodeREAL(payload.slice()));
+        packet.consume();
+
+        sampler.clientChanged(mClient, Client.CHANGE_HEAP_ALLOCATIONS);
+    }
+
+    private static void checkHistogram(AllocationSampler sampler,
+            HashMap<String, long[]> expected) {
+        long count = 0;
+        long bytes = 0;
+        for (long[] values : expected.values()) {
+            count += values[0];
+            bytes += values[1];
+        }
+        assertEquals(count, sampler.getTotalCount());
+        assertEquals(bytes, sampler.getTotalBytes());
+
+        Entry[] entries = sampler.getEntries();
+        assertEquals(expected.size(), entries.length);
+        for (int i = 0 ; i < entries.length ; i++) {
+            Entry entry = entries[i];
+            if (i > 0) {
+                assertTrue(entries[i - 1].getBytes() >= entry.getBytes());
+            }
+            String key = getKey(entry.getCallSite().getLineNumber(), entry.getAllocatedClass(),
+                    entry.getThreadId());
+            long[] values = expected.get(key);
+            assertNotNull(key, values);
+            assertEquals(key, values[0], entry.getCount());
+            assertEquals(key, values[1], entry.getBytes());
+        }
+        assertEquals(0, sampler.getOtherEntry().getCount());
+    }
+
+    private static String getKey(int line, String allocatedClass, int threadId) {
+        return line + "/" + allocatedClass + "/" + threadId;
+    }
+
+    /**
+     * Simulated allocation tracker, keeping the last {@link #TRACKER_SIZE} allocations.
+     * The allocations follow a sequence that doesn't repeat within the tracker, so that the
+     * overlap of two snapshots is never ambiguous.
+     */
+    private static class Tracker {
+        private final int[] mRing = new int[TRACKER_SIZE];
+        private int mSeq = 0;
+
+        /**
+         * Makes the next allocation, and adds it to the expected histogram if not null.
+         */
+        void allocate(HashMap<String, long[]> expected) {
+            int seq = mSeq++;
+            mRing[seq % TRACKER_SIZE] = seq;
+
+            if (expected != null) {
+                String key = getKey(getLine(seq), DOT_CLASS_NAMES[getClassIndex(seq)],
+                        getThreadId(seq));
+                long[] values = expected.get(key);
+                if (values == null) {
+                    expected.put(key, values = new long[2]);
+                }
+                values[0]++;
+                values[1] += getSize(seq);
+            }
+        }
+
+        ByteBuffer getChunkData() {
+            RealChunkBuilder builder = new RealChunkBuilder(9, 8, CLASS_NAMES, METHOD_NAMES,
+                    FILE_NAMES);
+            for (int seq = Math.max(0, mSeq - TRACKER_SIZE) ; seq < mSeq ; seq++) {
+                int s = mRing[seq % TRACKER_SIZE];
+                int site = s % SITE_COUNT;
+                builder.addEntry(getSize(s), getThreadId(s), getClassIndex(s), new int[][] {
+                        { site % CLASS_NAMES.length, 1, 0, getLine(s) },
+                        { 0, 0, 0, 1 } });
+            }
+
+            return builder.build();
+        }
+
+        AllocationTable getSnapshot() {
+            return HandleHeap.decodeREAL(getChunkData());
+        }
+
+        private static int getSize(int seq) {
+            return 8 * (1 + seq % 97);
+        }
+
+        private static int getThreadId(int seq) {
+            return 1 + seq % 3;
+        }
+
+        private static int getClassIndex(int seq) {
+            return seq % CLASS_NAMES.length;
+        }
+
+        private static int getLine(int seq) {
+            return 10 + seq % SITE_COUNT;
+        }
+    }
+}
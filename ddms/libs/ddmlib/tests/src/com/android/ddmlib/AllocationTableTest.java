@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the decoding of REAL chunks into an {@link AllocationTable}, with synthetic payloads.
+ */
+public class AllocationTableTest extends TestCase {
+
+    /** Number of entries of the benchmark payload: the max a REAL chunk can hold. */
+    private static final int BENCHMARK_ENTRIES = 0xffff;
+    private static final int BENCHMARK_DEPTH = 16;
+    private static final int BENCHMARK_ITERATIONS = 5;
+
+    /**
+     * Tests decoding a small payload.
+     */
+    public void testDecode() {
+        RealChunkBuilder builder = new RealChunkBuilder(9, 8,
+                new String[] { "Ljava/lang/String;", "[I", "Lcom/example/Foo;" },
+                new String[] { "run", "<init>" },
+                new String[] { "Foo.java", "String.java" });
+        builder.addEntry(16, 1, 0, new int[][] { { 2, 0, 0, 12 }, { 2, 0, 0, 40 } });
+        builder.addEntry(400, 2, 1, new int[][] { { 0, 1, 1, -2 } });
+        builder.addEntry(16, 3, 2, new int[][] { { 2, 0, 0, 12 } });
+        builder.addEntry(32, 1, 2, new int[0][]);
+
+        AllocationTable table = HandleHeap.decodeREAL(builder.build());
+        assertEquals(4, table.getCount());
+
+        // biggest first, in received order for the same size.
+        assertEquals(400, table.getSize(0));
+        assertEquals(32, table.getSize(1));
+        assertEquals(16, table.getSize(2));
+        assertEquals(16, table.getSize(3));
+        assertEquals(1, table.getThreadId(2));
+        assertEquals(3, table.getThreadId(3));
+
+        assertEquals("int[]", table.getAllocatedClass(0));
+        assertEquals("com.example.Foo", table.getAllocatedClass(1));
+        assertEquals("java.lang.String", table.getAllocatedClass(2));
+
+        assertEquals(0, table.getStackDepth(1));
+        assertEquals(2, table.getStackDepth(2));
+
+        StackTraceElement frame = table.getStackFrame(0, 0);
+        assertEquals("java.lang.String", frame.getClassName());
+        assertEquals("<init>", frame.getMethodName());
+        assertEquals("String.java", frame.getFileName());
+        assertTrue(frame.isNativeMethod());
+
+        frame = table.getStackFrame(2, 1);
+        assertEquals("com.example.Foo", frame.getClassName());
+        assertEquals("run", frame.getMethodName());
+        assertEquals("Foo.java", frame.getFileName());
+        assertEquals(40, frame.getLineNumber());
+
+        // identical frames are stored once.
+        assertEquals(3, table.getFrameCount());
+        assertSame(table.getStackFrame(2, 0), table.getStackFrame(3, 0));
+    }
+
+    /**
+     * Tests that the entries and frames can be longer than what the decoder knows about.
+     */
+    public void testLongerRecords() {
+        RealChunkBuilder builder = new RealChunkBuilder(12, 11,
+                new String[] { "LFoo;" }, new String[] { "foo" }, new String[] { "Foo.java" });
+        builder.addEntry(8, 1, 0, new int[][] { { 0, 0, 0, 1 }, { 0, 0, 0, 2 } });
+        builder.addEntry(4, 2, 0, new int[][] { { 0, 0, 0, 3 } });
+
+        AllocationTable table = HandleHeap.decodeREAL(builder.build());
+        assertEquals(2, table.getCount());
+        assertEquals(2, table.getStackDepth(0));
+        assertEquals(2, table.getStackFrame(0, 1).getLineNumber());
+        assertEquals(2, table.getThreadId(1));
+        assertEquals(3, table.getStackFrame(1, 0).getLineNumber());
+    }
+
+    /**
+     * Tests the {@link AllocationInfo} views.
+     */
+    public void testAllocationInfo() {
+        RealChunkBuilder builder = new RealChunkBuilder(9, 8,
+                new String[] { "LFoo;" }, new String[] { "foo" }, new String[] { "Foo.java" });
+        builder.addEntry(8, 1, 0, new int[][] { { 0, 0, 0, 1 }, { 0, 0, 0, 2 } });
+        builder.addEntry(24, 2, 0, new int[0][]);
+
+        AllocationTable table = HandleHeap.decodeREAL(builder.build());
+        AllocationInfo info = table.getAllocation(1);
+        assertSame(info, table.getAllocation(1));
+        assertEquals(8, info.getSize());
+        assertEquals(1, info.getThreadId());
+        assertEquals("Foo", info.getAllocatedClass());
+
+        StackTraceElement[] trace = info.getStackTrace();
+        assertEquals(2, trace.length);
+        assertEquals(1, trace[0].getLineNumber());
+        assertSame(trace, info.getStackTrace());
+
+        AllocationInfo[] infos = table.getAllocations();
+        assertEquals(2, infos.length);
+        assertSame(info, infos[1]);
+        assertTrue(infos[0].compareTo(infos[1]) < 0);
+    }
+
+    /**
+     * Decodes a full size payload with deep stacks, and reports the average decode time. The
+     * time depends on the machine running the test, so it is only printed.
+     */
+    public void testDecodeBenchmark() {
+        int classCount = 2000;
+        int methodCount = 8000;
+        int fileCount = 2000;
+        String[] classNames = new String[classCount];
+        for (int i = 0 ; i < classCount ; i++) {
+            classNames[i] = "Lcom/example/package" + (i % 20) + "/Class" + i + ";";
+        }
+        String[] methodNames = new String[methodCount];
+        for (int i = 0 ; i < methodCount ; i++) {
+            methodNames[i] = "method" + i;
+        }
+        String[] fileNames = new String[fileCount];
+        for (int i = 0 ; i < fileCount ; i++) {
+            fileNames[i] = "Class" + i + ".java";
+        }
+
+        // the stacks are made of a limited number of frames, like real call sites.
+        int frameCount = 5000;
+        int[][] frames = new int[frameCount][];
+        for (int i = 0 ; i < frameCount ; i++) {
+            int cls = (i * 7) % classCount;
+            frames[i] = new int[] { cls, (i * 13) % methodCount, cls, i % 1000 };
+        }
+
+        RealChunkBuilder builder = new RealChunkBuilder(9, 8, classNames, methodNames, fileNames);
+        for (int i = 0 ; i < BENCHMARK_ENTRIES ; i++) {
+            int[][] stack = new int[BENCHMARK_DEPTH][];
+            for (int j = 0 ; j < BENCHMARK_DEPTH ; j++) {
+                stack[j] = frames[(i * 31 + j * 17) % frameCount];
+            }
+            builder.addEntry((i * 37) % 4096, i % 50, i % classCount, stack);
+        }
+        ByteBuffer payload = builder.build();
+
+        // warm up
+        AllocationTable table = HandleHeap.decodeREAL(payload.duplicate());
+
+        long start = System.nanoTime();
+        for (int i = 0 ; i < BENCHMARK_ITERATIONS ; i++) {
+            table = HandleHeap.decodeREAL(payload.duplicate());
+        }
+        long average = (System.nanoTime() - start) / (BENCHMARK_ITERATIONS * 1000000L);
+
+        System.out.println("average decode time: " + average + "ms"); //$NON-NLS-1$
+
+        assertEquals(BENCHMARK_ENTRIES, table.getCount());
+        assertTrue(table.getFrameCount() <= frameCount);
+        for (int i = 1 ; i < table.getCount() ; i++) {
+            assertTrue(table.getSize(i - 1) >= table.getSize(i));
+        }
+    }
+}
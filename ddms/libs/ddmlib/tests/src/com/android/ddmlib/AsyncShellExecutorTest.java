@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.ddmlib.IDevice.DeviceState;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link AsyncShellExecutor} against a {@link FakeAdbServer}.
+ */
+public class AsyncShellExecutorTest extends TestCase {
+
+    private static final int DEVICE_COUNT = 40;
+
+    private FakeAdbServer mServer;
+    private AsyncShellExecutor mExecutor;
+    private Device[] mDevices;
+
+    @Override
+    protected void setUp() throws Exception {
+        mServer = new FakeAdbServer();
+        mServer.setShellResponse("getprop", "[ro.secure]: [1]\r\n"); //$NON-NLS-1$
+        mServer.setShellResponse("ps", "USER PID\r\nroot 1\r\n"); //$NON-NLS-1$
+        mDevices = new Device[DEVICE_COUNT];
+        for (int i = 0 ; i < DEVICE_COUNT ; i++) {
+            String serial = "emulator-" + (5554 + i * 2); //$NON-NLS-1$
+            mServer.addDevice(serial);
+            mDevices[i] = new Device(null, serial, DeviceState.ONLINE);
+        }
+        mExecutor = new AsyncShellExecutor();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.stop();
+        DdmPreferences.setMaxShellCommandsPerDevice(
+                DdmPreferences.DEFAULT_MAX_SHELL_COMMANDS_PER_DEVICE);
+    }
+
+    /**
+     * Tests running several commands on many devices at once.
+     */
+    public void testManyDevices() throws Exception {
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        List<CollectingReceiver> receivers = new ArrayList<CollectingReceiver>();
+        for (Device device : mDevices) {
+            for (String command : new String[] { "getprop", "ps", "dumpsys" }) {
+                CollectingReceiver receiver = new CollectingReceiver();
+                receivers.add(receiver);
+                futures.add(mExecutor.execute(mServer.getSocketAddress(), command, device,
+                        receiver, DdmPreferences.getTimeOut()));
+            }
+        }
+
+        for (Future<Void> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+
+        for (int i = 0 ; i < receivers.size() ; i += 3) {
+            assertEquals("[ro.secure]: [1]", receivers.get(i).mLines.get(0));
+            assertEquals(2, receivers.get(i + 1).mLines.size());
+            assertEquals(0, receivers.get(i + 2).mLines.size());
+            assertTrue(receivers.get(i).mFlushed);
+        }
+    }
+
+    /**
+     * Tests that the number of commands running on a device at the same time is bounded.
+     */
+    public void testPerDeviceConcurrency() throws Exception {
+        DdmPreferences.setMaxShellCommandsPerDevice(2);
+        mServer.setShellDelay(50);
+
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int i = 0 ; i < 8 ; i++) {
+            futures.add(mExecutor.execute(mServer.getSocketAddress(), "ps", mDevices[0],
+                    new CollectingReceiver(), DdmPreferences.getTimeOut()));
+        }
+
+        for (Future<Void> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+
+        assertEquals(2, mServer.getMaxConcurrentShellCommands());
+    }
+
+    /**
+     * Tests cancelling a running command, and that its slot is released.
+     */
+    public void testCancel() throws Exception {
+        DdmPreferences.setMaxShellCommandsPerDevice(1);
+        mServer.setShellDelay(5000);
+
+        Future<Void> future = mExecutor.execute(mServer.getSocketAddress(), "ps", mDevices[0],
+                new CollectingReceiver(), 0);
+        Thread.sleep(100);
+        assertFalse(future.isDone());
+        assertTrue(future.cancel(true));
+        assertTrue(future.isDone());
+        assertTrue(future.isCancelled());
+        try {
+            future.get();
+            fail("CancellationException expected");
+        } catch (CancellationException e) {
+            // expected
+        }
+
+        mServer.setShellDelay(0);
+        CollectingReceiver receiver = new CollectingReceiver();
+        mExecutor.execute(mServer.getSocketAddress(), "ps", mDevices[0], receiver,
+                DdmPreferences.getTimeOut()).get(5, TimeUnit.SECONDS);
+        assertEquals(2, receiver.mLines.size());
+    }
+
+    /**
+     * Tests that errors are reported through the {@link Future}.
+     */
+    public void testErrors() throws Exception {
+        Device unknown = new Device(null, "unknown", DeviceState.ONLINE); //$NON-NLS-1$
+        Future<Void> future = mExecutor.execute(mServer.getSocketAddress(), "ps", unknown,
+                new CollectingReceiver(), DdmPreferences.getTimeOut());
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("ExecutionException expected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof AdbCommandRejectedException);
+            assertTrue(((AdbCommandRejectedException)e.getCause())
+                    .wasErrorDuringDeviceSelection());
+        }
+
+        mServer.setShellDelay(2000);
+        future = mExecutor.execute(mServer.getSocketAddress(), "ps", mDevices[0],
+                new CollectingReceiver(), 200);
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("ExecutionException expected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ShellCommandUnresponsiveException);
+        }
+    }
+
+    /**
+     * A {@link MultiLineReceiver} that stores all the non empty lines it receives.
+     */
+    private static class CollectingReceiver extends MultiLineReceiver {
+        final List<String> mLines = new ArrayList<String>();
+        boolean mFlushed = false;
+
+        @Override
+        public void processNewLines(String[] lines) {
+            for (String line : lines) {
+                if (line.length() > 0) {
+                    mLines.add(line);
+                }
+            }
+        }
+
+        @Override
+        public void done() {
+            mFlushed = true;
+        }
+
+        public boolean isCancelled() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.ddmlib.IDevice.DeviceState;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the reading of packets by {@link Client}, against a {@link FakeVm}.
+ */
+public class ClientTest extends TestCase {
+
+    private static final int INITIAL_BUF_SIZE = ReadBufferPool.MIN_SIZE;
+
+    private FakeVm mVm;
+    private Client mClient;
+
+    @Override
+    protected void setUp() throws Exception {
+        mVm = new FakeVm();
+        mClient = mVm.getClient();
+        mVm.connect();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mVm.close();
+    }
+
+    /**
+     * Tests that the read buffer goes back to its initial size after a packet too large for
+     * the pooled buffers.
+     */
+    public void testLargePacket() throws Exception {
+        checkPacket(5 * 1024 * 1024 + 3);
+    }
+
+    /**
+     * Tests that the read buffer goes back to its initial size after a packet that fits in a
+     * pooled buffer.
+     */
+    public void testMediumPacket() throws Exception {
+        checkPacket(200 * 1024);
+    }
+
+    /**
+     * Tests that several small packets don't make the buffer grow.
+     */
+    public void testSmallPackets() throws Exception {
+        for (int i = 0 ; i < 100 ; i++) {
+            sendPacket(i, 100);
+        }
+
+        int id = 0;
+        while (id < 100) {
+            mClient.read();
+            JdwpPacket packet;
+            while ((packet = mClient.getJdwpPacket()) != null) {
+                assertEquals(id++, packet.getId());
+                packet.consume();
+            }
+            assertEquals(INITIAL_BUF_SIZE, mClient.getReadBufferSize());
+        }
+    }
+
+    /**
+     * Tests that the read buffer of a closed client goes back to the pool once, and that the
+     * client can't read anymore.
+     */
+    public void testReleaseReadBuffer() throws Exception {
+        // closing removes the client from its device, which needs a monitor.
+        Device device = new Device(new DeviceMonitor(null), "fakeserial", //$NON-NLS-1$
+                DeviceState.ONLINE);
+        FakeVm vm = new FakeVm(device, 1000);
+        try {
+            vm.connect();
+            Client client = vm.getClient();
+
+            // a read may still be in progress on the monitor thread, so closing keeps the buffer.
+            ReadBufferPool pool = ReadBufferPool.getInstance();
+            long idleBytes = pool.getIdleBytes();
+            client.close(false /* notify */);
+            assertEquals(idleBytes, pool.getIdleBytes());
+            assertEquals(INITIAL_BUF_SIZE, client.getReadBufferSize());
+
+            client.releaseReadBuffer();
+            assertEquals(idleBytes + INITIAL_BUF_SIZE, pool.getIdleBytes());
+            assertEquals(0, client.getReadBufferSize());
+
+            // releasing again must not give anything else back.
+            client.releaseReadBuffer();
+            assertEquals(idleBytes + INITIAL_BUF_SIZE, pool.getIdleBytes());
+
+            // reading must not take a new buffer from the pool.
+            try {
+                client.read();
+                fail("read() after releaseReadBuffer() didn't throw"); //$NON-NLS-1$
+            } catch (ClosedChannelException e) {
+                // expected
+            }
+            assertEquals(idleBytes + INITIAL_BUF_SIZE, pool.getIdleBytes());
+        } finally {
+            vm.close();
+        }
+    }
+
+    private void checkPacket(final int length) throws Exception {
+        // the packet doesn't fit in the socket buffers, so it's sent while the client reads it.
+        final Exception[] error = new Exception[1];
+        Thread sender = new Thread("Packet Sender") { //$NON-NLS-1$
+            @Override
+            public void run() {
+                try {
+                    sendPacket(1, length);
+                } catch (Exception e) {
+                    error[0] = e;
+                }
+            }
+        };
+        sender.start();
+
+        JdwpPacket packet = readPacket();
+        sender.join();
+        assertNull(error[0]);
+        assertEquals(1, packet.getId());
+        assertEquals(length, packet.getLength());
+        assertTrue(mClient.getReadBufferSize() >= length);
+
+        ByteBuffer payload = packet.getPayload();
+        for (int i = 0 ; i < length - JdwpPacket.JDWP_HEADER_LEN ; i++) {
+            if (payload.get() != (byte) i) {
+                fail("wrong data at offset " + i);
+            }
+        }
+        packet.consume();
+
+        sendPacket(2, 100);
+        packet = readPacket();
+        assertEquals(2, packet.getId());
+        assertEquals(INITIAL_BUF_SIZE, mClient.getReadBufferSize());
+        packet.consume();
+    }
+
+    /**
+     * Reads from the client until a full packet is received.
+     */
+    private JdwpPacket readPacket() throws Exception {
+        JdwpPacket packet = null;
+        while (packet == null) {
+            mClient.read();
+            packet = mClient.getJdwpPacket();
+        }
+
+        return packet;
+    }
+
+    /**
+     * Sends a request packet that isn't a DDM packet, of the given total length.
+     */
+    private void sendPacket(int id, int length) throws Exception {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        buf.putInt(length);
+        buf.putInt(id);
+        buf.put((byte) 0); // request
+        buf.put((byte) 64); // Event command set
+        buf.put((byte) 100); // Composite command
+        for (int i = 0 ; buf.hasRemaining() ; i++) {
+            buf.put((byte) i);
+        }
+        buf.flip();
+        mVm.write(buf);
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the discovery of devices and of their processes by the {@link DeviceMonitor}, against
+ * a {@link FakeAdbServer}.
+ */
+public class DeviceMonitorTest extends TestCase {
+
+    private static final int DEVICE_COUNT = 20;
+    private static final int PIDS_PER_DEVICE = 5;
+    /** Time adb takes to reach a process, in ms. */
+    private static final int JDWP_DELAY = 20;
+    /** Max time to wait for the monitor, in ms. */
+    private static final int TIMEOUT = 10000;
+
+    private FakeAdbServer mServer;
+    private MonitorThread mMonitorThread;
+    private DeviceMonitor mMonitor;
+
+    @Override
+    protected void setUp() throws Exception {
+        mServer = new FakeAdbServer();
+        mServer.setShellResponse(DeviceInfoReceiver.DEVICE_INFO_COMMAND,
+                "[ro.secure]: [1]\r\n" //$NON-NLS-1$
+                + DeviceInfoReceiver.MOUNT_POINTS_MARKER + "\r\n" //$NON-NLS-1$
+                + "EXTERNAL_STORAGE=/sdcard\r\n" //$NON-NLS-1$
+                + "ANDROID_DATA=/data\r\n" //$NON-NLS-1$
+                + "ANDROID_ROOT=/system\r\n"); //$NON-NLS-1$
+        DeviceMonitor.clearDeviceInfoCache();
+
+        mMonitorThread = MonitorThread.createInstance();
+        mMonitorThread.start();
+        waitForSelector();
+
+        // a bridge not linked to any adb executable.
+        Constructor<AndroidDebugBridge> constructor =
+            AndroidDebugBridge.class.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        mMonitor = new DeviceMonitor(constructor.newInstance(), mServer.getSocketAddress(),
+                true /* clientSupport */);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mMonitor.stop();
+        mMonitorThread.quit();
+        mServer.stop();
+    }
+
+    /**
+     * Tests discovering the processes of many devices, each slow to connect to.
+     */
+    public void testDiscovery() throws Exception {
+        for (int i = 0 ; i < DEVICE_COUNT ; i++) {
+            String serial = "emulator-" + (5554 + i * 2); //$NON-NLS-1$
+            mServer.addDevice(serial);
+            int[] pids = new int[PIDS_PER_DEVICE];
+            for (int p = 0 ; p < PIDS_PER_DEVICE ; p++) {
+                pids[p] = 100 + p;
+            }
+            mServer.setJdwpPids(serial, pids);
+        }
+        mServer.setJdwpDelay(JDWP_DELAY);
+
+        long start = System.currentTimeMillis();
+        mMonitor.start();
+
+        long end = start + TIMEOUT;
+        while (countClients() < DEVICE_COUNT * PIDS_PER_DEVICE) {
+            assertTrue("clients: " + countClients(), System.currentTimeMillis() < end);
+            Thread.sleep(5);
+        }
+        long time = System.currentTimeMillis() - start;
+
+        assertTrue(mMonitor.isMonitoring());
+        assertTrue(mMonitor.hasInitialDeviceList());
+        assertEquals(DEVICE_COUNT * PIDS_PER_DEVICE, mServer.getJdwpConnectionCount());
+
+        // the processes are not connected to one at a time. How much faster this makes the
+        // discovery depends on the machine running the test, so the time is only printed.
+        int maxRequests = mServer.getMaxConcurrentJdwpRequests();
+        assertTrue("max concurrent jdwp requests: " + maxRequests, maxRequests > 1);
+        System.out.println("discovery took " + time + "ms"); //$NON-NLS-1$
+
+        for (Device device : mMonitor.getDevices()) {
+            long timeToFirstClient = device.getTimeToFirstClient();
+            assertTrue(timeToFirstClient >= JDWP_DELAY && timeToFirstClient <= time);
+        }
+
+        // the build info is queried in the background.
+        for (Device device : mMonitor.getDevices()) {
+            while (device.getMountPoint(IDevice.MNT_EXTERNAL_STORAGE) == null) {
+                assertTrue(System.currentTimeMillis() < end);
+                Thread.sleep(5);
+            }
+            assertEquals("1", device.getProperty("ro.secure")); //$NON-NLS-1$ //$NON-NLS-2$
+            assertEquals("/sdcard", device.getMountPoint(IDevice.MNT_EXTERNAL_STORAGE)); //$NON-NLS-1$
+            assertEquals("/data", device.getMountPoint(IDevice.MNT_DATA)); //$NON-NLS-1$
+            assertEquals("/system", device.getMountPoint(IDevice.MNT_ROOT)); //$NON-NLS-1$
+        }
+
+        // all the info comes from a single shell command per device.
+        assertEquals(DEVICE_COUNT, mServer.getShellCommandCount());
+    }
+
+    /**
+     * Tests that the info of a device is queried once, until the device disconnects.
+     */
+    public void testDeviceInfoCache() throws Exception {
+        mServer.addDevice("device1"); //$NON-NLS-1$
+        mMonitor.start();
+        waitForDevices(1);
+        waitForDeviceInfo(mMonitor.getDevices()[0]);
+        assertEquals(1, mServer.getShellCommandCount());
+
+        // a new monitor, like after a restart of adb, uses the cached info.
+        mMonitor.stop();
+        mMonitor = new DeviceMonitor(mMonitor.getServer(), mServer.getSocketAddress(),
+                true /* clientSupport */);
+        mMonitor.start();
+        waitForDevices(1);
+        Device device = mMonitor.getDevices()[0];
+        waitForDeviceInfo(device);
+        assertEquals("1", device.getProperty("ro.secure")); //$NON-NLS-1$ //$NON-NLS-2$
+        assertEquals(1, mServer.getShellCommandCount());
+
+        // a device that disconnects, or reboots, is queried again.
+        mServer.removeDevice("device1"); //$NON-NLS-1$
+        waitForDevices(0);
+        mServer.addDevice("device1"); //$NON-NLS-1$
+        waitForDevices(1);
+        waitForDeviceInfo(mMonitor.getDevices()[0]);
+        assertEquals(2, mServer.getShellCommandCount());
+    }
+
+    /**
+     * Tests following the processes of a device as they come and go, and the device itself.
+     */
+    public void testChanges() throws Exception {
+        mServer.addDevice("device1"); //$NON-NLS-1$
+        mServer.setJdwpPids("device1", 1, 2); //$NON-NLS-1$
+        mMonitor.start();
+
+        waitForDevices(1);
+        Device device = mMonitor.getDevices()[0];
+        waitForPids(device, 1, 2);
+
+        mServer.setJdwpPids("device1", 2, 3); //$NON-NLS-1$
+        waitForPids(device, 2, 3);
+
+        mServer.addDevice("device2"); //$NON-NLS-1$
+        waitForDevices(2);
+
+        mServer.removeDevice("device1"); //$NON-NLS-1$
+        waitForDevices(1);
+        assertEquals("device2", mMonitor.getDevices()[0].getSerialNumber()); //$NON-NLS-1$
+        assertEquals(0, device.getClients().length);
+        assertEquals(3, mServer.getJdwpConnectionCount());
+    }
+
+    private int countClients() {
+        int count = 0;
+        for (Device device : mMonitor.getDevices()) {
+            count += device.getClients().length;
+        }
+        return count;
+    }
+
+    private void waitForDevices(int count) throws InterruptedException {
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while (mMonitor.getDevices().length != count) {
+            assertTrue(System.currentTimeMillis() < end);
+            Thread.sleep(5);
+        }
+    }
+
+    private void waitForDeviceInfo(Device device) throws InterruptedException {
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while (device.getMountPoint(IDevice.MNT_EXTERNAL_STORAGE) == null) {
+            assertTrue(System.currentTimeMillis() < end);
+            Thread.sleep(5);
+        }
+    }
+
+    private void waitForPids(Device device, int... pids) throws InterruptedException {
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while (hasPids(device, pids) == false) {
+            assertTrue(System.currentTimeMillis() < end);
+            Thread.sleep(5);
+        }
+    }
+
+    private static boolean hasPids(Device device, int... pids) {
+        List<Client> clients = device.getClientList();
+        synchronized (clients) {
+            if (clients.size() != pids.length) {
+                return false;
+            }
+            for (int i = 0 ; i < pids.length ; i++) {
+                if (device.hasClient(pids[i]) == false) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits for the monitor thread to be ready to accept clients.
+     */
+    private void waitForSelector() throws Exception {
+        Field field = MonitorThread.class.getDeclaredField("mSelector"); //$NON-NLS-1$
+        field.setAccessible(true);
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while (field.get(mMonitorThread) == null) {
+            assertTrue(System.currentTimeMillis() < end);
+            Thread.sleep(10);
+        }
+    }
+}
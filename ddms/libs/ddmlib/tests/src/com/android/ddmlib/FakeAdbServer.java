@@ -0,0 +1,771 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal in-process adb server, speaking enough of the adb host protocol to test
+ * {@link AdbHelper} and the classes built on top of it.
+ * <p/>Supported requests are <code>host:transport:&lt;serial&gt;</code>,
+ * <code>host:track-devices</code>, <code>shell:&lt;command&gt;</code>,
+ * <code>framebuffer:</code>, <code>sync:</code>, <code>track-jdwp</code> and
+ * <code>jdwp:&lt;pid&gt;</code>. Anything else is answered with a FAIL response.
+ * <p/>The tracking services send their list again each time it changes. The
+ * <code>jdwp:</code> service answers the JDWP handshake, and then ignores what it receives.
+ * <p/>The frame buffer can change a region each time it is sent, to test continuous captures.
+ * <p/>The sync service supports SEND, RECV and STAT on an in-memory file system shared by all
+ * the devices. Files sent under <code>/system/</code> are refused, like on a read-only file
+ * system. The modification time sent with a file is returned by STAT.
+ */
+class FakeAdbServer {
+
+    private final ServerSocket mServerSocket;
+    private final Map<String, String> mShellResponses = new HashMap<String, String>();
+    private final List<String> mSerials = new ArrayList<String>();
+    private final List<Socket> mSockets = new ArrayList<Socket>();
+
+    private int mShellDelay = 0;
+    private byte[] mFrameBufferHeader;
+    private byte[] mFrameBufferData;
+    private int mFrameBufferWidth;
+    private int mFrameBufferBytesPerPixel;
+    /** Region changed each time a frame is sent, as x, y, width, height, or null. */
+    private int[] mFrameBufferUpdate;
+    private int mFrameBufferCount = 0;
+    private int mConnectionCount = 0;
+    private final Map<String, Integer> mRunningShells = new HashMap<String, Integer>();
+    private int mMaxRunningShells = 0;
+    private int mShellCount = 0;
+    private boolean mRunning = true;
+
+    private static final int SYNC_DATA_MAX = 64 * 1024;
+    private static final String SYNC_READ_ONLY_PATH = "/system/"; //$NON-NLS-1$
+    private final Map<String, byte[]> mSyncFiles = new HashMap<String, byte[]>();
+    private final Map<String, Integer> mSyncFileTimes = new HashMap<String, Integer>();
+    private int mSyncSendCount = 0;
+    private int mSyncStatCount = 0;
+    private int mSyncFileDelay = 0;
+    private int mRunningSyncs = 0;
+    private int mMaxRunningSyncs = 0;
+
+    private static final String JDWP_HANDSHAKE = "JDWP-Handshake"; //$NON-NLS-1$
+    private final Map<String, List<Integer>> mJdwpPids = new HashMap<String, List<Integer>>();
+    private int mJdwpDelay = 0;
+    private int mJdwpConnectionCount = 0;
+    private int mRunningJdwps = 0;
+    private int mMaxRunningJdwps = 0;
+    /** Incremented each time the devices or their processes change. */
+    private int mTrackingVersion = 0;
+
+    FakeAdbServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 256, InetAddress.getByName("127.0.0.1")); //$NON-NLS-1$
+
+        Thread t = new Thread("FakeAdbServer") { //$NON-NLS-1$
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Returns the address clients should connect to.
+     */
+    InetSocketAddress getSocketAddress() {
+        return new InetSocketAddress(mServerSocket.getInetAddress(), mServerSocket.getLocalPort());
+    }
+
+    /**
+     * Adds a device to the list of devices accepted by <code>host:transport:</code>.
+     */
+    synchronized void addDevice(String serial) {
+        mSerials.add(serial);
+        trackingChanged();
+    }
+
+    /**
+     * Removes a device.
+     */
+    synchronized void removeDevice(String serial) {
+        mSerials.remove(serial);
+        mJdwpPids.remove(serial);
+        trackingChanged();
+    }
+
+    /**
+     * Sets the debuggable processes of a device, listed by <code>track-jdwp</code>.
+     */
+    synchronized void setJdwpPids(String serial, int... pids) {
+        List<Integer> list = new ArrayList<Integer>();
+        for (int pid : pids) {
+            list.add(pid);
+        }
+        mJdwpPids.put(serial, list);
+        trackingChanged();
+    }
+
+    /**
+     * Sets a delay, in ms, before a <code>jdwp:</code> connection is accepted, like the time
+     * adb takes to reach a process on a device.
+     */
+    synchronized void setJdwpDelay(int delay) {
+        mJdwpDelay = delay;
+    }
+
+    /**
+     * Returns the number of <code>jdwp:</code> connections accepted so far.
+     */
+    synchronized int getJdwpConnectionCount() {
+        return mJdwpConnectionCount;
+    }
+
+    /**
+     * Returns the highest number of <code>jdwp:</code> requests that were waiting for their
+     * reply at the same time.
+     */
+    synchronized int getMaxConcurrentJdwpRequests() {
+        return mMaxRunningJdwps;
+    }
+
+    /**
+     * Sets the output of a given shell command. Unknown commands output nothing.
+     */
+    synchronized void setShellResponse(String command, String output) {
+        mShellResponses.put(command, output);
+    }
+
+    /**
+     * Sets a delay, in ms, before the output of shell commands is sent.
+     */
+    synchronized void setShellDelay(int delay) {
+        mShellDelay = delay;
+    }
+
+    /**
+     * Sets the frame buffer returned by the <code>framebuffer:</code> service, using the
+     * version 1 protocol.
+     */
+    synchronized void setFrameBuffer(RawImage image) {
+        ByteBuffer buf = ByteBuffer.allocate(4 + RawImage.getHeaderSize(1) * 4);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(1);
+        buf.putInt(image.bpp);
+        buf.putInt(image.data.length);
+        buf.putInt(image.width);
+        buf.putInt(image.height);
+        buf.putInt(image.red_offset);
+        buf.putInt(image.red_length);
+        buf.putInt(image.blue_offset);
+        buf.putInt(image.blue_length);
+        buf.putInt(image.green_offset);
+        buf.putInt(image.green_length);
+        buf.putInt(image.alpha_offset);
+        buf.putInt(image.alpha_length);
+
+        mFrameBufferHeader = buf.array();
+        mFrameBufferData = image.data;
+        mFrameBufferWidth = image.width;
+        mFrameBufferBytesPerPixel = image.bpp >> 3;
+    }
+
+    /**
+     * Sets a region of the frame buffer that changes each time a frame is sent, like an
+     * animation running on the device.
+     */
+    synchronized void setFrameBufferUpdate(int x, int y, int width, int height) {
+        mFrameBufferUpdate = new int[] { x, y, width, height };
+    }
+
+    /**
+     * Returns the number of frames sent by the <code>framebuffer:</code> service so far.
+     */
+    synchronized int getFrameBufferCount() {
+        return mFrameBufferCount;
+    }
+
+    /**
+     * Sets the content of a file of the sync service.
+     */
+    synchronized void setSyncFile(String path, byte[] data) {
+        setSyncFile(path, data, 0);
+    }
+
+    /**
+     * Sets the content and modification time, in seconds, of a file of the sync service.
+     */
+    synchronized void setSyncFile(String path, byte[] data, int time) {
+        mSyncFiles.put(path, data);
+        mSyncFileTimes.put(path, time);
+    }
+
+    /**
+     * Returns the content of a file of the sync service, or null if it doesn't exist.
+     */
+    synchronized byte[] getSyncFile(String path) {
+        return mSyncFiles.get(path);
+    }
+
+    /**
+     * Returns the number of files of the sync service.
+     */
+    synchronized int getSyncFileCount() {
+        return mSyncFiles.size();
+    }
+
+    /**
+     * Returns the modification time, in seconds, of a file of the sync service.
+     */
+    synchronized int getSyncFileTime(String path) {
+        Integer time = mSyncFileTimes.get(path);
+        return time != null ? time : 0;
+    }
+
+    /**
+     * Returns the number of files received by the sync service, including the refused ones.
+     */
+    synchronized int getSyncSendCount() {
+        return mSyncSendCount;
+    }
+
+    /**
+     * Returns the number of STAT requests received by the sync service.
+     */
+    synchronized int getSyncStatCount() {
+        return mSyncStatCount;
+    }
+
+    /**
+     * Sets a delay, in ms, added to each file sent or received by the sync service, like the
+     * time a device takes to open and close a file.
+     */
+    synchronized void setSyncFileDelay(int delay) {
+        mSyncFileDelay = delay;
+    }
+
+    /**
+     * Returns the highest number of sync connections that were open at the same time.
+     */
+    synchronized int getMaxConcurrentSyncConnections() {
+        return mMaxRunningSyncs;
+    }
+
+    /**
+     * Returns the number of connections accepted so far.
+     */
+    synchronized int getConnectionCount() {
+        return mConnectionCount;
+    }
+
+    /**
+     * Returns the number of shell commands received so far, on all the devices.
+     */
+    synchronized int getShellCommandCount() {
+        return mShellCount;
+    }
+
+    /**
+     * Returns the highest number of shell commands that ran at the same time on a single device.
+     */
+    synchronized int getMaxConcurrentShellCommands() {
+        return mMaxRunningShells;
+    }
+
+    /**
+     * Stops the server and closes all the connections.
+     */
+    void stop() {
+        synchronized (this) {
+            mRunning = false;
+            notifyAll();
+            for (Socket s : mSockets) {
+                closeQuietly(s);
+            }
+            mSockets.clear();
+        }
+
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private void acceptLoop() {
+        while (true) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+
+            synchronized (this) {
+                if (mRunning == false) {
+                    closeQuietly(socket);
+                    return;
+                }
+                mConnectionCount++;
+                mSockets.add(socket);
+            }
+
+            Thread t = new Thread("FakeAdbServer Connection") { //$NON-NLS-1$
+                @Override
+                public void run() {
+                    try {
+                        handleConnection(socket);
+                    } catch (IOException e) {
+                        // connection closed by the client.
+                    } finally {
+                        closeQuietly(socket);
+                        synchronized (FakeAdbServer.this) {
+                            mSockets.remove(socket);
+                        }
+                    }
+                }
+            };
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    private void handleConnection(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        InputStream in = socket.getInputStream();
+        OutputStream out = socket.getOutputStream();
+        String serial = ""; //$NON-NLS-1$
+
+        while (true) {
+            String request = readRequest(in);
+            if (request == null) {
+                return;
+            }
+
+            if (request.startsWith("host:transport:")) { //$NON-NLS-1$
+                serial = request.substring("host:transport:".length()); //$NON-NLS-1$
+                boolean known;
+                synchronized (this) {
+                    known = mSerials.contains(serial);
+                }
+                if (known == false) {
+                    writeFail(out, "device not found"); //$NON-NLS-1$
+                    return;
+                }
+                writeOkay(out);
+                // the connection is now bound to the device, wait for the next request.
+            } else if (request.startsWith("shell:")) { //$NON-NLS-1$
+                synchronized (this) {
+                    Integer running = mRunningShells.get(serial);
+                    int count = running != null ? running.intValue() + 1 : 1;
+                    mRunningShells.put(serial, count);
+                    mMaxRunningShells = Math.max(mMaxRunningShells, count);
+                    mShellCount++;
+                }
+                try {
+                    handleShell(request.substring("shell:".length()), out); //$NON-NLS-1$
+                } finally {
+                    synchronized (this) {
+                        mRunningShells.put(serial, mRunningShells.get(serial).intValue() - 1);
+                    }
+                }
+                return;
+            } else if (request.equals("host:track-devices")) { //$NON-NLS-1$
+                writeOkay(out);
+                handleTracking(null, out);
+                return;
+            } else if (request.equals("track-jdwp")) { //$NON-NLS-1$
+                writeOkay(out);
+                handleTracking(serial, out);
+                return;
+            } else if (request.startsWith("jdwp:")) { //$NON-NLS-1$
+                handleJdwp(serial, Integer.parseInt(request.substring("jdwp:".length())), //$NON-NLS-1$
+                        in, out);
+                return;
+            } else if (request.equals("framebuffer:")) { //$NON-NLS-1$
+                handleFrameBuffer(in, out);
+                return;
+            } else if (request.equals("sync:")) { //$NON-NLS-1$
+                synchronized (this) {
+                    mRunningSyncs++;
+                    mMaxRunningSyncs = Math.max(mMaxRunningSyncs, mRunningSyncs);
+                }
+                try {
+                    writeOkay(out);
+                    handleSync(new BufferedInputStream(in), new BufferedOutputStream(out));
+                } finally {
+                    synchronized (this) {
+                        mRunningSyncs--;
+                    }
+                }
+                return;
+            } else {
+                writeFail(out, "unknown request: " + request); //$NON-NLS-1$
+                return;
+            }
+        }
+    }
+
+    private void handleShell(String command, OutputStream out) throws IOException {
+        String output;
+        int delay;
+        synchronized (this) {
+            output = mShellResponses.get(command);
+            delay = mShellDelay;
+        }
+
+        writeOkay(out);
+
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        }
+
+        if (output != null) {
+            out.write(output.getBytes(AdbHelper.DEFAULT_ENCODING));
+            out.flush();
+        }
+    }
+
+    private void handleFrameBuffer(InputStream in, OutputStream out) throws IOException {
+        byte[] header;
+        byte[] data;
+        synchronized (this) {
+            header = mFrameBufferHeader;
+            data = mFrameBufferData;
+            if (data != null && mFrameBufferUpdate != null) {
+                // sent frames are never modified, the next frame is a new copy.
+                mFrameBufferData = updateFrameBuffer(data);
+            }
+        }
+
+        if (header == null) {
+            writeFail(out, "no framebuffer"); //$NON-NLS-1$
+            return;
+        }
+
+        writeOkay(out);
+        out.write(header);
+        out.flush();
+
+        // wait for the nudge.
+        if (in.read() == -1) {
+            return;
+        }
+
+        out.write(data);
+        out.flush();
+
+        synchronized (this) {
+            mFrameBufferCount++;
+        }
+    }
+
+    /**
+     * Returns a copy of a frame buffer, with the pixels of the update region incremented.
+     */
+    private byte[] updateFrameBuffer(byte[] data) {
+        byte[] result = data.clone();
+        int bytesPerPixel = mFrameBufferBytesPerPixel;
+        int x = mFrameBufferUpdate[0];
+        int y = mFrameBufferUpdate[1];
+        int width = mFrameBufferUpdate[2];
+        int height = mFrameBufferUpdate[3];
+        for (int row = y ; row < y + height ; row++) {
+            int start = (row * mFrameBufferWidth + x) * bytesPerPixel;
+            for (int i = start ; i < start + width * bytesPerPixel ; i++) {
+                result[i]++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Sends the list of devices, or the list of processes of a device, each time it changes,
+     * until the server is stopped.
+     * @param serial the device, or null for the list of devices.
+     */
+    private void handleTracking(String serial, OutputStream out) throws IOException {
+        int version = -1;
+        while (true) {
+            StringBuilder list = new StringBuilder();
+            synchronized (this) {
+                while (mRunning && version == mTrackingVersion) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (mRunning == false) {
+                    return;
+                }
+                version = mTrackingVersion;
+
+                if (serial == null) {
+                    for (String s : mSerials) {
+                        list.append(s).append("\tdevice\n"); //$NON-NLS-1$
+                    }
+                } else {
+                    List<Integer> pids = mJdwpPids.get(serial);
+                    if (pids != null) {
+                        for (int pid : pids) {
+                            list.append(pid).append('\n');
+                        }
+                    }
+                }
+            }
+
+            out.write(String.format("%04x%s", list.length(), list) //$NON-NLS-1$
+                    .getBytes(AdbHelper.DEFAULT_ENCODING));
+            out.flush();
+        }
+    }
+
+    private void handleJdwp(String serial, int pid, InputStream in, OutputStream out)
+            throws IOException {
+        int delay;
+        boolean known;
+        synchronized (this) {
+            delay = mJdwpDelay;
+            List<Integer> pids = mJdwpPids.get(serial);
+            known = pids != null && pids.contains(pid);
+            if (known) {
+                mJdwpConnectionCount++;
+            }
+            mRunningJdwps++;
+            mMaxRunningJdwps = Math.max(mMaxRunningJdwps, mRunningJdwps);
+        }
+
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        }
+
+        synchronized (this) {
+            mRunningJdwps--;
+        }
+
+        if (known == false) {
+            writeFail(out, "no such process"); //$NON-NLS-1$
+            return;
+        }
+        writeOkay(out);
+
+        // echo the handshake, and then ignore the packets.
+        byte[] handshake = new byte[JDWP_HANDSHAKE.length()];
+        if (readFully(in, handshake) == false) {
+            return;
+        }
+        out.write(handshake);
+        out.flush();
+
+        byte[] buffer = new byte[4096];
+        while (in.read(buffer) != -1) {
+            // ignore
+        }
+    }
+
+    /**
+     * Wakes up the tracking connections. Must be called with the lock held.
+     */
+    private void trackingChanged() {
+        mTrackingVersion++;
+        notifyAll();
+    }
+
+    private void handleSync(InputStream in, OutputStream out) throws IOException {
+        byte[] header = new byte[8];
+        while (readFully(in, header)) {
+            String id = new String(header, 0, 4, AdbHelper.DEFAULT_ENCODING);
+            byte[] path = new byte[getSyncInt(header)];
+            if (readFully(in, path) == false) {
+                return;
+            }
+
+            if (id.equals("SEND")) { //$NON-NLS-1$
+                // the path is followed by the mode.
+                String pathAndMode = new String(path, AdbHelper.DEFAULT_ENCODING);
+                String remotePath = pathAndMode.substring(0, pathAndMode.lastIndexOf(','));
+
+                ByteArrayOutputStream data = new ByteArrayOutputStream();
+                int time;
+                while (true) {
+                    if (readFully(in, header) == false) {
+                        return;
+                    }
+                    String dataId = new String(header, 0, 4, AdbHelper.DEFAULT_ENCODING);
+                    if (dataId.equals("DONE")) { //$NON-NLS-1$
+                        time = getSyncInt(header);
+                        break;
+                    }
+                    byte[] chunk = new byte[getSyncInt(header)];
+                    if (dataId.equals("DATA") == false || readFully(in, chunk) == false) { //$NON-NLS-1$
+                        return;
+                    }
+                    data.write(chunk);
+                }
+
+                syncFileDelay();
+                synchronized (this) {
+                    mSyncSendCount++;
+                }
+                if (remotePath.startsWith(SYNC_READ_ONLY_PATH)) {
+                    writeSyncMessage(out, "FAIL", "Read-only file system"); //$NON-NLS-1$ //$NON-NLS-2$
+                } else {
+                    synchronized (this) {
+                        setSyncFile(remotePath, data.toByteArray(), time);
+                    }
+                    writeSyncHeader(out, "OKAY", 0); //$NON-NLS-1$
+                }
+            } else if (id.equals("RECV")) { //$NON-NLS-1$
+                byte[] data = getSyncFile(new String(path, AdbHelper.DEFAULT_ENCODING));
+                syncFileDelay();
+                if (data == null) {
+                    writeSyncMessage(out, "FAIL", "No such file or directory"); //$NON-NLS-1$ //$NON-NLS-2$
+                } else {
+                    for (int offset = 0 ; offset < data.length ; offset += SYNC_DATA_MAX) {
+                        int length = Math.min(SYNC_DATA_MAX, data.length - offset);
+                        writeSyncHeader(out, "DATA", length); //$NON-NLS-1$
+                        out.write(data, offset, length);
+                    }
+                    writeSyncHeader(out, "DONE", 0); //$NON-NLS-1$
+                }
+            } else if (id.equals("STAT")) { //$NON-NLS-1$
+                String remotePath = new String(path, AdbHelper.DEFAULT_ENCODING);
+                byte[] data;
+                int time;
+                synchronized (this) {
+                    mSyncStatCount++;
+                    data = getSyncFile(remotePath);
+                    time = getSyncFileTime(remotePath);
+                }
+                writeSyncHeader(out, "STAT", data != null ? 0100644 : 0); //$NON-NLS-1$
+                out.write(toSyncInt(data != null ? data.length : 0));
+                out.write(toSyncInt(time));
+            } else {
+                return;
+            }
+            out.flush();
+        }
+    }
+
+    private void syncFileDelay() {
+        int delay;
+        synchronized (this) {
+            delay = mSyncFileDelay;
+        }
+
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static int getSyncInt(byte[] header) {
+        return ByteBuffer.wrap(header, 4, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    }
+
+    private static byte[] toSyncInt(int value) {
+        return ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array();
+    }
+
+    private static void writeSyncHeader(OutputStream out, String id, int value)
+            throws IOException {
+        out.write(id.getBytes(AdbHelper.DEFAULT_ENCODING));
+        out.write(toSyncInt(value));
+    }
+
+    private static void writeSyncMessage(OutputStream out, String id, String message)
+            throws IOException {
+        byte[] content = message.getBytes(AdbHelper.DEFAULT_ENCODING);
+        writeSyncHeader(out, id, content.length);
+        out.write(content);
+    }
+
+    private static String readRequest(InputStream in) throws IOException {
+        byte[] length = new byte[4];
+        if (readFully(in, length) == false) {
+            return null;
+        }
+
+        byte[] request = new byte[Integer.parseInt(AdbHelper.replyToString(length), 16)];
+        if (readFully(in, request) == false) {
+            return null;
+        }
+
+        return AdbHelper.replyToString(request);
+    }
+
+    private static boolean readFully(InputStream in, byte[] data) throws IOException {
+        int offset = 0;
+        while (offset < data.length) {
+            int count = in.read(data, offset, data.length - offset);
+            if (count == -1) {
+                return false;
+            }
+            offset += count;
+        }
+
+        return true;
+    }
+
+    private static void writeOkay(OutputStream out) throws IOException {
+        out.write("OKAY".getBytes(AdbHelper.DEFAULT_ENCODING)); //$NON-NLS-1$
+        out.flush();
+    }
+
+    private static void writeFail(OutputStream out, String message) throws IOException {
+        out.write("FAIL".getBytes(AdbHelper.DEFAULT_ENCODING)); //$NON-NLS-1$
+        out.write(String.format("%04X%s", message.length(), message) //$NON-NLS-1$
+                .getBytes(AdbHelper.DEFAULT_ENCODING));
+        out.flush();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.ddmlib.IDevice.DeviceState;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The VM side of a JDWP connection to a {@link Client}, for tests.
+ * <p/>The test drives the {@link Client} itself, by calling {@link Client#read()} and
+ * {@link Client#getJdwpPacket()} like the {@link MonitorThread} does, and uses the fake VM to
+ * read the requests and send replies.
+ */
+class FakeVm {
+
+    private final ServerSocketChannel mServerChannel;
+    private final SocketChannel mChannel;
+    private final SocketChannel mClientChannel;
+    private final Client mClient;
+
+    /**
+     * Creates a fake VM and a {@link Client} connected to it, on a device without a
+     * {@link DeviceMonitor}.
+     */
+    FakeVm() throws IOException {
+        this(new Device(null, "fakeserial", DeviceState.ONLINE), 1234); //$NON-NLS-1$
+    }
+
+    /**
+     * Creates a fake VM and a {@link Client} connected to it.
+     * @param device the device running the VM.
+     * @param pid the pid of the VM.
+     */
+    FakeVm(Device device, int pid) throws IOException {
+        mServerChannel = ServerSocketChannel.open();
+        mServerChannel.socket().bind(new InetSocketAddress(InetAddress.getLocalHost(), 0));
+
+        mClientChannel = SocketChannel.open(mServerChannel.socket().getLocalSocketAddress());
+        mChannel = mServerChannel.accept();
+
+        mClient = new Client(device, mClientChannel, pid);
+    }
+
+    Client getClient() {
+        return mClient;
+    }
+
+    /**
+     * Returns the VM side of the connection.
+     */
+    SocketChannel getChannel() {
+        return mChannel;
+    }
+
+    /**
+     * Returns the client side of the connection. This is a blocking channel, so that the test
+     * can drive the client directly.
+     */
+    SocketChannel getClientChannel() {
+        return mClientChannel;
+    }
+
+    void close() throws IOException {
+        mChannel.close();
+        mServerChannel.close();
+    }
+
+    /**
+     * Does the JDWP handshake, and makes the client DDM-aware.
+     */
+    void connect() throws IOException {
+        if (mClient.sendHandshake() == false) {
+            throw new IOException("handshake failed"); //$NON-NLS-1$
+        }
+
+        ByteBuffer handshake = ByteBuffer.allocate(JdwpPacket.HANDSHAKE_LEN);
+        while (handshake.hasRemaining()) {
+            mChannel.read(handshake);
+        }
+        handshake.flip();
+        mChannel.write(handshake);
+
+        // the client answers the handshake with HELO, FEAT and MPRQ requests.
+        mClient.read();
+        if (mClient.getJdwpPacket() != null) {
+            throw new IOException("unexpected packet after the handshake"); //$NON-NLS-1$
+        }
+        for (int i = 0 ; i < 3 ; i++) {
+            readPacket();
+        }
+
+        mClient.ddmSeen();
+    }
+
+    /**
+     * Reads a full packet sent by the client.
+     * @return a buffer holding the packet, from 0 to its capacity.
+     */
+    ByteBuffer readPacket() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(JdwpPacket.JDWP_HEADER_LEN);
+        read(header);
+
+        ByteBuffer packet = ByteBuffer.allocate(header.getInt(0));
+        header.flip();
+        packet.put(header);
+        read(packet);
+
+        return packet;
+    }
+
+    /**
+     * Writes the whole content of a buffer, from its position to its limit.
+     */
+    void write(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            mChannel.write(buf);
+        }
+    }
+
+    /**
+     * Writes the header of a reply packet holding a single chunk.
+     * @param buf the buffer receiving the header.
+     * @param id the id of the request.
+     * @param type the type of the chunk.
+     * @param chunkLength the length of the chunk data.
+     */
+    static void putReplyHeader(ByteBuffer buf, int id, int type, int chunkLength) {
+        buf.putInt(JdwpPacket.JDWP_HEADER_LEN + ChunkHandler.CHUNK_HEADER_LEN + chunkLength);
+        buf.putInt(id);
+        buf.put((byte) 0x80); // reply
+        buf.putShort((short) 0); // no error
+        buf.putInt(type);
+        buf.putInt(chunkLength);
+    }
+
+    /**
+     * Writes the header of a DDM request packet, sent by the VM, holding a single chunk.
+     * @param buf the buffer receiving the header.
+     * @param id the id of the packet.
+     * @param type the type of the chunk.
+     * @param chunkLength the length of the chunk data.
+     */
+    static void putDdmRequestHeader(ByteBuffer buf, int id, int type, int chunkLength) {
+        buf.putInt(JdwpPacket.JDWP_HEADER_LEN + ChunkHandler.CHUNK_HEADER_LEN + chunkLength);
+        buf.putInt(id);
+        buf.put((byte) 0); // request
+        buf.put((byte) 0xc7); // DDM command set
+        buf.put((byte) 0x01); // DDM command
+        buf.putInt(type);
+        buf.putInt(chunkLength);
+    }
+
+    private void read(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (mChannel.read(buf) < 0) {
+                throw new IOException("closed"); //$NON-NLS-1$
+            }
+        }
+    }
+}
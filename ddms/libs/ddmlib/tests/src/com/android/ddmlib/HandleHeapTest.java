@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.ddmlib.ClientData.IHprofDumpHandler;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the streaming of HPROF dumps by {@link HandleHeap}, against a {@link FakeVm}.
+ */
+public class HandleHeapTest extends TestCase {
+
+    /** Size of the streamed dump. This is more than the max size of the read buffer. */
+    private static final int DUMP_SIZE = 300 * 1024 * 1024;
+
+    /** Max heap growth allowed while receiving the dump, in bytes. */
+    private static final long MAX_HEAP_GROWTH = 16 * 1024 * 1024;
+
+    private FakeVm mVm;
+    private Client mClient;
+    private final HprofHandler mHandler = new HprofHandler();
+
+    @Override
+    protected void setUp() throws Exception {
+        mVm = new FakeVm();
+        mClient = mVm.getClient();
+        mVm.connect();
+
+        ClientData.setHprofDumpHandler(mHandler);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        ClientData.setHprofDumpHandler(null);
+        mVm.close();
+        if (mHandler.mFile != null) {
+            mHandler.mFile.delete();
+        }
+    }
+
+    /**
+     * Tests receiving a dump larger than the max read buffer, followed by another packet.
+     */
+    public void testStreamedDump() throws Exception {
+        long heapBefore = getUsedHeap();
+
+        HandleHeap.sendHPDS(mClient);
+        DumpSender sender = new DumpSender();
+        sender.start();
+
+        // read until the dump is received, then until the following packet is found.
+        JdwpPacket packet = null;
+        while (packet == null) {
+            mClient.read();
+            packet = mClient.getJdwpPacket();
+        }
+
+        sender.join();
+        assertNull(sender.mError);
+
+        long heapAfter = getUsedHeap();
+        assertTrue("heap grew by " + (heapAfter - heapBefore) + " bytes",
+                heapAfter - heapBefore < MAX_HEAP_GROWTH);
+
+        assertNull(mHandler.mFailure);
+        assertNotNull(mHandler.mFile);
+        assertSame(mClient, mHandler.mClient);
+        assertEquals(DUMP_SIZE, mHandler.mFile.length());
+        checkDump(mHandler.mFile);
+
+        // the request is done.
+        assertNull(mClient.isResponseToUs(sender.mRequestId));
+
+        // the next packet was left for the normal processing.
+        assertEquals(sender.mRequestId + 1, packet.getId());
+        assertTrue(packet.isEmpty());
+        packet.consume();
+    }
+
+    /**
+     * Tests that a small dump, read in one piece and handled like any other chunk, is still
+     * given as a file.
+     */
+    public void testSmallDump() throws Exception {
+        HandleHeap.sendHPDS(mClient);
+        ByteBuffer request = mVm.readPacket();
+        int id = request.getInt(4);
+
+        ByteBuffer reply = ByteBuffer.allocate(JdwpPacket.JDWP_HEADER_LEN +
+                ChunkHandler.CHUNK_HEADER_LEN + 3);
+        FakeVm.putReplyHeader(reply, id, HandleHeap.CHUNK_HPDS, 3);
+        reply.put((byte) 1).put((byte) 2).put((byte) 3);
+        reply.flip();
+        mVm.write(reply);
+
+        JdwpPacket packet = null;
+        while (packet == null && mHandler.mFile == null) {
+            mClient.read();
+            packet = mClient.getJdwpPacket();
+        }
+
+        if (packet != null) {
+            // do what the monitor thread does with a full packet.
+            ByteBuffer payload = packet.getPayload();
+            assertEquals(HandleHeap.CHUNK_HPDS, payload.getInt());
+            assertEquals(3, payload.getInt());
+            mClient.isResponseToUs(id).handleChunk(mClient, HandleHeap.CHUNK_HPDS,
+                    payload.slice(), true, id);
+            packet.consume();
+        }
+
+        assertNotNull(mHandler.mFile);
+        assertEquals(3, mHandler.mFile.length());
+    }
+
+    private static void checkDump(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int offset = 0;
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                for (int i = 0 ; i < count ; i++) {
+                    if (buffer[i] != getDumpByte(offset + i)) {
+                        fail("wrong data at offset " + (offset + i));
+                    }
+                }
+                offset += count;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte getDumpByte(int offset) {
+        return (byte) (offset % 251);
+    }
+
+    private static long getUsedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0 ; i < 3 ; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Answers an HPDS request with {@link HandleHeapTest#DUMP_SIZE} bytes, sent in small
+     * writes, followed by an empty reply packet.
+     */
+    private class DumpSender extends Thread {
+        int mRequestId;
+        Exception mError;
+
+        @Override
+        public void run() {
+            try {
+                ByteBuffer request = mVm.readPacket();
+                mRequestId = request.getInt(4);
+
+                ByteBuffer buf = ByteBuffer.allocate(16 * 1024);
+                FakeVm.putReplyHeader(buf, mRequestId, HandleHeap.CHUNK_HPDS, DUMP_SIZE);
+
+                int offset = 0;
+                while (offset < DUMP_SIZE) {
+                    while (buf.hasRemaining() && offset < DUMP_SIZE) {
+                        buf.put(getDumpByte(offset++));
+                    }
+                    buf.flip();
+                    mVm.write(buf);
+                    buf.clear();
+                }
+
+                // an empty reply to another request.
+                buf.putInt(JdwpPacket.JDWP_HEADER_LEN);
+                buf.putInt(mRequestId + 1);
+                buf.put((byte) 0x80);
+                buf.putShort((short) 0);
+                buf.flip();
+                mVm.write(buf);
+            } catch (Exception e) {
+                mError = e;
+            }
+        }
+    }
+
+    private static class HprofHandler implements IHprofDumpHandler {
+        File mFile;
+        Client mClient;
+        String mFailure;
+
+        public void onSuccess(String remoteFilePath, Client client) {
+            mFailure = "unexpected HPDU"; //$NON-NLS-1$
+        }
+
+        public void onSuccess(File hprofFile, Client client) {
+            mFile = hprofFile;
+            mClient = client;
+        }
+
+        public void onEndFailure(Client client, String message) {
+            mFailure = message != null ? message : "failure"; //$NON-NLS-1$
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.ddmlib.IDevice.DeviceState;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Stress test of the handling of DDM chunks by the {@link MonitorThread}, with many
+ * {@link FakeVm} clients sending chunks at the same time.
+ */
+public class MonitorThreadTest extends TestCase {
+
+    private static final int CLIENT_COUNT = 32;
+    private static final int CHUNK_COUNT = 200;
+    private static final int CHUNK_TEST = ChunkHandler.type("TEST"); //$NON-NLS-1$
+    private static final int CHUNK_FAIL = ChunkHandler.type("FAIL"); //$NON-NLS-1$
+    private static final long TIMEOUT = 30;
+
+    private MonitorThread mMonitor;
+    private FakeVm[] mVms;
+    private TestHandler mHandler;
+
+    @Override
+    protected void setUp() throws Exception {
+        mMonitor = MonitorThread.createInstance();
+        mMonitor.start();
+        waitForSelector();
+
+        // dropping a client notifies the bridge, which isn't linked to any adb executable.
+        Constructor<AndroidDebugBridge> constructor =
+            AndroidDebugBridge.class.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        Device device = new Device(new DeviceMonitor(constructor.newInstance()),
+                "fakeserial", DeviceState.ONLINE); //$NON-NLS-1$
+        mVms = new FakeVm[CLIENT_COUNT];
+        for (int i = 0 ; i < CLIENT_COUNT ; i++) {
+            mVms[i] = new FakeVm(device, 1000 + i);
+            mVms[i].connect();
+            mVms[i].getClientChannel().configureBlocking(false);
+        }
+
+        // the first client has a handler that blocks until the others are done.
+        mHandler = new TestHandler(mVms[0].getClient());
+        mMonitor.registerChunkHandler(CHUNK_TEST, mHandler);
+
+        for (FakeVm vm : mVms) {
+            mMonitor.addClient(vm.getClient());
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHandler.mRelease.countDown();
+        mMonitor.quit();
+        for (FakeVm vm : mVms) {
+            vm.close();
+        }
+    }
+
+    /**
+     * Tests that a blocked handler only holds up the chunks of its own client, and that each
+     * client gets its chunks handled in order, with the right data.
+     */
+    public void testBlockedHandler() throws Exception {
+        for (int seq = 0 ; seq < CHUNK_COUNT ; seq++) {
+            for (int i = 0 ; i < CLIENT_COUNT ; i++) {
+                sendChunk(mVms[i], seq);
+            }
+        }
+
+        // all the chunks of the other clients are handled while the first one is blocked.
+        assertTrue("chunks of the other clients not handled",
+                mHandler.mOthersDone.await(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(CHUNK_COUNT, mHandler.mAllDone.getCount());
+
+        // the monitor keeps reading the blocked client, and queues its chunks.
+        Client blocked = mVms[0].getClient();
+        long end = System.currentTimeMillis() + TIMEOUT * 1000;
+        while (mMonitor.getPendingChunkCount(blocked) < CHUNK_COUNT - 1 &&
+                System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(CHUNK_COUNT - 1, mMonitor.getPendingChunkCount(blocked));
+
+        mHandler.mRelease.countDown();
+        assertTrue("chunks of the blocked client not handled",
+                mHandler.mAllDone.await(TIMEOUT, TimeUnit.SECONDS));
+
+        assertNull(mHandler.mError, mHandler.mError);
+        for (FakeVm vm : mVms) {
+            assertEquals(CHUNK_COUNT, mHandler.getCount(vm.getClient()));
+        }
+        assertEquals(0, mMonitor.getPendingChunkCount(blocked));
+    }
+
+    /**
+     * Tests that a client whose handler fails is dropped by the monitor thread, which gives its
+     * read buffer back to the pool, and that the other clients keep getting their chunks.
+     */
+    public void testFailingHandler() throws Exception {
+        mMonitor.registerChunkHandler(CHUNK_FAIL, new ChunkHandler() {
+            @Override
+            public void clientReady(Client client) throws IOException {
+            }
+
+            @Override
+            public void clientDisconnected(Client client) {
+            }
+
+            @Override
+            public void handleChunk(Client client, int type, ByteBuffer data, boolean isReply,
+                    int msgId) {
+                throw new IllegalStateException("handler failure"); //$NON-NLS-1$
+            }
+        });
+
+        ByteBuffer buf = ByteBuffer.allocate(JdwpPacket.JDWP_HEADER_LEN +
+                ChunkHandler.CHUNK_HEADER_LEN);
+        FakeVm.putDdmRequestHeader(buf, 0, CHUNK_FAIL, 0);
+        buf.flip();
+        mVms[1].write(buf);
+
+        // the buffer is only released once the monitor thread dropped the client.
+        Client failed = mVms[1].getClient();
+        long end = System.currentTimeMillis() + TIMEOUT * 1000;
+        while (failed.getReadBufferSize() != 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, failed.getReadBufferSize());
+        assertFalse(failed.isValid());
+
+        Client other = mVms[2].getClient();
+        sendChunk(mVms[2], 0);
+        end = System.currentTimeMillis() + TIMEOUT * 1000;
+        while (mHandler.getCount(other) == 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, mHandler.getCount(other));
+        assertNull(mHandler.mError, mHandler.mError);
+    }
+
+    /**
+     * Sends a chunk made of its sequence number followed by a variable amount of data that
+     * depends on it.
+     */
+    private static void sendChunk(FakeVm vm, int seq) throws IOException {
+        int length = 4 + getDataLength(seq);
+        ByteBuffer buf = ByteBuffer.allocate(JdwpPacket.JDWP_HEADER_LEN +
+                ChunkHandler.CHUNK_HEADER_LEN + length);
+        FakeVm.putDdmRequestHeader(buf, seq, CHUNK_TEST, length);
+        buf.putInt(seq);
+        for (int i = 0 ; buf.hasRemaining() ; i++) {
+            buf.put(getDataByte(seq, i));
+        }
+        buf.flip();
+        vm.write(buf);
+    }
+
+    private static int getDataLength(int seq) {
+        return (seq % 64) * 16;
+    }
+
+    private static byte getDataByte(int seq, int offset) {
+        return (byte) (seq + offset);
+    }
+
+    /**
+     * Waits for the monitor to be ready to accept clients.
+     */
+    private void waitForSelector() throws Exception {
+        Field field = MonitorThread.class.getDeclaredField("mSelector"); //$NON-NLS-1$
+        field.setAccessible(true);
+        long end = System.currentTimeMillis() + TIMEOUT * 1000;
+        while (field.get(mMonitor) == null) {
+            assertTrue(System.currentTimeMillis() < end);
+            Thread.sleep(10);
+        }
+    }
+
+    private static class TestHandler extends ChunkHandler {
+        private final Client mBlockedClient;
+        final CountDownLatch mRelease = new CountDownLatch(1);
+        final CountDownLatch mOthersDone = new CountDownLatch((CLIENT_COUNT - 1) * CHUNK_COUNT);
+        final CountDownLatch mAllDone = new CountDownLatch(CLIENT_COUNT * CHUNK_COUNT);
+
+        /** number of chunks handled for each client */
+        private final HashMap<Client, Integer> mCounts = new HashMap<Client, Integer>();
+        volatile String mError;
+
+        TestHandler(Client blockedClient) {
+            mBlockedClient = blockedClient;
+        }
+
+        synchronized int getCount(Client client) {
+            Integer count = mCounts.get(client);
+            return count != null ? count : 0;
+        }
+
+        @Override
+        public void clientReady(Client client) throws IOException {
+        }
+
+        @Override
+        public void clientDisconnected(Client client) {
+        }
+
+        @Override
+        public void handleChunk(Client client, int type, ByteBuffer data, boolean isReply,
+                int msgId) {
+            int seq = data.getInt();
+            if (seq != getCount(client)) {
+                mError = "chunk " + seq + " of " + client + " out of order"; //$NON-NLS-1$
+            } else if (data.remaining() != getDataLength(seq)) {
+                mError = "wrong length for chunk " + seq + " of " + client; //$NON-NLS-1$
+            } else {
+                for (int i = 0 ; data.hasRemaining() ; i++) {
+                    if (data.get() != getDataByte(seq, i)) {
+                        mError = "wrong data in chunk " + seq + " of " + client; //$NON-NLS-1$
+                        break;
+                    }
+                }
+            }
+
+            synchronized (this) {
+                mCounts.put(client, seq + 1);
+            }
+
+            if (client == mBlockedClient) {
+                if (seq == 0) {
+                    try {
+                        mRelease.await(TIMEOUT, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        mError = "interrupted"; //$NON-NLS-1$
+                    }
+                }
+                mAllDone.countDown();
+            } else {
+                // mAllDone first, so that it's up to date once mOthersDone reaches 0.
+                mAllDone.countDown();
+                mOthersDone.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.ddmlib.IDevice.DeviceState;
+import com.android.ddmlib.MultiDeviceInstaller.InstallResult;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link MultiDeviceInstaller} against devices of a {@link FakeAdbServer}.
+ */
+public class MultiDeviceInstallerTest extends TestCase {
+
+    private static final int DEVICE_COUNT = 8;
+    private static final String REMOTE_PATH = "/data/local/tmp/test.apk"; //$NON-NLS-1$
+    /** Time the fake devices take to store the package, in ms. */
+    private static final int PUSH_DELAY = 100;
+
+    private FakeAdbServer mServer;
+    private Device[] mDevices;
+    private File mPackage;
+    private byte[] mContent;
+
+    @Override
+    protected void setUp() throws Exception {
+        mServer = new FakeAdbServer();
+        mServer.setShellResponse("pm install -r \"" + REMOTE_PATH + "\"", //$NON-NLS-1$ //$NON-NLS-2$
+                "\tpkg: " + REMOTE_PATH + "\r\nSuccess\r\n"); //$NON-NLS-1$ //$NON-NLS-2$
+        mServer.setShellResponse("pm install \"" + REMOTE_PATH + "\"", //$NON-NLS-1$ //$NON-NLS-2$
+                "\tpkg: " + REMOTE_PATH + "\r\nFailure [INSTALL_FAILED_ALREADY_EXISTS]\r\n"); //$NON-NLS-1$ //$NON-NLS-2$
+        mServer.setSyncFileDelay(PUSH_DELAY);
+
+        mDevices = new Device[DEVICE_COUNT];
+        for (int i = 0 ; i < DEVICE_COUNT ; i++) {
+            String serial = "emulator-" + (5554 + i * 2); //$NON-NLS-1$
+            mServer.addDevice(serial);
+            mDevices[i] = new Device(null, serial, DeviceState.ONLINE);
+        }
+
+        File dir = File.createTempFile("install", null); //$NON-NLS-1$
+        dir.delete();
+        assertTrue(dir.mkdir());
+        mPackage = new File(dir, "test.apk"); //$NON-NLS-1$
+        mContent = new byte[150 * 1024];
+        for (int i = 0 ; i < mContent.length ; i++) {
+            mContent[i] = (byte) (i * 13 + (i >> 10));
+        }
+        FileOutputStream out = new FileOutputStream(mPackage);
+        out.write(mContent);
+        out.close();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.stop();
+        mPackage.delete();
+        mPackage.getParentFile().delete();
+    }
+
+    /**
+     * Tests installing on many devices, with a bounded number of devices at the same time.
+     */
+    public void testInstall() throws Exception {
+        MultiDeviceInstaller installer = new MultiDeviceInstaller(mServer.getSocketAddress());
+        installer.setConcurrency(3);
+
+        long start = System.currentTimeMillis();
+        InstallResult[] results = installer.install(mPackage.getPath(), mDevices, true);
+        long time = System.currentTimeMillis() - start;
+
+        assertEquals(DEVICE_COUNT, results.length);
+        for (int i = 0 ; i < DEVICE_COUNT ; i++) {
+            assertSame(mDevices[i], results[i].getDevice());
+            assertTrue(results[i].toString(), results[i].isSuccess());
+            assertTrue(results[i].getPushTime() >= PUSH_DELAY);
+        }
+        assertTrue(Arrays.equals(mContent, mServer.getSyncFile(REMOTE_PATH)));
+        assertEquals(DEVICE_COUNT, mServer.getSyncSendCount());
+
+        // the pushes overlap, without going over the concurrency. How much they speed up the
+        // install depends on the machine running the test, so the time is only printed.
+        int maxSyncs = mServer.getMaxConcurrentSyncConnections();
+        assertTrue("max concurrent syncs: " + maxSyncs, maxSyncs >= 2 && maxSyncs <= 3);
+        System.out.println("install took " + time + "ms"); //$NON-NLS-1$
+    }
+
+    /**
+     * Tests that the errors of the package manager and of adb are reported per device.
+     */
+    public void testFailures() throws Exception {
+        IDevice[] devices = new IDevice[] {
+                mDevices[0],
+                new Device(null, "unknown", DeviceState.ONLINE), //$NON-NLS-1$
+                mDevices[1] };
+
+        InstallResult[] results = new MultiDeviceInstaller(mServer.getSocketAddress()).install(
+                mPackage.getPath(), devices, false);
+
+        assertEquals("INSTALL_FAILED_ALREADY_EXISTS", results[0].getErrorMessage()); //$NON-NLS-1$
+        assertEquals("INSTALL_FAILED_ALREADY_EXISTS", results[2].getErrorMessage()); //$NON-NLS-1$
+        assertFalse(results[1].isSuccess());
+        assertNotNull(results[1].getErrorMessage());
+        assertEquals(2, mServer.getSyncSendCount());
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link MultiLineReceiver}.
+ */
+public class MultiLineReceiverTest extends TestCase {
+
+    /**
+     * Tests splitting lines within a single packet.
+     */
+    public void testSinglePacket() {
+        StringReceiver receiver = new StringReceiver();
+        send(receiver, "  foo \r\nbar\r\n\r\nbaz");
+        assertEquals(1, receiver.mCalls);
+        assertLines(receiver.mLines, "foo", "bar", "");
+
+        receiver.flush();
+        assertLines(receiver.mLines, "foo", "bar", "", "baz");
+        assertTrue(receiver.mDone);
+    }
+
+    /**
+     * Tests lines spanning several packets, including a \r\n split between two packets.
+     */
+    public void testSplitPackets() {
+        StringReceiver receiver = new StringReceiver();
+        send(receiver, "fo");
+        send(receiver, "o\r");
+        send(receiver, "\nbar");
+        send(receiver, "\r\nb");
+        send(receiver, "az\r\n");
+        receiver.flush();
+
+        assertLines(receiver.mLines, "foo", "bar", "baz", "");
+    }
+
+    /**
+     * Tests a lone \r, which is not a line terminator.
+     */
+    public void testLoneCarriageReturn() {
+        StringReceiver receiver = new StringReceiver();
+        receiver.setTrimLine(false);
+        send(receiver, "a\r");
+        send(receiver, "b\r\n");
+        receiver.flush();
+
+        assertLines(receiver.mLines, "a\rb", "");
+    }
+
+    /**
+     * Tests that the unfinished line is given untrimmed on flush, and that nothing is sent
+     * if there was no output at all.
+     */
+    public void testFlush() {
+        StringReceiver receiver = new StringReceiver();
+        receiver.flush();
+        assertLines(receiver.mLines);
+        assertTrue(receiver.mDone);
+
+        receiver = new StringReceiver();
+        send(receiver, "foo\r\n bar ");
+        receiver.flush();
+        assertLines(receiver.mLines, "foo", " bar ");
+    }
+
+    /**
+     * Tests that a line longer than the internal buffer is correctly reassembled.
+     */
+    public void testLongLine() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0 ; i < 10000 ; i++) {
+            sb.append((char)('a' + i % 26));
+        }
+        String line = sb.toString();
+
+        StringReceiver receiver = new StringReceiver();
+        for (int i = 0 ; i < line.length() ; i += 100) {
+            send(receiver, line.substring(i, i + 100));
+        }
+        send(receiver, "\r\n");
+
+        assertLines(receiver.mLines, line);
+    }
+
+    /**
+     * Tests the byte range variant, which must not go through {@link String} arrays.
+     */
+    public void testByteRange() {
+        final List<String> lines = new ArrayList<String>();
+        MultiLineReceiver receiver = new MultiLineReceiver() {
+            @Override
+            protected void processNewLine(byte[] data, int offset, int length) {
+                lines.add(new String(data, offset, length));
+            }
+
+            @Override
+            public void processNewLines(String[] l) {
+                fail("processNewLines should not be called");
+            }
+
+            public boolean isCancelled() {
+                return false;
+            }
+        };
+
+        send(receiver, "foo\r\nba");
+        send(receiver, "r\r\n");
+        receiver.flush();
+
+        assertLines(lines, "foo", "bar", "");
+    }
+
+    /**
+     * Tests the {@link CharSequence} variant.
+     */
+    public void testCharSequence() {
+        final StringBuilder sb = new StringBuilder();
+        MultiLineReceiver receiver = new MultiLineReceiver() {
+            @Override
+            protected void processNewLine(CharSequence line) {
+                sb.append(line).append('|');
+            }
+
+            @Override
+            public void processNewLines(String[] l) {
+                fail("processNewLines should not be called");
+            }
+
+            public boolean isCancelled() {
+                return false;
+            }
+        };
+
+        send(receiver, "D/dalvikvm( 123): GC\r\n\u00e9t\u00e9\r\n");
+
+        assertEquals("D/dalvikvm( 123): GC|\u00e9t\u00e9|", sb.toString());
+    }
+
+    private static void send(MultiLineReceiver receiver, String data) {
+        try {
+            byte[] bytes = data.getBytes(AdbHelper.DEFAULT_ENCODING);
+
+            // add some padding around the data to check the offset handling.
+            byte[] packet = new byte[bytes.length + 6];
+            System.arraycopy(bytes, 0, packet, 3, bytes.length);
+            receiver.addOutput(packet, 3, bytes.length);
+        } catch (Exception e) {
+            fail(e.getMessage());
+        }
+    }
+
+    private static void assertLines(List<String> actual, String... expected) {
+        assertEquals(expected.length, actual.size());
+        for (int i = 0 ; i < expected.length ; i++) {
+            assertEquals(expected[i], actual.get(i));
+        }
+    }
+
+    /**
+     * A {@link MultiLineReceiver} that stores all the lines it receives.
+     */
+    private static class StringReceiver extends MultiLineReceiver {
+        final List<String> mLines = new ArrayList<String>();
+        int mCalls = 0;
+        boolean mDone = false;
+
+        @Override
+        public void processNewLines(String[] lines) {
+            mCalls++;
+            for (String line : lines) {
+                mLines.add(line);
+            }
+        }
+
+        @Override
+        public void done() {
+            mDone = true;
+        }
+
+        public boolean isCancelled() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that {@link RawImageConverter} gives the same pixels as {@link RawImage#getARGB(int)}.
+ */
+public class RawImageConverterTest extends TestCase {
+
+    private static final int WIDTH = 37;
+    private static final int HEIGHT = 23;
+
+    private static final int BENCHMARK_WIDTH = 1080;
+    private static final int BENCHMARK_HEIGHT = 1920;
+    private static final int BENCHMARK_ITERATIONS = 10;
+
+    public void testRgb565() {
+        checkConversion(createImage(16, 11, 5, 5, 6, 0, 5, 0, 0));
+    }
+
+    public void testRgb565Compatibility() {
+        // the header of the original protocol only has the size.
+        RawImage image = createImage(16, 0, 0, 0, 0, 0, 0, 0, 0);
+        ByteBuffer header = ByteBuffer.allocate(12);
+        header.putInt(image.size).putInt(WIDTH).putInt(HEIGHT).flip();
+        assertTrue(image.readHeader(16, header));
+        checkConversion(image);
+    }
+
+    public void testRgba8888() {
+        checkConversion(createImage(32, 0, 8, 8, 8, 16, 8, 24, 8));
+    }
+
+    public void testRgbx8888() {
+        checkConversion(createImage(32, 0, 8, 8, 8, 16, 8, 24, 0));
+    }
+
+    public void testBgra8888() {
+        checkConversion(createImage(32, 16, 8, 8, 8, 0, 8, 24, 8));
+    }
+
+    public void testBgrx8888() {
+        checkConversion(createImage(32, 16, 8, 8, 8, 0, 8, 0, 0));
+    }
+
+    /**
+     * Tests layouts without a dedicated conversion.
+     */
+    public void testGeneric() {
+        // ARGB8888, alpha in the low byte.
+        checkConversion(createImage(32, 8, 8, 16, 8, 24, 8, 0, 8));
+        // RGB565 in a 32 bit frame buffer.
+        checkConversion(createImage(32, 11, 5, 5, 6, 0, 5, 0, 0));
+        // ARGB4444.
+        checkConversion(createImage(16, 8, 4, 4, 4, 0, 4, 12, 4));
+    }
+
+    public void testRotated() {
+        checkConversion(createImage(32, 0, 8, 8, 8, 16, 8, 24, 8).getRotated());
+        checkConversion(createImage(16, 11, 5, 5, 6, 0, 5, 0, 0).getRotated());
+    }
+
+    public void testBufferedImage() {
+        RawImage rawImage = createImage(32, 16, 8, 8, 8, 0, 8, 24, 8);
+        BufferedImage image = RawImageConverter.toBufferedImage(rawImage);
+        for (int y = 0 ; y < HEIGHT ; y++) {
+            for (int x = 0 ; x < WIDTH ; x++) {
+                int index = (y * WIDTH + x) * 4;
+                assertEquals(rawImage.getARGB(index), image.getRGB(x, y));
+            }
+        }
+
+        try {
+            RawImageConverter.convert(rawImage, new BufferedImage(WIDTH, HEIGHT,
+                    BufferedImage.TYPE_INT_RGB));
+            fail("the type of the image wasn't checked");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            RawImageConverter.convert(rawImage, new BufferedImage(HEIGHT, WIDTH,
+                    BufferedImage.TYPE_INT_ARGB));
+            fail("the size of the image wasn't checked");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testRegions() {
+        RawImage rawImage = createImage(16, 11, 5, 5, 6, 0, 5, 0, 0);
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        Rectangle[] regions = new Rectangle[] {
+                new Rectangle(0, 0, 5, 3), new Rectangle(10, 7, WIDTH - 10, HEIGHT - 7) };
+        RawImageConverter.convert(rawImage, image, regions);
+        for (int y = 0 ; y < HEIGHT ; y++) {
+            for (int x = 0 ; x < WIDTH ; x++) {
+                int expected = 0;
+                if (regions[0].contains(x, y) || regions[1].contains(x, y)) {
+                    expected = rawImage.getARGB((y * WIDTH + x) * 2);
+                }
+                assertEquals(expected, image.getRGB(x, y));
+            }
+        }
+    }
+
+    public void testParallel() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            // big enough to be split between several tasks.
+            RawImage rawImage = createImage(16, 11, 5, 5, 6, 0, 5, 0, 0, 720, 1280);
+            int[] argb = new int[rawImage.width * rawImage.height];
+            RawImageConverter.convert(rawImage, argb, executor);
+            for (int i = 0 ; i < argb.length ; i++) {
+                assertEquals(rawImage.getARGB(i * 2), argb[i]);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Converts a high resolution frame buffer, compares with the conversion a pixel at a time,
+     * and reports the time taken by both. The times depend on the machine running the test, so
+     * they are only printed.
+     */
+    public void testConvertBenchmark() {
+        RawImage rawImage = createImage(32, 0, 8, 8, 8, 16, 8, 24, 8,
+                BENCHMARK_WIDTH, BENCHMARK_HEIGHT);
+        BufferedImage expected = new BufferedImage(rawImage.width, rawImage.height,
+                BufferedImage.TYPE_INT_ARGB);
+        BufferedImage image = new BufferedImage(rawImage.width, rawImage.height,
+                BufferedImage.TYPE_INT_ARGB);
+
+        // warm up
+        convertPerPixel(rawImage, expected);
+        RawImageConverter.convert(rawImage, image);
+
+        long start = System.nanoTime();
+        for (int i = 0 ; i < BENCHMARK_ITERATIONS ; i++) {
+            convertPerPixel(rawImage, expected);
+        }
+        long perPixel = (System.nanoTime() - start) / BENCHMARK_ITERATIONS;
+
+        start = System.nanoTime();
+        for (int i = 0 ; i < BENCHMARK_ITERATIONS ; i++) {
+            RawImageConverter.convert(rawImage, image);
+        }
+        long bulk = (System.nanoTime() - start) / BENCHMARK_ITERATIONS;
+
+        int[] expectedPixels = expected.getRGB(0, 0, rawImage.width, rawImage.height, null, 0,
+                rawImage.width);
+        int[] pixels = image.getRGB(0, 0, rawImage.width, rawImage.height, null, 0,
+                rawImage.width);
+        assertTrue(Arrays.equals(expectedPixels, pixels));
+
+        System.out.println("bulk conversion " + bulk / 1000 + "us, per pixel " //$NON-NLS-1$
+                + perPixel / 1000 + "us"); //$NON-NLS-1$
+    }
+
+    /**
+     * Converts an image the way the screenshot tools did, a pixel at a time.
+     */
+    private static void convertPerPixel(RawImage rawImage, BufferedImage image) {
+        int index = 0;
+        int indexInc = rawImage.bpp >> 3;
+        for (int y = 0 ; y < rawImage.height ; y++) {
+            for (int x = 0 ; x < rawImage.width ; x++) {
+                image.setRGB(x, y, rawImage.getARGB(index));
+                index += indexInc;
+            }
+        }
+    }
+
+    private static void checkConversion(RawImage rawImage) {
+        int[] argb = new int[rawImage.width * rawImage.height];
+        RawImageConverter.convert(rawImage, argb);
+        int bytesPerPixel = rawImage.bpp >> 3;
+        for (int i = 0 ; i < argb.length ; i++) {
+            assertEquals("pixel " + i, rawImage.getARGB(i * bytesPerPixel), argb[i]);
+        }
+    }
+
+    private static RawImage createImage(int bpp, int redOffset, int redLength, int greenOffset,
+            int greenLength, int blueOffset, int blueLength, int alphaOffset, int alphaLength) {
+        return createImage(bpp, redOffset, redLength, greenOffset, greenLength, blueOffset,
+                blueLength, alphaOffset, alphaLength, WIDTH, HEIGHT);
+    }
+
+    private static RawImage createImage(int bpp, int redOffset, int redLength, int greenOffset,
+            int greenLength, int blueOffset, int blueLength, int alphaOffset, int alphaLength,
+            int width, int height) {
+        RawImage image = new RawImage();
+        image.version = 1;
+        image.bpp = bpp;
+        image.width = width;
+        image.height = height;
+        image.size = width * height * (bpp >> 3);
+        image.red_offset = redOffset;
+        image.red_length = redLength;
+        image.green_offset = greenOffset;
+        image.green_length = greenLength;
+        image.blue_offset = blueOffset;
+        image.blue_length = blueLength;
+        image.alpha_offset = alphaOffset;
+        image.alpha_length = alphaLength;
+        image.data = new byte[image.size];
+        new Random(bpp + redOffset).nextBytes(image.data);
+        return image;
+    }
+}
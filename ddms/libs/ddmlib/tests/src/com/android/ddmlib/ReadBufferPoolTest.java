@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link ReadBufferPool}.
+ */
+public class ReadBufferPoolTest extends TestCase {
+
+    private ReadBufferPool mPool;
+
+    @Override
+    protected void setUp() throws Exception {
+        mPool = new ReadBufferPool();
+    }
+
+    /**
+     * Tests that the pooled buffers are rounded up to a power of two.
+     */
+    public void testSizes() {
+        assertEquals(ReadBufferPool.MIN_SIZE, mPool.acquire(1).capacity());
+        assertEquals(ReadBufferPool.MIN_SIZE, mPool.acquire(ReadBufferPool.MIN_SIZE).capacity());
+        assertEquals(ReadBufferPool.MIN_SIZE * 2,
+                mPool.acquire(ReadBufferPool.MIN_SIZE + 1).capacity());
+        assertEquals(ReadBufferPool.MAX_POOLED_SIZE,
+                mPool.acquire(ReadBufferPool.MAX_POOLED_SIZE / 2 + 1).capacity());
+
+        ByteBuffer buffer = mPool.acquire(3000);
+        assertTrue(buffer.isDirect());
+        assertEquals(0, buffer.position());
+        assertEquals(4096, buffer.limit());
+        assertEquals(5, mPool.getAllocationCount());
+    }
+
+    /**
+     * Tests that released buffers are reused, empty.
+     */
+    public void testReuse() {
+        ByteBuffer buffer = mPool.acquire(10000);
+        buffer.putInt(42);
+        mPool.release(buffer);
+        assertEquals(buffer.capacity(), mPool.getIdleBytes());
+
+        ByteBuffer other = mPool.acquire(9000);
+        assertSame(buffer, other);
+        assertEquals(0, other.position());
+        assertEquals(other.capacity(), other.limit());
+        assertEquals(1, mPool.getReuseCount());
+        assertEquals(1, mPool.getAllocationCount());
+        assertEquals(0, mPool.getIdleBytes());
+
+        // a buffer of another size isn't reused.
+        mPool.release(other);
+        assertNotSame(other, mPool.acquire(100));
+    }
+
+    /**
+     * Tests that buffers larger than the largest pooled size are exact size heap buffers,
+     * which are not kept once released.
+     */
+    public void testLargeBuffers() {
+        int size = ReadBufferPool.MAX_POOLED_SIZE * 5 + 1;
+        ByteBuffer buffer = mPool.acquire(size);
+        assertEquals(size, buffer.capacity());
+        assertFalse(buffer.isDirect());
+        assertEquals(1, mPool.getLargeAllocationCount());
+        assertEquals(0, mPool.getAllocationCount());
+
+        mPool.release(buffer);
+        assertEquals(0, mPool.getIdleBytes());
+        assertNotSame(buffer, mPool.acquire(size));
+    }
+
+    /**
+     * Tests that the pool doesn't keep more than {@link ReadBufferPool#MAX_IDLE_BYTES_PER_SIZE}
+     * bytes for a given size.
+     */
+    public void testIdleLimit() {
+        int size = ReadBufferPool.MAX_POOLED_SIZE / 2;
+        ByteBuffer[] buffers = new ByteBuffer[4];
+        for (int i = 0 ; i < buffers.length ; i++) {
+            buffers[i] = mPool.acquire(size);
+        }
+        for (ByteBuffer buffer : buffers) {
+            mPool.release(buffer);
+        }
+
+        assertEquals(ReadBufferPool.MAX_IDLE_BYTES_PER_SIZE, mPool.getIdleBytes());
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Builds the content of a REAL chunk.
+ */
+class RealChunkBuilder {
+    private static final int MESSAGE_HEADER_LEN = 15;
+
+    private final int mEntryHeaderLen;
+    private final int mStackFrameLen;
+    private final String[] mClassNames;
+    private final String[] mMethodNames;
+    private final String[] mFileNames;
+
+    private ByteBuffer mEntries = ByteBuffer.allocate(1024);
+    private int mEntryCount = 0;
+
+    RealChunkBuilder(int entryHeaderLen, int stackFrameLen, String[] classNames,
+            String[] methodNames, String[] fileNames) {
+        mEntryHeaderLen = entryHeaderLen;
+        mStackFrameLen = stackFrameLen;
+        mClassNames = classNames;
+        mMethodNames = methodNames;
+        mFileNames = fileNames;
+    }
+
+    /**
+     * Adds an entry.
+     * @param stack the frames of the stack, as class, method, file and line.
+     */
+    void addEntry(int size, int threadId, int classIndex, int[][] stack) {
+        ensureCapacity(mEntryHeaderLen + stack.length * mStackFrameLen);
+
+        mEntries.putInt(size);
+        mEntries.putShort((short) threadId);
+        mEntries.putShort((short) classIndex);
+        mEntries.put((byte) stack.length);
+        pad(mEntryHeaderLen - 9);
+
+        for (int[] frame : stack) {
+            mEntries.putShort((short) frame[0]);
+            mEntries.putShort((short) frame[1]);
+            mEntries.putShort((short) frame[2]);
+            mEntries.putShort((short) frame[3]);
+            pad(mStackFrameLen - 8);
+        }
+
+        mEntryCount++;
+    }
+
+    ByteBuffer build() {
+        int stringsLength = getStringsLength(mClassNames) + getStringsLength(mMethodNames) +
+                getStringsLength(mFileNames);
+        int offsetToStrings = MESSAGE_HEADER_LEN + mEntries.position();
+
+        ByteBuffer buf = ByteBuffer.allocate(offsetToStrings + stringsLength);
+        buf.order(ChunkHandler.CHUNK_ORDER);
+        buf.put((byte) MESSAGE_HEADER_LEN);
+        buf.put((byte) mEntryHeaderLen);
+        buf.put((byte) mStackFrameLen);
+        buf.putShort((short) mEntryCount);
+        buf.putInt(offsetToStrings);
+        buf.putShort((short) mClassNames.length);
+        buf.putShort((short) mMethodNames.length);
+        buf.putShort((short) mFileNames.length);
+
+        mEntries.flip();
+        buf.put(mEntries);
+
+        putStrings(buf, mClassNames);
+        putStrings(buf, mMethodNames);
+        putStrings(buf, mFileNames);
+
+        buf.flip();
+        return buf;
+    }
+
+    private void pad(int count) {
+        for (int i = 0 ; i < count ; i++) {
+            mEntries.put((byte) 0xee);
+        }
+    }
+
+    private void ensureCapacity(int length) {
+        if (mEntries.remaining() < length) {
+            ByteBuffer entries = ByteBuffer.allocate(
+                    Math.max(mEntries.capacity() * 2, mEntries.position() + length));
+            mEntries.flip();
+            entries.put(mEntries);
+            mEntries = entries;
+        }
+    }
+
+    private static int getStringsLength(String[] strings) {
+        int length = 0;
+        for (String s : strings) {
+            length += 4 + s.length() * 2;
+        }
+        return length;
+    }
+
+    private static void putStrings(ByteBuffer buf, String[] strings) {
+        for (String s : strings) {
+            buf.putInt(s.length());
+            ChunkHandler.putString(buf, s);
+        }
+    }
+}
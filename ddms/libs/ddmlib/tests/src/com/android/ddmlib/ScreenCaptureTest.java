@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.ddmlib.IDevice.DeviceState;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link ScreenCapture} against the frame buffer of a {@link FakeAdbServer}.
+ */
+public class ScreenCaptureTest extends TestCase {
+
+    private static final String SERIAL = "fakeserial"; //$NON-NLS-1$
+
+    private static final int WIDTH = 100;
+    private static final int HEIGHT = 70;
+
+    private static final int BENCHMARK_WIDTH = 720;
+    private static final int BENCHMARK_HEIGHT = 1280;
+    private static final int BENCHMARK_FPS = 20;
+    private static final int BENCHMARK_DURATION = 2000;
+
+    private FakeAdbServer mServer;
+    private Device mDevice;
+
+    @Override
+    protected void setUp() throws Exception {
+        mServer = new FakeAdbServer();
+        mServer.addDevice(SERIAL);
+        mDevice = new Device(null, SERIAL, DeviceState.ONLINE);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.stop();
+    }
+
+    /**
+     * Tests that the first frame is entirely dirty, and that following frames only report the
+     * tiles that changed.
+     */
+    public void testDirtyRegions() throws Exception {
+        RawImage image = createImage(WIDTH, HEIGHT);
+        mServer.setFrameBuffer(image);
+        mServer.setFrameBufferUpdate(40, 50, 10, 10);
+
+        CollectingListener listener = new CollectingListener();
+        ScreenCapture capture = startCapture(100, listener);
+        try {
+            listener.waitForFrames(3);
+        } finally {
+            capture.stop();
+        }
+
+        assertEquals(new Rectangle(0, 0, WIDTH, HEIGHT), listener.getRegions(0)[0]);
+        assertEquals(1, listener.getRegions(0).length);
+        for (int i = 1 ; i < 3 ; i++) {
+            Rectangle[] regions = listener.getRegions(i);
+            assertEquals(1, regions.length);
+            assertEquals(new Rectangle(32, 32, 32, 32), regions[0]);
+        }
+
+        // the first frame is the original one, the next ones are incremented in the region.
+        byte[] data = listener.getData(2);
+        assertEquals(image.data[0], data[0]);
+        int index = (55 * WIDTH + 45) * 4;
+        assertEquals((byte) (image.data[index] + 2), data[index]);
+    }
+
+    /**
+     * Tests that frames identical to the previous one are captured, but not sent.
+     */
+    public void testUnchangedFrames() throws Exception {
+        mServer.setFrameBuffer(createImage(WIDTH, HEIGHT));
+
+        CollectingListener listener = new CollectingListener();
+        ScreenCapture capture = startCapture(100, listener);
+        try {
+            while (capture.getCaptureCount() < 5) {
+                Thread.sleep(10);
+            }
+        } finally {
+            capture.stop();
+        }
+
+        assertEquals(1, capture.getFrameCount());
+        assertEquals(1, listener.getFrameCount());
+    }
+
+    /**
+     * Tests that a capture stops, and reports the error, when the frame buffer can't be read.
+     */
+    public void testCaptureFailed() throws Exception {
+        CollectingListener listener = new CollectingListener();
+        ScreenCapture capture = startCapture(100, listener);
+        Exception e = listener.waitForError();
+
+        assertTrue(e instanceof AdbCommandRejectedException);
+        assertFalse(capture.isRunning());
+        assertEquals(0, listener.getFrameCount());
+    }
+
+    /**
+     * Tests merging tiles into regions, along rows and then across rows.
+     */
+    public void testGetDirtyRegions() {
+        RawImage previous = createImage(WIDTH, HEIGHT);
+        RawImage current = createImage(WIDTH, HEIGHT);
+        // tiles (0, 0), (1, 0), (0, 1), (1, 1) and (3, 1).
+        setPixel(current, 0, 0);
+        setPixel(current, 63, 31);
+        setPixel(current, 10, 40);
+        setPixel(current, 40, 63);
+        setPixel(current, WIDTH - 1, 32);
+
+        Rectangle[] regions = ScreenCapture.getDirtyRegions(previous, current);
+        assertEquals(2, regions.length);
+        assertEquals(new Rectangle(0, 0, 64, 64), regions[0]);
+        assertEquals(new Rectangle(96, 32, WIDTH - 96, 32), regions[1]);
+
+        assertEquals(0, ScreenCapture.getDirtyRegions(previous, previous).length);
+
+        RawImage resized = createImage(HEIGHT, WIDTH);
+        regions = ScreenCapture.getDirtyRegions(previous, resized);
+        assertEquals(1, regions.length);
+        assertEquals(new Rectangle(0, 0, HEIGHT, WIDTH), regions[0]);
+    }
+
+    /**
+     * Streams a high resolution frame buffer with a small animation, and reports the frame rate
+     * and the CPU time of the capture thread. Both depend on the machine running the test, so
+     * they are only printed; the capture must just never go faster than requested.
+     */
+    public void testFrameRateBenchmark() throws Exception {
+        mServer.setFrameBuffer(createImage(BENCHMARK_WIDTH, BENCHMARK_HEIGHT));
+        mServer.setFrameBufferUpdate(100, 100, 48, 48);
+
+        CollectingListener listener = new CollectingListener();
+        ScreenCapture capture = startCapture(BENCHMARK_FPS, listener);
+        listener.waitForFrames(1);
+        int startFrames = capture.getFrameCount();
+        long startCpu = capture.getCpuTime();
+        long start = System.nanoTime();
+        Thread.sleep(BENCHMARK_DURATION);
+        int frames = capture.getFrameCount() - startFrames;
+        long cpu = capture.getCpuTime() - startCpu;
+        long elapsed = System.nanoTime() - start;
+        capture.stop();
+
+        double fps = frames * 1e9 / elapsed;
+        String message = String.format("%.1f fps, %d ms of CPU per frame", fps,
+                frames > 0 ? cpu / frames / 1000000 : 0);
+        System.out.println(message);
+        assertTrue(message, frames > 0 && fps < BENCHMARK_FPS * 1.1);
+
+        // only the tiles of the animation are reported.
+        Rectangle[] regions = listener.getRegions(listener.getFrameCount() - 1);
+        assertEquals(1, regions.length);
+        assertEquals(new Rectangle(96, 96, 64, 64), regions[0]);
+    }
+
+    private ScreenCapture startCapture(int fps, CollectingListener listener) {
+        ScreenCapture capture = new ScreenCapture(mServer.getSocketAddress(), mDevice, fps,
+                listener);
+        capture.start();
+        return capture;
+    }
+
+    private static void setPixel(RawImage image, int x, int y) {
+        image.data[(y * image.width + x) * 4]++;
+    }
+
+    private static RawImage createImage(int width, int height) {
+        RawImage image = new RawImage();
+        image.bpp = 32;
+        image.width = width;
+        image.height = height;
+        image.red_offset = 0;
+        image.red_length = 8;
+        image.green_offset = 8;
+        image.green_length = 8;
+        image.blue_offset = 16;
+        image.blue_length = 8;
+        image.alpha_offset = 24;
+        image.alpha_length = 8;
+        image.data = new byte[width * height * 4];
+        for (int i = 0 ; i < image.data.length ; i++) {
+            image.data[i] = (byte) i;
+        }
+        image.size = image.data.length;
+
+        return image;
+    }
+
+    /**
+     * A {@link ScreenCapture.IFrameListener} that keeps a copy of the frames it receives.
+     */
+    private static class CollectingListener implements ScreenCapture.IFrameListener {
+        private final List<byte[]> mData = new ArrayList<byte[]>();
+        private final List<Rectangle[]> mRegions = new ArrayList<Rectangle[]>();
+        private Exception mError;
+
+        public synchronized void frameCaptured(ScreenCapture capture, RawImage image,
+                Rectangle[] dirtyRegions) {
+            mData.add(image.data.clone());
+            mRegions.add(dirtyRegions);
+            notifyAll();
+        }
+
+        public synchronized void captureFailed(ScreenCapture capture, Exception e) {
+            mError = e;
+            notifyAll();
+        }
+
+        synchronized void waitForFrames(int count) throws InterruptedException {
+            long end = System.currentTimeMillis() + 5000;
+            while (mData.size() < count && mError == null) {
+                long delay = end - System.currentTimeMillis();
+                assertTrue("frames not received in time", delay > 0);
+                wait(delay);
+            }
+            assertNull(mError);
+        }
+
+        synchronized Exception waitForError() throws InterruptedException {
+            long end = System.currentTimeMillis() + 5000;
+            while (mError == null) {
+                long delay = end - System.currentTimeMillis();
+                assertTrue("error not received in time", delay > 0);
+                wait(delay);
+            }
+            return mError;
+        }
+
+        synchronized int getFrameCount() {
+            return mData.size();
+        }
+
+        synchronized byte[] getData(int frame) {
+            return mData.get(frame);
+        }
+
+        synchronized Rectangle[] getRegions(int frame) {
+            return mRegions.get(frame);
+        }
+    }
+}
@@ -0,0 +1,443 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.ddmlib.IDevice.DeviceState;
+import com.android.ddmlib.SyncService.ISyncProgressMonitor;
+import com.android.ddmlib.SyncService.SyncResult;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the transfers of {@link SyncService} against the sync service of a
+ * {@link FakeAdbServer}.
+ */
+public class SyncServiceTest extends TestCase {
+
+    private static final String SERIAL = "fakeserial"; //$NON-NLS-1$
+    private static final int CONNECTION_COUNT = 4;
+
+    /** Number of small files of the benchmark. */
+    private static final int BENCHMARK_FILES = 200;
+    private static final int BENCHMARK_FILE_SIZE = 4096;
+    /** Time the fake device takes to store each file, in ms. */
+    private static final int BENCHMARK_FILE_DELAY = 5;
+
+    private FakeAdbServer mServer;
+    private Device mDevice;
+    private SyncService mSync;
+    private File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        mServer = new FakeAdbServer();
+        mServer.addDevice(SERIAL);
+        mDevice = new Device(null, SERIAL, DeviceState.ONLINE);
+
+        mSync = new SyncService(mServer.getSocketAddress(), mDevice);
+        assertTrue(mSync.openSync());
+
+        mDir = File.createTempFile("sync", null); //$NON-NLS-1$
+        mDir.delete();
+        assertTrue(mDir.mkdir());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSync.close();
+        mServer.stop();
+
+        delete(mDir);
+    }
+
+    /**
+     * Tests pushing files of various sizes on several connections.
+     */
+    public void testPushFiles() throws Exception {
+        int[] sizes = new int[] { 0, 1, 1000, 64 * 1024 - 1, 64 * 1024, 64 * 1024 + 1,
+                300 * 1024 };
+        int count = 50;
+        String[] local = new String[count];
+        String[] remote = new String[count];
+        long total = 0;
+        for (int i = 0 ; i < count ; i++) {
+            int size = sizes[i % sizes.length];
+            local[i] = createFile("file" + i, i, size).getPath(); //$NON-NLS-1$
+            remote[i] = "/data/local/tmp/file" + i; //$NON-NLS-1$
+            total += size;
+        }
+
+        TestMonitor monitor = new TestMonitor();
+        SyncResult result = mSync.pushFiles(local, remote, CONNECTION_COUNT, monitor);
+        assertEquals(result.getMessage(), SyncService.RESULT_OK, result.getCode());
+
+        assertEquals(count, mServer.getSyncFileCount());
+        for (int i = 0 ; i < count ; i++) {
+            assertTrue(remote[i], Arrays.equals(getContent(i, sizes[i % sizes.length]),
+                    mServer.getSyncFile(remote[i])));
+        }
+
+        assertEquals(CONNECTION_COUNT, mServer.getMaxConcurrentSyncConnections());
+        assertEquals(total, monitor.mTotal);
+        assertEquals(total, monitor.mWork);
+        assertTrue(monitor.mStopped);
+
+        // the main connection is still usable.
+        File f = createFile("single", 0, 10); //$NON-NLS-1$
+        result = mSync.pushFile(f.getPath(), "/data/local/tmp/single", //$NON-NLS-1$
+                SyncService.getNullProgressMonitor());
+        assertEquals(result.getMessage(), SyncService.RESULT_OK, result.getCode());
+    }
+
+    /**
+     * Tests pulling files of various sizes on several connections.
+     */
+    public void testPullFiles() throws Exception {
+        int[] sizes = new int[] { 0, 1, 64 * 1024, 64 * 1024 + 1, 200 * 1024 };
+        int count = 40;
+        String[] remote = new String[count];
+        String[] local = new String[count];
+        long total = 0;
+        for (int i = 0 ; i < count ; i++) {
+            int size = sizes[i % sizes.length];
+            remote[i] = "/sdcard/file" + i; //$NON-NLS-1$
+            local[i] = new File(mDir, "pulled" + i).getPath(); //$NON-NLS-1$
+            mServer.setSyncFile(remote[i], getContent(i, size));
+            total += size;
+        }
+
+        TestMonitor monitor = new TestMonitor();
+        SyncResult result = mSync.pullFiles(remote, local, CONNECTION_COUNT, monitor);
+        assertEquals(result.getMessage(), SyncService.RESULT_OK, result.getCode());
+
+        for (int i = 0 ; i < count ; i++) {
+            assertTrue(local[i], Arrays.equals(getContent(i, sizes[i % sizes.length]),
+                    readFile(new File(local[i]))));
+        }
+        assertEquals(total, monitor.mWork);
+    }
+
+    /**
+     * Tests that a file refused by the device fails the transfer, with the device's message,
+     * while the other files are still acknowledged.
+     */
+    public void testPushFailure() throws Exception {
+        int count = 30;
+        String[] local = new String[count];
+        String[] remote = new String[count];
+        for (int i = 0 ; i < count ; i++) {
+            local[i] = createFile("file" + i, i, 100).getPath(); //$NON-NLS-1$
+            remote[i] = (i == 10 ? "/system/file" : "/data/file") + i; //$NON-NLS-1$ //$NON-NLS-2$
+        }
+
+        SyncResult result = mSync.pushFiles(local, remote, 1,
+                SyncService.getNullProgressMonitor());
+        assertEquals(SyncService.RESULT_UNKNOWN_ERROR, result.getCode());
+        assertEquals("Read-only file system", result.getMessage()); //$NON-NLS-1$
+        assertNull(mServer.getSyncFile("/system/file10")); //$NON-NLS-1$
+        assertNotNull(mServer.getSyncFile("/data/file9")); //$NON-NLS-1$
+    }
+
+    /**
+     * Tests that pulling a file missing on the device fails with the device's message.
+     */
+    public void testPullMissingFile() throws Exception {
+        mServer.setSyncFile("/sdcard/a", new byte[10]); //$NON-NLS-1$
+        SyncResult result = mSync.pullFiles(
+                new String[] { "/sdcard/a", "/sdcard/missing" }, //$NON-NLS-1$ //$NON-NLS-2$
+                new String[] { new File(mDir, "a").getPath(), //$NON-NLS-1$
+                        new File(mDir, "missing").getPath() }, //$NON-NLS-1$
+                1, SyncService.getNullProgressMonitor());
+        assertEquals(SyncService.RESULT_UNKNOWN_ERROR, result.getCode());
+        assertEquals("No such file or directory", result.getMessage()); //$NON-NLS-1$
+        assertEquals(10, new File(mDir, "a").length()); //$NON-NLS-1$
+    }
+
+    /**
+     * Tests that a canceled transfer stops.
+     */
+    public void testCancel() throws Exception {
+        String[] local = new String[] { createFile("file", 0, 10).getPath() }; //$NON-NLS-1$
+        TestMonitor monitor = new TestMonitor();
+        monitor.mCanceled = true;
+        SyncResult result = mSync.pushFiles(local, new String[] { "/data/file" }, //$NON-NLS-1$
+                CONNECTION_COUNT, monitor);
+        assertEquals(SyncService.RESULT_CANCELED, result.getCode());
+        assertEquals(0, mServer.getSyncFileCount());
+    }
+
+    /**
+     * Compares pushing many small files one at a time with the bulk transfer, with a device that
+     * takes some time to store each file. The times depend on the machine running the test, so
+     * they are only printed.
+     */
+    public void testPushBenchmark() throws Exception {
+        mServer.setSyncFileDelay(BENCHMARK_FILE_DELAY);
+
+        String[] local = new String[BENCHMARK_FILES];
+        String[] remote = new String[BENCHMARK_FILES];
+        for (int i = 0 ; i < BENCHMARK_FILES ; i++) {
+            local[i] = createFile("file" + i, i, BENCHMARK_FILE_SIZE).getPath(); //$NON-NLS-1$
+            remote[i] = "/data/local/tmp/file" + i; //$NON-NLS-1$
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0 ; i < BENCHMARK_FILES ; i++) {
+            SyncResult result = mSync.pushFile(local[i], remote[i],
+                    SyncService.getNullProgressMonitor());
+            assertEquals(SyncService.RESULT_OK, result.getCode());
+        }
+        long single = (System.nanoTime() - start) / 1000000;
+
+        start = System.nanoTime();
+        SyncResult result = mSync.pushFiles(local, remote, CONNECTION_COUNT,
+                SyncService.getNullProgressMonitor());
+        long bulk = (System.nanoTime() - start) / 1000000;
+        assertEquals(SyncService.RESULT_OK, result.getCode());
+        assertEquals(BENCHMARK_FILES, mServer.getSyncFileCount());
+
+        System.out.println("bulk push took " + bulk + "ms, single file push " //$NON-NLS-1$
+                + single + "ms"); //$NON-NLS-1$
+    }
+
+    /**
+     * Tests that syncing a directory only pushes the files that are missing or different.
+     */
+    public void testSyncDirectory() throws Exception {
+        File a = createFile("tree/a", 1, 1000); //$NON-NLS-1$
+        File b = createFile("tree/sub/b", 2, 70 * 1024); //$NON-NLS-1$
+        File c = createFile("tree/sub/c", 3, 0); //$NON-NLS-1$
+        String local = new File(mDir, "tree").getPath(); //$NON-NLS-1$
+
+        TestMonitor monitor = new TestMonitor();
+        SyncResult result = mSync.syncDirectory(local, "/data/tree", monitor); //$NON-NLS-1$
+        assertEquals(result.getMessage(), SyncService.RESULT_OK, result.getCode());
+        assertEquals(3, mServer.getSyncSendCount());
+        assertTrue(Arrays.equals(readFile(b), mServer.getSyncFile("/data/tree/sub/b"))); //$NON-NLS-1$
+        assertNotNull(mServer.getSyncFile("/data/tree/sub/c")); //$NON-NLS-1$
+        assertEquals((int) (a.lastModified() / 1000),
+                mServer.getSyncFileTime("/data/tree/a")); //$NON-NLS-1$
+        assertEquals(1000 + 70 * 1024, monitor.mWork);
+
+        // nothing changed.
+        result = mSync.syncDirectory(local, "/data/tree", //$NON-NLS-1$
+                SyncService.getNullProgressMonitor());
+        assertEquals(SyncService.RESULT_OK, result.getCode());
+        assertEquals(3, mServer.getSyncSendCount());
+
+        // a new content, and a new modification time.
+        createFile("tree/a", 4, 1000); //$NON-NLS-1$
+        assertTrue(a.setLastModified(a.lastModified() + 10000));
+        assertTrue(c.setLastModified(c.lastModified() + 10000));
+        result = mSync.syncDirectory(local, "/data/tree", //$NON-NLS-1$
+                SyncService.getNullProgressMonitor());
+        assertEquals(SyncService.RESULT_OK, result.getCode());
+        assertEquals(5, mServer.getSyncSendCount());
+        assertTrue(Arrays.equals(getContent(4, 1000),
+                mServer.getSyncFile("/data/tree/a"))); //$NON-NLS-1$
+
+        result = mSync.syncDirectory(new File(mDir, "none").getPath(), "/data/tree", //$NON-NLS-1$ //$NON-NLS-2$
+                SyncService.getNullProgressMonitor());
+        assertEquals(SyncService.RESULT_NO_LOCAL_FILE, result.getCode());
+    }
+
+    /**
+     * Tests that a saved manifest lets a sync skip the device queries.
+     */
+    public void testSyncManifest() throws Exception {
+        createFile("tree/a", 1, 100); //$NON-NLS-1$
+        createFile("tree/b", 2, 200); //$NON-NLS-1$
+        String local = new File(mDir, "tree").getPath(); //$NON-NLS-1$
+        File manifestDir = new File(mDir, "manifests"); //$NON-NLS-1$
+
+        SyncManifest manifest = SyncManifest.load(manifestDir, "host:5555"); //$NON-NLS-1$
+        assertEquals(0, manifest.getEntryCount());
+        SyncResult result = mSync.syncDirectory(local, "/data/tree", manifest, 0, //$NON-NLS-1$
+                SyncService.getNullProgressMonitor());
+        assertEquals(SyncService.RESULT_OK, result.getCode());
+        assertEquals(2, manifest.getEntryCount());
+        manifest.save();
+        assertEquals("host_5555.manifest", manifest.getFile().getName()); //$NON-NLS-1$
+
+        manifest = SyncManifest.load(manifestDir, "host:5555"); //$NON-NLS-1$
+        assertEquals(2, manifest.getEntryCount());
+
+        int stats = mServer.getSyncStatCount();
+        result = mSync.syncDirectory(local, "/data/tree", manifest, //$NON-NLS-1$
+                SyncService.SYNC_TRUST_MANIFEST, SyncService.getNullProgressMonitor());
+        assertEquals(SyncService.RESULT_OK, result.getCode());
+        assertEquals(stats, mServer.getSyncStatCount());
+        assertEquals(2, mServer.getSyncSendCount());
+
+        // a corrupt manifest is ignored.
+        FileOutputStream out = new FileOutputStream(manifest.getFile());
+        out.write(new byte[] { 0, 0, 0, 1, 0 });
+        out.close();
+        assertEquals(0, SyncManifest.load(manifestDir, "host:5555").getEntryCount()); //$NON-NLS-1$
+    }
+
+    /**
+     * Tests that files that differ only by their modification time are compared by checksum.
+     */
+    public void testSyncChecksum() throws Exception {
+        createFile("tree/a", 1, 5000); //$NON-NLS-1$
+        createFile("tree/b", 2, 5000); //$NON-NLS-1$
+        String local = new File(mDir, "tree").getPath(); //$NON-NLS-1$
+
+        // the same files, with other modification times.
+        mServer.setSyncFile("/data/tree/a", getContent(1, 5000), 1); //$NON-NLS-1$
+        mServer.setSyncFile("/data/tree/b", getContent(5, 5000), 1); //$NON-NLS-1$
+        mServer.setShellResponse("md5sum '/data/tree/a' '/data/tree/b'", //$NON-NLS-1$
+                getChecksum(getContent(1, 5000)) + "  /data/tree/a\r\n" + //$NON-NLS-1$
+                getChecksum(getContent(5, 5000)) + "  /data/tree/b\r\n"); //$NON-NLS-1$
+
+        SyncResult result = mSync.syncDirectory(local, "/data/tree", null, //$NON-NLS-1$
+                SyncService.SYNC_CHECKSUM, SyncService.getNullProgressMonitor());
+        assertEquals(SyncService.RESULT_OK, result.getCode());
+        assertEquals(1, mServer.getSyncSendCount());
+        assertTrue(Arrays.equals(getContent(2, 5000),
+                mServer.getSyncFile("/data/tree/b"))); //$NON-NLS-1$
+        assertEquals(1, mServer.getSyncFileTime("/data/tree/a")); //$NON-NLS-1$
+    }
+
+    /**
+     * Tests that the remote paths given to md5sum are quoted for the shell.
+     */
+    public void testSyncChecksumQuoting() throws Exception {
+        createFile("tree/it's", 1, 5000); //$NON-NLS-1$
+        String local = new File(mDir, "tree").getPath(); //$NON-NLS-1$
+
+        mServer.setSyncFile("/data/tree/it's", getContent(1, 5000), 1); //$NON-NLS-1$
+        mServer.setShellResponse("md5sum '/data/tree/it'\\''s'", //$NON-NLS-1$
+                getChecksum(getContent(1, 5000)) + "  /data/tree/it's\r\n"); //$NON-NLS-1$
+
+        SyncResult result = mSync.syncDirectory(local, "/data/tree", null, //$NON-NLS-1$
+                SyncService.SYNC_CHECKSUM, SyncService.getNullProgressMonitor());
+        assertEquals(SyncService.RESULT_OK, result.getCode());
+        assertEquals(0, mServer.getSyncSendCount());
+    }
+
+    /**
+     * Tests that a sync with a remote path that is too long fails before querying the device.
+     */
+    public void testSyncRemotePathLength() throws Exception {
+        createFile("tree/a", 1, 100); //$NON-NLS-1$
+        String local = new File(mDir, "tree").getPath(); //$NON-NLS-1$
+        StringBuilder remote = new StringBuilder("/data"); //$NON-NLS-1$
+        while (remote.length() <= 1024) {
+            remote.append("/directory"); //$NON-NLS-1$
+        }
+
+        SyncResult result = mSync.syncDirectory(local, remote.toString(),
+                SyncService.getNullProgressMonitor());
+        assertEquals(SyncService.RESULT_REMOTE_PATH_LENGTH, result.getCode());
+        assertEquals(0, mServer.getSyncStatCount());
+        assertEquals(0, mServer.getSyncSendCount());
+    }
+
+    private File createFile(String name, int seed, int size) throws IOException {
+        File f = new File(mDir, name);
+        f.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(getContent(seed, size));
+        } finally {
+            out.close();
+        }
+
+        return f;
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        f.delete();
+    }
+
+    private static String getChecksum(byte[] data) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("MD5").digest(data)) { //$NON-NLS-1$
+            sb.append(String.format("%02x", b & 0xff)); //$NON-NLS-1$
+        }
+        return sb.toString();
+    }
+
+    private static byte[] getContent(int seed, int size) {
+        byte[] data = new byte[size];
+        for (int i = 0 ; i < size ; i++) {
+            data[i] = (byte) (seed * 31 + i * 7 + (i >> 8));
+        }
+
+        return data;
+    }
+
+    private static byte[] readFile(File f) throws IOException {
+        byte[] data = new byte[(int) f.length()];
+        FileInputStream in = new FileInputStream(f);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                int count = in.read(data, offset, data.length - offset);
+                if (count == -1) {
+                    break;
+                }
+                offset += count;
+            }
+        } finally {
+            in.close();
+        }
+
+        return data;
+    }
+
+    private static class TestMonitor implements ISyncProgressMonitor {
+        long mTotal = -1;
+        long mWork = 0;
+        boolean mStopped = false;
+        volatile boolean mCanceled = false;
+
+        public void start(int totalWork) {
+            mTotal = totalWork;
+        }
+
+        public void stop() {
+            mStopped = true;
+        }
+
+        public boolean isCanceled() {
+            return mCanceled;
+        }
+
+        public void startSubTask(String name) {
+        }
+
+        public void advance(int work) {
+            mWork += work;
+        }
+    }
+}
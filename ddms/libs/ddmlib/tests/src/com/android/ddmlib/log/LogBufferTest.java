@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.log;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link LogBuffer}.
+ */
+public class LogBufferTest extends TestCase {
+
+    /** Number of lines pushed through the buffer by {@link #testHeapUsage()}. */
+    private static final int LINE_COUNT = 10000000;
+
+    /** Max heap growth allowed while pushing {@link #LINE_COUNT} lines, in bytes. */
+    private static final long MAX_HEAP_GROWTH = 4 * 1024 * 1024;
+
+    /**
+     * Tests adding lines and reading them back.
+     */
+    public void testAddAndRead() throws Exception {
+        LogBuffer buffer = new LogBuffer(10);
+        assertEquals(0, buffer.getCount());
+
+        int slot1 = add(buffer, 3, "dalvikvm", "GC freed 123 objects"); //$NON-NLS-1$ //$NON-NLS-2$
+        int slot2 = add(buffer, 6, "ActivityManager", "\u00e9t\u00e9"); //$NON-NLS-1$ //$NON-NLS-2$
+        int slot3 = add(buffer, 4, "dalvikvm", ""); //$NON-NLS-1$ //$NON-NLS-2$
+
+        assertEquals(3, buffer.getCount());
+        assertEquals(slot1, buffer.getFirstSlot());
+        assertEquals(slot2, buffer.getSlot(1));
+
+        assertEquals(3, buffer.getPriority(slot1));
+        assertEquals(1, buffer.getPid(slot1));
+        assertEquals(2, buffer.getTid(slot1));
+        assertEquals(3, buffer.getSec(slot1));
+        assertEquals(4, buffer.getNsec(slot1));
+        assertEquals("dalvikvm", buffer.getTag(slot1)); //$NON-NLS-1$
+        assertEquals("GC freed 123 objects", buffer.getMessage(slot1)); //$NON-NLS-1$
+
+        assertEquals(6, buffer.getPriority(slot2));
+        assertEquals("\u00e9t\u00e9", buffer.getMessage(slot2)); //$NON-NLS-1$
+        assertEquals("", buffer.getMessage(slot3)); //$NON-NLS-1$
+
+        // tags are shared
+        assertSame(buffer.getTag(slot1), buffer.getTag(slot3));
+
+        buffer.clear();
+        assertEquals(0, buffer.getCount());
+    }
+
+    /**
+     * Tests that the oldest lines are removed when the buffer is full.
+     */
+    public void testCapacity() throws Exception {
+        LogBuffer buffer = new LogBuffer(3);
+        for (int i = 0 ; i < 5 ; i++) {
+            int first = buffer.getFirstSlot();
+            int count = buffer.getCount();
+            add(buffer, 4, "tag", "line " + i); //$NON-NLS-1$ //$NON-NLS-2$
+
+            if (i >= 3) {
+                assertEquals(1, count + 1 - buffer.getCount());
+                assertEquals((first + 1) % 3, buffer.getFirstSlot());
+            }
+        }
+
+        assertEquals(3, buffer.getCount());
+        for (int i = 0 ; i < 3 ; i++) {
+            assertEquals("line " + (i + 2), buffer.getMessage(buffer.getSlot(i))); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Tests that line numbers keep growing when slots are reused.
+     */
+    public void testLineNumbers() throws Exception {
+        LogBuffer buffer = new LogBuffer(3);
+        assertEquals(0, buffer.getFirstLine());
+        assertEquals(0, buffer.getNextLine());
+        assertEquals(-1, buffer.getLineSlot(0));
+
+        for (int i = 0 ; i < 5 ; i++) {
+            int slot = add(buffer, 4, "tag", "line " + i); //$NON-NLS-1$ //$NON-NLS-2$
+            assertEquals(slot, buffer.getLineSlot(i));
+        }
+
+        assertEquals(2, buffer.getFirstLine());
+        assertEquals(5, buffer.getNextLine());
+        assertEquals(-1, buffer.getLineSlot(1));
+        assertEquals(-1, buffer.getLineSlot(5));
+        for (int i = 2 ; i < 5 ; i++) {
+            assertEquals("line " + i, buffer.getMessage(buffer.getLineSlot(i))); //$NON-NLS-1$
+        }
+
+        // numbers are not reused after a clear.
+        buffer.clear();
+        assertEquals(5, buffer.getFirstLine());
+        assertEquals(-1, buffer.getLineSlot(4));
+        int slot = add(buffer, 4, "tag", "line 5"); //$NON-NLS-1$ //$NON-NLS-2$
+        assertEquals(slot, buffer.getLineSlot(5));
+    }
+
+    /**
+     * Tests that the oldest lines are removed when their messages use all the space.
+     */
+    public void testMessageSize() throws Exception {
+        // 2 segments of 64KB
+        LogBuffer buffer = new LogBuffer(1000, 1);
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0 ; i < 4000 ; i++) {
+            sb.append((char)('a' + i % 26));
+        }
+        String longMessage = sb.toString();
+
+        for (int i = 0 ; i < 100 ; i++) {
+            add(buffer, 4, "tag", i + longMessage); //$NON-NLS-1$
+        }
+
+        // at most 32 messages of 4KB can fit in 2 segments of 64KB.
+        int count = buffer.getCount();
+        assertTrue("too many lines: " + count, count <= 32);
+        assertTrue("too few lines: " + count, count >= 16);
+        for (int i = 0 ; i < count ; i++) {
+            assertEquals((100 - count + i) + longMessage, buffer.getMessage(buffer.getSlot(i)));
+        }
+    }
+
+    /**
+     * Tests that {@link LogBuffer#create(int)} keeps the number of lines within what the direct
+     * memory can hold.
+     */
+    public void testCreate() throws Exception {
+        assertEquals(5000, LogBuffer.create(5000).getCapacity());
+        assertEquals(LogBuffer.MIN_CAPACITY, LogBuffer.create(1).getCapacity());
+
+        // the preference used to go up to 10M lines, which needs 1.6GB of direct memory.
+        int capacity = LogBuffer.create(10000000).getCapacity();
+        assertTrue(capacity >= LogBuffer.MIN_CAPACITY);
+        assertTrue(capacity <= LogBuffer.MAX_CAPACITY);
+    }
+
+    /**
+     * Pushes millions of lines through a buffer and a filter index, and checks that the heap
+     * doesn't grow.
+     */
+    public void testHeapUsage() throws Exception {
+        final int capacity = 100000;
+        LogBuffer buffer = new LogBuffer(capacity);
+
+        // index of the lines matching pid 1, as kept by a filter.
+        int[] index = new int[capacity];
+        int indexStart = 0;
+        int indexCount = 0;
+
+        byte[][] messages = new byte[10][];
+        for (int i = 0 ; i < messages.length ; i++) {
+            messages[i] = ("Message number " + i + " from a pretty chatty app").getBytes("UTF-8");
+        }
+        String[] tags = new String[] { "dalvikvm", "ActivityManager", "WindowManager" };
+
+        long heapBefore = getUsedHeap();
+
+        for (int i = 0 ; i < LINE_COUNT ; i++) {
+            int first = buffer.getFirstSlot();
+            int count = buffer.getCount();
+
+            byte[] message = messages[i % messages.length];
+            int slot = buffer.add(4, i % 7, i, i, 0, tags[i % tags.length], message, 0,
+                    message.length);
+
+            // remove the old lines from the index
+            for (int removed = count + 1 - buffer.getCount() ; removed > 0 ; removed--) {
+                if (indexCount > 0 && index[indexStart] == first) {
+                    indexStart = (indexStart + 1) % capacity;
+                    indexCount--;
+                }
+                first = (first + 1) % capacity;
+            }
+
+            if (buffer.getPid(slot) == 1) {
+                index[(indexStart + indexCount) % capacity] = slot;
+                indexCount++;
+            }
+        }
+
+        long heapAfter = getUsedHeap();
+        assertTrue("heap grew by " + (heapAfter - heapBefore) + " bytes",
+                heapAfter - heapBefore < MAX_HEAP_GROWTH);
+
+        assertEquals(capacity, buffer.getCount());
+        int lastSlot = buffer.getSlot(capacity - 1);
+        assertEquals(LINE_COUNT - 1, buffer.getTid(lastSlot));
+        assertEquals("Message number 9 from a pretty chatty app",
+                buffer.getMessage(lastSlot));
+
+        // every 7th line matches
+        assertTrue(Math.abs(indexCount - capacity / 7) <= 1);
+        for (int i = 0 ; i < indexCount ; i++) {
+            assertEquals(1, buffer.getPid(index[(indexStart + i) % capacity]));
+        }
+    }
+
+    private static int add(LogBuffer buffer, int priority, String tag, String message)
+            throws Exception {
+        byte[] data = message.getBytes("UTF-8"); //$NON-NLS-1$
+        return buffer.add(priority, 1, 2, 3, 4, tag, data, 0, data.length);
+    }
+
+    private static long getUsedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0 ; i < 3 ; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -21,11 +21,13 @@ import com.android.ddmlib.FileListingService;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.IShellOutputReceiver;
 import com.android.ddmlib.RawImage;
+import com.android.ddmlib.ScreenCapture;
 import com.android.ddmlib.SyncService;
 import com.android.ddmlib.log.LogReceiver;
 
 import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 import junit.framework.TestCase;
 
@@ -137,6 +139,16 @@ public class RemoteAndroidTestRunnerTest extends TestCase {
             mLastShellCommand = command;
         }
 
+        public Future<Void> executeShellCommandAsync(String command,
+                IShellOutputReceiver receiver) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Future<Void> executeShellCommandAsync(String command,
+                IShellOutputReceiver receiver, int timeout) {
+            throw new UnsupportedOperationException();
+        }
+
         /**
          * Get the last command provided to executeShellCommand.
          */
@@ -184,6 +196,10 @@ public class RemoteAndroidTestRunnerTest extends TestCase {
             throw new UnsupportedOperationException();
         }
 
+        public ScreenCapture startScreenCapture(int fps, ScreenCapture.IFrameListener listener) {
+            throw new UnsupportedOperationException();
+        }
+
         public String getSerialNumber() {
             return "fakeserial";
         }
@@ -17,15 +17,16 @@
 package com.android.ddmuilib;
 
 import com.android.ddmlib.AllocationInfo;
+import com.android.ddmlib.AllocationTable;
 import com.android.ddmlib.Client;
 import com.android.ddmlib.AndroidDebugBridge.IClientChangeListener;
 import com.android.ddmlib.ClientData.AllocationTrackingStatus;
 
 import org.eclipse.jface.preference.IPreferenceStore;
 import org.eclipse.jface.viewers.ILabelProviderListener;
+import org.eclipse.jface.viewers.ILazyContentProvider;
 import org.eclipse.jface.viewers.ISelection;
 import org.eclipse.jface.viewers.ISelectionChangedListener;
-import org.eclipse.jface.viewers.IStructuredContentProvider;
 import org.eclipse.jface.viewers.IStructuredSelection;
 import org.eclipse.jface.viewers.ITableLabelProvider;
 import org.eclipse.jface.viewers.SelectionChangedEvent;
@@ -73,6 +74,7 @@ public class AllocationPanel extends TablePanel {
     private Composite mAllocationBase;
     private Table mAllocationTable;
     private TableViewer mAllocationViewer;
+    private AllocationContentProvider mAllocationContentProvider;
 
     private StackTracePanel mStackTracePanel;
     private Table mStackTraceTable;
@@ -80,20 +82,26 @@ public class AllocationPanel extends TablePanel {
     private Button mRequestButton;
 
     /**
-     * Content Provider to display the allocations of a client.
+     * Content Provider to display the allocations of a client in a virtual table.
      * Expected input is a {@link Client} object, elements used in the table are of type
-     * {@link AllocationInfo}.
+     * {@link AllocationInfo}, and are only created for the rows that are displayed.
      */
-    private static class AllocationContentProvider implements IStructuredContentProvider {
-        public Object[] getElements(Object inputElement) {
-            if (inputElement instanceof Client) {
-                AllocationInfo[] allocs = ((Client)inputElement).getClientData().getAllocations();
-                if (allocs != null) {
-                    return allocs;
-                }
+    private static class AllocationContentProvider implements ILazyContentProvider {
+        private TableViewer mViewer;
+        private AllocationTable mAllocations;
+
+        public void updateElement(int index) {
+            if (mAllocations != null && index < mAllocations.getCount()) {
+                mViewer.replace(mAllocations.getAllocation(index), index);
             }
+        }
 
-            return new Object[0];
+        /**
+         * Reads the current allocations of the client, and resizes the table to show them.
+         */
+        void reload(Client client) {
+            mAllocations = client != null ? client.getClientData().getAllocationTable() : null;
+            mViewer.setItemCount(mAllocations != null ? mAllocations.getCount() : 0);
         }
 
         public void dispose() {
@@ -101,7 +109,8 @@ public class AllocationPanel extends TablePanel {
         }
 
         public void inputChanged(Viewer viewer, Object oldInput, Object newInput) {
-            // pass
+            mViewer = (TableViewer)viewer;
+            reload(newInput instanceof Client ? (Client)newInput : null);
         }
     }
 
@@ -202,7 +211,7 @@ public class AllocationPanel extends TablePanel {
 
         setUpButtons(false /* enabled */, AllocationTrackingStatus.OFF);
 
-        mAllocationTable = new Table(topParent, SWT.MULTI | SWT.FULL_SELECTION);
+        mAllocationTable = new Table(topParent, SWT.MULTI | SWT.FULL_SELECTION | SWT.VIRTUAL);
         GridData gridData;
         mAllocationTable.setLayoutData(gridData = new GridData(GridData.FILL_BOTH));
         gridData.horizontalSpan = 2;
@@ -245,7 +254,8 @@ public class AllocationPanel extends TablePanel {
                 PREFS_ALLOC_COL_TRACE_METHOD, store);
 
         mAllocationViewer = new TableViewer(mAllocationTable);
-        mAllocationViewer.setContentProvider(new AllocationContentProvider());
+        mAllocationContentProvider = new AllocationContentProvider();
+        mAllocationViewer.setContentProvider(mAllocationContentProvider);
         mAllocationViewer.setLabelProvider(new AllocationLabelProvider());
 
         mAllocationViewer.addSelectionChangedListener(new ISelectionChangedListener() {
@@ -341,6 +351,7 @@ public class AllocationPanel extends TablePanel {
                 try {
                     mAllocationTable.getDisplay().asyncExec(new Runnable() {
                         public void run() {
+                            mAllocationContentProvider.reload(getCurrentClient());
                             mAllocationViewer.refresh();
                             updateAllocationStackCall();
                         }
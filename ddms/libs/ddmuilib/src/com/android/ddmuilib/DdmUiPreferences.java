@@ -26,8 +26,10 @@ import org.eclipse.jface.preference.IPreferenceStore;
 public final class DdmUiPreferences {
 
     public static final int DEFAULT_THREAD_REFRESH_INTERVAL = 4;  // seconds
+    public static final int DEFAULT_LOGCAT_BUFFER_SIZE = 100000;  // lines
 
     private static int sThreadRefreshInterval = DEFAULT_THREAD_REFRESH_INTERVAL;
+    private static int sLogCatBufferSize = DEFAULT_LOGCAT_BUFFER_SIZE;
     
     private static IPreferenceStore mStore;
     
@@ -50,6 +52,21 @@ public final class DdmUiPreferences {
     public static void setThreadRefreshInterval(int port) {
         sThreadRefreshInterval = port;
     }
+
+    /**
+     * Returns the number of lines kept by the logcat panels.
+     */
+    public static int getLogCatBufferSize() {
+        return sLogCatBufferSize;
+    }
+
+    /**
+     * Sets the number of lines kept by the logcat panels. This is only used by the panels
+     * created after the call.
+     */
+    public static void setLogCatBufferSize(int size) {
+        sLogCatBufferSize = size;
+    }
     
     static String getSymbolDirectory() {
         return sSymbolLocation;
@@ -19,6 +19,7 @@ package com.android.ddmuilib;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.Log;
 import com.android.ddmlib.RawImage;
+import com.android.ddmlib.RawImageConverter;
 
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.SWTException;
@@ -40,6 +41,7 @@ import org.eclipse.swt.widgets.Label;
 import org.eclipse.swt.widgets.Shell;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 
 /**
@@ -234,13 +236,14 @@ public class ScreenShotDialog extends Dialog {
             mBusyLabel.setText("Screen not available");
         } else {
             // convert raw data to an Image.
-            PaletteData palette = new PaletteData(
-                    mRawImage.getRedMask(),
-                    mRawImage.getGreenMask(),
-                    mRawImage.getBlueMask());
-
-            ImageData imageData = new ImageData(mRawImage.width, mRawImage.height,
-                    mRawImage.bpp, palette, 1, mRawImage.data);
+            int[] argb = new int[mRawImage.width * mRawImage.height];
+            RawImageConverter.convert(mRawImage, argb);
+
+            // the pixels are stored as big endian 0xAARRGGBB values.
+            PaletteData palette = new PaletteData(0x00FF0000, 0x0000FF00, 0x000000FF);
+            ImageData imageData = new ImageData(mRawImage.width, mRawImage.height, 32,
+                    palette);
+            ByteBuffer.wrap(imageData.data).asIntBuffer().put(argb);
             image = new Image(getParent().getDisplay(), imageData);
 
             mSave.setEnabled(true);
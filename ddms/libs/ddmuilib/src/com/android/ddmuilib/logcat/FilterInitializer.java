@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmuilib.logcat;
+
+import com.android.ddmlib.Log;
+import com.android.ddmlib.log.LogBuffer;
+import com.android.ddmuilib.annotation.UiThread;
+
+import org.eclipse.swt.SWTException;
+import org.eclipse.swt.widgets.Display;
+
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Fills a {@link LogFilter} with the lines already in a {@link LogBuffer}.
+ * <p/>The lines are split into partitions that are filtered in parallel by a pool of background
+ * threads. The accepted lines of each partition are added to the filter, and displayed, from
+ * the UI thread as soon as the partition and all the older ones are done, so that the first
+ * results show up before the whole buffer is filtered.
+ * <p/>While the initializer runs, the filter only filters the new lines without storing them.
+ * Once all the partitions are added, the initializer adds the lines that arrived in the mean
+ * time, and the filter goes back to storing the new lines itself.
+ * <p/>An initializer can be cancelled at any time, typically because the filter changed again
+ * and a new initializer replaces it.
+ */
+final class FilterInitializer {
+
+    /** Buffers smaller than this are filtered directly in the UI thread. */
+    private final static int MIN_PARTITION_SIZE = 4096;
+
+    /** Number of lines read from the buffer each time its lock is taken. */
+    private final static int BATCH_SIZE = 1024;
+
+    private final static int THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+
+    /** Number of partitions per thread, so that the first results are published early. */
+    private final static int PARTITIONS_PER_THREAD = 4;
+
+    private final static ExecutorService sExecutor = Executors.newFixedThreadPool(THREAD_COUNT,
+            new ThreadFactory() {
+                private int mCount = 0;
+
+                public synchronized Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Logcat Filter " + mCount++); //$NON-NLS-1$
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private final LogBuffer mBuffer;
+    private final LogFilter mFilter;
+    /** Filters whose lines must not go to {@link #mFilter}. Only set for the default filter. */
+    private final LogFilter[] mExcludedFilters;
+    private final Display mDisplay;
+
+    /** Number of the first line of each partition, followed by the end of the last one. */
+    private long[] mPartitionLines;
+    /** Accepted lines of each partition, as offsets from its first line. */
+    private int[][] mResults;
+    private int[] mResultCounts;
+    private Future<?>[] mFutures;
+    /** Index of the next partition to add to the filter. Only accessed by the UI thread. */
+    private int mNextPartition = 0;
+
+    private volatile boolean mCancelled = false;
+    private boolean mDone = false;
+
+    /**
+     * Creates an initializer for a filter.
+     * @param buffer the buffer containing the lines.
+     * @param filter the filter to fill.
+     * @param excludedFilters filters whose accepted lines must not be added to
+     * <var>filter</var>, or <code>null</code>.
+     * @param display the display running the UI thread.
+     */
+    FilterInitializer(LogBuffer buffer, LogFilter filter, LogFilter[] excludedFilters,
+            Display display) {
+        mBuffer = buffer;
+        mFilter = filter;
+        mExcludedFilters = excludedFilters != null ? excludedFilters : new LogFilter[0];
+        mDisplay = display;
+    }
+
+    /**
+     * Clears the filter and starts filling it.
+     * <p/>This must be called from the UI thread. If the buffer is small, the filter is filled
+     * before the method returns.
+     */
+    @UiThread
+    void start() {
+        synchronized (mBuffer) {
+            mFilter.setInitializing(true);
+            mFilter.clear();
+
+            long firstLine = mBuffer.getFirstLine();
+            long lineCount = mBuffer.getNextLine() - firstLine;
+
+            int partitionCount = 0;
+            if (lineCount >= MIN_PARTITION_SIZE) {
+                partitionCount = (int)Math.min(THREAD_COUNT * PARTITIONS_PER_THREAD,
+                        lineCount / MIN_PARTITION_SIZE);
+            }
+
+            mPartitionLines = new long[partitionCount + 1];
+            for (int i = 0 ; i <= partitionCount ; i++) {
+                mPartitionLines[i] = firstLine +
+                        (partitionCount == 0 ? 0 : lineCount * i / partitionCount);
+            }
+            mResults = new int[partitionCount][];
+            mResultCounts = new int[partitionCount];
+            mFutures = new Future<?>[partitionCount];
+
+            for (int i = 0 ; i < partitionCount ; i++) {
+                final int partition = i;
+                mFutures[i] = sExecutor.submit(new Runnable() {
+                    public void run() {
+                        try {
+                            filterPartition(partition);
+                        } catch (Exception e) {
+                            Log.e("ddms", e); //$NON-NLS-1$
+                        }
+                    }
+                });
+            }
+
+            if (partitionCount == 0) {
+                finish();
+            }
+        }
+    }
+
+    /**
+     * Cancels the initialization. The lines already added to the filter stay in it.
+     * <p/>This must be called after {@link #start()}, with the lock of the buffer held, so
+     * that no line is added before the caller clears or refills the filter.
+     */
+    void cancel() {
+        mCancelled = true;
+        for (Future<?> future : mFutures) {
+            future.cancel(false);
+        }
+
+        synchronized (this) {
+            if (mDone == false) {
+                mDone = true;
+                mFilter.setInitializing(false);
+            }
+        }
+    }
+
+    /**
+     * Filters the lines of a partition, and asks the UI thread to publish them.
+     * <p/>The fixed size part of the lines and the messages that are needed are copied while
+     * holding the lock of the buffer, one batch at a time, so that the thread receiving the
+     * new lines is never blocked for long. The keywords are matched outside of the lock,
+     * with a copy of the {@link KeywordMatcher} objects, which are not meant to be shared
+     * between threads.
+     */
+    private void filterPartition(int partition) {
+        long start = mPartitionLines[partition];
+        long end = mPartitionLines[partition + 1];
+
+        HashMap<KeywordMatcher, KeywordMatcher> copies =
+            new HashMap<KeywordMatcher, KeywordMatcher>();
+        KeywordMatcher matcher = copy(mFilter.getTempKeywordMatcher(), copies);
+        KeywordMatcher[] excludedMatchers = new KeywordMatcher[mExcludedFilters.length];
+        boolean needsMessages = matcher != null;
+        for (int i = 0 ; i < mExcludedFilters.length ; i++) {
+            excludedMatchers[i] = copy(mExcludedFilters[i].getTempKeywordMatcher(), copies);
+            needsMessages |= excludedMatchers[i] != null;
+        }
+
+        int[] results = new int[BATCH_SIZE];
+        int resultCount = 0;
+
+        // lines of the current batch accepted by the filter, except for the keywords.
+        int[] candidates = new int[BATCH_SIZE];
+        int[] pids = new int[BATCH_SIZE];
+        int[] priorities = new int[BATCH_SIZE];
+        String[] tags = new String[BATCH_SIZE];
+        String[] messages = new String[BATCH_SIZE];
+
+        for (long batchStart = start ; batchStart < end ; batchStart += BATCH_SIZE) {
+            if (mCancelled) {
+                return;
+            }
+
+            long batchEnd = Math.min(batchStart + BATCH_SIZE, end);
+            int candidateCount = 0;
+
+            synchronized (mBuffer) {
+                for (long line = Math.max(batchStart, mBuffer.getFirstLine()) ;
+                        line < batchEnd ; line++) {
+                    int slot = mBuffer.getLineSlot(line);
+                    int pid = mBuffer.getPid(slot);
+                    String tag = mBuffer.getTag(slot);
+                    int priority = mBuffer.getPriority(slot);
+
+                    if (mFilter.acceptHeader(pid, tag, priority)) {
+                        candidates[candidateCount] = (int)(line - start);
+                        pids[candidateCount] = pid;
+                        tags[candidateCount] = tag;
+                        priorities[candidateCount] = priority;
+                        messages[candidateCount] = needsMessages ?
+                                mBuffer.getMessage(slot) : null;
+                        candidateCount++;
+                    }
+                }
+            }
+
+            for (int i = 0 ; i < candidateCount ; i++) {
+                if (matcher != null && matcher.matches(messages[i]) == false) {
+                    continue;
+                }
+
+                boolean excluded = false;
+                for (int j = 0 ; j < mExcludedFilters.length && excluded == false ; j++) {
+                    excluded = mExcludedFilters[j].acceptHeader(pids[i], tags[i], priorities[i])
+                            && (excludedMatchers[j] == null ||
+                                    excludedMatchers[j].matches(messages[i]));
+                }
+
+                if (excluded == false) {
+                    if (resultCount == results.length) {
+                        int[] newResults = new int[results.length * 2];
+                        System.arraycopy(results, 0, newResults, 0, resultCount);
+                        results = newResults;
+                    }
+                    results[resultCount++] = candidates[i];
+                }
+            }
+        }
+
+        synchronized (this) {
+            mResults[partition] = results;
+            mResultCounts[partition] = resultCount;
+        }
+
+        try {
+            mDisplay.asyncExec(new Runnable() {
+                public void run() {
+                    publish();
+                }
+            });
+        } catch (SWTException e) {
+            // display is disposed, we're probably quitting.
+            mCancelled = true;
+        }
+    }
+
+    /**
+     * Adds the lines of the filtered partitions to the filter, in order, and finishes the
+     * initialization once all the partitions are added.
+     */
+    @UiThread
+    private void publish() {
+        if (mCancelled || mFilter.uiReady() == false) {
+            return;
+        }
+
+        synchronized (mBuffer) {
+            boolean published = false;
+            while (mNextPartition < mResults.length) {
+                int[] results;
+                int resultCount;
+                synchronized (this) {
+                    results = mResults[mNextPartition];
+                    resultCount = mResultCounts[mNextPartition];
+                    mResults[mNextPartition] = null;
+                }
+
+                if (results == null) {
+                    // still running.
+                    break;
+                }
+
+                // lines removed from the buffer since they were filtered are skipped.
+                long start = mPartitionLines[mNextPartition];
+                for (int i = 0 ; i < resultCount ; i++) {
+                    int slot = mBuffer.getLineSlot(start + results[i]);
+                    if (slot != -1) {
+                        mFilter.appendMessage(slot);
+                    }
+                }
+
+                mNextPartition++;
+                published = true;
+            }
+
+            if (mNextPartition == mResults.length) {
+                finish();
+            } else if (published) {
+                mFilter.flush();
+            }
+        }
+    }
+
+    /**
+     * Adds the lines that arrived since the start of the initialization, and gives control
+     * of the new lines back to the filter.
+     */
+    @UiThread
+    private void finish() {
+        synchronized (mBuffer) {
+            synchronized (this) {
+                if (mDone) {
+                    return;
+                }
+                mDone = true;
+            }
+
+            long nextLine = mBuffer.getNextLine();
+            for (long line = Math.max(mPartitionLines[mPartitionLines.length - 1],
+                    mBuffer.getFirstLine()) ; line < nextLine ; line++) {
+                int slot = mBuffer.getLineSlot(line);
+                if (mFilter.accept(slot) && isExcluded(slot) == false) {
+                    mFilter.appendMessage(slot);
+                }
+            }
+
+            mFilter.setInitializing(false);
+            mFilter.flush();
+            mFilter.resetTempFilteringStatus();
+        }
+    }
+
+    private boolean isExcluded(int slot) {
+        for (LogFilter f : mExcludedFilters) {
+            if (f.accept(slot)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns a copy of a matcher for the calling thread, or <code>null</code> if
+     * <var>matcher</var> is <code>null</code>. Filters sharing the same matcher get the same
+     * copy.
+     */
+    private static KeywordMatcher copy(KeywordMatcher matcher,
+            HashMap<KeywordMatcher, KeywordMatcher> copies) {
+        if (matcher == null) {
+            return null;
+        }
+
+        KeywordMatcher copy = copies.get(matcher);
+        if (copy == null) {
+            copy = new KeywordMatcher(matcher);
+            copies.put(matcher, copy);
+        }
+
+        return copy;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmuilib.logcat;
+
+import com.android.ddmlib.log.LogBuffer;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Matches log messages against a list of keywords.
+ * <p/>A message matches if, for each keyword, it either contains the keyword or matches it as a
+ * regular expression. The regular expressions are compiled once, when the matcher is created.
+ * <p/>The same matcher is shared by all the {@link LogFilter}s of a {@link LogPanel}, and it
+ * remembers the result for the last message, so that each message is only matched once,
+ * whatever the number of filters.
+ */
+final class KeywordMatcher {
+
+    /** characters that make a keyword a regular expression, rather than a plain string. */
+    private static final String REGEXP_CHARS = "\\^$.|?*+()[]{}"; //$NON-NLS-1$
+
+    private final String[] mKeywords;
+    /**
+     * Matchers for the keywords that are regular expressions. This is <code>null</code> for the
+     * plain keywords, since they can only match a message they are contained in, and for the
+     * invalid regular expressions.
+     */
+    private final Matcher[] mMatchers;
+
+    private LogBuffer mLastBuffer;
+    private int mLastSlot = -1;
+    private long mLastModificationCount = -1;
+    private boolean mLastResult;
+
+    /**
+     * Creates a matcher for a list of keywords.
+     * @param keywords the keywords.
+     */
+    KeywordMatcher(String[] keywords) {
+        mKeywords = keywords;
+        mMatchers = new Matcher[keywords.length];
+
+        for (int i = 0 ; i < keywords.length ; i++) {
+            if (isRegexp(keywords[i])) {
+                try {
+                    mMatchers[i] = Pattern.compile(keywords[i]).matcher(""); //$NON-NLS-1$
+                } catch (PatternSyntaxException e) {
+                    // not a valid regular expression, only check if the message contains it.
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a matcher for the same keywords as another one, sharing its compiled regular
+     * expressions. This is used to match messages from several threads without locking.
+     * @param matcher the matcher to copy.
+     */
+    KeywordMatcher(KeywordMatcher matcher) {
+        mKeywords = matcher.mKeywords;
+        mMatchers = new Matcher[mKeywords.length];
+
+        for (int i = 0 ; i < mKeywords.length ; i++) {
+            if (matcher.mMatchers[i] != null) {
+                mMatchers[i] = matcher.mMatchers[i].pattern().matcher(""); //$NON-NLS-1$
+            }
+        }
+    }
+
+    /**
+     * Returns whether a line of a {@link LogBuffer} matches all the keywords.
+     * @param buffer the buffer containing the line.
+     * @param slot the slot of the line.
+     */
+    synchronized boolean matches(LogBuffer buffer, int slot) {
+        long modificationCount = buffer.getModificationCount();
+        if (buffer != mLastBuffer || slot != mLastSlot ||
+                modificationCount != mLastModificationCount) {
+            mLastBuffer = buffer;
+            mLastSlot = slot;
+            mLastModificationCount = modificationCount;
+            mLastResult = matches(buffer.getMessage(slot));
+        }
+
+        return mLastResult;
+    }
+
+    /**
+     * Returns whether a message matches all the keywords.
+     * @param message the message.
+     */
+    synchronized boolean matches(String message) {
+        for (int i = 0 ; i < mKeywords.length ; i++) {
+            if (message.contains(mKeywords[i]) == false &&
+                    (mMatchers[i] == null || mMatchers[i].reset(message).matches() == false)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean isRegexp(String keyword) {
+        for (int i = 0 ; i < keyword.length() ; i++) {
+            if (REGEXP_CHARS.indexOf(keyword.charAt(i)) != -1) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
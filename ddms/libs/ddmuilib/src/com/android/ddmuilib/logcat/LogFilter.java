@@ -18,19 +18,19 @@ package com.android.ddmuilib.logcat;
 
 import com.android.ddmlib.Log;
 import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.log.LogBuffer;
 import com.android.ddmuilib.annotation.UiThread;
 import com.android.ddmuilib.logcat.LogPanel.LogMessage;
 
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.SWTException;
+import org.eclipse.swt.widgets.Event;
+import org.eclipse.swt.widgets.Listener;
 import org.eclipse.swt.widgets.ScrollBar;
 import org.eclipse.swt.widgets.TabItem;
 import org.eclipse.swt.widgets.Table;
 import org.eclipse.swt.widgets.TableItem;
 
-import java.util.ArrayList;
-import java.util.regex.PatternSyntaxException;
-
 /** logcat output filter class */
 public class LogFilter {
 
@@ -65,7 +65,7 @@ public class LogFilter {
     private int mUnreadCount = 0;
 
     /** Temp keyword filtering */
-    private String[] mTempKeywordFilters;
+    private KeywordMatcher mTempKeywordMatcher;
 
     /** temp pid filtering */
     private int mTempPid = -1;
@@ -80,13 +80,30 @@ public class LogFilter {
 
     private boolean mTempFilteringStatus = false;
     
-    private final ArrayList<LogMessage> mMessages = new ArrayList<LogMessage>();
-    private final ArrayList<LogMessage> mNewMessages = new ArrayList<LogMessage>();
+    /** Buffer containing the messages. */
+    private LogBuffer mBuffer;
+
+    /**
+     * Circular list of the slots of the accepted messages in {@link #mBuffer}, from the oldest
+     * to the newest. The first <code>mDisplayedCount</code> are the rows of the {@link Table},
+     * the others are waiting for the next {@link #flush()}.
+     */
+    private int[] mSlots = new int[256];
+    private int mSlotsStart = 0;
+    private int mSlotCount = 0;
+    private int mDisplayedCount = 0;
+    private int mNewMessageCount = 0;
 
     private boolean mSupportsDelete = true;
     private boolean mSupportsEdit = true;
     private int mRemovedMessageCount = 0;
 
+    /**
+     * Whether the filter is being filled by a {@link FilterInitializer}. The new messages are
+     * then only filtered, not stored.
+     */
+    private boolean mInitializing = false;
+
     /**
      * Creates a filter with a particular mode.
      * @param name The name to be displayed in the UI
@@ -161,14 +178,65 @@ public class LogFilter {
         return mName;
     }
 
+    /**
+     * Sets the buffer containing the messages given to {@link #addMessage(int)}.
+     */
+    void setBuffer(LogBuffer buffer) {
+        mBuffer = buffer;
+    }
+
     /**
      * Set the Table ui widget associated with this filter.
+     * <p/>If the table was created with {@link SWT#VIRTUAL}, the rows are only filled when
+     * they are displayed.
      * @param tabItem The item in the TabFolder
      * @param table The Table object
      */
     public void setWidgets(TabItem tabItem, Table table) {
         mTable = table;
         mTabItem = tabItem;
+
+        mTable.addListener(SWT.SetData, new Listener() {
+            public void handleEvent(Event event) {
+                // lock the buffer first, like the thread adding the messages.
+                synchronized (mBuffer) {
+                    synchronized (LogFilter.this) {
+                        // until the next flush, the rows of the removed messages are still in
+                        // the table.
+                        int index = event.index - mRemovedMessageCount;
+                        if (index >= 0 && index < mDisplayedCount) {
+                            fillTableItem((TableItem)event.item,
+                                    LogMessage.create(mBuffer, getSlot(index)));
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the messages displayed in rows of the table, read from the buffer.
+     * <p/>The table is virtual, so its rows don't hold the messages until they are displayed.
+     * @param rows the indices of the rows.
+     * @return the messages, with <code>null</code> for the rows of messages already removed
+     * from the buffer.
+     */
+    LogMessage[] getMessages(int[] rows) {
+        LogMessage[] messages = new LogMessage[rows.length];
+
+        // lock the buffer first, like the thread adding the messages.
+        synchronized (mBuffer) {
+            synchronized (this) {
+                for (int i = 0 ; i < rows.length ; i++) {
+                    int index = rows[i] - mRemovedMessageCount;
+                    if (index >= 0 && index < mDisplayedCount) {
+                        messages[i] = LogMessage.create(mBuffer, getSlot(index));
+                    }
+                }
+            }
+        }
+
+        return messages;
     }
 
     /**
@@ -285,72 +353,137 @@ public class LogFilter {
     }
     
     /**
-     * Adds a new message and optionally removes an old message.
-     * <p/>The new message is filtered through {@link #accept(LogMessage)}.
+     * Adds a new message.
+     * <p/>The new message is filtered through {@link #accept(int)}.
      * Calls to {@link #flush()} from a UI thread will display it (and other
      * pending messages) to the associated {@link Table}.
-     * @param logMessage the MessageData object to filter
+     * <p/>While the filter is being initialized, the message is only filtered: the
+     * {@link FilterInitializer} adds it once it has added all the older messages.
+     * @param slot the slot of the message in the buffer.
      * @return true if the message was accepted.
      */
-    public boolean addMessage(LogMessage newMessage, LogMessage oldMessage) {
-        synchronized (mMessages) {
-            if (oldMessage != null) {
-                int index = mMessages.indexOf(oldMessage);
-                if (index != -1) {
-                    // TODO check that index will always be -1 or 0, as only the oldest message is ever removed.
-                    mMessages.remove(index);
-                    mRemovedMessageCount++;
-                }
-                
-                // now we look for it in mNewMessages. This can happen if the new message is added
-                // and then removed because too many messages are added between calls to #flush()
-                index = mNewMessages.indexOf(oldMessage);
-                if (index != -1) {
-                    // TODO check that index will always be -1 or 0, as only the oldest message is ever removed.
-                    mNewMessages.remove(index);
-                }
-            }
+    public synchronized boolean addMessage(int slot) {
+        boolean filter = accept(slot);
 
-            boolean filter = accept(newMessage);
+        if (filter && mInitializing == false) {
+            // at this point the message is accepted, we add it to the list
+            appendMessage(slot);
+        }
 
-            if (filter) {
-                // at this point the message is accepted, we add it to the list
-                mMessages.add(newMessage);
-                mNewMessages.add(newMessage);
+        return filter;
+    }
+
+    /**
+     * Adds a message that is already known to be accepted by the filter, after all the
+     * messages already in the filter.
+     * @param slot the slot of the message in the buffer.
+     */
+    synchronized void appendMessage(int slot) {
+        if (mSlotCount == mSlots.length) {
+            int[] slots = new int[mSlots.length * 2];
+            for (int i = 0 ; i < mSlotCount ; i++) {
+                slots[i] = getSlot(i);
             }
+            mSlots = slots;
+            mSlotsStart = 0;
+        }
 
-            return filter;
+        mSlots[(mSlotsStart + mSlotCount) % mSlots.length] = slot;
+        mSlotCount++;
+        mNewMessageCount++;
+    }
+
+    /**
+     * Sets whether the filter is being filled by a {@link FilterInitializer}.
+     * @see #addMessage(int)
+     */
+    synchronized void setInitializing(boolean initializing) {
+        mInitializing = initializing;
+    }
+
+    /**
+     * Removes a message that was removed from the buffer.
+     * <p/>Only the oldest message is ever removed from the buffer, so this is the first message
+     * of the filter, if the filter accepted it.
+     * @param slot the slot of the message in the buffer.
+     */
+    public synchronized void removeMessage(int slot) {
+        if (mSlotCount > 0 && mSlots[mSlotsStart] == slot) {
+            mSlotsStart = (mSlotsStart + 1) % mSlots.length;
+            mSlotCount--;
+
+            // the message may not be displayed yet if too many messages are added
+            // between calls to #flush()
+            if (mDisplayedCount > 0) {
+                mDisplayedCount--;
+                mRemovedMessageCount++;
+            } else {
+                mNewMessageCount--;
+            }
         }
     }
-    
+
     /**
      * Removes all the items in the filter and its {@link Table}.
      */
     public void clear() {
-        mRemovedMessageCount = 0;
-        mNewMessages.clear();
-        mMessages.clear();
+        synchronized (this) {
+            mRemovedMessageCount = 0;
+            mNewMessageCount = 0;
+            mDisplayedCount = 0;
+            mSlotsStart = 0;
+            mSlotCount = 0;
+        }
         mTable.removeAll();
     }
-    
+
+    /**
+     * Returns the slot of the index-th accepted message.
+     */
+    private int getSlot(int index) {
+        return mSlots[(mSlotsStart + index) % mSlots.length];
+    }
+
     /**
      * Filters a message.
-     * @param logMessage the Message
+     * @param slot the slot of the message in the buffer.
      * @return true if the message is accepted by the filter.
      */
-    boolean accept(LogMessage logMessage) {
+    boolean accept(int slot) {
+        if (acceptHeader(mBuffer.getPid(slot), mBuffer.getTag(slot),
+                mBuffer.getPriority(slot)) == false) {
+            return false;
+        }
+
+        // the keywords are checked last, as this is the only test needing the message.
+        if (mTempKeywordMatcher != null && mTempKeywordMatcher.matches(mBuffer, slot) == false) {
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Filters a message on everything but its content.
+     * <p/>A message is accepted by the filter if it is accepted by this method, and if it
+     * matches the {@link KeywordMatcher} returned by {@link #getTempKeywordMatcher()}, if any.
+     * @param pid the pid of the process that logged the message.
+     * @param tag the tag of the message.
+     * @param priority the priority of the message.
+     */
+    boolean acceptHeader(int pid, String tag, int priority) {
         // do the regular filtering now
-        if ((mMode & MODE_PID) == MODE_PID && mPid != logMessage.data.pid) {
+        if ((mMode & MODE_PID) == MODE_PID && mPid != pid) {
             return false;
         }
 
         if ((mMode & MODE_TAG) == MODE_TAG && (
-                logMessage.data.tag == null ||
-                logMessage.data.tag.equals(mTag) == false)) {
+                tag == null ||
+                tag.equals(mTag) == false)) {
             return false;
         }
 
-        int msgLogLevel = logMessage.data.logLevel.getPriority();
+        int msgLogLevel = LogLevel.getByPriority(priority).getPriority();
 
         // test the temp log filtering first, as it replaces the old one
         if (mTempLogLevel != -1) {
@@ -363,28 +496,12 @@ public class LogFilter {
         }
 
         // do the temp filtering now.
-        if (mTempKeywordFilters != null) {
-            String msg = logMessage.msg;
-
-            for (String kw : mTempKeywordFilters) {
-                try {
-                    if (msg.contains(kw) == false && msg.matches(kw) == false) {
-                        return false;
-                    }
-                } catch (PatternSyntaxException e) {
-                    // if the string is not a valid regular expression,
-                    // this exception is thrown.
-                    return false;
-                }
-            }
-        }
-
-        if (mTempPid != -1 && mTempPid != logMessage.data.pid) {
+        if (mTempPid != -1 && mTempPid != pid) {
            return false;
         }
 
         if (mTempTag != null && mTempTag.length() > 0) {
-            if (mTempTag.equals(logMessage.data.tag) == false) {
+            if (mTempTag.equals(tag) == false) {
                 return false;
             }
         }
@@ -407,23 +524,35 @@ public class LogFilter {
 
         // disable drawing
         mTable.setRedraw(false);
-        
-        int totalCount = mNewMessages.size();
+
+        int totalCount;
+        int removedCount = 0;
+        int newCount = 0;
 
         try {
-            // remove the items of the old messages.
-            for (int i = 0 ; i < mRemovedMessageCount && mTable.getItemCount() > 0 ; i++) {
-                mTable.remove(0);
-            }
-    
-            if (mUnreadCount > mTable.getItemCount()) {
-                mUnreadCount = mTable.getItemCount();
-            }
-    
-            // add the new items
-            for (int i = 0  ; i < totalCount ; i++) {
-                LogMessage msg = mNewMessages.get(i);
-                addTableItem(msg);
+            synchronized (this) {
+                removedCount = mRemovedMessageCount;
+                newCount = mNewMessageCount;
+                mRemovedMessageCount = 0;
+                mNewMessageCount = 0;
+                mDisplayedCount = mSlotCount;
+
+                // remove the items of the old messages.
+                int itemCount = mTable.getItemCount();
+                if (removedCount > itemCount) {
+                    removedCount = itemCount;
+                }
+                if (removedCount > 0) {
+                    mTable.remove(0, removedCount - 1);
+                }
+
+                if (mUnreadCount > mTable.getItemCount()) {
+                    mUnreadCount = mTable.getItemCount();
+                }
+
+                // add the new items. Since the table is virtual, they are only filled
+                // when they are shown.
+                mTable.setItemCount(mDisplayedCount);
             }
         } catch (SWTException e) {
             // log the error and keep going. Content of the logcat table maybe unexpected
@@ -440,12 +569,12 @@ public class LogFilter {
             if (totalCount > 0) {
                 mTable.showItem(mTable.getItem(totalCount-1));
             }
-        } else if (mRemovedMessageCount > 0) {
+        } else if (removedCount > 0) {
             // we need to make sure the topIndex is still visible.
             // Because really old items are removed from the list, this could make it disappear
             // if we don't change the scroll value at all.
 
-            topIndex -= mRemovedMessageCount;
+            topIndex -= removedCount;
             if (topIndex < 0) {
                 // looks like it disappeared. Lets just show the first item
                 mTable.showItem(mTable.getItem(0));
@@ -457,7 +586,7 @@ public class LogFilter {
         // if this filter is not the current one, we update the tab text
         // with the amount of unread message
         if (mIsCurrentTabItem == false) {
-            mUnreadCount += mNewMessages.size();
+            mUnreadCount += newCount;
             totalCount = mTable.getItemCount();
             if (mUnreadCount > 0) {
                 mTabItem.setText(mName + " (" // $NON-NLS-1$
@@ -467,8 +596,6 @@ public class LogFilter {
                 mTabItem.setText(mName);  // $NON-NLS-1$
             }
         }
-        
-        mNewMessages.clear();
     }
 
     void setColors(LogColors colors) {
@@ -491,11 +618,18 @@ public class LogFilter {
         mSupportsEdit = support;
     }
 
-    void setTempKeywordFiltering(String[] segments) {
-        mTempKeywordFilters = segments;
+    void setTempKeywordFiltering(KeywordMatcher matcher) {
+        mTempKeywordMatcher = matcher;
         mTempFilteringStatus = true;
     }
 
+    /**
+     * Returns the matcher for the temp keyword filtering, or <code>null</code> if there is none.
+     */
+    KeywordMatcher getTempKeywordMatcher() {
+        return mTempKeywordMatcher;
+    }
+
     void setTempPidFiltering(int pid) {
         mTempPid = pid;
         mTempFilteringStatus = true;
@@ -507,13 +641,13 @@ public class LogFilter {
     }
 
     void resetTempFiltering() {
-        if (mTempPid != -1 || mTempTag != null || mTempKeywordFilters != null) {
+        if (mTempPid != -1 || mTempTag != null || mTempKeywordMatcher != null) {
             mTempFilteringStatus = true;
         }
 
         mTempPid = -1;
         mTempTag = null;
-        mTempKeywordFilters = null;
+        mTempKeywordMatcher = null;
     }
 
     void resetTempFilteringStatus() {
@@ -526,16 +660,16 @@ public class LogFilter {
 
 
     /**
-     * Add a TableItem for the index-th item of the buffer
-     * @param filter The index of the table in which to insert the item.
+     * Fills a TableItem with a message. This is only called for the rows being displayed.
+     * @param item the item to fill.
+     * @param msg the message.
      */
-    private void addTableItem(LogMessage msg) {
-        TableItem item = new TableItem(mTable, SWT.NONE);
-        item.setText(0, msg.data.time);
+    private void fillTableItem(TableItem item, LogMessage msg) {
+        item.setText(0, msg.data.getTime());
         item.setText(1, new String(new char[] { msg.data.logLevel.getPriorityLetter() }));
-        item.setText(2, msg.data.pidString);
+        item.setText(2, msg.data.getPidString());
         item.setText(3, msg.data.tag);
-        item.setText(4, msg.msg);
+        item.setText(4, msg.getDisplayMessage());
 
         // add the buffer index as data
         item.setData(msg);
@@ -20,6 +20,10 @@ import com.android.ddmlib.IDevice;
 import com.android.ddmlib.Log;
 import com.android.ddmlib.MultiLineReceiver;
 import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.log.LogBuffer;
+import com.android.ddmlib.log.LogReceiver;
+import com.android.ddmlib.log.LogReceiver.ILogListener;
+import com.android.ddmlib.log.LogReceiver.LogEntry;
 import com.android.ddmuilib.DdmUiPreferences;
 import com.android.ddmuilib.ITableFocusListener;
 import com.android.ddmuilib.SelectionDependentPanel;
@@ -55,20 +59,19 @@ import org.eclipse.swt.widgets.TabFolder;
 import org.eclipse.swt.widgets.TabItem;
 import org.eclipse.swt.widgets.Table;
 import org.eclipse.swt.widgets.TableColumn;
-import org.eclipse.swt.widgets.TableItem;
 import org.eclipse.swt.widgets.Text;
 
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Date;
+import java.util.HashMap;
 
 public class LogPanel extends SelectionDependentPanel {
 
-    private static final int STRING_BUFFER_LENGTH = 10000;
-
     /** no filtering. Only one tab with everything. */
     public static final int FILTER_NONE = 0;
     /** manual mode for filter. all filters are manually created. */
@@ -91,20 +94,15 @@ public class LogPanel extends SelectionDependentPanel {
     public static String PREFS_TAG;
     public static String PREFS_MESSAGE;
 
-    /**
-     * This pattern is meant to parse the first line of a log message with the option
-     * 'logcat -v long'. The first line represents the date, tag, severity, etc.. while the
-     * following lines are the message (can be several line).<br>
-     * This first line looks something like<br>
-     * <code>"[ 00-00 00:00:00.000 &lt;pid&gt;:0x&lt;???&gt; &lt;severity&gt;/&lt;tag&gt;]"</code>
-     * <br>
-     * Note: severity is one of V, D, I, W, or EM<br>
-     * Note: the fraction of second value can have any number of digit.
-     * Note the tag should be trim as it may have spaces at the end.
-     */
-    private static Pattern sLogPattern = Pattern.compile(
-            "^\\[\\s(\\d\\d-\\d\\d\\s\\d\\d:\\d\\d:\\d\\d\\.\\d+)" + //$NON-NLS-1$
-            "\\s+(\\d*):(0x[0-9a-fA-F]+)\\s([VDIWE])/(.*)\\]$"); //$NON-NLS-1$
+    /** Name of the log read from the device. */
+    private static final String LOG_NAME = "main"; //$NON-NLS-1$
+
+    /** Encoding of the tags and messages of the log entries. */
+    private static final String LOG_ENCODING = "UTF-8"; //$NON-NLS-1$
+
+    /** Format of the time of the messages, same as "logcat -v long". */
+    private static final SimpleDateFormat sTimeFormat =
+        new SimpleDateFormat("MM-dd HH:mm:ss.SSS"); //$NON-NLS-1$
 
     /**
      * Interface for Storage Filter manager. Implementation of this interface
@@ -129,25 +127,15 @@ public class LogPanel extends SelectionDependentPanel {
 
     private ILogFilterStorageManager mFilterStorage;
 
-    private LogCatOuputReceiver mCurrentLogCat;
+    private LogReceiver mCurrentLogCat;
 
     /**
      * Circular buffer containing the logcat output. This is unfiltered.
-     * The valid content goes from <code>mBufferStart</code> to
-     * <code>mBufferEnd - 1</code>. Therefore its number of item is
-     * <code>mBufferEnd - mBufferStart</code>.
+     * <p/>The lines are stored outside of the Java heap, and the filters only keep the slots of
+     * the lines they accept. {@link LogMessage} objects are only created for the lines being
+     * displayed.
      */
-    private LogMessage[] mBuffer = new LogMessage[STRING_BUFFER_LENGTH];
-
-    /** Represents the oldest message in the buffer */
-    private int mBufferStart = -1;
-
-    /**
-     * Represents the next usable item in the buffer to receive new message.
-     * This can be equal to mBufferStart, but when used mBufferStart will be
-     * incremented as well.
-     */
-    private int mBufferEnd = -1;
+    private final LogBuffer mBuffer = LogBuffer.create(DdmUiPreferences.getLogCatBufferSize());
 
     /** Filter list */
     private LogFilter[] mFilters;
@@ -169,22 +157,50 @@ public class LogPanel extends SelectionDependentPanel {
 
     private ICommonAction[] mLogLevelActions;
 
-    /** message data, separated from content for multi line messages */
+    /**
+     * message data, separated from content for multi line messages.
+     * <p/>The strings displayed in the UI are only created when needed.
+     */
     protected static class LogMessageInfo {
         public LogLevel logLevel;
         public int pid;
-        public String pidString;
+        public int tid;
         public String tag;
-        public String time;
-    }
+        /** seconds since Epoch */
+        public int sec;
+        /** nanoseconds */
+        public int nsec;
 
-    /** pointer to the latest LogMessageInfo. this is used for multi line
-     * log message, to reuse the info regarding level, pid, etc...
-     */
-    private LogMessageInfo mLastMessageInfo = null;
+        private String mPidString;
+        private String mTime;
+
+        public String getPidString() {
+            if (mPidString == null) {
+                mPidString = Integer.toString(pid);
+            }
+            return mPidString;
+        }
+
+        public String getTime() {
+            if (mTime == null) {
+                Date date = new Date(sec * 1000L + nsec / 1000000);
+                synchronized (sTimeFormat) {
+                    mTime = sTimeFormat.format(date);
+                }
+            }
+            return mTime;
+        }
+    }
 
     private boolean mPendingAsyncRefresh = false;
 
+    /**
+     * Initializers still filling the filters, per filter. Only accessed with the lock of
+     * {@link #mBuffer} held.
+     */
+    private final HashMap<LogFilter, FilterInitializer> mFilterInitializers =
+        new HashMap<LogFilter, FilterInitializer>();
+
     private String mDefaultLogSave;
 
     private int mColumnMode = COLUMN_MODE_MANUAL;
@@ -197,39 +213,67 @@ public class LogPanel extends SelectionDependentPanel {
         public LogMessageInfo data;
         public String msg;
 
+        /**
+         * Returns the message as displayed in the UI.
+         */
+        public String getDisplayMessage() {
+            // tabs seem to display as only 1 tab so we replace them by 4 spaces.
+            if (msg.indexOf('\t') != -1) {
+                return msg.replace("\t", "    "); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+            return msg;
+        }
+
+        /**
+         * Creates a message for a line of a {@link LogBuffer}.
+         * @param buffer the buffer.
+         * @param slot the slot of the line.
+         */
+        static LogMessage create(LogBuffer buffer, int slot) {
+            synchronized (buffer) {
+                LogMessageInfo info = new LogMessageInfo();
+                info.logLevel = LogLevel.getByPriority(buffer.getPriority(slot));
+                info.pid = buffer.getPid(slot);
+                info.tid = buffer.getTid(slot);
+                info.sec = buffer.getSec(slot);
+                info.nsec = buffer.getNsec(slot);
+                info.tag = buffer.getTag(slot);
+
+                LogMessage message = new LogMessage();
+                message.data = info;
+                message.msg = buffer.getMessage(slot);
+                return message;
+            }
+        }
+
         @Override
         public String toString() {
-            return data.time + ": " //$NON-NLS-1$
+            return data.getTime() + ": " //$NON-NLS-1$
                 + data.logLevel + "/" //$NON-NLS-1$
                 + data.tag + "(" //$NON-NLS-1$
-                + data.pidString + "): " //$NON-NLS-1$
+                + data.getPidString() + "): " //$NON-NLS-1$
                 + msg;
         }
     }
 
     /**
-     * objects able to receive the output of a remote shell command,
-     * specifically a logcat command in this case
+     * Listener receiving the binary entries of the log service.
      */
-    private final class LogCatOuputReceiver extends MultiLineReceiver {
-
-        public boolean isCancelled = false;
-
-        public LogCatOuputReceiver() {
-            super();
+    private final class LogCatListener implements ILogListener {
+        private LogReceiver mReceiver;
 
-            setTrimLine(false);
+        void setReceiver(LogReceiver receiver) {
+            mReceiver = receiver;
         }
 
-        @Override
-        public void processNewLines(String[] lines) {
-            if (isCancelled == false) {
-                processLogLines(lines);
+        public void newEntry(LogEntry entry) {
+            if (mReceiver.isCancelled() == false) {
+                processLogEntry(entry);
             }
         }
 
-        public boolean isCancelled() {
-            return isCancelled;
+        public void newData(byte[] data, int offset, int length) {
+            // pass
         }
     }
 
@@ -488,8 +532,11 @@ public class LogPanel extends SelectionDependentPanel {
         resetUI(false);
 
         if (device != null) {
-            // create a new output receiver
-            mCurrentLogCat = new LogCatOuputReceiver();
+            // create a new log receiver
+            LogCatListener listener = new LogCatListener();
+            final LogReceiver receiver = new LogReceiver(listener);
+            listener.setReceiver(receiver);
+            mCurrentLogCat = receiver;
 
             // start the logcat in a different thread
             new Thread("Logcat")  { //$NON-NLS-1$
@@ -497,8 +544,7 @@ public class LogPanel extends SelectionDependentPanel {
                 public void run() {
 
                     while (device.isOnline() == false &&
-                            mCurrentLogCat != null &&
-                            mCurrentLogCat.isCancelled == false) {
+                            receiver.isCancelled() == false) {
                         try {
                             sleep(2000);
                         } catch (InterruptedException e) {
@@ -506,20 +552,22 @@ public class LogPanel extends SelectionDependentPanel {
                         }
                     }
 
-                    if (mCurrentLogCat == null || mCurrentLogCat.isCancelled) {
+                    if (receiver.isCancelled()) {
                         // logcat was stopped/cancelled before the device became ready.
                         return;
                     }
 
                     try {
                         mCurrentLoggedDevice = device;
-                        device.executeShellCommand("logcat -v long", mCurrentLogCat, 0 /*timeout*/); //$NON-NLS-1$
+                        device.runLogService(LOG_NAME, receiver);
                     } catch (Exception e) {
                         Log.e("Logcat", e);
                     } finally {
                         // at this point the command is terminated.
-                        mCurrentLogCat = null;
-                        mCurrentLoggedDevice = null;
+                        if (mCurrentLogCat == receiver) {
+                            mCurrentLogCat = null;
+                            mCurrentLoggedDevice = null;
+                        }
                     }
                 }
             }.start();
@@ -529,23 +577,18 @@ public class LogPanel extends SelectionDependentPanel {
     /** Stop the current logcat */
     public void stopLogCat(boolean inUiThread) {
         if (mCurrentLogCat != null) {
-            mCurrentLogCat.isCancelled = true;
+            mCurrentLogCat.cancel();
 
             // when the thread finishes, no one will reference that object
             // and it'll be destroyed
             mCurrentLogCat = null;
 
             // reset the content buffer
-            for (int i = 0 ; i < STRING_BUFFER_LENGTH; i++) {
-                mBuffer[i] = null;
+            synchronized (mBuffer) {
+                cancelFilterInitializers();
+                mBuffer.clear();
             }
 
-            // because it's a circular buffer, it's hard to know if
-            // the array is empty with both start/end at 0 or if it's full
-            // with both start/end at 0 as well. So to mean empty, we use -1
-            mBufferStart = -1;
-            mBufferEnd = -1;
-
             resetFilters();
             resetUI(inUiThread);
         }
@@ -655,6 +698,7 @@ public class LogPanel extends SelectionDependentPanel {
         synchronized (mBuffer) {
             if (mCurrentFilter != null && mCurrentFilter != mDefaultFilter) {
                 // remove the filter from the list
+                cancelFilterInitializer(mCurrentFilter);
                 removeFilterFromArray(mCurrentFilter);
                 mCurrentFilter.dispose();
 
@@ -718,9 +762,10 @@ public class LogPanel extends SelectionDependentPanel {
                 try {
                     FileWriter writer = new FileWriter(fileName);
 
-                    for (int i : selection) {
-                        TableItem item = currentTable.getItem(i);
-                        LogMessage msg = (LogMessage)item.getData();
+                    for (LogMessage msg : mCurrentFilter.getMessages(selection)) {
+                        if (msg == null) {
+                            continue;
+                        }
                         String line = msg.toString();
                         writer.write(line);
                         writer.write('\n');
@@ -741,12 +786,8 @@ public class LogPanel extends SelectionDependentPanel {
      */
     public void clear() {
         synchronized (mBuffer) {
-            for (int i = 0 ; i < STRING_BUFFER_LENGTH; i++) {
-                mBuffer[i] = null;
-            }
-
-            mBufferStart = -1;
-            mBufferEnd = -1;
+            cancelFilterInitializers();
+            mBuffer.clear();
 
             // now we clear the existing filters
             for (LogFilter filter : mFilters) {
@@ -766,10 +807,7 @@ public class LogPanel extends SelectionDependentPanel {
      * @param clipboard The clipboard to place the copied content.
      */
     public void copy(Clipboard clipboard) {
-        // get the current table and its selection
-        Table currentTable = mCurrentFilter.getTable();
-
-        copyTable(clipboard, currentTable);
+        copyTable(clipboard, mCurrentFilter);
     }
 
     /**
@@ -793,14 +831,12 @@ public class LogPanel extends SelectionDependentPanel {
 
         // now we setup the existing filters
         for (LogFilter filter : mFilters) {
-            Table table = filter.getTable();
-
-            addTableToFocusListener(table);
+            addTableToFocusListener(filter);
         }
 
         // and the default one
         if (mDefaultFilter != null) {
-            addTableToFocusListener(mDefaultFilter.getTable());
+            addTableToFocusListener(mDefaultFilter);
         }
     }
 
@@ -808,13 +844,15 @@ public class LogPanel extends SelectionDependentPanel {
      * Sets up a Table object to notify the global Table Focus listener when it
      * gets or loses the focus.
      *
-     * @param table the Table object.
+     * @param filter the filter displayed in the Table object.
      */
-    private void addTableToFocusListener(final Table table) {
+    private void addTableToFocusListener(final LogFilter filter) {
+        final Table table = filter.getTable();
+
         // create the activator for this table
         final IFocusedTableActivator activator = new IFocusedTableActivator() {
             public void copy(Clipboard clipboard) {
-                copyTable(clipboard, table);
+                copyTable(clipboard, filter);
             }
 
             public void selectAll() {
@@ -839,10 +877,10 @@ public class LogPanel extends SelectionDependentPanel {
      * multi-line text.
      *
      * @param clipboard The clipboard to place the copied content.
-     * @param table The table to copy from.
+     * @param filter The filter whose table to copy from.
      */
-    private static void copyTable(Clipboard clipboard, Table table) {
-        int[] selection = table.getSelectionIndices();
+    private static void copyTable(Clipboard clipboard, LogFilter filter) {
+        int[] selection = filter.getTable().getSelectionIndices();
 
         // we need to sort the items to be sure.
         Arrays.sort(selection);
@@ -851,9 +889,10 @@ public class LogPanel extends SelectionDependentPanel {
         StringBuilder sb = new StringBuilder();
 
         // loop on the selection and output the file.
-        for (int i : selection) {
-            TableItem item = table.getItem(i);
-            LogMessage msg = (LogMessage)item.getData();
+        for (LogMessage msg : filter.getMessages(selection)) {
+            if (msg == null) {
+                continue;
+            }
             String line = msg.toString();
             sb.append(line);
             sb.append('\n');
@@ -906,7 +945,7 @@ public class LogPanel extends SelectionDependentPanel {
             top.setLayout(new FillLayout());
 
             // create the ui, first the table
-            final Table t = new Table(top, SWT.MULTI | SWT.FULL_SELECTION);
+            final Table t = new Table(top, SWT.MULTI | SWT.FULL_SELECTION | SWT.VIRTUAL);
 
             if (mDisplayFont != null) {
                 t.setFont(mDisplayFont);
@@ -919,7 +958,7 @@ public class LogPanel extends SelectionDependentPanel {
             t.setLinesVisible(false);
 
             if (mGlobalListener != null) {
-                addTableToFocusListener(t);
+                addTableToFocusListener(filter);
             }
 
             // create a controllistener that will handle the resizing of all the
@@ -1055,69 +1094,44 @@ public class LogPanel extends SelectionDependentPanel {
     }
 
     /**
-     * Process new Log lines coming from {@link LogCatOuputReceiver}.
-     * @param lines the new lines
+     * Process a new entry coming from the log service.
+     * <p/>The entry data is the priority, followed by the tag and the message, both
+     * terminated by a 0. Messages with embedded '\n' characters are split into one
+     * line of the buffer per line.
+     * @param entry the new entry.
      */
-    protected void processLogLines(String[] lines) {
-        // WARNING: this will not work if the string contains more line than
-        // the buffer holds.
-
-        if (lines.length > STRING_BUFFER_LENGTH) {
-            Log.e("LogCat", "Receiving more lines than STRING_BUFFER_LENGTH");
+    protected void processLogEntry(LogEntry entry) {
+        byte[] data = entry.data;
+        if (data == null || data.length == 0) {
+            return;
         }
 
-        // parse the lines and create LogMessage that are stored in a temporary list
-        final ArrayList<LogMessage> newMessages = new ArrayList<LogMessage>();
+        int tagEnd = indexOf(data, 1, (byte) 0);
+        int msgEnd = indexOf(data, tagEnd + 1, (byte) 0);
 
         synchronized (mBuffer) {
-            for (String line : lines) {
-                // ignore empty lines.
-                if (line.length() > 0) {
-                    // check for header lines.
-                    Matcher matcher = sLogPattern.matcher(line);
-                    if (matcher.matches()) {
-                        // this is a header line, parse the header and keep it around.
-                        mLastMessageInfo = new LogMessageInfo();
-
-                        mLastMessageInfo.time = matcher.group(1);
-                        mLastMessageInfo.pidString = matcher.group(2);
-                        mLastMessageInfo.pid = Integer.valueOf(mLastMessageInfo.pidString);
-                        mLastMessageInfo.logLevel = LogLevel.getByLetterString(matcher.group(4));
-                        mLastMessageInfo.tag = matcher.group(5).trim();
-                    } else {
-                        // This is not a header line.
-                        // Create a new LogMessage and process it.
-                        LogMessage mc = new LogMessage();
-
-                        if (mLastMessageInfo == null) {
-                            // The first line of output wasn't preceded
-                            // by a header line; make something up so
-                            // that users of mc.data don't NPE.
-                            mLastMessageInfo = new LogMessageInfo();
-                            mLastMessageInfo.time = "??-?? ??:??:??.???"; //$NON-NLS1$
-                            mLastMessageInfo.pidString = "<unknown>"; //$NON-NLS1$
-                            mLastMessageInfo.pid = 0;
-                            mLastMessageInfo.logLevel = LogLevel.INFO;
-                            mLastMessageInfo.tag = "<unknown>"; //$NON-NLS1$
-                        }
+            String tag = decode(data, 1, tagEnd - 1);
 
-                        // If someone printed a log message with
-                        // embedded '\n' characters, there will
-                        // one header line followed by multiple text lines.
-                        // Use the last header that we saw.
-                        mc.data = mLastMessageInfo;
+            int lineStart = tagEnd + 1;
+            while (lineStart < msgEnd) {
+                int lineEnd = indexOf(data, lineStart, (byte) '\n');
+                if (lineEnd > msgEnd) {
+                    lineEnd = msgEnd;
+                }
 
-                        // tabs seem to display as only 1 tab so we replace the leading tabs
-                        // by 4 spaces.
-                        mc.msg = line.replaceAll("\t", "    "); //$NON-NLS-1$ //$NON-NLS-2$
+                // ignore empty lines.
+                if (lineEnd > lineStart) {
+                    int first = mBuffer.getFirstSlot();
+                    int count = mBuffer.getCount();
 
-                        // process the new LogMessage.
-                        processNewMessage(mc);
+                    int slot = mBuffer.add(data[0], entry.pid, entry.tid, entry.sec, entry.nsec,
+                            tag, data, lineStart, lineEnd - lineStart);
 
-                        // store the new LogMessage
-                        newMessages.add(mc);
-                    }
+                    // process the new line.
+                    processNewMessage(slot, first, count + 1 - mBuffer.getCount());
                 }
+
+                lineStart = lineEnd + 1;
             }
 
             // if we don't have a pending Runnable that will do the refresh, we ask the Display
@@ -1142,6 +1156,30 @@ public class LogPanel extends SelectionDependentPanel {
         }
     }
 
+    /**
+     * Returns the index of the first <var>value</var> found in <var>data</var> from
+     * <var>start</var>, or <code>data.length</code> if there is none.
+     */
+    private static int indexOf(byte[] data, int start, byte value) {
+        for (int i = start ; i < data.length ; i++) {
+            if (data[i] == value) {
+                return i;
+            }
+        }
+        return data.length;
+    }
+
+    private static String decode(byte[] data, int offset, int length) {
+        if (length <= 0) {
+            return ""; //$NON-NLS-1$
+        }
+        try {
+            return new String(data, offset, length, LOG_ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            return new String(data, offset, length);
+        }
+    }
+
     /**
      * Refreshes the UI with new messages.
      */
@@ -1171,55 +1209,44 @@ public class LogPanel extends SelectionDependentPanel {
     }
 
     /**
-     * Processes a new Message.
-     * <p/>This adds the new message to the buffer, and gives it to the existing filters.
-     * @param newMessage
+     * Processes a new line of the buffer.
+     * <p/>This gives the new line to the existing filters, and tells them about the old lines
+     * that were removed from the buffer to make room for it.
+     * @param slot the slot of the new line.
+     * @param firstRemovedSlot the slot of the first removed line.
+     * @param removedCount the number of removed lines.
      */
-    private void processNewMessage(LogMessage newMessage) {
+    private void processNewMessage(int slot, int firstRemovedSlot, int removedCount) {
         // if we are in auto filtering mode, make sure we have
         // a filter for this
         if (mFilterMode == FILTER_AUTO_PID ||
                 mFilterMode == FILTER_AUTO_TAG) {
-           checkFilter(newMessage.data);
+           checkFilter(mBuffer.getPid(slot), mBuffer.getTag(slot));
         }
 
-        // compute the index where the message goes.
-        // was the buffer empty?
-        int messageIndex = -1;
-        if (mBufferStart == -1) {
-            messageIndex = mBufferStart = 0;
-            mBufferEnd = 1;
-        } else {
-            messageIndex = mBufferEnd;
-
-            // check we aren't overwriting start
-            if (mBufferEnd == mBufferStart) {
-                mBufferStart = (mBufferStart + 1) % STRING_BUFFER_LENGTH;
+        // remove the old lines from the filters.
+        int capacity = mBuffer.getCapacity();
+        for (int i = 0 ; i < removedCount ; i++) {
+            int oldSlot = (firstRemovedSlot + i) % capacity;
+            if (mFilters != null) {
+                for (LogFilter f : mFilters) {
+                    f.removeMessage(oldSlot);
+                }
+            }
+            if (mDefaultFilter != null) {
+                mDefaultFilter.removeMessage(oldSlot);
             }
-
-            // increment the next usable slot index
-            mBufferEnd = (mBufferEnd + 1) % STRING_BUFFER_LENGTH;
-        }
-
-        LogMessage oldMessage = null;
-
-        // record the message that was there before
-        if (mBuffer[messageIndex] != null) {
-            oldMessage = mBuffer[messageIndex];
         }
 
-        // then add the new one
-        mBuffer[messageIndex] = newMessage;
-
-        // give the new message to every filters.
+        // give the new line to every filters.
         boolean filtered = false;
         if (mFilters != null) {
             for (LogFilter f : mFilters) {
-                filtered |= f.addMessage(newMessage, oldMessage);
+                filtered |= f.addMessage(slot);
             }
         }
         if (filtered == false && mDefaultFilter != null) {
-            mDefaultFilter.addMessage(newMessage, oldMessage);
+            mDefaultFilter.addMessage(slot);
         }
     }
 
@@ -1232,12 +1259,14 @@ public class LogPanel extends SelectionDependentPanel {
             if (mFilters != null) {
                 for (LogFilter f : mFilters) {
                     f.setColors(mColors);
+                    f.setBuffer(mBuffer);
                 }
             }
 
             if (mFilterStorage.requiresDefaultFilter()) {
                 mDefaultFilter = new LogFilter("Log");
                 mDefaultFilter.setColors(mColors);
+                mDefaultFilter.setBuffer(mBuffer);
                 mDefaultFilter.setSupportsDelete(false);
                 mDefaultFilter.setSupportsEdit(false);
             }
@@ -1246,30 +1275,32 @@ public class LogPanel extends SelectionDependentPanel {
             // will receive all
             mDefaultFilter = new LogFilter("Log");
             mDefaultFilter.setColors(mColors);
+            mDefaultFilter.setBuffer(mBuffer);
             mDefaultFilter.setSupportsDelete(false);
             mDefaultFilter.setSupportsEdit(false);
         }
     }
 
-    /** Checks if there's an automatic filter for this md and if not
+    /** Checks if there's an automatic filter for this pid/tag and if not
      * adds the filter and the ui.
      * This must be called from the UI!
-     * @param md
+     * @param pid
+     * @param tag
      * @return true if the filter existed already
      */
-    private boolean checkFilter(final LogMessageInfo md) {
+    private boolean checkFilter(final int pid, final String tag) {
         if (true)
             return true;
         // look for a filter that matches the pid
         if (mFilterMode == FILTER_AUTO_PID) {
             for (LogFilter f : mFilters) {
-                if (f.getPidFilter() == md.pid) {
+                if (f.getPidFilter() == pid) {
                     return true;
                 }
             }
         } else if (mFilterMode == FILTER_AUTO_TAG) {
             for (LogFilter f : mFilters) {
-                if (f.getTagFilter().equals(md.tag)) {
+                if (f.getTagFilter().equals(tag)) {
                     return true;
                 }
             }
@@ -1277,16 +1308,16 @@ public class LogPanel extends SelectionDependentPanel {
 
         // if we reach this point, no filter was found.
         // create a filter with a temporary name of the pid
-        final LogFilter newFilter = new LogFilter(md.pidString);
+        final LogFilter newFilter = new LogFilter(Integer.toString(pid));
         String name = null;
         if (mFilterMode == FILTER_AUTO_PID) {
-            newFilter.setPidMode(md.pid);
+            newFilter.setPidMode(pid);
 
             // ask the monitor thread if it knows the pid.
-            name = mCurrentLoggedDevice.getClientName(md.pid);
+            name = mCurrentLoggedDevice.getClientName(pid);
         } else {
-            newFilter.setTagMode(md.tag);
-            name = md.tag;
+            newFilter.setTagMode(tag);
+            name = tag;
         }
         addFilterToArray(newFilter);
 
@@ -1303,7 +1334,7 @@ public class LogPanel extends SelectionDependentPanel {
                 @Override
                 public void run() {
                     // create the receiver
-                    PsOutputReceiver psor = new PsOutputReceiver(md.pid,
+                    PsOutputReceiver psor = new PsOutputReceiver(pid,
                             newFilter, newTabItem);
 
                     // execute ps
@@ -1326,6 +1357,7 @@ public class LogPanel extends SelectionDependentPanel {
     private void addFilterToArray(LogFilter newFilter) {
         // set the colors
         newFilter.setColors(mColors);
+        newFilter.setBuffer(mBuffer);
 
         // add it to the array.
         if (mFilters != null && mFilters.length > 0) {
@@ -1360,6 +1392,8 @@ public class LogPanel extends SelectionDependentPanel {
 
     /**
      * Initialize the filter with already existing buffer.
+     * <p/>The buffer is filtered in the background by a {@link FilterInitializer}, which
+     * replaces the one still running for this filter, if any.
      * @param filter
      */
     private void initFilter(LogFilter filter) {
@@ -1373,23 +1407,7 @@ public class LogPanel extends SelectionDependentPanel {
             return;
         }
 
-        filter.clear();
-
-        if (mBufferStart != -1) {
-            int max = mBufferEnd;
-            if (mBufferEnd < mBufferStart) {
-                max += STRING_BUFFER_LENGTH;
-            }
-
-            for (int i = mBufferStart; i < max; i++) {
-                int realItemIndex = i % STRING_BUFFER_LENGTH;
-
-                filter.addMessage(mBuffer[realItemIndex], null /* old message */);
-            }
-        }
-
-        filter.flush();
-        filter.resetTempFilteringStatus();
+        startFilterInitializer(filter, null);
     }
 
     /**
@@ -1397,32 +1415,41 @@ public class LogPanel extends SelectionDependentPanel {
      * @see initFilter()
      */
     private void initDefaultFilter() {
-        mDefaultFilter.clear();
-
-        if (mBufferStart != -1) {
-            int max = mBufferEnd;
-            if (mBufferEnd < mBufferStart) {
-                max += STRING_BUFFER_LENGTH;
-            }
+        // the other filters take their messages out of the default one.
+        startFilterInitializer(mDefaultFilter, mFilters);
+    }
 
-            for (int i = mBufferStart; i < max; i++) {
-                int realItemIndex = i % STRING_BUFFER_LENGTH;
-                LogMessage msg = mBuffer[realItemIndex];
+    private void startFilterInitializer(LogFilter filter, LogFilter[] excludedFilters) {
+        synchronized (mBuffer) {
+            cancelFilterInitializer(filter);
 
-                // first we check that the other filters don't take this message
-                boolean filtered = false;
-                for (LogFilter f : mFilters) {
-                    filtered |= f.accept(msg);
-                }
+            FilterInitializer initializer = new FilterInitializer(mBuffer, filter,
+                    excludedFilters, mFolders.getDisplay());
+            mFilterInitializers.put(filter, initializer);
+            initializer.start();
+        }
+    }
 
-                if (filtered == false) {
-                    mDefaultFilter.addMessage(msg, null /* old message */);
-                }
-            }
+    /**
+     * Cancels the {@link FilterInitializer} of a filter, if any.
+     * <p/>This must be called with the lock of {@link #mBuffer} held.
+     */
+    private void cancelFilterInitializer(LogFilter filter) {
+        FilterInitializer initializer = mFilterInitializers.remove(filter);
+        if (initializer != null) {
+            initializer.cancel();
         }
+    }
 
-        mDefaultFilter.flush();
-        mDefaultFilter.resetTempFilteringStatus();
+    /**
+     * Cancels all the {@link FilterInitializer}s.
+     * <p/>This must be called with the lock of {@link #mBuffer} held.
+     */
+    private void cancelFilterInitializers() {
+        for (FilterInitializer initializer : mFilterInitializers.values()) {
+            initializer.cancel();
+        }
+        mFilterInitializers.clear();
     }
 
     /**
@@ -1456,11 +1483,11 @@ public class LogPanel extends SelectionDependentPanel {
 
     private void emptyTables() {
         for (LogFilter f : mFilters) {
-            f.getTable().removeAll();
+            f.clear();
         }
 
         if (mDefaultFilter != null) {
-            mDefaultFilter.getTable().removeAll();
+            mDefaultFilter.clear();
         }
     }
 
@@ -1505,8 +1532,13 @@ public class LogPanel extends SelectionDependentPanel {
 
             // set the temp filtering in the filters
             if (tempPid != -1 || tempTag != null || keywords.size() > 0) {
-                String[] keywordsArray = keywords.toArray(
-                        new String[keywords.size()]);
+                // the keywords are compiled once, and matched once per message for all
+                // the filters.
+                KeywordMatcher keywordMatcher = null;
+                if (keywords.size() > 0) {
+                    keywordMatcher = new KeywordMatcher(keywords.toArray(
+                            new String[keywords.size()]));
+                }
 
                 for (LogFilter f : mFilters) {
                     if (tempPid != -1) {
@@ -1515,7 +1547,7 @@ public class LogPanel extends SelectionDependentPanel {
                     if (tempTag != null) {
                         f.setTempTagFiltering(tempTag);
                     }
-                    f.setTempKeywordFiltering(keywordsArray);
+                    f.setTempKeywordFiltering(keywordMatcher);
                 }
 
                 if (mDefaultFilter != null) {
@@ -1525,7 +1557,7 @@ public class LogPanel extends SelectionDependentPanel {
                     if (tempTag != null) {
                         mDefaultFilter.setTempTagFiltering(tempTag);
                     }
-                    mDefaultFilter.setTempKeywordFiltering(keywordsArray);
+                    mDefaultFilter.setTempKeywordFiltering(keywordMatcher);
 
                 }
             }
@@ -1565,9 +1597,9 @@ public class LogPanel extends SelectionDependentPanel {
         int[] selection = table.getSelectionIndices();
 
         if (selection.length == 1) {
-            TableItem item = table.getItem(selection[0]);
-            LogMessage msg = (LogMessage)item.getData();
-            if (msg.data.logLevel == LogLevel.ERROR || msg.data.logLevel == LogLevel.WARN)
+            LogMessage msg = mCurrentFilter.getMessages(selection)[0];
+            if (msg != null &&
+                    (msg.data.logLevel == LogLevel.ERROR || msg.data.logLevel == LogLevel.WARN))
                 return msg.msg;
         }
         return null;
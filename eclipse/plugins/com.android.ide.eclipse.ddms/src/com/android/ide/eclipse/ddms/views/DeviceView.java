@@ -170,7 +170,7 @@ public class DeviceView extends ViewPart implements IUiSelectionListener, IClien
             });
         }
 
-        public void onSuccess(final byte[] data, final Client client) {
+        public void onSuccess(final File hprofFile, final Client client) {
             mParentShell.getDisplay().asyncExec(new Runnable() {
                 public void run() {
                     // get from the preference what action to take
@@ -179,18 +179,20 @@ public class DeviceView extends ViewPart implements IUiSelectionListener, IClien
 
                     if (ACTION_OPEN.equals(value)) {
                         try {
-                            File tempFile = saveTempFile(data);
-                            open(tempFile.getAbsolutePath());
+                            open(hprofFile.getAbsolutePath());
                         } catch (Exception e) {
                             String errorMsg = e.getMessage();
                             displayErrorFromUiThread(
-                                    "Failed to save hprof data into temp file%1$s",
+                                    "Failed to open hprof file%1$s",
                                     errorMsg != null ? ":\n" + errorMsg : ".");
+                        } finally {
+                            // the converted file is the one opened.
+                            hprofFile.delete();
                         }
                     } else {
                         // default action is ACTION_SAVE
                         promptAndSave(client.getClientData().getClientDescription() + DOT_HPROF,
-                                data, "Save HPROF file");
+                                hprofFile, "Save HPROF file");
                     }
                 }
             });
@@ -2,6 +2,8 @@ package com.android.hierarchyviewer.ui;
 
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.RawImage;
+import com.android.ddmlib.RawImageConverter;
+import com.android.ddmlib.ScreenCapture;
 import com.android.hierarchyviewer.util.WorkerThread;
 import com.android.hierarchyviewer.scene.ViewNode;
 import com.android.hierarchyviewer.ui.util.PngFileFilter;
@@ -9,7 +11,6 @@ import com.android.hierarchyviewer.ui.util.IconLoader;
 
 import javax.swing.JComponent;
 import javax.swing.JScrollPane;
-import javax.swing.Timer;
 import javax.swing.JPanel;
 import javax.swing.SwingUtilities;
 import javax.swing.BorderFactory;
@@ -19,6 +20,7 @@ import javax.swing.Box;
 import javax.swing.JCheckBox;
 import javax.swing.JButton;
 import javax.swing.JFileChooser;
+import javax.swing.Timer;
 import javax.swing.event.ChangeListener;
 import javax.swing.event.ChangeEvent;
 import javax.imageio.ImageIO;
@@ -26,6 +28,7 @@ import javax.imageio.ImageIO;
 import org.jdesktop.swingworker.SwingWorker;
 
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
 import java.io.File;
 import java.awt.image.BufferedImage;
 import java.awt.Graphics;
@@ -50,14 +53,18 @@ import java.awt.event.MouseWheelEvent;
 import java.awt.event.MouseWheelListener;
 import java.util.concurrent.ExecutionException;
 
-class ScreenViewer extends JPanel implements ActionListener {
+class ScreenViewer extends JPanel {
+    private static final int DEFAULT_FPS = 10;
+    /** Time, in ms, before restarting a capture that failed. */
+    private static final int RESTART_DELAY = 5000;
+
     private final Workspace workspace;
     private final IDevice device;
 
-    private GetScreenshotTask task;
+    private ScreenCapture capture;
+    private int fps = DEFAULT_FPS;
+    private final Timer restartTimer;
     private BufferedImage image;
-    private int[] scanline;
-    private volatile boolean isLoading;
 
     private BufferedImage overlay;
     private AlphaComposite overlayAlpha = AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.3f);
@@ -69,7 +76,6 @@ class ScreenViewer extends JPanel implements ActionListener {
     private int zoom = 8;
     private int y = 0;
 
-    private Timer timer;
     private ViewNode node;
 
     private JSlider zoomSlider;
@@ -81,9 +87,12 @@ class ScreenViewer extends JPanel implements ActionListener {
         this.workspace = workspace;
         this.device = device;
 
-        timer = new Timer(5000, this);
-        timer.setInitialDelay(0);
-        timer.setRepeats(true);
+        restartTimer = new Timer(RESTART_DELAY, new ActionListener() {
+            public void actionPerformed(ActionEvent event) {
+                start();
+            }
+        });
+        restartTimer.setRepeats(false);
 
         JPanel panel = buildViewerAndControls();
         add(panel, new GridBagConstraints(0, 0, 1, 1, 0.3f, 1.0f,
@@ -97,7 +106,7 @@ class ScreenViewer extends JPanel implements ActionListener {
 
         SwingUtilities.invokeLater(new Runnable() {
             public void run() {
-                timer.start();
+                start();
             }
         });
     }
@@ -146,13 +155,14 @@ class ScreenViewer extends JPanel implements ActionListener {
                     }
         });
         buildOverlayExtraControls(panel);
-        buildSlider(panel, "Refresh Rate:", "1s", "40s", 1, 40, 5, 1).addChangeListener(
-                new ChangeListener() {
+        buildSlider(panel, "Refresh Rate:", "1 fps", "30 fps", 1, 30, DEFAULT_FPS, 1)
+                .addChangeListener(new ChangeListener() {
                     public void stateChanged(ChangeEvent event) {
-                        int rate = ((JSlider) event.getSource()).getValue() * 1000;
-                        timer.setDelay(rate);
-                        timer.setInitialDelay(0);
-                        timer.restart();
+                        fps = ((JSlider) event.getSource()).getValue();
+                        if (capture != null) {
+                            stop();
+                            start();
+                        }
                     }
         });
         zoomSlider = buildSlider(panel, "Zoom:", "2x", "24x", 2, 24, 8, 2);
@@ -232,11 +242,18 @@ class ScreenViewer extends JPanel implements ActionListener {
     }
 
     void stop() {
-        timer.stop();
+        restartTimer.stop();
+        if (capture != null) {
+            capture.stop();
+            capture = null;
+        }
     }
 
     void start() {
-        timer.start();
+        restartTimer.stop();
+        if (capture == null) {
+            capture = device.startScreenCapture(fps, new FrameListener());
+        }
     }
 
     void select(ViewNode node) {
@@ -274,10 +291,6 @@ class ScreenViewer extends JPanel implements ActionListener {
 
         @Override
         protected void paintComponent(Graphics g) {
-            if (isLoading) {
-                return;
-            }
-
             g.translate(-left, -top);
 
             if (image != null) {
@@ -565,10 +578,6 @@ class ScreenViewer extends JPanel implements ActionListener {
             g.setColor(Color.BLACK);
             g.fillRect(0, 0, getWidth(), getHeight());
 
-            if (isLoading) {
-                return;
-            }
-
             if (image != null) {
                 g.drawImage(image, 0, 0, null);
                 if (overlay != null) {
@@ -654,145 +663,70 @@ class ScreenViewer extends JPanel implements ActionListener {
         }
     }
 
-    public void actionPerformed(ActionEvent event) {
-        if (task != null && !task.isDone()) {
+    /**
+     * Updates the image with a frame of the capture, and repaints the regions that changed.
+     */
+    private void updateImage(RawImage rawImage, Rectangle[] dirtyRegions) {
+        if (rawImage.bpp != 16 && rawImage.bpp != 32) {
             return;
         }
-        task = new GetScreenshotTask();
-        task.execute();
-    }
-
-    private class GetScreenshotTask extends SwingWorker<Boolean, Void> {
-        private GetScreenshotTask() {
-            workspace.beginTask();
-        }
-
-        @Override
-        @WorkerThread
-        protected Boolean doInBackground() throws Exception {
-            RawImage rawImage;
-            try {
-                rawImage = device.getScreenshot();
-            } catch (IOException ioe) {
-                return false;
-            }
-
-            boolean resize = false;
-            isLoading = true;
-            try {
-                if (rawImage != null) {
-                    if (image == null || rawImage.width != image.getWidth() ||
-                            rawImage.height != image.getHeight()) {
-                        image = new BufferedImage(rawImage.width, rawImage.height,
-                                BufferedImage.TYPE_INT_ARGB);
-                        scanline = new int[rawImage.width];
-                        resize = true;
-                    }
-
-                    switch (rawImage.bpp) {
-                        case 16:
-                            rawImage16toARGB(rawImage);
-                            break;
-                        case 32:
-                            rawImage32toARGB(rawImage);
-                            break;
-                    }
-                }
-            } finally {
-                isLoading = false;
-            }
 
-            return resize;
+        if (image == null || rawImage.width != image.getWidth() ||
+                rawImage.height != image.getHeight()) {
+            image = RawImageConverter.toBufferedImage(rawImage);
+            validate();
+            crosshair.crosshair = new Point(image.getWidth() / 2, image.getHeight() / 2);
+            status.showPixel(image.getWidth() / 2, image.getHeight() / 2);
+            loupe.moveToPoint(image.getWidth() / 2, image.getHeight() / 2);
+            repaint();
+            return;
         }
-        
-        private int getMask(int length) {
-            int res = 0;
-            for (int i = 0 ; i < length ; i++) {
-                res = (res << 1) + 1;
-            }
-    
-            return res;
-        }
-
-        private void rawImage32toARGB(RawImage rawImage) {
-            byte[] buffer = rawImage.data;
-            int index = 0;
-
-            final int redOffset = rawImage.red_offset;
-            final int redLength = rawImage.red_length;
-            final int redMask = getMask(redLength);
-            final int greenOffset = rawImage.green_offset;
-            final int greenLength = rawImage.green_length;
-            final int greenMask = getMask(greenLength);
-            final int blueOffset = rawImage.blue_offset;
-            final int blueLength = rawImage.blue_length;
-            final int blueMask = getMask(blueLength);
-            final int alphaLength = rawImage.alpha_length;
-            final int alphaOffset = rawImage.alpha_offset;
-            final int alphaMask = getMask(alphaLength);
-
-            for (int y = 0 ; y < rawImage.height ; y++) {
-                for (int x = 0 ; x < rawImage.width ; x++) {
-                    int value = buffer[index++] & 0x00FF;
-                    value |= (buffer[index++] & 0x00FF) << 8;
-                    value |= (buffer[index++] & 0x00FF) << 16;
-                    value |= (buffer[index++] & 0x00FF) << 24;
-
-                    int r = ((value >>> redOffset) & redMask) << (8 - redLength);
-                    int g = ((value >>> greenOffset) & greenMask) << (8 - greenLength);
-                    int b = ((value >>> blueOffset) & blueMask) << (8 - blueLength);
-                    int a = 0xFF;
-
-                    if (alphaLength != 0) {
-                        a = ((value >>> alphaOffset) & alphaMask) << (8 - alphaLength);
-                    }
-
-                    scanline[x] = a << 24 | r << 16 | g << 8 | b;
-                }
 
-                image.setRGB(0, y, rawImage.width, 1, scanline,
-                        0, rawImage.width);
-            }
+        RawImageConverter.convert(rawImage, image, dirtyRegions);
+        for (Rectangle region : dirtyRegions) {
+            crosshair.repaint(region);
         }
-
-        private void rawImage16toARGB(RawImage rawImage) {
-            byte[] buffer = rawImage.data;
-            int index = 0;
-
-            for (int y = 0 ; y < rawImage.height ; y++) {
-                for (int x = 0 ; x < rawImage.width ; x++) {
-                    int value = buffer[index++] & 0x00FF;
-                    value |= (buffer[index++] << 8) & 0x0FF00;
-
-                    int r = ((value >> 11) & 0x01F) << 3;
-                    int g = ((value >> 5) & 0x03F) << 2;
-                    int b = ((value     ) & 0x01F) << 3;
-
-                    scanline[x] = 0xFF << 24 | r << 16 | g << 8 | b;
-                }
-
-                image.setRGB(0, y, rawImage.width, 1, scanline,
-                        0, rawImage.width);
-            }
+        loupe.repaint();
+        Point p = crosshair.crosshair;
+        if (p.x < image.getWidth() && p.y < image.getHeight()) {
+            status.showPixel(p.x, p.y);
         }
+    }
 
-        @Override
-        protected void done() {
-            workspace.endTask();
+    private class FrameListener implements ScreenCapture.IFrameListener {
+        @WorkerThread
+        public void frameCaptured(final ScreenCapture frameCapture, final RawImage rawImage,
+                final Rectangle[] dirtyRegions) {
+            // the frame is converted on the event thread, so that the image is never painted
+            // while it is updated. The frame stays valid until this returns.
             try {
-                if (get()) {
-                    validate();
-                    crosshair.crosshair = new Point(image.getWidth() / 2,
-                            image.getHeight() / 2);
-                    status.showPixel(image.getWidth() / 2, image.getHeight() / 2);
-                    loupe.moveToPoint(image.getWidth() / 2, image.getHeight() / 2);
-                }
+                SwingUtilities.invokeAndWait(new Runnable() {
+                    public void run() {
+                        // ignore the last frame of a capture that was just stopped.
+                        if (frameCapture == capture) {
+                            updateImage(rawImage, dirtyRegions);
+                        }
+                    }
+                });
             } catch (InterruptedException e) {
                 e.printStackTrace();
-            } catch (ExecutionException e) {
+            } catch (InvocationTargetException e) {
                 e.printStackTrace();
             }
-            repaint();
+        }
+
+        @WorkerThread
+        public void captureFailed(final ScreenCapture frameCapture, Exception e) {
+            // the capture stopped, and already logged the error. The device may only be busy,
+            // so a new capture is started a bit later, unless the viewer was stopped.
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    if (frameCapture == capture) {
+                        capture = null;
+                        restartTimer.restart();
+                    }
+                }
+            });
         }
     }
 
@@ -870,7 +870,7 @@ public class Workspace extends JFrame {
     public void showDevicesSelector() {
         if (mainSplitter != null) {
             if (pixelPerfectPanel != null) {
-                screenViewer.start();
+                screenViewer.stop();
             }
             mainPanel.remove(graphViewButton.isSelected() ? mainSplitter : pixelPerfectPanel);
             mainPanel.add(deviceSelector, BorderLayout.CENTER);
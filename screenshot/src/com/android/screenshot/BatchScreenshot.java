@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.screenshot;
+
+import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.RawImage;
+import com.android.ddmlib.RawImageConverter;
+import com.android.ddmlib.TimeoutException;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Captures the screens of several devices at once, possibly several times at a fixed interval.
+ * <p/>Each device is captured by its own thread, so that all the devices are captured at the
+ * same time. The frames are then converted and encoded to PNG by a bounded pool of threads.
+ * When all the encoding threads are busy and a few frames are waiting, the capture threads
+ * encode their frames themselves, which keeps the number of frames held in memory bounded.
+ * <p/>The screenshots are written in a directory, as <code>SERIAL-NNNN.png</code>, where
+ * <code>NNNN</code> is the number of the capture.
+ */
+final class BatchScreenshot {
+
+    /** Number of frames waiting for an encoding thread, per encoding thread. */
+    private static final int QUEUED_FRAMES_PER_THREAD = 2;
+
+    private final File mDirectory;
+    private final boolean mLandscape;
+    private final int mEncoderThreads;
+
+    /** Capture statistics of one device. */
+    private static final class DeviceStats {
+        final IDevice mDevice;
+        int mCaptureCount = 0;
+        int mFailureCount = 0;
+        long mTotalLatency = 0;
+        long mMinLatency = Long.MAX_VALUE;
+        long mMaxLatency = 0;
+
+        DeviceStats(IDevice device) {
+            mDevice = device;
+        }
+
+        synchronized void addCapture(long latency) {
+            mCaptureCount++;
+            mTotalLatency += latency;
+            mMinLatency = Math.min(mMinLatency, latency);
+            mMaxLatency = Math.max(mMaxLatency, latency);
+        }
+
+        synchronized void addFailure() {
+            mFailureCount++;
+        }
+
+        @Override
+        public synchronized String toString() {
+            if (mCaptureCount == 0) {
+                return String.format("%s: 0 captures, %d failures", //$NON-NLS-1$
+                        mDevice.getSerialNumber(), mFailureCount);
+            }
+            return String.format("%s: %d captures, %d failures, " //$NON-NLS-1$
+                    + "latency min %d ms, avg %d ms, max %d ms", //$NON-NLS-1$
+                    mDevice.getSerialNumber(), mCaptureCount, mFailureCount,
+                    mMinLatency / 1000000, mTotalLatency / mCaptureCount / 1000000,
+                    mMaxLatency / 1000000);
+        }
+    }
+
+    /**
+     * Creates a batch capture.
+     * @param directory the directory receiving the screenshots. It is created if needed.
+     * @param landscape whether to rotate the screenshots for landscape mode.
+     * @param encoderThreads the number of threads converting and encoding the screenshots.
+     */
+    BatchScreenshot(File directory, boolean landscape, int encoderThreads) {
+        mDirectory = directory;
+        mLandscape = landscape;
+        mEncoderThreads = encoderThreads;
+    }
+
+    /**
+     * Captures the devices, and prints the latency of each capture and a summary for each
+     * device. This returns once all the screenshots are written.
+     * @param devices the devices to capture.
+     * @param count the number of captures of each device.
+     * @param interval the time between the start of two captures, in ms. If capturing all the
+     * devices takes longer, the next captures start right away.
+     * @return true if all the screenshots were written.
+     * @throws IOException if the directory can't be created.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    boolean capture(IDevice[] devices, int count, long interval)
+            throws IOException, InterruptedException {
+        if (mDirectory.isDirectory() == false && mDirectory.mkdirs() == false) {
+            throw new IOException("Failed to create " + mDirectory);
+        }
+
+        ExecutorService captureExecutor = Executors.newFixedThreadPool(devices.length,
+                new DaemonThreadFactory("Screenshot Capture")); //$NON-NLS-1$
+        ThreadPoolExecutor encoderExecutor = new ThreadPoolExecutor(mEncoderThreads,
+                mEncoderThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(mEncoderThreads * QUEUED_FRAMES_PER_THREAD),
+                new DaemonThreadFactory("Screenshot Encoder"), //$NON-NLS-1$
+                new ThreadPoolExecutor.CallerRunsPolicy());
+
+        DeviceStats[] stats = new DeviceStats[devices.length];
+        for (int i = 0 ; i < devices.length ; i++) {
+            stats[i] = new DeviceStats(devices[i]);
+        }
+
+        List<Future<Boolean>> encodings = new ArrayList<Future<Boolean>>();
+        try {
+            long nextCapture = System.nanoTime();
+            for (int index = 0 ; index < count ; index++) {
+                long delay = nextCapture - System.nanoTime();
+                if (delay > 0) {
+                    Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+                }
+                nextCapture = Math.max(nextCapture + interval * 1000000,
+                        System.nanoTime());
+
+                List<Future<Future<Boolean>>> captures = new ArrayList<Future<Future<Boolean>>>();
+                for (DeviceStats deviceStats : stats) {
+                    captures.add(captureExecutor.submit(
+                            new CaptureTask(deviceStats, index, encoderExecutor)));
+                }
+
+                // the next captures only start once all the devices are captured, so that the
+                // screenshots of a given number are taken at about the same time.
+                for (Future<Future<Boolean>> capture : captures) {
+                    Future<Boolean> encoding = getResult(capture);
+                    if (encoding != null) {
+                        encodings.add(encoding);
+                    }
+                }
+            }
+
+            boolean success = true;
+            for (Future<Boolean> encoding : encodings) {
+                Boolean written = getResult(encoding);
+                if (written == null || written.booleanValue() == false) {
+                    success = false;
+                }
+            }
+
+            for (DeviceStats deviceStats : stats) {
+                System.out.println(deviceStats);
+                if (deviceStats.mFailureCount > 0) {
+                    success = false;
+                }
+            }
+            return success;
+        } finally {
+            captureExecutor.shutdownNow();
+            encoderExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns the result of a task, or null if it threw an exception.
+     */
+    private static <T> T getResult(Future<T> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Returns the file of a screenshot, with the characters that can't be in a file name, such as
+     * the ':' of network devices, replaced in the serial number.
+     */
+    private File getFile(IDevice device, int index) {
+        String serial = device.getSerialNumber().replaceAll(
+                "[^A-Za-z0-9._-]", "_"); //$NON-NLS-1$ //$NON-NLS-2$
+        return new File(mDirectory, String.format("%s-%04d.png", serial, index)); //$NON-NLS-1$
+    }
+
+    /**
+     * Captures a device, and sends the frame to the encoding threads.
+     * The result is the encoding of the frame, or null if it couldn't be captured.
+     */
+    private final class CaptureTask implements Callable<Future<Boolean>> {
+        private final DeviceStats mStats;
+        private final int mIndex;
+        private final ExecutorService mEncoderExecutor;
+
+        CaptureTask(DeviceStats stats, int index, ExecutorService encoderExecutor) {
+            mStats = stats;
+            mIndex = index;
+            mEncoderExecutor = encoderExecutor;
+        }
+
+        public Future<Boolean> call() {
+            IDevice device = mStats.mDevice;
+            long start = System.nanoTime();
+            RawImage rawImage;
+            try {
+                rawImage = device.getScreenshot();
+            } catch (TimeoutException e) {
+                return captureFailed(e.getMessage());
+            } catch (AdbCommandRejectedException e) {
+                return captureFailed(e.getMessage());
+            } catch (IOException e) {
+                return captureFailed(e.getMessage());
+            }
+            long latency = System.nanoTime() - start;
+
+            // device/adb not available?
+            if (rawImage == null) {
+                return captureFailed("unsupported frame buffer");
+            }
+
+            mStats.addCapture(latency);
+            System.out.println(String.format("%s #%d: captured in %d ms", //$NON-NLS-1$
+                    device.getSerialNumber(), mIndex, latency / 1000000));
+
+            return mEncoderExecutor.submit(new EncodeTask(mStats, mIndex, rawImage));
+        }
+
+        private Future<Boolean> captureFailed(String message) {
+            System.err.println(String.format("%s #%d: Unable to get frame buffer: %s", //$NON-NLS-1$
+                    mStats.mDevice.getSerialNumber(), mIndex, message));
+            mStats.addFailure();
+            return null;
+        }
+    }
+
+    /**
+     * Converts a frame, and writes it as a PNG file.
+     */
+    private final class EncodeTask implements Callable<Boolean> {
+        private final DeviceStats mStats;
+        private final int mIndex;
+        private final RawImage mRawImage;
+
+        EncodeTask(DeviceStats stats, int index, RawImage rawImage) {
+            mStats = stats;
+            mIndex = index;
+            mRawImage = rawImage;
+        }
+
+        public Boolean call() {
+            File file = getFile(mStats.mDevice, mIndex);
+            try {
+                RawImage rawImage = mLandscape ? mRawImage.getRotated() : mRawImage;
+                BufferedImage image = RawImageConverter.toBufferedImage(rawImage);
+                if (!ImageIO.write(image, "png", file)) { //$NON-NLS-1$
+                    throw new IOException("Failed to find png writer");
+                }
+            } catch (IOException e) {
+                return encodingFailed(file, e.getMessage());
+            } catch (RuntimeException e) {
+                // such as a frame in a format that can't be converted.
+                return encodingFailed(file, e.toString());
+            }
+            return true;
+        }
+
+        private Boolean encodingFailed(File file, String message) {
+            System.err.println(String.format("%s #%d: Unable to write %s: %s", //$NON-NLS-1$
+                    mStats.mDevice.getSerialNumber(), mIndex, file, message));
+            mStats.addFailure();
+            return false;
+        }
+    }
+
+    /**
+     * Creates daemon threads, so that a stuck device can't keep the tool running.
+     */
+    private static final class DaemonThreadFactory implements ThreadFactory {
+        private final String mName;
+        private int mCount = 0;
+
+        DaemonThreadFactory(String name) {
+            mName = name;
+        }
+
+        public synchronized Thread newThread(Runnable r) {
+            Thread t = new Thread(r, mName + " " + ++mCount); //$NON-NLS-1$
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
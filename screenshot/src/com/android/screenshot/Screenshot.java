@@ -20,12 +20,15 @@ import com.android.ddmlib.AndroidDebugBridge;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.Log;
 import com.android.ddmlib.RawImage;
+import com.android.ddmlib.RawImageConverter;
 import com.android.ddmlib.Log.ILogOutput;
 import com.android.ddmlib.Log.LogLevel;
 
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.imageio.ImageIO;
 
@@ -37,9 +40,13 @@ public class Screenshot {
     public static void main(String[] args) {
         boolean device = false;
         boolean emulator = false;
-        String serial = null;
+        boolean all = false;
+        List<String> serials = new ArrayList<String>();
         String filepath = null;
         boolean landscape = false;
+        int captureCount = 1;
+        int interval = 0;
+        int threads = Runtime.getRuntime().availableProcessors();
 
         if (args.length == 0) {
             printUsageAndQuit();
@@ -51,26 +58,37 @@ public class Screenshot {
             String argument = args[index++];
 
             if ("-d".equals(argument)) {
-                if (emulator || serial != null) {
-                    printAndExit("-d conflicts with -e and -s", false /* terminate */);
+                if (emulator || all || serials.size() > 0) {
+                    printAndExit("-d conflicts with -e, -a and -s", false /* terminate */);
                 }
                 device = true;
             } else if ("-e".equals(argument)) {
-                if (device || serial != null) {
-                    printAndExit("-e conflicts with -d and -s", false /* terminate */);
+                if (device || all || serials.size() > 0) {
+                    printAndExit("-e conflicts with -d, -a and -s", false /* terminate */);
                 }
                 emulator = true;
+            } else if ("-a".equals(argument)) {
+                if (device || emulator || serials.size() > 0) {
+                    printAndExit("-a conflicts with -d, -e and -s", false /* terminate */);
+                }
+                all = true;
             } else if ("-s".equals(argument)) {
                 // quick check on the next argument.
                 if (index == args.length) {
                     printAndExit("Missing serial number after -s", false /* terminate */);
                 }
 
-                if (device || emulator) {
-                    printAndExit("-s conflicts with -d and -e", false /* terminate */);
+                if (device || emulator || all) {
+                    printAndExit("-s conflicts with -d, -e and -a", false /* terminate */);
                 }
 
-                serial = args[index++];
+                serials.add(args[index++]);
+            } else if ("-n".equals(argument)) {
+                captureCount = parseNumber(args, index++, argument, 1);
+            } else if ("-i".equals(argument)) {
+                interval = parseNumber(args, index++, argument, 0);
+            } else if ("-j".equals(argument)) {
+                threads = parseNumber(args, index++, argument, 1);
             } else if ("-l".equals(argument)) {
                 landscape = true;
             } else {
@@ -139,38 +157,60 @@ public class Screenshot {
                 printAndExit("No devices found!", true /* terminate */);
             }
 
-            IDevice target = null;
-
-            if (emulator || device) {
-                for (IDevice d : devices) {
-                    // this test works because emulator and device can't both be true at the same
-                    // time.
-                    if (d.isEmulator() == emulator) {
-                        // if we already found a valid target, we print an error and return.
-                        if (target != null) {
-                            if (emulator) {
-                                printAndExit("Error: more than one emulator launched!",
-                                        true /* terminate */);
-                            } else {
-                                printAndExit("Error: more than one device connected!",true /* terminate */);
-                            }
+            // several devices, or several captures, are taken in batch mode.
+            if (all || serials.size() > 1 || captureCount > 1) {
+                List<IDevice> targets = new ArrayList<IDevice>();
+                if (all) {
+                    for (IDevice d : devices) {
+                        if (d.isOnline()) {
+                            targets.add(d);
+                        }
+                    }
+                } else if (serials.size() > 0) {
+                    for (String serial : serials) {
+                        IDevice target = findDevice(devices, serial);
+                        if (target == null) {
+                            printAndExit("Could not find device " + serial, true /* terminate */);
                         }
-                        target = d;
+                        targets.add(target);
                     }
+                } else {
+                    IDevice target = findTarget(devices, device, emulator);
+                    if (target == null) {
+                        printAndExit("Could not find matching device/emulator.",
+                                true /* terminate */);
+                    }
+                    targets.add(target);
+                }
+
+                if (targets.isEmpty()) {
+                    printAndExit("No devices online!", true /* terminate */);
                 }
-            } else if (serial != null) {
-                for (IDevice d : devices) {
-                    if (serial.equals(d.getSerialNumber())) {
-                        target = d;
-                        break;
+
+                try {
+                    System.out.println("Taking " + captureCount + " screenshot(s) from "
+                            + targets.size() + " device(s) into: " + filepath);
+                    BatchScreenshot batch = new BatchScreenshot(new File(filepath), landscape,
+                            threads);
+                    IDevice[] targetArray = targets.toArray(new IDevice[targets.size()]);
+                    if (batch.capture(targetArray, captureCount, interval)) {
+                        System.out.println("Success.");
+                    } else {
+                        printAndExit("Some screenshots failed.", true /* terminate */);
                     }
+                } catch (IOException e) {
+                    printAndExit(e.getMessage(), true /* terminate */);
+                } catch (InterruptedException e) {
+                    printAndExit("Interrupted.", true /* terminate */);
                 }
+                return;
+            }
+
+            IDevice target;
+            if (serials.size() > 0) {
+                target = findDevice(devices, serials.get(0));
             } else {
-                if (devices.length > 1) {
-                    printAndExit("Error: more than one emulator or device available!",
-                            true /* terminate */);
-                }
-                target = devices[0];
+                target = findTarget(devices, device, emulator);
             }
 
             if (target != null) {
@@ -189,6 +229,74 @@ public class Screenshot {
         }
     }
 
+    /*
+     * Finds the only device (-d), the only emulator (-e), or the only device or emulator
+     * (neither).
+     */
+    private static IDevice findTarget(IDevice[] devices, boolean device, boolean emulator) {
+        IDevice target = null;
+
+        if (emulator || device) {
+            for (IDevice d : devices) {
+                // this test works because emulator and device can't both be true at the same
+                // time.
+                if (d.isEmulator() == emulator) {
+                    // if we already found a valid target, we print an error and return.
+                    if (target != null) {
+                        if (emulator) {
+                            printAndExit("Error: more than one emulator launched!",
+                                    true /* terminate */);
+                        } else {
+                            printAndExit("Error: more than one device connected!",
+                                    true /* terminate */);
+                        }
+                    }
+                    target = d;
+                }
+            }
+        } else {
+            if (devices.length > 1) {
+                printAndExit("Error: more than one emulator or device available!",
+                        true /* terminate */);
+            }
+            target = devices[0];
+        }
+
+        return target;
+    }
+
+    /*
+     * Finds a device by serial number.
+     */
+    private static IDevice findDevice(IDevice[] devices, String serial) {
+        for (IDevice d : devices) {
+            if (serial.equals(d.getSerialNumber())) {
+                return d;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Parses the number following an option, and checks it is at least min.
+     */
+    private static int parseNumber(String[] args, int index, String option, int min) {
+        if (index == args.length) {
+            printAndExit("Missing number after " + option, false /* terminate */);
+        }
+        try {
+            int value = Integer.parseInt(args[index]);
+            if (value >= min) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            // fall through
+        }
+        printAndExit("Invalid number after " + option + ": " + args[index],
+                false /* terminate */);
+        return min;
+    }
+
     /*
      * Grab an image from an ADB-connected device.
      */
@@ -213,18 +321,7 @@ public class Screenshot {
         }
 
         // convert raw data to an Image
-        BufferedImage image = new BufferedImage(rawImage.width, rawImage.height,
-                BufferedImage.TYPE_INT_ARGB);
-
-        int index = 0;
-        int IndexInc = rawImage.bpp >> 3;
-        for (int y = 0 ; y < rawImage.height ; y++) {
-            for (int x = 0 ; x < rawImage.width ; x++) {
-                int value = rawImage.getARGB(index);
-                index += IndexInc;
-                image.setRGB(x, y, value);
-            }
-        }
+        BufferedImage image = RawImageConverter.toBufferedImage(rawImage);
 
         if (!ImageIO.write(image, "png", new File(filepath))) {
             throw new IOException("Failed to find png writer");
@@ -234,13 +331,24 @@ public class Screenshot {
     private static void printUsageAndQuit() {
         // 80 cols marker:  01234567890123456789012345678901234567890123456789012345678901234567890123456789
         System.out.println("Usage: screenshot2 [-d | -e | -s SERIAL] [-l] OUT_FILE");
+        System.out.println("       screenshot2 [-d | -e | -a | -s SERIAL [-s SERIAL ...]] [-l]");
+        System.out.println("                   [-n COUNT] [-i INTERVAL] [-j THREADS] OUT_DIR");
         System.out.println("");
         System.out.println("    -d      Uses the first device found.");
         System.out.println("    -e      Uses the first emulator found.");
-        System.out.println("    -s      Targets the device by serial number.");
+        System.out.println("    -a      Uses all the online devices and emulators.");
+        System.out.println("    -s      Targets the device by serial number. Can be repeated.");
         System.out.println("");
         System.out.println("    -l      Rotate images for landscape mode.");
         System.out.println("");
+        System.out.println("    -n      Takes COUNT screenshots of each device.");
+        System.out.println("    -i      Waits INTERVAL ms between the start of two screenshots.");
+        System.out.println("    -j      Encodes the PNG files with THREADS threads.");
+        System.out.println("");
+        System.out.println("With several devices or screenshots, the files are written in");
+        System.out.println("OUT_DIR as SERIAL-NNNN.png, and the capture latency of each device");
+        System.out.println("is printed.");
+        System.out.println("");
 
         System.exit(1);
     }
@@ -48,9 +48,6 @@ class Call implements TimeLineView.Block {
         mMethodData = methodData;
     }
 
-    Call() {
-    }
-    
     Call(int threadId, MethodData methodData, long time, int methodAction) {
         mThreadId = threadId;
         mMethodData = methodData;
@@ -59,18 +56,6 @@ class Call implements TimeLineView.Block {
         mName = methodData.getProfileName();
     }
     
-    public void set(int threadId, MethodData methodData, long time, int methodAction) {
-        mThreadId = threadId;
-        mMethodData = methodData;
-        mThreadStartTime = time;
-        mFlags = methodAction & METHOD_ACTION_MASK;
-        mName = methodData.getProfileName();
-    }
-
-    public void updateName() {
-        mName = mMethodData.getProfileName();
-    }
-
     public double addWeight(int x, int y, double weight) {
         return mMethodData.addWeight(x, y, weight);
     }
@@ -91,18 +76,6 @@ class Call implements TimeLineView.Block {
         return mMethodData.getColor();
     }
 
-    public void addExclusiveTime(long elapsed) {
-        mMethodData.addElapsedExclusive(elapsed);
-        if ((mFlags & IS_RECURSIVE) == 0) {
-            mMethodData.addTopExclusive(elapsed);
-        }
-    }
-
-    public void addInclusiveTime(long elapsed, Call parent) {
-        boolean isRecursive = (mFlags & IS_RECURSIVE) != 0;
-        mMethodData.addElapsedInclusive(elapsed, isRecursive, parent);
-    }
-
     public String getName() {
         return mName;
     }
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.traceview;
+
+/**
+ * Stores the method entries and exits of a trace in parallel arrays, one slot per record,
+ * instead of one {@link Call} object per record. A record costs 29 bytes, so traces with tens
+ * of millions of records can be loaded.
+ * <p/>Records are referenced by their index, and {@link Call} objects are only created when
+ * needed, with {@link DmTraceReader#getCall(int)}.
+ */
+final class CallStore {
+
+    // Values for bits within the flags, same as in Call.
+    private static final int METHOD_ACTION_MASK = 0x3;
+    private static final int IS_RECURSIVE = 0x10;
+
+    private int mSize = 0;
+    private int[] mThreadIds;
+    private int[] mMethodIds;
+    private int[] mThreadTimes;
+    private long[] mGlobalStartTimes;
+    private long[] mGlobalEndTimes;
+    private byte[] mFlags;
+
+    /**
+     * Creates a store.
+     * @param capacity the initial number of records. The store grows as needed.
+     */
+    CallStore(int capacity) {
+        capacity = Math.max(capacity, 16);
+        mThreadIds = new int[capacity];
+        mMethodIds = new int[capacity];
+        mThreadTimes = new int[capacity];
+        mGlobalStartTimes = new long[capacity];
+        mGlobalEndTimes = new long[capacity];
+        mFlags = new byte[capacity];
+    }
+
+    /**
+     * Adds a record. Its global start and end times are 0.
+     * @param threadId the id of the thread.
+     * @param methodId the id of the method, without the method action.
+     * @param threadTime the thread-local time of the record.
+     * @param methodAction the method action: 0 for an entry, other values for an exit.
+     * @return the index of the record.
+     */
+    int add(int threadId, int methodId, long threadTime, int methodAction) {
+        if (mSize == mThreadIds.length) {
+            grow();
+        }
+
+        int index = mSize++;
+        mThreadIds[index] = threadId;
+        mMethodIds[index] = methodId;
+        mThreadTimes[index] = (int) threadTime;
+        mFlags[index] = (byte) (methodAction & METHOD_ACTION_MASK);
+        return index;
+    }
+
+    /**
+     * Returns the number of records.
+     */
+    int size() {
+        return mSize;
+    }
+
+    int getThreadId(int index) {
+        return mThreadIds[index];
+    }
+
+    int getMethodId(int index) {
+        return mMethodIds[index];
+    }
+
+    long getThreadTime(int index) {
+        return mThreadTimes[index];
+    }
+
+    void setThreadTime(int index, long threadTime) {
+        mThreadTimes[index] = (int) threadTime;
+    }
+
+    int getMethodAction(int index) {
+        return mFlags[index] & METHOD_ACTION_MASK;
+    }
+
+    boolean isRecursive(int index) {
+        return (mFlags[index] & IS_RECURSIVE) != 0;
+    }
+
+    void setRecursive(int index) {
+        mFlags[index] |= IS_RECURSIVE;
+    }
+
+    long getGlobalStartTime(int index) {
+        return mGlobalStartTimes[index];
+    }
+
+    void setGlobalStartTime(int index, long time) {
+        mGlobalStartTimes[index] = time;
+    }
+
+    long getGlobalEndTime(int index) {
+        return mGlobalEndTimes[index];
+    }
+
+    void setGlobalEndTime(int index, long time) {
+        mGlobalEndTimes[index] = time;
+    }
+
+    private void grow() {
+        int capacity = mThreadIds.length * 2;
+
+        int[] threadIds = new int[capacity];
+        System.arraycopy(mThreadIds, 0, threadIds, 0, mSize);
+        mThreadIds = threadIds;
+
+        int[] methodIds = new int[capacity];
+        System.arraycopy(mMethodIds, 0, methodIds, 0, mSize);
+        mMethodIds = methodIds;
+
+        int[] threadTimes = new int[capacity];
+        System.arraycopy(mThreadTimes, 0, threadTimes, 0, mSize);
+        mThreadTimes = threadTimes;
+
+        long[] globalStartTimes = new long[capacity];
+        System.arraycopy(mGlobalStartTimes, 0, globalStartTimes, 0, mSize);
+        mGlobalStartTimes = globalStartTimes;
+
+        long[] globalEndTimes = new long[capacity];
+        System.arraycopy(mGlobalEndTimes, 0, globalEndTimes, 0, mSize);
+        mGlobalEndTimes = globalEndTimes;
+
+        byte[] flags = new byte[capacity];
+        System.arraycopy(mFlags, 0, flags, 0, mSize);
+        mFlags = flags;
+    }
+}
@@ -16,10 +16,11 @@
 
 package com.android.traceview;
 
+import org.eclipse.swt.graphics.Color;
+
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.nio.BufferUnderflowException;
@@ -31,6 +32,11 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -39,13 +45,32 @@ public class DmTraceReader extends TraceReader {
     private int mVersionNumber = 0;
     private boolean mDebug = false;
     private static final int TRACE_MAGIC = 0x574f4c53;
+
+    private static final int ANALYSIS_THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+
+    /** The threads analyzing the threads and the methods of the traces. */
+    private static final ExecutorService sAnalysisExecutor = Executors.newFixedThreadPool(
+            ANALYSIS_THREAD_COUNT, new ThreadFactory() {
+                private int mCount = 0;
+
+                public synchronized Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Trace Analysis " + mCount++);  // $NON-NLS-1$
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
     private boolean mRegression;
     private ProfileProvider mProfileProvider;
     private String mTraceFileName;
     private MethodData mTopLevel;
-    private ArrayList<Call> mCallList;
-    private ArrayList<Call> mSwitchList;
+    private CallStore mCalls;
+    private CallStore mSwitches;
+    private int mRecordCount;
     private HashMap<Integer, MethodData> mMethodMap;
+    // The methods of the calls that are not in the profile: the context switches, and the
+    // methods missing from the key file.
+    private HashMap<Integer, MethodData> mUnlistedMethodMap;
     private HashMap<Integer, ThreadData> mThreadMap;
     private ThreadData[] mSortedThreads;
     private MethodData[] mSortedMethods;
@@ -54,33 +79,45 @@ public class DmTraceReader extends TraceReader {
     private int mOffsetToData;
     private byte[] mBytes = new byte[8];
 
+    /**
+     * A record of the trace data, reused as the records are read.
+     */
+    private static final class TraceRecord {
+        int mThreadId;
+        int mMethodId;
+        int mMethodAction;
+        long mTime;
+    }
+
     // A regex for matching the thread "id name" lines in the .key file
     private static final Pattern mIdNamePattern = Pattern.compile("(\\d+)\t(.*)");  // $NON-NLS-1$
 
-    DmTraceReader(String traceFileName, boolean regression) {
+    /**
+     * Reads and analyzes a trace file.
+     * @throws IOException if the trace can't be read, or is corrupt.
+     * @throws IllegalStateException if the calls of a thread are inconsistent.
+     */
+    DmTraceReader(String traceFileName, boolean regression) throws IOException {
         mTraceFileName = traceFileName;
         mRegression = regression;
         mMethodMap = new HashMap<Integer, MethodData>();
         mThreadMap = new HashMap<Integer, ThreadData>();
+        mUnlistedMethodMap = new HashMap<Integer, MethodData>();
 
         // Create a single top-level MethodData object to hold the profile data
         // for time spent in the unknown caller.
         mTopLevel = new MethodData(0, "(toplevel)");
         mContextSwitch = new MethodData(-1, "(context switch)");
         mMethodMap.put(0, mTopLevel);
+        mUnlistedMethodMap.put(mContextSwitch.getId(), mContextSwitch);
         generateTrees();
         // dumpTrees();
     }
 
-    void generateTrees() {
-        try {
-            long offset = parseKeys();
-            parseData(offset);
-            analyzeData();
-        } catch (IOException e) {
-            System.err.println(e.getMessage());
-            System.exit(1);
-        }
+    void generateTrees() throws IOException {
+        long offset = parseKeys();
+        parseData(offset);
+        analyzeData();
     }
 
     @Override
@@ -90,7 +127,11 @@ public class DmTraceReader extends TraceReader {
         return mProfileProvider;
     }
 
-    Call readCall(MappedByteBuffer buffer, Call call) {
+    /**
+     * Reads the next record of the trace data.
+     * @return false if there are no more records.
+     */
+    private boolean readRecord(MappedByteBuffer buffer, TraceRecord record) {
         int threadId;
         int methodId;
         long time;
@@ -103,51 +144,66 @@ public class DmTraceReader extends TraceReader {
             methodId = buffer.getInt();
             time = buffer.getInt();
         } catch (BufferUnderflowException ex) {
-            return null;
+            return false;
         }
         
-        int methodAction = methodId & 0x03;
-        methodId = methodId & ~0x03;
+        record.mThreadId = threadId;
+        record.mMethodId = methodId & ~0x03;
+        record.mMethodAction = methodId & 0x03;
+        record.mTime = time;
+        return true;
+    }
+
+    private MethodData getMethodData(int methodId) {
         MethodData methodData = mMethodMap.get(methodId);
         if (methodData == null) {
-            String name = String.format("(0x%1$x)", methodId);  // $NON-NLS-1$
-            methodData = new MethodData(methodId, name);
-        }
-        
-        if (call != null) {
-            call.set(threadId, methodData, time, methodAction);
-        } else {
-            call = new Call(threadId, methodData, time, methodAction);
+            methodData = mUnlistedMethodMap.get(methodId);
+            if (methodData == null) {
+                String name = String.format("(0x%1$x)", methodId);  // $NON-NLS-1$
+                methodData = new MethodData(methodId, name);
+                mUnlistedMethodMap.put(methodId, methodData);
+            }
         }
+        return methodData;
+    }
+
+    /**
+     * Creates a {@link Call} for a record of the call store.
+     * @param index the index of the record.
+     */
+    Call getCall(int index) {
+        Call call = new Call(mCalls.getThreadId(index), getMethodData(mCalls.getMethodId(index)),
+                mCalls.getThreadTime(index), mCalls.getMethodAction(index));
+        call.mGlobalStartTime = mCalls.getGlobalStartTime(index);
+        call.mGlobalEndTime = mCalls.getGlobalEndTime(index);
+        call.setRecursive(mCalls.isRecursive(index));
         return call;
     }
-    
-    private MappedByteBuffer mapFile(String filename, long offset) {
-        MappedByteBuffer buffer = null;
+
+    private MappedByteBuffer mapFile(String filename, long offset) throws IOException {
+        FileInputStream dataFile = new FileInputStream(filename);
         try {
-            FileInputStream dataFile = new FileInputStream(filename);
             File file = new File(filename);
             FileChannel fc = dataFile.getChannel();
-            buffer = fc.map(FileChannel.MapMode.READ_ONLY, offset, file.length() - offset);
+            MappedByteBuffer buffer = fc.map(FileChannel.MapMode.READ_ONLY, offset,
+                    file.length() - offset);
             buffer.order(ByteOrder.LITTLE_ENDIAN);
-        } catch (FileNotFoundException ex) {
-            System.err.println(ex.getMessage());
-            System.exit(1);
-        } catch (IOException ex) {
-            System.err.println(ex.getMessage());
-            System.exit(1);
+            return buffer;
+        } finally {
+            // the mapping stays valid once the file is closed.
+            dataFile.close();
         }
-        
-        return buffer;
     }
     
-    private void readDataFileHeader(MappedByteBuffer buffer) {
+    private void readDataFileHeader(MappedByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 16) {
+            throw new IOException("Data section is too short");
+        }
         int magic = buffer.getInt();
         if (magic != TRACE_MAGIC) {
-            System.err.printf(
-                    "Error: magic number mismatch; got 0x%x, expected 0x%x\n",
-                    magic, TRACE_MAGIC);
-            throw new RuntimeException();
+            throw new IOException(String.format(
+                    "Magic number mismatch; got 0x%x, expected 0x%x",
+                    magic, TRACE_MAGIC));
         }
         // read version
         int version = buffer.getShort();
@@ -167,7 +223,7 @@ public class DmTraceReader extends TraceReader {
         buffer.mark();
     }
 
-    private void parseData(long offset) {
+    private void parseData(long offset) throws IOException {
         MappedByteBuffer buffer = mapFile(mTraceFileName, offset);
         readDataFileHeader(buffer);
         parseDataPass1(buffer);
@@ -177,20 +233,21 @@ public class DmTraceReader extends TraceReader {
     }
     
     private void parseDataPass1(MappedByteBuffer buffer) {
-        mSwitchList = new ArrayList<Call>();
+        mSwitches = new CallStore(0);
+        mRecordCount = 0;
 
         // Read the first call so that we can set "prevThreadData"
-        Call call = new Call();
-        call = readCall(buffer, call);
-        if (call == null)
+        TraceRecord record = new TraceRecord();
+        if (readRecord(buffer, record) == false)
             return;
-        long callTime = call.mThreadStartTime;
+        mRecordCount++;
+        long callTime = record.mTime;
         long prevCallTime = 0;
-        ThreadData threadData = mThreadMap.get(call.getThreadId());
+        ThreadData threadData = mThreadMap.get(record.mThreadId);
         if (threadData == null) {
-            String name = String.format("[%1$d]", call.getThreadId());  // $NON-NLS-1$
-            threadData = new ThreadData(call.getThreadId(), name, mTopLevel);
-            mThreadMap.put(call.getThreadId(), threadData);
+            String name = String.format("[%1$d]", record.mThreadId);  // $NON-NLS-1$
+            threadData = new ThreadData(record.mThreadId, name, mTopLevel);
+            mThreadMap.put(record.mThreadId, threadData);
         }
         ThreadData prevThreadData = threadData;
         while (true) {
@@ -198,51 +255,50 @@ public class DmTraceReader extends TraceReader {
             // record so that we can do something reasonable with the global
             // timestamps.
             if (prevThreadData != threadData) {
-                Call switchEnter = new Call(prevThreadData.getId(),
-                        mContextSwitch, prevCallTime, 0);
+                int switchEnter = mSwitches.add(prevThreadData.getId(),
+                        mContextSwitch.getId(), prevCallTime, 0);
                 prevThreadData.setLastContextSwitch(switchEnter);
-                mSwitchList.add(switchEnter);
-                Call contextSwitch = threadData.getLastContextSwitch();
-                if (contextSwitch != null) {
-                    long prevStartTime = contextSwitch.mThreadStartTime;
+                int contextSwitch = threadData.getLastContextSwitch();
+                if (contextSwitch != -1) {
+                    long prevStartTime = mSwitches.getThreadTime(contextSwitch);
                     long elapsed = callTime - prevStartTime;
                     long beforeSwitch = elapsed / 2;
                     long afterSwitch = elapsed - beforeSwitch;
                     long exitTime = callTime - afterSwitch;
-                    contextSwitch.mThreadStartTime = prevStartTime + beforeSwitch;
-                    Call switchExit = new Call(threadData.getId(),
-                            mContextSwitch, exitTime, 1);
-                    
-                    mSwitchList.add(switchExit);
+                    mSwitches.setThreadTime(contextSwitch, prevStartTime + beforeSwitch);
+                    mSwitches.add(threadData.getId(), mContextSwitch.getId(), exitTime, 1);
                 }
                 prevThreadData = threadData;
             }
 
             // Read the next call
-            call = readCall(buffer, call);
-            if (call == null) {
+            if (readRecord(buffer, record) == false) {
                 break;
             }
+            mRecordCount++;
             prevCallTime = callTime;
-            callTime = call.mThreadStartTime;
+            callTime = record.mTime;
 
-            threadData = mThreadMap.get(call.getThreadId());
+            threadData = mThreadMap.get(record.mThreadId);
             if (threadData == null) {
-                String name = String.format("[%d]", call.getThreadId());
-                threadData = new ThreadData(call.getThreadId(), name, mTopLevel);
-                mThreadMap.put(call.getThreadId(), threadData);
+                String name = String.format("[%d]", record.mThreadId);
+                threadData = new ThreadData(record.mThreadId, name, mTopLevel);
+                mThreadMap.put(record.mThreadId, threadData);
             }
         }
     }
 
     void parseDataPass2(MappedByteBuffer buffer) {
-        mCallList = new ArrayList<Call>();
+        // The records and the context switches are all known from the first pass.
+        mCalls = new CallStore(mRecordCount + mSwitches.size());
 
         // Read the first call so that we can set "prevThreadData"
-        Call call = readCall(buffer, null);
-        long callTime = call.mThreadStartTime;
+        TraceRecord record = new TraceRecord();
+        if (readRecord(buffer, record) == false)
+            return;
+        long callTime = record.mTime;
         long prevCallTime = callTime;
-        ThreadData threadData = mThreadMap.get(call.getThreadId());
+        ThreadData threadData = mThreadMap.get(record.mThreadId);
         ThreadData prevThreadData = threadData;
         threadData.setGlobalStartTime(0);
         
@@ -255,21 +311,17 @@ public class DmTraceReader extends TraceReader {
             if (threadData != prevThreadData) {
                 // Get the next context switch.  This one is entered
                 // by the previous thread.
-                Call contextSwitch = mSwitchList.get(nthContextSwitch++);
-                mCallList.add(contextSwitch);
-                elapsed = contextSwitch.mThreadStartTime - prevCallTime;
+                int contextSwitch = nthContextSwitch++;
+                elapsed = mSwitches.getThreadTime(contextSwitch) - prevCallTime;
                 globalTime += elapsed;
                 elapsed = 0;
-                contextSwitch.mGlobalStartTime = globalTime;
-                prevThreadData.handleCall(contextSwitch, globalTime);
+                addContextSwitch(contextSwitch, prevThreadData, globalTime);
                 
                 if (!threadData.isEmpty()) {
                     // This context switch is exited by the current thread.
-                    contextSwitch = mSwitchList.get(nthContextSwitch++);
-                    mCallList.add(contextSwitch);
-                    contextSwitch.mGlobalStartTime = globalTime;
-                    elapsed = callTime - contextSwitch.mThreadStartTime;
-                    threadData.handleCall(contextSwitch, globalTime);
+                    contextSwitch = nthContextSwitch++;
+                    elapsed = callTime - mSwitches.getThreadTime(contextSwitch);
+                    addContextSwitch(contextSwitch, threadData, globalTime);
                 }
 
                 // If the thread's global start time has not been set yet,
@@ -280,50 +332,119 @@ public class DmTraceReader extends TraceReader {
             }
 
             globalTime += elapsed;
-            call.mGlobalStartTime = globalTime;
-            
-            threadData.handleCall(call, globalTime);
-            mCallList.add(call);
+            int index = mCalls.add(record.mThreadId, record.mMethodId, callTime,
+                    record.mMethodAction);
+            mCalls.setGlobalStartTime(index, globalTime);
+            threadData.addCall(index);
+
+            // Create the methods missing from the key file now, as the
+            // method maps are only read by the analysis threads.
+            getMethodData(record.mMethodId);
             
             // Read the next call
-            call = readCall(buffer, null);
-            if (call == null) {
+            if (readRecord(buffer, record) == false) {
                 break;
             }
             prevCallTime = callTime;
-            callTime = call.mThreadStartTime;
-            threadData = mThreadMap.get(call.getThreadId());
+            callTime = record.mTime;
+            threadData = mThreadMap.get(record.mThreadId);
         }
 
-        // Allow each thread to do any cleanup of the call stack.
-        // Also add the elapsed time for each thread to the toplevel
-        // method's inclusive time.
-        for (int id : mThreadMap.keySet()) {
-            threadData = mThreadMap.get(id);
-            long endTime = threadData.endTrace();
-            if (endTime > 0)
-                mTopLevel.addElapsedInclusive(endTime, false, null);
-        }
+        // The context switches are now in the call store.
+        mSwitches = null;
 
         mGlobalEndTime = globalTime;
-        
+
+        analyzeThreads();
+
         if (mRegression) {
             dumpCallTimes();
         }
     }
 
+    /**
+     * Rebuilds the call stacks of the threads and computes the profile
+     * data of the methods.
+     * <p/>Once the global times are assigned, the threads are independent,
+     * so they are analyzed in parallel. The profile data of each thread is
+     * then added to the methods in the order of the thread ids, so that the
+     * result doesn't depend on the scheduling of the analysis threads.
+     */
+    private void analyzeThreads() {
+        final HashMap<Integer, MethodData> methods =
+                new HashMap<Integer, MethodData>(mUnlistedMethodMap);
+        methods.putAll(mMethodMap);
+
+        ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+        for (final ThreadData threadData : mThreadMap.values()) {
+            tasks.add(new Runnable() {
+                public void run() {
+                    threadData.analyze(mCalls, methods);
+                }
+            });
+        }
+        runTasks(tasks);
+
+        Integer[] ids = mThreadMap.keySet().toArray(new Integer[mThreadMap.size()]);
+        Arrays.sort(ids);
+        for (int id : ids) {
+            ThreadData threadData = mThreadMap.get(id);
+            threadData.addProfileData(methods);
+
+            // Add the elapsed time for each thread to the toplevel
+            // method's inclusive time.
+            long endTime = threadData.getLastEventTime();
+            if (endTime > 0)
+                mTopLevel.addElapsedInclusive(endTime, false, null, false);
+        }
+    }
+
+    /**
+     * Runs tasks on the analysis threads, and waits for all of them to finish.
+     */
+    private static void runTasks(ArrayList<Runnable> tasks) {
+        ArrayList<Future<?>> futures = new ArrayList<Future<?>>(tasks.size());
+        for (Runnable task : tasks) {
+            futures.add(sAnalysisExecutor.submit(task));
+        }
+
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                // the trace is inconsistent, report it like the reader thread would.
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+
+    /**
+     * Adds a context switch to the call store.
+     * @param contextSwitch the index of the context switch, in the list of context switches.
+     * @param threadData the thread entering or exiting the context switch.
+     * @param globalTime the global time of the context switch.
+     */
+    private void addContextSwitch(int contextSwitch, ThreadData threadData, long globalTime) {
+        int index = mCalls.add(mSwitches.getThreadId(contextSwitch),
+                mSwitches.getMethodId(contextSwitch), mSwitches.getThreadTime(contextSwitch),
+                mSwitches.getMethodAction(contextSwitch));
+        mCalls.setGlobalStartTime(index, globalTime);
+        threadData.addCall(index);
+    }
+
     static final int PARSE_VERSION = 0;
     static final int PARSE_THREADS = 1;
     static final int PARSE_METHODS = 2;
     static final int PARSE_OPTIONS = 4;
 
     long parseKeys() throws IOException {
-        BufferedReader in = null;
-        try {
-            in = new BufferedReader(new FileReader(mTraceFileName));
-        } catch (FileNotFoundException ex) {
-            System.err.println(ex.getMessage());
-        }
+        BufferedReader in = new BufferedReader(new FileReader(mTraceFileName));
 
         long offset = 0;
         int mode = PARSE_VERSION;
@@ -478,17 +599,22 @@ public class DmTraceReader extends TraceReader {
             mSortedMethods[ii++] = md;
         }
 
-        // Let each method analyze its profile data
-        for (MethodData md : mSortedMethods) {
-            md.analyzeData();
+        // Let each method analyze its profile data, on the analysis threads.
+        ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+        int chunk = mSortedMethods.length / (ANALYSIS_THREAD_COUNT * 4) + 1;
+        for (int start = 0; start < mSortedMethods.length; start += chunk) {
+            final int from = start;
+            final int to = Math.min(start + chunk, mSortedMethods.length);
+            tasks.add(new Runnable() {
+                public void run() {
+                    for (int i = from; i < to; i++) {
+                        mSortedMethods[i].analyzeData();
+                    }
+                }
+            });
         }
+        runTasks(tasks);
 
-        // Update all the calls to include the method rank in
-        // their name.
-        for (Call call : mCallList) {
-            call.updateName();
-        }
-        
         if (mRegression) {
             dumpMethodStats();
         }
@@ -502,43 +628,131 @@ public class DmTraceReader extends TraceReader {
      */
     @Override
     public ArrayList<TimeLineView.Record> getThreadTimeRecords() {
-        TimeLineView.Record record;
-        ArrayList<TimeLineView.Record> timeRecs;
-        timeRecs = new ArrayList<TimeLineView.Record>();
-
-        // For each thread, push a "toplevel" call that encompasses the
-        // entire execution of the thread.
-        for (ThreadData threadData : mSortedThreads) {
-            if (!threadData.isEmpty() && threadData.getId() != 0) {
-                Call call = new Call(threadData.getId(), mTopLevel,
-                        threadData.getGlobalStartTime(), 0);
-                call.mGlobalStartTime = threadData.getGlobalStartTime();
-                call.mGlobalEndTime = threadData.getGlobalEndTime();
-                record = new TimeLineView.Record(threadData, call);
-                timeRecs.add(record);
-            }
+        TimeLineBlocks blocks = new TimeLineBlocks();
+        int count = blocks.size();
+        ArrayList<TimeLineView.Record> timeRecs = new ArrayList<TimeLineView.Record>(count);
+        for (int i = 0; i < count; i++) {
+            timeRecs.add(new TimeLineView.Record(blocks.getRow(i), blocks.getBlock(i)));
         }
+        return timeRecs;
+    }
 
-        for (Call call : mCallList) {
-            if (call.getMethodAction() != 0 || call.getThreadId() == 0)
-                continue;
-            ThreadData threadData = mThreadMap.get(call.getThreadId());
-            record = new TimeLineView.Record(threadData, call);
-            timeRecs.add(record);
-        }
-        
+    /**
+     * Returns the same blocks as {@link #getThreadTimeRecords()}, without
+     * creating their {@link Call} objects.
+     */
+    @Override
+    public TimeLineView.BlockStore getThreadTimeBlocks() {
         if (mRegression) {
-            dumpTimeRecs(timeRecs);
+            dumpTimeRecs(getThreadTimeRecords());
             System.exit(0);
         }
-        return timeRecs;
+        return new TimeLineBlocks();
+    }
+
+    /**
+     * The blocks of the timeline: a "toplevel" call that encompasses the
+     * entire execution of each thread, and then the method entries of the
+     * call store. A {@link Call} is only created by {@link #getBlock(int)}.
+     */
+    private final class TimeLineBlocks implements TimeLineView.BlockStore {
+        private final ThreadData[] mThreads;
+        /** the indices of the method entries in the call store */
+        private final int[] mEntries;
+        private final MethodData[] mEntryMethods;
+
+        TimeLineBlocks() {
+            ArrayList<ThreadData> threads = new ArrayList<ThreadData>();
+            for (ThreadData threadData : mSortedThreads) {
+                if (!threadData.isEmpty() && threadData.getId() != 0) {
+                    threads.add(threadData);
+                }
+            }
+            mThreads = threads.toArray(new ThreadData[threads.size()]);
+
+            int count = mCalls.size();
+            int entryCount = 0;
+            for (int i = 0; i < count; i++) {
+                if (mCalls.getMethodAction(i) == 0 && mCalls.getThreadId(i) != 0)
+                    entryCount++;
+            }
+            mEntries = new int[entryCount];
+            mEntryMethods = new MethodData[entryCount];
+            entryCount = 0;
+            for (int i = 0; i < count; i++) {
+                if (mCalls.getMethodAction(i) == 0 && mCalls.getThreadId(i) != 0) {
+                    mEntries[entryCount] = i;
+                    mEntryMethods[entryCount++] =
+                            DmTraceReader.this.getMethodData(mCalls.getMethodId(i));
+                }
+            }
+        }
+
+        public int size() {
+            return mThreads.length + mEntries.length;
+        }
+
+        public TimeLineView.Row getRow(int index) {
+            if (index < mThreads.length)
+                return mThreads[index];
+            return mThreadMap.get(mCalls.getThreadId(mEntries[index - mThreads.length]));
+        }
+
+        public String getName(int index) {
+            // the methods are ranked, and their names include their rank.
+            return getMethodData(index).getProfileName();
+        }
+
+        public MethodData getMethodData(int index) {
+            if (index < mThreads.length)
+                return mTopLevel;
+            return mEntryMethods[index - mThreads.length];
+        }
+
+        public long getStartTime(int index) {
+            if (index < mThreads.length)
+                return mThreads[index].getGlobalStartTime();
+            return mCalls.getGlobalStartTime(mEntries[index - mThreads.length]);
+        }
+
+        public long getEndTime(int index) {
+            if (index < mThreads.length)
+                return mThreads[index].getGlobalEndTime();
+            return mCalls.getGlobalEndTime(mEntries[index - mThreads.length]);
+        }
+
+        public Color getColor(int index) {
+            return getMethodData(index).getColor();
+        }
+
+        public double addWeight(int index, int x, int y, double weight) {
+            return getMethodData(index).addWeight(x, y, weight);
+        }
+
+        public void clearWeight(int index) {
+            getMethodData(index).clearWeight();
+        }
+
+        public TimeLineView.Block getBlock(int index) {
+            if (index >= mThreads.length)
+                return getCall(mEntries[index - mThreads.length]);
+
+            ThreadData threadData = mThreads[index];
+            Call call = new Call(threadData.getId(), mTopLevel,
+                    threadData.getGlobalStartTime(), 0);
+            call.mGlobalStartTime = threadData.getGlobalStartTime();
+            call.mGlobalEndTime = threadData.getGlobalEndTime();
+            return call;
+        }
     }
         
     private void dumpCallTimes() {
         String action;
         
         System.out.format("id thread  global start,end   method\n");
-        for (Call call : mCallList) {
+        int count = mCalls.size();
+        for (int i = 0; i < count; i++) {
+            Call call = getCall(i);
             if (call.getMethodAction() == 0) {
                 action = "+";
             } else {
@@ -218,7 +218,16 @@ public class MainWindow extends ApplicationWindow {
                 }
             }
 
-            reader = new DmTraceReader(traceName, regression);
+            try {
+                reader = new DmTraceReader(traceName, regression);
+            } catch (IOException e) {
+                System.err.printf("cannot read trace file '%s': %s\n", traceName,
+                        e.getMessage());
+                System.exit(1);
+            } catch (IllegalStateException e) {
+                System.err.printf("corrupt trace file '%s': %s\n", traceName, e.getMessage());
+                System.exit(1);
+            }
         }
         reader.getTraceUnits().setTimeScale(TraceUnits.TimeScale.MilliSeconds);
         new MainWindow(traceName, reader).run();
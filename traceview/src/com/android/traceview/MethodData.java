@@ -81,12 +81,29 @@ public class MethodData {
         computeProfileName();
     }
 
+    /**
+     * Creates an object gathering the profile data of a method separately, for instance for a
+     * single thread, before it's added to the method with
+     * {@link #addProfileData(MethodData, HashMap)}.
+     * @param method the method.
+     */
+    MethodData(MethodData method) {
+        this(method.mId, method.mClassName, method.mMethodName, method.mSignature,
+                method.mPathname, method.mLineNumber);
+    }
+
     private Comparator<ProfileData> mByElapsedInclusive = new Comparator<ProfileData>() {
         public int compare(ProfileData pd1, ProfileData pd2) {
             if (pd2.getElapsedInclusive() > pd1.getElapsedInclusive())
                 return 1;
             if (pd2.getElapsedInclusive() < pd1.getElapsedInclusive())
                 return -1;
+            // Order the ties by method id, so that the order doesn't
+            // depend on the order the threads were analyzed in.
+            int id1 = pd1.getMethodData().getId();
+            int id2 = pd2.getMethodData().getId();
+            if (id1 != id2)
+                return id1 < id2 ? -1 : 1;
             return 0;
         }
     };
@@ -119,7 +136,16 @@ public class MethodData {
         mElapsedExclusive += time;
     }
 
-    public void addElapsedInclusive(long time, boolean isRecursive, Call parent) {
+    /**
+     * Adds the inclusive time of a call of this method.
+     * @param time the inclusive time of the call.
+     * @param isRecursive whether the call is recursive.
+     * @param parentMethod the method of the caller, or <code>null</code> if the call has no
+     * caller.
+     * @param parentIsRecursive whether the call of the caller is recursive.
+     */
+    public void addElapsedInclusive(long time, boolean isRecursive, MethodData parentMethod,
+            boolean parentIsRecursive) {
         if (isRecursive == false) {
             mElapsedInclusive += time;
             mNumCalls[0] += 1;
@@ -127,12 +153,11 @@ public class MethodData {
             mNumCalls[1] += 1;
         }
 
-        if (parent == null)
+        if (parentMethod == null)
             return;
 
         // Find the child method in the parent
-        MethodData parentMethod = parent.mMethodData;
-        if (parent.isRecursive()) {
+        if (parentIsRecursive) {
             parentMethod.mRecursiveChildren = updateInclusive(time,
                     parentMethod, this, false,
                     parentMethod.mRecursiveChildren);
@@ -172,6 +197,48 @@ public class MethodData {
         return map;
     }
 
+    /**
+     * Adds the profile data of this method gathered separately, by an object created with
+     * {@link #MethodData(MethodData)}.
+     * @param data the profile data.
+     * @param methods the methods, by id, for the parents and children of this method.
+     */
+    void addProfileData(MethodData data, HashMap<Integer, MethodData> methods) {
+        mElapsedExclusive += data.mElapsedExclusive;
+        mElapsedInclusive += data.mElapsedInclusive;
+        mTopExclusive += data.mTopExclusive;
+        mNumCalls[0] += data.mNumCalls[0];
+        mNumCalls[1] += data.mNumCalls[1];
+
+        mParents = addProfileData(data.mParents, mParents, true, methods);
+        mChildren = addProfileData(data.mChildren, mChildren, false, methods);
+        mRecursiveParents = addProfileData(data.mRecursiveParents, mRecursiveParents, true,
+                methods);
+        mRecursiveChildren = addProfileData(data.mRecursiveChildren, mRecursiveChildren, false,
+                methods);
+    }
+
+    private HashMap<Integer, ProfileData> addProfileData(HashMap<Integer, ProfileData> data,
+            HashMap<Integer, ProfileData> map, boolean elementIsParent,
+            HashMap<Integer, MethodData> methods) {
+        if (data == null)
+            return map;
+        if (map == null)
+            map = new HashMap<Integer, ProfileData>(4);
+
+        for (ProfileData elementData : data.values()) {
+            int id = elementData.mElement.mId;
+            ProfileData profileData = map.get(id);
+            if (profileData == null) {
+                profileData = new ProfileData(this, methods.get(id), elementIsParent);
+                map.put(id, profileData);
+            }
+            profileData.mElapsedInclusive += elementData.mElapsedInclusive;
+            profileData.mNumCalls += elementData.mNumCalls;
+        }
+        return map;
+    }
+
     public void analyzeData() {
         // Sort the parents and children into decreasing inclusive time
         ProfileData[] sortedParents;
@@ -304,6 +371,14 @@ public class MethodData {
         return mNumCalls[0] + mNumCalls[1];
     }
 
+    public int getNonRecursiveCalls() {
+        return mNumCalls[0];
+    }
+
+    public int getRecursiveCalls() {
+        return mNumCalls[1];
+    }
+
     public Color getColor() {
         return mColor;
     }
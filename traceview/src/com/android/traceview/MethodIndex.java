@@ -0,0 +1,406 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.traceview;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+/**
+ * Index of the full names of the methods of a trace, for incremental search.
+ * <p/>A method matches a query if:
+ * <ul>
+ * <li>its name contains the query. The match ignores case, unless the query has upper case
+ * letters.</li>
+ * <li>or the query is a camel-hump abbreviation of consecutive words of its name, e.g. "HaMa"
+ * or "HM" for "java.util.HashMap". Words start with an upper case letter, or with a letter
+ * following a separator such as '.' or '/'.</li>
+ * </ul>
+ * Only the names that can match are checked: those containing all the trigrams of the query,
+ * or, while the query is being typed, those that matched the previous query.
+ * <p/>Matches are returned in the order of the methods in the view, set with
+ * {@link #setOrder(MethodData[])}.
+ */
+final class MethodIndex {
+
+    private static final int[] EMPTY = new int[0];
+
+    private final MethodData[] mMethods;
+    private final String[] mLowerCaseNames;
+    /** The lower case initials of the words of each name. */
+    private final String[] mInitials;
+    /** The index of the first character of each word of each name. */
+    private final int[][] mWordStarts;
+    /** The position of each method in the view, or null if it's the initial order. */
+    private int[] mPositions;
+
+    /**
+     * Open addressing table of the trigrams. A slot holds a trigram key + 1, or 0 if it is
+     * empty. The methods containing the trigram are in the list of the same slot, in
+     * ascending order.
+     */
+    private int[] mTrigramKeys;
+    private int[][] mTrigramLists;
+
+    /** The last query, and the methods that contain it. */
+    private String mLastQuery;
+    private int[] mLastSubstringMatches;
+    /** The matches of the last query, as positions in the view. */
+    private int[] mLastMatches;
+
+    /**
+     * Indexes the given methods. Their order is the initial order of the matches.
+     */
+    MethodIndex(MethodData[] methods) {
+        int count = methods.length;
+        mMethods = methods.clone();
+        mLowerCaseNames = new String[count];
+        mInitials = new String[count];
+        mWordStarts = new int[count][];
+
+        int capacity = 1024;
+        int size = 0;
+        int[] keys = new int[capacity];
+        IntList[] lists = new IntList[capacity];
+        for (int i = 0 ; i < count ; i++) {
+            String name = methods[i].getName();
+            String lowerCaseName = name.toLowerCase();
+            mLowerCaseNames[i] = lowerCaseName;
+            indexWords(i, name);
+
+            for (int c = 0 ; c + 3 <= lowerCaseName.length() ; c++) {
+                int key = getTrigram(lowerCaseName, c) + 1;
+                int slot = findSlot(keys, key);
+                IntList list = lists[slot];
+                if (list == null) {
+                    keys[slot] = key;
+                    list = lists[slot] = new IntList();
+                    if (++size * 2 > capacity) {
+                        // keep the table at most half full.
+                        capacity *= 2;
+                        int[] newKeys = new int[capacity];
+                        IntList[] newLists = new IntList[capacity];
+                        for (int s = 0 ; s < keys.length ; s++) {
+                            if (keys[s] != 0) {
+                                int newSlot = findSlot(newKeys, keys[s]);
+                                newKeys[newSlot] = keys[s];
+                                newLists[newSlot] = lists[s];
+                            }
+                        }
+                        keys = newKeys;
+                        lists = newLists;
+                    }
+                }
+                // methods are added in order, so a repeated trigram is always at the end.
+                if (list.mSize == 0 || list.mValues[list.mSize - 1] != i) {
+                    list.add(i);
+                }
+            }
+        }
+
+        mTrigramKeys = keys;
+        mTrigramLists = new int[capacity][];
+        for (int s = 0 ; s < capacity ; s++) {
+            if (lists[s] != null) {
+                mTrigramLists[s] = lists[s].toArray();
+            }
+        }
+    }
+
+    /**
+     * Sets the order of the methods in the view, after they've been sorted. The array must
+     * contain the indexed methods.
+     */
+    void setOrder(MethodData[] methods) {
+        IdentityHashMap<MethodData, Integer> positions =
+            new IdentityHashMap<MethodData, Integer>(methods.length);
+        for (int i = 0 ; i < methods.length ; i++) {
+            positions.put(methods[i], i);
+        }
+        mPositions = new int[mMethods.length];
+        for (int i = 0 ; i < mMethods.length ; i++) {
+            mPositions[i] = positions.get(mMethods[i]);
+        }
+        mLastMatches = null;
+    }
+
+    /**
+     * Returns the positions in the view of the methods matching a query, in ascending order.
+     */
+    int[] find(String query) {
+        if (mLastMatches != null && query.equals(mLastQuery)) {
+            return mLastMatches;
+        }
+
+        int[] substringMatches = findSubstrings(query);
+        int[] result = union(substringMatches, findCamelHumps(query));
+        if (mPositions != null) {
+            int[] positions = new int[result.length];
+            for (int i = 0 ; i < result.length ; i++) {
+                positions[i] = mPositions[result[i]];
+            }
+            Arrays.sort(positions);
+            result = positions;
+        }
+
+        mLastQuery = query;
+        mLastSubstringMatches = substringMatches;
+        mLastMatches = result;
+        return result;
+    }
+
+    /**
+     * Returns the position of the first method matching a query at or after the given
+     * position, or -1.
+     */
+    int findNext(String query, int position) {
+        int[] matches = find(query);
+        int index = Arrays.binarySearch(matches, position);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return index < matches.length ? matches[index] : -1;
+    }
+
+    /**
+     * Returns the methods whose name contain the query, in ascending order.
+     */
+    private int[] findSubstrings(String query) {
+        String lowerCaseQuery = query.toLowerCase();
+        boolean ignoreCase = lowerCaseQuery.equals(query);
+
+        // a name containing the query contains the previous query, if the query contains it.
+        int[] candidates = null;
+        if (mLastQuery != null) {
+            boolean lastIgnoreCase = mLastQuery.toLowerCase().equals(mLastQuery);
+            if ((lastIgnoreCase && lowerCaseQuery.indexOf(mLastQuery) != -1)
+                    || (!lastIgnoreCase && !ignoreCase && query.indexOf(mLastQuery) != -1)) {
+                candidates = mLastSubstringMatches;
+            }
+        }
+
+        for (int c = 0 ; c + 3 <= lowerCaseQuery.length() ; c++) {
+            int[] list = mTrigramLists[findSlot(mTrigramKeys,
+                    getTrigram(lowerCaseQuery, c) + 1)];
+            if (list == null) {
+                return EMPTY;
+            }
+            candidates = candidates == null ? list : intersect(candidates, list);
+            if (candidates.length == 0) {
+                return EMPTY;
+            }
+        }
+
+        int count = 0;
+        int size = candidates != null ? candidates.length : mMethods.length;
+        int[] result = new int[size];
+        for (int c = 0 ; c < size ; c++) {
+            int i = candidates != null ? candidates[c] : c;
+            boolean match;
+            if (ignoreCase) {
+                match = mLowerCaseNames[i].indexOf(lowerCaseQuery) != -1;
+            } else {
+                match = mMethods[i].getName().indexOf(query) != -1;
+            }
+            if (match) {
+                result[count++] = i;
+            }
+        }
+        return trim(result, count);
+    }
+
+    /**
+     * Returns the methods whose name contain consecutive words starting with the camel humps
+     * of the query, in ascending order.
+     */
+    private int[] findCamelHumps(String query) {
+        String[] humps = getCamelHumps(query);
+        if (humps == null) {
+            return EMPTY;
+        }
+        StringBuilder sb = new StringBuilder(humps.length);
+        for (String hump : humps) {
+            sb.append(Character.toLowerCase(hump.charAt(0)));
+        }
+        String initials = sb.toString();
+
+        IntList result = new IntList();
+        for (int i = 0 ; i < mMethods.length ; i++) {
+            String name = mMethods[i].getName();
+            int[] wordStarts = mWordStarts[i];
+            int word = mInitials[i].indexOf(initials);
+            while (word != -1) {
+                int h = 0;
+                while (h < humps.length && name.regionMatches(true, wordStarts[word + h],
+                        humps[h], 0, humps[h].length())) {
+                    h++;
+                }
+                if (h == humps.length) {
+                    result.add(i);
+                    break;
+                }
+                word = mInitials[i].indexOf(initials, word + 1);
+            }
+        }
+        return result.toArray();
+    }
+
+    /**
+     * Splits a query before each of its upper case letters, or returns null if it has less
+     * than 2 humps.
+     */
+    private static String[] getCamelHumps(String query) {
+        int count = 0;
+        for (int c = 0 ; c < query.length() ; c++) {
+            if (c == 0 || Character.isUpperCase(query.charAt(c))) {
+                count++;
+            }
+        }
+        if (count < 2) {
+            return null;
+        }
+
+        String[] humps = new String[count];
+        int h = 0;
+        int start = 0;
+        for (int c = 1 ; c < query.length() ; c++) {
+            if (Character.isUpperCase(query.charAt(c))) {
+                humps[h++] = query.substring(start, c);
+                start = c;
+            }
+        }
+        humps[h] = query.substring(start);
+        return humps;
+    }
+
+    /**
+     * Finds the words of a name, and stores their initials and start indices.
+     */
+    private void indexWords(int index, String name) {
+        int[] wordStarts = new int[name.length()];
+        StringBuilder initials = new StringBuilder();
+        for (int i = 0 ; i < name.length() ; i++) {
+            char c = name.charAt(i);
+            if (Character.isLetterOrDigit(c) && (i == 0 || Character.isUpperCase(c)
+                    || Character.isLetterOrDigit(name.charAt(i - 1)) == false)) {
+                wordStarts[initials.length()] = i;
+                initials.append(Character.toLowerCase(c));
+            }
+        }
+        mInitials[index] = initials.toString();
+        mWordStarts[index] = trim(wordStarts, initials.length());
+    }
+
+    /**
+     * Returns the key of the trigram at the given index. Characters are folded to 10 bits,
+     * which only adds candidates to check.
+     */
+    private static int getTrigram(String s, int index) {
+        return ((s.charAt(index) & 0x3ff) << 20) | ((s.charAt(index + 1) & 0x3ff) << 10)
+                | (s.charAt(index + 2) & 0x3ff);
+    }
+
+    /**
+     * Returns the slot of a key in an open addressing table: the slot holding the key, or the
+     * empty slot where it would go.
+     */
+    private static int findSlot(int[] keys, int key) {
+        int mask = keys.length - 1;
+        int slot = (key * 0x9e3779b9) >>> 7 & mask;
+        while (keys[slot] != 0 && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Returns the values present in both ascending lists.
+     */
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[count++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return trim(result, count);
+    }
+
+    /**
+     * Returns the values present in either ascending list.
+     */
+    private static int[] union(int[] a, int[] b) {
+        if (b.length == 0) {
+            return a;
+        }
+        if (a.length == 0) {
+            return b;
+        }
+        int[] result = new int[a.length + b.length];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length || j < b.length) {
+            if (j == b.length || (i < a.length && a[i] < b[j])) {
+                result[count++] = a[i++];
+            } else if (i == a.length || b[j] < a[i]) {
+                result[count++] = b[j++];
+            } else {
+                result[count++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return trim(result, count);
+    }
+
+    private static int[] trim(int[] array, int size) {
+        if (size == array.length) {
+            return array;
+        }
+        int[] result = new int[size];
+        System.arraycopy(array, 0, result, 0, size);
+        return result;
+    }
+
+    /** Growable list of ints, to build the lists of the trigrams without boxing. */
+    private static final class IntList {
+        int[] mValues = new int[4];
+        int mSize;
+
+        void add(int value) {
+            if (mSize == mValues.length) {
+                int[] values = new int[mSize * 2];
+                System.arraycopy(mValues, 0, values, 0, mSize);
+                mValues = values;
+            }
+            mValues[mSize++] = value;
+        }
+
+        int[] toArray() {
+            return trim(mValues, mSize);
+        }
+    }
+}
@@ -18,7 +18,6 @@ package com.android.traceview;
 
 import java.io.InputStream;
 import java.util.Arrays;
-import java.util.regex.Pattern;
 
 import org.eclipse.jface.viewers.IColorProvider;
 import org.eclipse.jface.viewers.ITableLabelProvider;
@@ -57,8 +56,10 @@ class ProfileProvider implements ITreeContentProvider {
     private static final int COL_CALLS = 5;
     private static final int COL_TIME_PER_CALL = 6;
     private long mTotalTime;
-    private Pattern mUppercase;
+    private MethodIndex mMethodIndex;
     private int mPrevMatchIndex = -1;
+    private String mFilter;
+    private MethodData[] mFilteredRoots;
 
     public ProfileProvider(TraceReader reader) {
         mRoots = reader.getMethods();
@@ -71,26 +72,16 @@ class ProfileProvider implements ITreeContentProvider {
         in = getClass().getClassLoader().getResourceAsStream(
                 "icons/sort_down.png");
         mSortDown = new Image(display, in);
-        mUppercase = Pattern.compile("[A-Z]");
+        mMethodIndex = new MethodIndex(mRoots);
     }
 
     private MethodData doMatchName(String name, int startIndex) {
-        // Check if the given "name" has any uppercase letters
-        boolean hasUpper = mUppercase.matcher(name).matches();
-        for (int ii = startIndex; ii < mRoots.length; ++ii) {
-            MethodData md = mRoots[ii];
-            String fullName = md.getName();
-            // If there were no upper case letters in the given name,
-            // then ignore case when matching.
-            if (!hasUpper)
-                fullName = fullName.toLowerCase();
-            if (fullName.indexOf(name) != -1) {
-                mPrevMatchIndex = ii;
-                return md;
-            }
-        }
-        mPrevMatchIndex = -1;
-        return null;
+        // The index ignores case, unless the given "name" has uppercase
+        // letters, and also matches camel humps ("HM" for "HashMap").
+        mPrevMatchIndex = mMethodIndex.findNext(name, startIndex);
+        if (mPrevMatchIndex == -1)
+            return null;
+        return mRoots[mPrevMatchIndex];
     }
 
     public MethodData findMatchingName(String name) {
@@ -101,6 +92,33 @@ class ProfileProvider implements ITreeContentProvider {
         return doMatchName(name, mPrevMatchIndex + 1);
     }
 
+    /**
+     * Only shows the methods matching the given name, or all the methods if
+     * the name is null or empty.
+     */
+    public void setFilter(String name) {
+        if (name != null && name.length() == 0)
+            name = null;
+        mFilter = name;
+        updateFilter();
+    }
+
+    public String getFilter() {
+        return mFilter;
+    }
+
+    private void updateFilter() {
+        if (mFilter == null) {
+            mFilteredRoots = null;
+            return;
+        }
+        int[] matches = mMethodIndex.find(mFilter);
+        mFilteredRoots = new MethodData[matches.length];
+        for (int ii = 0; ii < matches.length; ++ii) {
+            mFilteredRoots[ii] = mRoots[matches[ii]];
+        }
+    }
+
     public MethodData findMatchingTreeItem(TreeItem item) {
         if (item == null)
             return null;
@@ -158,6 +176,8 @@ class ProfileProvider implements ITreeContentProvider {
     }
 
     public Object[] getElements(Object element) {
+        if (mFilteredRoots != null)
+            return mFilteredRoots;
         return mRoots;
     }
 
@@ -349,6 +369,8 @@ class ProfileProvider implements ITreeContentProvider {
                 sorter.setColumn(MethodData.Sorter.Column.BY_TIME_PER_CALL);
                 Arrays.sort(mRoots, sorter);
             }
+            mMethodIndex.setOrder(mRoots);
+            updateFilter();
             MethodData.Sorter.Direction direction = sorter.getDirection();
             if (direction == MethodData.Sorter.Direction.INCREASING)
                 column.setImage(mSortDown);
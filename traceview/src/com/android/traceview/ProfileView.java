@@ -34,10 +34,12 @@ import org.eclipse.swt.events.KeyEvent;
 import org.eclipse.swt.events.ModifyEvent;
 import org.eclipse.swt.events.ModifyListener;
 import org.eclipse.swt.events.SelectionAdapter;
+import org.eclipse.swt.events.SelectionEvent;
 import org.eclipse.swt.graphics.Color;
 import org.eclipse.swt.graphics.Point;
 import org.eclipse.swt.layout.GridData;
 import org.eclipse.swt.layout.GridLayout;
+import org.eclipse.swt.widgets.Button;
 import org.eclipse.swt.widgets.Composite;
 import org.eclipse.swt.widgets.Display;
 import org.eclipse.swt.widgets.Event;
@@ -52,6 +54,7 @@ public class ProfileView extends Composite implements Observer {
     
     private TreeViewer mTreeViewer;
     private Text mSearchBox;
+    private Button mFilterButton;
     private SelectionController mSelectionController;
     private ProfileProvider mProfileProvider;
     private Color mColorNoMatch;
@@ -101,9 +104,9 @@ public class ProfileView extends Composite implements Observer {
         mTreeViewer.setLabelProvider(mProfileProvider.getLabelProvider());
         mTreeViewer.setInput(mProfileProvider.getRoot());
 
-        // Create another composite to hold the label and text box
+        // Create another composite to hold the label, text box and filter
         Composite composite = new Composite(this, SWT.NONE);
-        composite.setLayout(new GridLayout(2, false));
+        composite.setLayout(new GridLayout(3, false));
         composite.setLayoutData(new GridData(GridData.FILL_HORIZONTAL));
 
         // Add a label for the search box
@@ -114,6 +117,16 @@ public class ProfileView extends Composite implements Observer {
         mSearchBox = new Text(composite, SWT.BORDER);
         mSearchBox.setLayoutData(new GridData(GridData.FILL_HORIZONTAL));
 
+        // Add a check box to only show the methods matching the search
+        mFilterButton = new Button(composite, SWT.CHECK);
+        mFilterButton.setText("Filter");
+        mFilterButton.addSelectionListener(new SelectionAdapter() {
+            @Override
+            public void widgetSelected(SelectionEvent event) {
+                updateFilter();
+            }
+        });
+
         Display display = getDisplay();
         mColorNoMatch = new Color(display, 255, 200, 200);
         mColorMatch = mSearchBox.getBackground();
@@ -121,6 +134,8 @@ public class ProfileView extends Composite implements Observer {
         mSearchBox.addModifyListener(new ModifyListener() {
             public void modifyText(ModifyEvent ev) {
                 String query = mSearchBox.getText();
+                if (mFilterButton.getSelection())
+                    updateFilter();
                 if (query.length() == 0)
                     return;
                 findName(query);
@@ -238,6 +253,14 @@ public class ProfileView extends Composite implements Observer {
         selectMethod(md);
     }
 
+    private void updateFilter() {
+        String filter = null;
+        if (mFilterButton.getSelection())
+            filter = mSearchBox.getText();
+        mProfileProvider.setFilter(filter);
+        mTreeViewer.refresh();
+    }
+
     private void selectMethod(MethodData md) {
         if (md == null) {
             mSearchBox.setBackground(mColorNoMatch);
@@ -291,6 +314,9 @@ public class ProfileView extends Composite implements Observer {
         mTreeViewer.setSelection(sel, true);
         Tree tree = mTreeViewer.getTree();
         TreeItem[] items = tree.getSelection();
+        // The method may be hidden by the filter
+        if (items.length == 0)
+            return;
         tree.setTopItem(items[0]);
         // workaround a Mac bug by adding showItem().
         tree.showItem(items[0]);
@@ -16,11 +16,13 @@
 
 package com.android.traceview;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 
 class ThreadData implements TimeLineView.Row {
 
+    /** Index of the call tree root, which is not in the call store. */
+    private static final int ROOT = -1;
+
     private int mId;
     private String mName;
     private long mGlobalStartTime = -1;
@@ -28,10 +30,21 @@ class ThreadData implements TimeLineView.Row {
     private long mLastEventTime;
     private long mCpuTime;
     private Call mRoot;
-    private Call mCurrent;
-    private Call mLastContextSwitch;
-    private ArrayList<Call> mStack = new ArrayList<Call>();
-    
+    private int mLastContextSwitch = -1;
+
+    // The indices of the calls of this thread in the call store, until they are analyzed.
+    private int[] mCalls = new int[16];
+    private int mCallCount = 0;
+
+    // The profile data gathered by this thread, by method id, until it is added to the methods.
+    private HashMap<Integer, MethodData> mMethodStats = new HashMap<Integer, MethodData>();
+    private HashMap<Integer, MethodData> mMethods;
+
+    // The indices of the calls on the stack, in the call store, and their methods.
+    private int[] mStack = new int[16];
+    private MethodData[] mStackMethodData = new MethodData[16];
+    private int mStackSize = 0;
+
     // This is a hash of all the methods that are currently on the stack.
     private HashMap<MethodData, Integer> mStackMethods = new HashMap<MethodData, Integer>();
     
@@ -42,7 +55,6 @@ class ThreadData implements TimeLineView.Row {
         mId = id;
         mName = String.format("[%d] %s", id, name);
         mRoot = new Call(mName, topLevel);
-        mCurrent = mRoot;
         mIsEmpty = true;
     }
 
@@ -58,88 +70,175 @@ class ThreadData implements TimeLineView.Row {
         return mRoot;
     }
 
-    void handleCall(Call call, long globalTime) {
+    /**
+     * Adds a method entry or exit to this thread. The calls are handled later, in order, by
+     * {@link #analyze(CallStore, HashMap)}.
+     * @param index the index of the call in the call store.
+     */
+    void addCall(int index) {
         mIsEmpty = false;
-        long currentTime = call.mThreadStartTime;
+        if (mCallCount == mCalls.length) {
+            int[] calls = new int[mCallCount * 2];
+            System.arraycopy(mCalls, 0, calls, 0, mCallCount);
+            mCalls = calls;
+        }
+        mCalls[mCallCount++] = index;
+    }
+
+    /**
+     * Rebuilds the call stack of this thread, and computes the profile data of its calls.
+     * <p/>The threads are independent, so this can run on several threads at the same time. The
+     * profile data is kept by this object, to be added to the methods with
+     * {@link #addProfileData(HashMap)}.
+     * @param calls the call store, where the global start time of the calls is set.
+     * @param methods the methods, by id. They are only read.
+     */
+    void analyze(CallStore calls, HashMap<Integer, MethodData> methods) {
+        mMethods = methods;
+        for (int i = 0; i < mCallCount; i++) {
+            int index = mCalls[i];
+            handleCall(calls, index, getMethodStats(calls.getMethodId(index)),
+                    calls.getGlobalStartTime(index));
+        }
+        endTrace(calls);
+        mCalls = null;
+        mMethods = null;
+    }
+
+    /**
+     * Adds the profile data computed by {@link #analyze(CallStore, HashMap)} to the methods.
+     * @param methods the methods, by id.
+     */
+    void addProfileData(HashMap<Integer, MethodData> methods) {
+        for (MethodData data : mMethodStats.values()) {
+            methods.get(data.getId()).addProfileData(data, methods);
+        }
+        mMethodStats = null;
+    }
+
+    /**
+     * Returns the object gathering the profile data of a method for this thread.
+     */
+    private MethodData getMethodStats(int id) {
+        MethodData md = mMethodStats.get(id);
+        if (md == null) {
+            md = new MethodData(mMethods.get(id));
+            mMethodStats.put(id, md);
+        }
+        return md;
+    }
+
+    /**
+     * Handles a method entry or exit.
+     * @throws IllegalStateException if the call is older than the previous one.
+     */
+    private void handleCall(CallStore calls, int index, MethodData methodData, long globalTime) {
+        long currentTime = calls.getThreadTime(index);
         if (currentTime < mLastEventTime) {
-            System.err
-            .printf(
-                    "ThreadData: '%1$s' call time (%2$d) is less than previous time (%3$d) for thread '%4$s'\n",
-                    call.getName(), currentTime, mLastEventTime, mName);
-            System.exit(1);
+            throw new IllegalStateException(String.format(
+                    "'%1$s' call time (%2$d) is less than previous time (%3$d) for thread '%4$s'",
+                    methodData.getProfileName(), currentTime, mLastEventTime, mName));
         }
         long elapsed = currentTime - mLastEventTime;
         mCpuTime += elapsed;
-        if (call.getMethodAction() == 0) {
+        if (calls.getMethodAction(index) == 0) {
             // This is a method entry.
-            enter(call, elapsed);
+            enter(calls, index, methodData, elapsed);
         } else {
             // This is a method exit.
-            exit(call, elapsed, globalTime);
+            exit(calls, index, methodData, elapsed, globalTime);
         }
         mLastEventTime = currentTime;
         mGlobalEndTime = globalTime;
     }
 
-    private void enter(Call c, long elapsed) {
-        Call caller = mCurrent;
-        push(c);
+    private void enter(CallStore calls, int index, MethodData md, long elapsed) {
+        int caller = top();
+        MethodData callerMethodData = topMethodData();
+        push(index, md);
         
         // Check the stack for a matching method to determine if this call
         // is recursive.
-        MethodData md = c.mMethodData;
         Integer num = mStackMethods.get(md);
         if (num == null) {
             num = 0;
         } else if (num > 0) {
-            c.setRecursive(true);
+            calls.setRecursive(index);
         }
         num += 1;
         mStackMethods.put(md, num);
-        mCurrent = c;
 
         // Add the elapsed time to the caller's exclusive time
-        caller.addExclusiveTime(elapsed);
+        addExclusiveTime(calls, caller, callerMethodData, elapsed);
     }
 
-    private void exit(Call c, long elapsed, long globalTime) {
-        mCurrent.mGlobalEndTime = globalTime;
-        Call top = pop();
-        if (top == null) {
+    private void exit(CallStore calls, int index, MethodData md, long elapsed,
+            long globalTime) {
+        int current = top();
+        if (current == ROOT) {
+            mRoot.mGlobalEndTime = globalTime;
             return;
         }
+        calls.setGlobalEndTime(current, globalTime);
+        MethodData currentMethodData = topMethodData();
+        pop();
 
-        if (mCurrent.mMethodData != c.mMethodData) {
-            String error = "Method exit (" + c.getName()
-                    + ") does not match current method (" + mCurrent.getName()
+        if (currentMethodData != md) {
+            String error = "Method exit (" + md.getProfileName()
+                    + ") does not match current method (" + currentMethodData.getProfileName()
                     + ")";
             throw new RuntimeException(error);
         } else {
-            long duration = c.mThreadStartTime - mCurrent.mThreadStartTime;
-            Call caller = top();
-            mCurrent.addExclusiveTime(elapsed);
-            mCurrent.addInclusiveTime(duration, caller);
-            if (caller == null) {
-                caller = mRoot;
-            }
-            mCurrent = caller;
+            long duration = calls.getThreadTime(index) - calls.getThreadTime(current);
+            addExclusiveTime(calls, current, currentMethodData, elapsed);
+            addInclusiveTime(calls, current, currentMethodData, duration);
         }
     }
 
-    public void push(Call c) {
-        mStack.add(c);
+    private void addExclusiveTime(CallStore calls, int index, MethodData md, long elapsed) {
+        md.addElapsedExclusive(elapsed);
+        if (index == ROOT || calls.isRecursive(index) == false) {
+            md.addTopExclusive(elapsed);
+        }
     }
 
-    public Call pop() {
-        ArrayList<Call> stack = mStack;
-        if (stack.size() == 0)
-            return null;
-        Call top = stack.get(stack.size() - 1);
-        stack.remove(stack.size() - 1);
-        
+    /**
+     * Adds the inclusive time of a call that was just popped off the stack. Its caller is the
+     * new top of the stack.
+     */
+    private void addInclusiveTime(CallStore calls, int index, MethodData md, long elapsed) {
+        int caller = top();
+        if (caller == ROOT) {
+            md.addElapsedInclusive(elapsed, calls.isRecursive(index), null, false);
+        } else {
+            md.addElapsedInclusive(elapsed, calls.isRecursive(index), topMethodData(),
+                    calls.isRecursive(caller));
+        }
+    }
+
+    private void push(int index, MethodData md) {
+        if (mStackSize == mStack.length) {
+            int[] stack = new int[mStackSize * 2];
+            System.arraycopy(mStack, 0, stack, 0, mStackSize);
+            mStack = stack;
+            MethodData[] stackMethodData = new MethodData[mStackSize * 2];
+            System.arraycopy(mStackMethodData, 0, stackMethodData, 0, mStackSize);
+            mStackMethodData = stackMethodData;
+        }
+        mStack[mStackSize] = index;
+        mStackMethodData[mStackSize] = md;
+        mStackSize++;
+    }
+
+    private void pop() {
+        if (mStackSize == 0)
+            return;
+        mStackSize--;
+        MethodData md = mStackMethodData[mStackSize];
+        mStackMethodData[mStackSize] = null;
+
         // Decrement the count on the method in the hash table and remove
         // the entry when it goes to zero.
-        MethodData md = top.mMethodData;
         Integer num = mStackMethods.get(md);
         if (num != null) {
             num -= 1;
@@ -149,30 +248,35 @@ class ThreadData implements TimeLineView.Row {
                 mStackMethods.put(md, num);
             }
         }
-        return top;
     }
 
-    public Call top() {
-        ArrayList<Call> stack = mStack;
-        if (stack.size() == 0)
-            return null;
-        return stack.get(stack.size() - 1);
+    /**
+     * Returns the index of the call at the top of the stack, or {@link #ROOT} if the stack is
+     * empty.
+     */
+    private int top() {
+        if (mStackSize == 0)
+            return ROOT;
+        return mStack[mStackSize - 1];
+    }
+
+    private MethodData topMethodData() {
+        if (mStackSize == 0)
+            return getMethodStats(mRoot.mMethodData.getId());
+        return mStackMethodData[mStackSize - 1];
     }
 
-    public long endTrace() {
+    private long endTrace(CallStore calls) {
         // If we have calls on the stack when the trace ends, then clean up
         // the stack and compute the inclusive time of the methods by pretending
         // that we are exiting from their methods now.
-        while (mCurrent != mRoot) {
-            long duration = mLastEventTime - mCurrent.mThreadStartTime;
+        while (mStackSize > 0) {
+            int current = top();
+            MethodData md = topMethodData();
+            long duration = mLastEventTime - calls.getThreadTime(current);
             pop();
-            Call caller = top();
-            mCurrent.addInclusiveTime(duration, caller);
-            mCurrent.mGlobalEndTime = mGlobalEndTime;
-            if (caller == null) {
-                caller = mRoot;
-            }
-            mCurrent = caller;
+            addInclusiveTime(calls, current, md, duration);
+            calls.setGlobalEndTime(current, mGlobalEndTime);
         }
         return mLastEventTime;
     }
@@ -218,11 +322,18 @@ class ThreadData implements TimeLineView.Row {
         return mGlobalEndTime;
     }
 
-    public void setLastContextSwitch(Call lastContextSwitch) {
+    /**
+     * Sets the index, in the list of context switches, of the last switch away from this thread.
+     */
+    public void setLastContextSwitch(int lastContextSwitch) {
         mLastContextSwitch = lastContextSwitch;
     }
 
-    public Call getLastContextSwitch() {
+    /**
+     * Returns the index, in the list of context switches, of the last switch away from this
+     * thread, or -1 if there was none.
+     */
+    public int getLastContextSwitch() {
         return mLastContextSwitch;
     }
 }
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.traceview;
+
+import java.util.ArrayList;
+
+/**
+ * Multi-resolution index of the segments of one row of the {@link TimeLineView}.
+ * <p/>Level 0 holds the segments themselves. Each coarser level splits the time into buckets
+ * twice as large as the previous level, and replaces the entries that fit inside a bucket with
+ * a single entry spanning them. That entry is attributed to the segment whose key covers most
+ * of the merged time, and its coverage is the fraction of its span covered by that key.
+ * <p/>Drawing uses the coarsest level whose buckets are no larger than a pixel, so the number
+ * of entries it visits depends on the width of the view, not on the number of segments.
+ */
+final class TimeLineIndex {
+
+    /** Levels with fewer entries than this are not worth coarsening further. */
+    private static final int MIN_LEVEL_SIZE = 64;
+
+    private final ArrayList<Level> mLevels = new ArrayList<Level>();
+
+    /** Entries of one level, in increasing time order. */
+    private static final class Level {
+        final long mBucketSize;
+        final int mSize;
+        final long[] mStartTimes;
+        final long[] mEndTimes;
+        /** Index of the level 0 entry each entry is attributed to, or null for level 0. */
+        final int[] mSegments;
+        /** Time covered by the key of the attributed segment. */
+        final long[] mKeyTimes;
+
+        Level(long bucketSize, int size, long[] startTimes, long[] endTimes, int[] segments,
+                long[] keyTimes) {
+            mBucketSize = bucketSize;
+            mSize = size;
+            mStartTimes = startTimes;
+            mEndTimes = endTimes;
+            mSegments = segments;
+            mKeyTimes = keyTimes;
+        }
+
+        int getSegment(int index) {
+            return mSegments != null ? mSegments[index] : index;
+        }
+
+        long getKeyTime(int index) {
+            return mKeyTimes != null ? mKeyTimes[index] : mEndTimes[index] - mStartTimes[index];
+        }
+    }
+
+    /**
+     * Builds the index of a row.
+     * @param startTimes the start times of the segments, in increasing order.
+     * @param endTimes the end times of the segments. The segments must not overlap.
+     * @param keys what each segment shows, typically its method. Two segments show the same
+     * thing if their keys are the same object.
+     */
+    TimeLineIndex(long[] startTimes, long[] endTimes, Object[] keys) {
+        int size = startTimes.length;
+        Level level = new Level(0, size, startTimes, endTimes, null, null);
+        mLevels.add(level);
+        if (size < MIN_LEVEL_SIZE) {
+            return;
+        }
+
+        long span = endTimes[size - 1] - startTimes[0];
+        long bucketSize = Long.highestOneBit(Math.max(1, span / size));
+        while (level.mSize >= MIN_LEVEL_SIZE && bucketSize < span) {
+            Level next = coarsen(level, bucketSize, keys);
+            // only keep the levels that save enough entries to be worth their memory.
+            if (next.mSize * 2 <= level.mSize) {
+                mLevels.add(next);
+                level = next;
+            }
+            bucketSize *= 2;
+        }
+    }
+
+    /**
+     * Returns the number of levels, including level 0.
+     */
+    int getLevelCount() {
+        return mLevels.size();
+    }
+
+    /**
+     * Returns the coarsest level whose buckets are no larger than the given time, or 0.
+     * @param timePerPixel the time covered by one pixel.
+     */
+    int getLevel(double timePerPixel) {
+        int result = 0;
+        for (int i = 1 ; i < mLevels.size() ; i++) {
+            if (mLevels.get(i).mBucketSize > timePerPixel) {
+                break;
+            }
+            result = i;
+        }
+        return result;
+    }
+
+    int getSize(int level) {
+        return mLevels.get(level).mSize;
+    }
+
+    /**
+     * Returns the index of the first entry of a level that ends after the given time, or the
+     * size of the level if there is none.
+     */
+    int findFirst(int level, double time) {
+        long[] endTimes = mLevels.get(level).mEndTimes;
+        int low = 0;
+        int high = mLevels.get(level).mSize;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (endTimes[mid] <= time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    long getStartTime(int level, int index) {
+        return mLevels.get(level).mStartTimes[index];
+    }
+
+    long getEndTime(int level, int index) {
+        return mLevels.get(level).mEndTimes[index];
+    }
+
+    /**
+     * Returns the index of the segment an entry is attributed to. This is the entry itself
+     * for level 0.
+     */
+    int getSegment(int level, int index) {
+        return mLevels.get(level).getSegment(index);
+    }
+
+    /**
+     * Returns the fraction of the span of an entry covered by the key of its segment. This is 1
+     * for level 0.
+     */
+    double getCoverage(int level, int index) {
+        Level l = mLevels.get(level);
+        if (l.mKeyTimes == null) {
+            return 1;
+        }
+        return (double) l.mKeyTimes[index] / (l.mEndTimes[index] - l.mStartTimes[index]);
+    }
+
+    /**
+     * Merges the consecutive entries of a level that fall into the same bucket.
+     */
+    private static Level coarsen(Level level, long bucketSize, Object[] keys) {
+        int size = level.mSize;
+        long[] startTimes = new long[size];
+        long[] endTimes = new long[size];
+        int[] segments = new int[size];
+        long[] keyTimes = new long[size];
+
+        // time covered by each key of the current group, and the first segment of each key.
+        Object[] groupKeys = new Object[16];
+        long[] groupTimes = new long[16];
+        int[] groupSegments = new int[16];
+
+        int count = 0;
+        int i = 0;
+        while (i < size) {
+            long start = level.mStartTimes[i];
+            long bucket = start / bucketSize;
+
+            // find the entries that are entirely inside the bucket of this one.
+            int j = i;
+            while (j < size && (level.mEndTimes[j] - 1) / bucketSize == bucket) {
+                j++;
+            }
+
+            if (j - i < 2) {
+                // nothing to merge: keep the entry as is.
+                startTimes[count] = start;
+                endTimes[count] = level.mEndTimes[i];
+                segments[count] = level.getSegment(i);
+                keyTimes[count] = level.getKeyTime(i);
+                count++;
+                i = Math.max(j, i + 1);
+                continue;
+            }
+
+            int groupSize = 0;
+            int best = -1;
+            for (int k = i ; k < j ; k++) {
+                int segment = level.getSegment(k);
+                Object key = keys[segment];
+                int g = 0;
+                while (g < groupSize && groupKeys[g] != key) {
+                    g++;
+                }
+                if (g == groupSize) {
+                    if (groupSize == groupKeys.length) {
+                        Object[] newKeys = new Object[groupSize * 2];
+                        System.arraycopy(groupKeys, 0, newKeys, 0, groupSize);
+                        groupKeys = newKeys;
+                        long[] newTimes = new long[groupSize * 2];
+                        System.arraycopy(groupTimes, 0, newTimes, 0, groupSize);
+                        groupTimes = newTimes;
+                        int[] newSegments = new int[groupSize * 2];
+                        System.arraycopy(groupSegments, 0, newSegments, 0, groupSize);
+                        groupSegments = newSegments;
+                    }
+                    groupKeys[g] = key;
+                    groupTimes[g] = 0;
+                    groupSegments[g] = segment;
+                    groupSize++;
+                }
+                groupTimes[g] += level.getKeyTime(k);
+                if (best == -1 || groupTimes[g] > groupTimes[best]) {
+                    best = g;
+                }
+            }
+
+            startTimes[count] = start;
+            endTimes[count] = level.mEndTimes[j - 1];
+            segments[count] = groupSegments[best];
+            keyTimes[count] = groupTimes[best];
+            count++;
+            i = j;
+
+            // don't hold on to the keys of this group.
+            for (int g = 0 ; g < groupSize ; g++) {
+                groupKeys[g] = null;
+            }
+        }
+
+        return new Level(bucketSize, count, trim(startTimes, count), trim(endTimes, count),
+                trim(segments, count), trim(keyTimes, count));
+    }
+
+    private static long[] trim(long[] array, int size) {
+        long[] result = new long[size];
+        System.arraycopy(array, 0, result, 0, size);
+        return result;
+    }
+
+    private static int[] trim(int[] array, int size) {
+        int[] result = new int[size];
+        System.arraycopy(array, 0, result, 0, size);
+        return result;
+    }
+}
@@ -44,7 +44,6 @@ import org.eclipse.swt.widgets.ScrollBar;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Observable;
@@ -53,6 +52,7 @@ import java.util.Observer;
 public class TimeLineView extends Composite implements Observer {
 
     private HashMap<String, RowData> mRowByName;
+    private BlockStore mBlocks;
     private double mTotalElapsed;
     private RowData[] mRows;
     private Segment[] mSegments;
@@ -134,6 +134,75 @@ public class TimeLineView extends Composite implements Observer {
         }
     }
 
+    /**
+     * The blocks of the timeline, referred to by their index. This lets a
+     * reader keep its blocks in arrays, and only create a {@link Block}
+     * object when one is selected.
+     */
+    public static interface BlockStore {
+        public int size();
+        public Row getRow(int index);
+        public String getName(int index);
+        public MethodData getMethodData(int index);
+        public long getStartTime(int index);
+        public long getEndTime(int index);
+        public Color getColor(int index);
+        public double addWeight(int index, int x, int y, double weight);
+        public void clearWeight(int index);
+        public Block getBlock(int index);
+    }
+
+    /**
+     * A {@link BlockStore} of {@link Record} objects.
+     */
+    public static class RecordStore implements BlockStore {
+        private final ArrayList<Record> mRecords;
+
+        public RecordStore(ArrayList<Record> records) {
+            mRecords = records != null ? records : new ArrayList<Record>();
+        }
+
+        public int size() {
+            return mRecords.size();
+        }
+
+        public Row getRow(int index) {
+            return mRecords.get(index).row;
+        }
+
+        public String getName(int index) {
+            return mRecords.get(index).block.getName();
+        }
+
+        public MethodData getMethodData(int index) {
+            return mRecords.get(index).block.getMethodData();
+        }
+
+        public long getStartTime(int index) {
+            return mRecords.get(index).block.getStartTime();
+        }
+
+        public long getEndTime(int index) {
+            return mRecords.get(index).block.getEndTime();
+        }
+
+        public Color getColor(int index) {
+            return mRecords.get(index).block.getColor();
+        }
+
+        public double addWeight(int index, int x, int y, double weight) {
+            return mRecords.get(index).block.addWeight(x, y, weight);
+        }
+
+        public void clearWeight(int index) {
+            mRecords.get(index).block.clearWeight();
+        }
+
+        public Block getBlock(int index) {
+            return mRecords.get(index).block;
+        }
+    }
+
     public TimeLineView(Composite parent, TraceReader reader,
             SelectionController selectionController) {
         super(parent, SWT.NONE);
@@ -313,7 +382,7 @@ public class TimeLineView extends Composite implements Observer {
             }
         });
 
-        setData(reader.getThreadTimeRecords());
+        setData(reader.getThreadTimeBlocks());
     }
 
     public void update(Observable objservable, Object arg) {
@@ -350,64 +419,55 @@ public class TimeLineView extends Composite implements Observer {
     }
 
     public void setData(ArrayList<Record> records) {
-        if (records == null)
-            records = new ArrayList<Record>();
+        setData(new RecordStore(records));
+    }
+
+    /**
+     * Sets the blocks of the timeline. The blocks are only referred to by
+     * their index, in the segments built here.
+     */
+    public void setData(BlockStore blocks) {
+        mBlocks = blocks;
+        int count = blocks.size();
 
         if (false) {
             System.out.println("TimelineView() list of records:");  // $NON-NLS-1$
-            for (Record r : records) {
-                System.out.printf("row '%s' block '%s' [%d, %d]\n", r.row  // $NON-NLS-1$
-                        .getName(), r.block.getName(), r.block.getStartTime(),
-                        r.block.getEndTime());
-                if (r.block.getStartTime() > r.block.getEndTime()) {
+            for (int ii = 0; ii < count; ++ii) {
+                System.out.printf("row '%s' block '%s' [%d, %d]\n",  // $NON-NLS-1$
+                        blocks.getRow(ii).getName(), blocks.getName(ii),
+                        blocks.getStartTime(ii), blocks.getEndTime(ii));
+                if (blocks.getStartTime(ii) > blocks.getEndTime(ii)) {
                     System.err.printf("Error: block startTime > endTime\n");  // $NON-NLS-1$
                     System.exit(1);
                 }
             }
         }
 
-        // Sort the records into increasing start time, and decreasing end time
-        Collections.sort(records, new Comparator<Record>() {
-            public int compare(Record r1, Record r2) {
-                long start1 = r1.block.getStartTime();
-                long start2 = r2.block.getStartTime();
-                if (start1 > start2)
-                    return 1;
-                if (start1 < start2)
-                    return -1;
-
-                // The start times are the same, so compare the end times
-                long end1 = r1.block.getEndTime();
-                long end2 = r2.block.getEndTime();
-                if (end1 > end2)
-                    return -1;
-                if (end1 < end2)
-                    return 1;
+        // Sort the blocks into increasing start time, and decreasing end time
+        int[] order = new int[count];
+        for (int ii = 0; ii < count; ++ii)
+            order[ii] = ii;
+        sortBlocks(order, new int[count], 0, count);
 
-                return 0;
-            }
-        });
-
-        // The records are sorted into increasing start time,
-        // so the minimum start time is the start time of the first record.
+        // The blocks are sorted into increasing start time,
+        // so the minimum start time is the start time of the first block.
         double minVal = 0;
-        if (records.size() > 0)
-            minVal = records.get(0).block.getStartTime();
+        if (count > 0)
+            minVal = blocks.getStartTime(order[0]);
 
         // Sum the time spent in each row and block, and
         // keep track of the maximum end time.
         double maxVal = 0;
-        for (Record rec : records) {
-            Row row = rec.row;
-            Block block = rec.block;
+        for (int block : order) {
+            Row row = blocks.getRow(block);
             String rowName = row.getName();
             RowData rd = mRowByName.get(rowName);
             if (rd == null) {
                 rd = new RowData(row);
                 mRowByName.put(rowName, rd);
             }
-            long blockStartTime = block.getStartTime();
-            long blockEndTime = block.getEndTime();
+            long blockStartTime = blocks.getStartTime(block);
+            long blockEndTime = blocks.getEndTime(block);
             if (blockEndTime > rd.mEndTime) {
                 long start = Math.max(blockStartTime, rd.mEndTime);
                 rd.mElapsed += blockEndTime - start;
@@ -419,14 +479,14 @@ public class TimeLineView extends Composite implements Observer {
 
             // Keep track of nested blocks by using a stack (for each row).
             // Create a Segment object for each visible part of a block.
-            Block top = rd.top();
-            if (top == null) {
+            int top = rd.top();
+            if (top == -1) {
                 rd.push(block);
                 continue;
             }
 
-            long topStartTime = top.getStartTime();
-            long topEndTime = top.getEndTime();
+            long topStartTime = blocks.getStartTime(top);
+            long topEndTime = blocks.getEndTime(top);
             if (topEndTime >= blockStartTime) {
                 // Add this segment if it has a non-zero elapsed time.
                 if (topStartTime < blockStartTime) {
@@ -449,7 +509,7 @@ public class TimeLineView extends Composite implements Observer {
 
         // Clean up the stack of each row
         for (RowData rd : mRowByName.values()) {
-            Block top = rd.top();
+            int top = rd.top();
             popFrames(rd, top, Integer.MAX_VALUE);
         }
 
@@ -496,11 +556,24 @@ public class TimeLineView extends Composite implements Observer {
             }
         });
 
+        // Index the segments of each row, so that drawing only visits the
+        // visible segments, at the resolution of the screen.
+        int firstSegment = 0;
+        while (firstSegment < mSegments.length) {
+            RowData rd = mSegments[firstSegment].mRowData;
+            int lastSegment = firstSegment + 1;
+            while (lastSegment < mSegments.length
+                    && mSegments[lastSegment].mRowData == rd)
+                lastSegment += 1;
+            rd.setSegments(blocks, mSegments, firstSegment, lastSegment);
+            firstSegment = lastSegment;
+        }
+
         if (false) {
             for (Segment segment : mSegments) {
                 System.out.printf("seg '%s' [%6d, %6d] %s\n",
                         segment.mRowData.mName, segment.mStartTime,
-                        segment.mEndTime, segment.mBlock.getName());
+                        segment.mEndTime, blocks.getName(segment.mBlock));
                 if (segment.mStartTime > segment.mEndTime) {
                     System.err.printf("Error: segment startTime > endTime\n");
                     System.exit(1);
@@ -509,9 +582,54 @@ public class TimeLineView extends Composite implements Observer {
         }
     }
 
-    private void popFrames(RowData rd, Block top, long startTime) {
-        long topEndTime = top.getEndTime();
-        long lastEndTime = top.getStartTime();
+    /**
+     * Sorts the blocks order[from] to order[to - 1] into increasing start time,
+     * and decreasing end time. The sort is stable, and uses
+     * temp[from] to temp[to - 1].
+     */
+    private void sortBlocks(int[] order, int[] temp, int from, int to) {
+        if (to - from < 2)
+            return;
+        int middle = (from + to) >>> 1;
+        sortBlocks(order, temp, from, middle);
+        sortBlocks(order, temp, middle, to);
+        if (compareBlocks(order[middle - 1], order[middle]) <= 0)
+            return;
+
+        System.arraycopy(order, from, temp, from, to - from);
+        int left = from;
+        int right = middle;
+        for (int ii = from; ii < to; ++ii) {
+            if (right == to || (left < middle
+                    && compareBlocks(temp[left], temp[right]) <= 0))
+                order[ii] = temp[left++];
+            else
+                order[ii] = temp[right++];
+        }
+    }
+
+    private int compareBlocks(int block1, int block2) {
+        long start1 = mBlocks.getStartTime(block1);
+        long start2 = mBlocks.getStartTime(block2);
+        if (start1 > start2)
+            return 1;
+        if (start1 < start2)
+            return -1;
+
+        // The start times are the same, so compare the end times
+        long end1 = mBlocks.getEndTime(block1);
+        long end2 = mBlocks.getEndTime(block2);
+        if (end1 > end2)
+            return -1;
+        if (end1 < end2)
+            return 1;
+
+        return 0;
+    }
+
+    private void popFrames(RowData rd, int top, long startTime) {
+        long topEndTime = mBlocks.getEndTime(top);
+        long lastEndTime = mBlocks.getStartTime(top);
         while (topEndTime <= startTime) {
             if (topEndTime > lastEndTime) {
                 Segment segment = new Segment(rd, top, lastEndTime, topEndTime);
@@ -520,9 +638,9 @@ public class TimeLineView extends Composite implements Observer {
             }
             rd.pop();
             top = rd.top();
-            if (top == null)
+            if (top == -1)
                 return;
-            topEndTime = top.getEndTime();
+            topEndTime = mBlocks.getEndTime(top);
         }
 
         // If we get here, then topEndTime > startTime
@@ -1007,7 +1125,7 @@ public class TimeLineView extends Composite implements Observer {
             }
 
             // Draw the strips
-            Block selectBlock = null;
+            int selectBlock = -1;
             for (Strip strip : mStripList) {
                 if (strip.mColor == null) {
                     // System.out.printf("strip.color is null\n");
@@ -1019,7 +1137,7 @@ public class TimeLineView extends Composite implements Observer {
                 if (mMouseRow == strip.mRowData.mRank) {
                     if (mMouse.x >= strip.mX
                             && mMouse.x < strip.mX + strip.mWidth) {
-                        blockName = strip.mSegment.mBlock.getName();
+                        blockName = mBlocks.getName(strip.mSegment.mBlock);
                         blockColor = strip.mColor;
                     }
                     if (mMouseSelect.x >= strip.mX
@@ -1031,12 +1149,14 @@ public class TimeLineView extends Composite implements Observer {
             mMouseSelect.x = 0;
             mMouseSelect.y = 0;
 
-            if (selectBlock != null) {
+            if (selectBlock != -1) {
+                // The block is only created now that it is selected.
+                Block block = mBlocks.getBlock(selectBlock);
                 ArrayList<Selection> selections = new ArrayList<Selection>();
                 // Get the row label
                 RowData rd = mRows[mMouseRow];
                 selections.add(Selection.highlight("Thread", rd.mName));  // $NON-NLS-1$
-                selections.add(Selection.highlight("Call", selectBlock));  // $NON-NLS-1$
+                selections.add(Selection.highlight("Call", block));  // $NON-NLS-1$
 
                 int mouseX = mMouse.x - LeftMargin;
                 double mouseXval = mScaleInfo.pixelToValue(mouseX);
@@ -1044,7 +1164,7 @@ public class TimeLineView extends Composite implements Observer {
                 
                 mSelectionController.change(selections, "TimeLineView");  // $NON-NLS-1$
                 mHighlightMethodData = null;
-                mHighlightCall = (Call) selectBlock;
+                mHighlightCall = (Call) block;
                 startHighlighting();
             }
 
@@ -1211,9 +1331,28 @@ public class TimeLineView extends Composite implements Observer {
             for (int ii = 0; ii < mNumRows; ++ii)
                 pixels[ii] = new Pixel();
 
-            // Clear the per-block pixel data
-            for (int ii = 0; ii < mSegments.length; ++ii) {
-                mSegments[ii].mBlock.clearWeight();
+            // Use a coarser level of detail when several segments fit in a
+            // pixel, unless highlighting needs to see every segment.
+            double timePerPixel = 1 / mScaleInfo.getPixelsPerRange();
+            boolean useLevels = mHighlightMethodData == null
+                    && mHighlightCall == null;
+
+            // Only the rows we can display, and in each row only the segments
+            // between minVal and maxVal, are visited.
+            int numRows = Math.min(mEndRow + 1, mNumRows);
+
+            // Clear the per-block pixel data of the visible segments
+            for (int rank = 0; rank < numRows; ++rank) {
+                RowData rd = mRows[rank];
+                TimeLineIndex index = rd.mIndex;
+                if (index == null)
+                    continue;
+                int level = useLevels ? index.getLevel(timePerPixel) : 0;
+                int size = index.getSize(level);
+                for (int ii = index.findFirst(level, minVal); ii < size
+                        && index.getStartTime(level, ii) < maxVal; ++ii) {
+                    mBlocks.clearWeight(rd.getSegment(index.getSegment(level, ii)).mBlock);
+                }
             }
 
             mStripList.clear();
@@ -1247,163 +1386,171 @@ public class TimeLineView extends Composite implements Observer {
                 mHighlightInclusive.add(new Range(callPixelStart + LeftMargin,
                         callPixelEnd + LeftMargin, y1, color));
             }
-            for (Segment segment : mSegments) {
-                if (segment.mEndTime <= minVal)
-                    continue;
-                if (segment.mStartTime >= maxVal)
+            for (int rank = 0; rank < numRows; ++rank) {
+                RowData rd = mRows[rank];
+                TimeLineIndex index = rd.mIndex;
+                if (index == null)
                     continue;
-                Block block = segment.mBlock;
-                Color color = block.getColor();
-                if (color == null)
-                    continue;
-
-                double recordStart = Math.max(segment.mStartTime, minVal);
-                double recordEnd = Math.min(segment.mEndTime, maxVal);
-                if (recordStart == recordEnd)
-                    continue;
-                int pixelStart = mScaleInfo.valueToPixel(recordStart);
-                int pixelEnd = mScaleInfo.valueToPixel(recordEnd);
-                int width = pixelEnd - pixelStart;
-
-                RowData rd = segment.mRowData;
-                MethodData md = block.getMethodData();
-
-                // We will add the scroll offset later when we draw the strips
-                int y1 = rd.mRank * rowYSpace + rowYMarginHalf;
-
-                // If we can't display any more rows, then quit
-                if (rd.mRank > mEndRow)
-                    break;
+                int level = useLevels ? index.getLevel(timePerPixel) : 0;
+                int size = index.getSize(level);
+                for (int ii = index.findFirst(level, minVal); ii < size; ++ii) {
+                    long startTime = index.getStartTime(level, ii);
+                    long endTime = index.getEndTime(level, ii);
+                    if (startTime >= maxVal)
+                        break;
 
-                // System.out.printf("segment %s val: [%.1f, %.1f] frac [%f, %f]
-                // pixel: [%d, %d] pix.start %d weight %.2f %s\n",
-                // block.getName(), recordStart, recordEnd,
-                // scaleInfo.valueToPixelFraction(recordStart),
-                // scaleInfo.valueToPixelFraction(recordEnd),
-                // pixelStart, pixelEnd, pixels[rd.rank].start,
-                // pixels[rd.rank].maxWeight,
-                // pixels[rd.rank].segment != null
-                // ? pixels[rd.rank].segment.block.getName()
-                // : "null");
+                    // At coarser levels, an entry stands for the segments of a
+                    // part of a pixel. It is drawn as its dominant segment,
+                    // weighted by how much of the entry that segment covers.
+                    Segment segment = rd.getSegment(index.getSegment(level, ii));
+                    double coverage = index.getCoverage(level, ii);
+                    int block = segment.mBlock;
+                    Color color = mBlocks.getColor(block);
+                    if (color == null)
+                        continue;
+
+                    double recordStart = Math.max(startTime, minVal);
+                    double recordEnd = Math.min(endTime, maxVal);
+                    if (recordStart == recordEnd)
+                        continue;
+                    int pixelStart = mScaleInfo.valueToPixel(recordStart);
+                    int pixelEnd = mScaleInfo.valueToPixel(recordEnd);
+                    int width = pixelEnd - pixelStart;
+
+                    MethodData md = mBlocks.getMethodData(block);
+
+                    // We will add the scroll offset later when we draw the strips
+                    int y1 = rd.mRank * rowYSpace + rowYMarginHalf;
 
-                if (mHighlightMethodData != null) {
-                    if (mHighlightMethodData == md) {
-                        if (prevMethodStart != pixelStart) {
-                            prevMethodStart = pixelStart;
-                            int rangeWidth = width;
-                            if (rangeWidth == 0)
-                                rangeWidth = 1;
-                            mHighlightExclusive.add(new Range(pixelStart
-                                    + LeftMargin, rangeWidth, y1, color));
-                            Call call = (Call) block;
-                            callStart = call.mGlobalStartTime;
-                            int callPixelStart = -1;
-                            if (callStart >= minVal)
-                                callPixelStart = mScaleInfo.valueToPixel(callStart);
-                            if (prevCallStart != callPixelStart) {
-                                prevCallStart = callPixelStart;
-                                int callPixelEnd = -1;
-                                callEnd = call.mGlobalEndTime;
-                                if (callEnd <= maxVal)
-                                    callPixelEnd = mScaleInfo.valueToPixel(callEnd);
-                                mHighlightInclusive.add(new Range(
-                                        callPixelStart + LeftMargin,
-                                        callPixelEnd + LeftMargin, y1, color));
+                    // System.out.printf("segment %s val: [%.1f, %.1f] frac [%f, %f]
+                    // pixel: [%d, %d] pix.start %d weight %.2f %s\n",
+                    // block.getName(), recordStart, recordEnd,
+                    // scaleInfo.valueToPixelFraction(recordStart),
+                    // scaleInfo.valueToPixelFraction(recordEnd),
+                    // pixelStart, pixelEnd, pixels[rd.rank].start,
+                    // pixels[rd.rank].maxWeight,
+                    // pixels[rd.rank].segment != null
+                    // ? pixels[rd.rank].segment.block.getName()
+                    // : "null");
+
+                    if (mHighlightMethodData != null) {
+                        if (mHighlightMethodData == md) {
+                            if (prevMethodStart != pixelStart) {
+                                prevMethodStart = pixelStart;
+                                int rangeWidth = width;
+                                if (rangeWidth == 0)
+                                    rangeWidth = 1;
+                                mHighlightExclusive.add(new Range(pixelStart
+                                        + LeftMargin, rangeWidth, y1, color));
+                                callStart = mBlocks.getStartTime(block);
+                                int callPixelStart = -1;
+                                if (callStart >= minVal)
+                                    callPixelStart = mScaleInfo.valueToPixel(callStart);
+                                if (prevCallStart != callPixelStart) {
+                                    prevCallStart = callPixelStart;
+                                    int callPixelEnd = -1;
+                                    callEnd = mBlocks.getEndTime(block);
+                                    if (callEnd <= maxVal)
+                                        callPixelEnd = mScaleInfo.valueToPixel(callEnd);
+                                    mHighlightInclusive.add(new Range(
+                                            callPixelStart + LeftMargin,
+                                            callPixelEnd + LeftMargin, y1, color));
+                                }
                             }
+                        } else if (mFadeColors) {
+                            color = md.getFadedColor();
                         }
-                    } else if (mFadeColors) {
-                        color = md.getFadedColor();
-                    }
-                } else if (mHighlightCall != null) {
-                    if (segment.mStartTime >= callStart
-                            && segment.mEndTime <= callEnd && callMethod == md
-                            && callRowData == rd) {
-                        if (prevMethodStart != pixelStart) {
-                            prevMethodStart = pixelStart;
-                            int rangeWidth = width;
-                            if (rangeWidth == 0)
-                                rangeWidth = 1;
-                            mHighlightExclusive.add(new Range(pixelStart
-                                    + LeftMargin, rangeWidth, y1, color));
+                    } else if (mHighlightCall != null) {
+                        if (startTime >= callStart
+                                && endTime <= callEnd && callMethod == md
+                                && callRowData == rd) {
+                            if (prevMethodStart != pixelStart) {
+                                prevMethodStart = pixelStart;
+                                int rangeWidth = width;
+                                if (rangeWidth == 0)
+                                    rangeWidth = 1;
+                                mHighlightExclusive.add(new Range(pixelStart
+                                        + LeftMargin, rangeWidth, y1, color));
+                            }
+                        } else if (mFadeColors) {
+                            color = md.getFadedColor();
                         }
-                    } else if (mFadeColors) {
-                        color = md.getFadedColor();
                     }
-                }
 
-                // Cases:
-                // 1. This segment starts on a different pixel than the
-                // previous segment started on. In this case, emit
-                // the pixel strip, if any, and:
-                // A. If the width is 0, then add this segment's
-                // weight to the Pixel.
-                // B. If the width > 0, then emit a strip for this
-                // segment (no partial Pixel data).
-                //
-                // 2. Otherwise (the new segment starts on the same
-                // pixel as the previous segment): add its "weight"
-                // to the current pixel, and:
-                // A. If the new segment has width 1,
-                // then emit the pixel strip and then
-                // add the segment's weight to the pixel.
-                // B. If the new segment has width > 1,
-                // then emit the pixel strip, and emit the rest
-                // of the strip for this segment (no partial Pixel
-                // data).
-
-                Pixel pix = pixels[rd.mRank];
-                if (pix.mStart != pixelStart) {
-                    if (pix.mSegment != null) {
-                        // Emit the pixel strip. This also clears the pixel.
-                        emitPixelStrip(rd, y1, pix);
-                    }
+                    // Cases:
+                    // 1. This segment starts on a different pixel than the
+                    // previous segment started on. In this case, emit
+                    // the pixel strip, if any, and:
+                    // A. If the width is 0, then add this segment's
+                    // weight to the Pixel.
+                    // B. If the width > 0, then emit a strip for this
+                    // segment (no partial Pixel data).
+                    //
+                    // 2. Otherwise (the new segment starts on the same
+                    // pixel as the previous segment): add its "weight"
+                    // to the current pixel, and:
+                    // A. If the new segment has width 1,
+                    // then emit the pixel strip and then
+                    // add the segment's weight to the pixel.
+                    // B. If the new segment has width > 1,
+                    // then emit the pixel strip, and emit the rest
+                    // of the strip for this segment (no partial Pixel
+                    // data).
+
+                    Pixel pix = pixels[rd.mRank];
+                    if (pix.mStart != pixelStart) {
+                        if (pix.mSegment != null) {
+                            // Emit the pixel strip. This also clears the pixel.
+                            emitPixelStrip(rd, y1, pix);
+                        }
 
-                    if (width == 0) {
-                        // Compute the "weight" of this segment for the first
-                        // pixel. For a pixel N, the "weight" of a segment is
-                        // how much of the region [N - 0.5, N + 0.5] is covered
-                        // by the segment.
+                        if (width == 0) {
+                            // Compute the "weight" of this segment for the first
+                            // pixel. For a pixel N, the "weight" of a segment is
+                            // how much of the region [N - 0.5, N + 0.5] is covered
+                            // by the segment.
+                            double weight = computeWeight(recordStart, recordEnd,
+                                    pixelStart) * coverage;
+                            weight = mBlocks.addWeight(block, pixelStart, rd.mRank, weight);
+                            if (weight > pix.mMaxWeight) {
+                                pix.setFields(pixelStart, weight, segment, color,
+                                        rd);
+                            }
+                        } else {
+                            int x1 = pixelStart + LeftMargin;
+                            Strip strip = new Strip(x1, y1, width, rowHeight, rd,
+                                    segment, color);
+                            mStripList.add(strip);
+                        }
+                    } else {
                         double weight = computeWeight(recordStart, recordEnd,
-                                pixelStart);
-                        weight = block.addWeight(pixelStart, rd.mRank, weight);
+                                pixelStart) * coverage;
+                        weight = mBlocks.addWeight(block, pixelStart, rd.mRank, weight);
                         if (weight > pix.mMaxWeight) {
-                            pix.setFields(pixelStart, weight, segment, color,
-                                    rd);
+                            pix.setFields(pixelStart, weight, segment, color, rd);
+                        }
+                        if (width == 1) {
+                            // Emit the pixel strip. This also clears the pixel.
+                            emitPixelStrip(rd, y1, pix);
+
+                            // Compute the weight for the next pixel
+                            pixelStart += 1;
+                            weight = computeWeight(recordStart, recordEnd,
+                                    pixelStart) * coverage;
+                            weight = mBlocks.addWeight(block, pixelStart, rd.mRank, weight);
+                            pix.setFields(pixelStart, weight, segment, color, rd);
+                        } else if (width > 1) {
+                            // Emit the pixel strip. This also clears the pixel.
+                            emitPixelStrip(rd, y1, pix);
+
+                            // Emit a strip for the rest of the segment.
+                            pixelStart += 1;
+                            width -= 1;
+                            int x1 = pixelStart + LeftMargin;
+                            Strip strip = new Strip(x1, y1, width, rowHeight, rd,
+                                    segment, color);
+                            mStripList.add(strip);
                         }
-                    } else {
-                        int x1 = pixelStart + LeftMargin;
-                        Strip strip = new Strip(x1, y1, width, rowHeight, rd,
-                                segment, color);
-                        mStripList.add(strip);
-                    }
-                } else {
-                    double weight = computeWeight(recordStart, recordEnd,
-                            pixelStart);
-                    weight = block.addWeight(pixelStart, rd.mRank, weight);
-                    if (weight > pix.mMaxWeight) {
-                        pix.setFields(pixelStart, weight, segment, color, rd);
-                    }
-                    if (width == 1) {
-                        // Emit the pixel strip. This also clears the pixel.
-                        emitPixelStrip(rd, y1, pix);
-
-                        // Compute the weight for the next pixel
-                        pixelStart += 1;
-                        weight = computeWeight(recordStart, recordEnd,
-                                pixelStart);
-                        weight = block.addWeight(pixelStart, rd.mRank, weight);
-                        pix.setFields(pixelStart, weight, segment, color, rd);
-                    } else if (width > 1) {
-                        // Emit the pixel strip. This also clears the pixel.
-                        emitPixelStrip(rd, y1, pix);
-
-                        // Emit a strip for the rest of the segment.
-                        pixelStart += 1;
-                        width -= 1;
-                        int x1 = pixelStart + LeftMargin;
-                        Strip strip = new Strip(x1, y1, width, rowHeight, rd,
-                                segment, color);
-                        mStripList.add(strip);
                     }
                 }
             }
@@ -1424,7 +1571,7 @@ public class TimeLineView extends Composite implements Observer {
                 for (Strip strip : mStripList) {
                     System.out.printf("%3d, %3d width %3d height %d %s\n",
                             strip.mX, strip.mY, strip.mWidth, strip.mHeight,
-                            strip.mSegment.mBlock.getName());
+                            mBlocks.getName(strip.mSegment.mBlock));
                 }
             }
         }
@@ -1868,34 +2015,71 @@ public class TimeLineView extends Composite implements Observer {
     private static class RowData {
         RowData(Row row) {
             mName = row.getName();
-            mStack = new ArrayList<Block>();
+            mStack = new int[16];
         }
 
-        public void push(Block block) {
-            mStack.add(block);
+        public void push(int block) {
+            if (mStackSize == mStack.length) {
+                int[] stack = new int[mStackSize * 2];
+                System.arraycopy(mStack, 0, stack, 0, mStackSize);
+                mStack = stack;
+            }
+            mStack[mStackSize++] = block;
         }
 
-        public Block top() {
-            if (mStack.size() == 0)
-                return null;
-            return mStack.get(mStack.size() - 1);
+        /**
+         * Returns the block on top of the stack, or -1 if the stack is empty.
+         */
+        public int top() {
+            if (mStackSize == 0)
+                return -1;
+            return mStack[mStackSize - 1];
         }
 
         public void pop() {
-            if (mStack.size() == 0)
+            if (mStackSize == 0)
                 return;
-            mStack.remove(mStack.size() - 1);
+            mStackSize--;
+        }
+
+        /**
+         * Sets the segments of this row, segments[first] to segments[last - 1],
+         * and indexes them.
+         */
+        public void setSegments(BlockStore blocks, Segment[] segments, int first,
+                int last) {
+            mSegments = segments;
+            mFirstSegment = first;
+            int count = last - first;
+            long[] startTimes = new long[count];
+            long[] endTimes = new long[count];
+            Object[] methods = new Object[count];
+            for (int ii = 0; ii < count; ++ii) {
+                Segment segment = segments[first + ii];
+                startTimes[ii] = segment.mStartTime;
+                endTimes[ii] = segment.mEndTime;
+                methods[ii] = blocks.getMethodData(segment.mBlock);
+            }
+            mIndex = new TimeLineIndex(startTimes, endTimes, methods);
+        }
+
+        public Segment getSegment(int index) {
+            return mSegments[mFirstSegment + index];
         }
 
         private String mName;
         private int mRank;
         private long mElapsed;
         private long mEndTime;
-        private ArrayList<Block> mStack;
+        private int[] mStack;
+        private int mStackSize;
+        private Segment[] mSegments;
+        private int mFirstSegment;
+        private TimeLineIndex mIndex;
     }
 
     private static class Segment {
-        Segment(RowData rowData, Block block, long startTime, long endTime) {
+        Segment(RowData rowData, int block, long startTime, long endTime) {
             mRowData = rowData;
             mBlock = block;
             mStartTime = startTime;
@@ -1903,7 +2087,8 @@ public class TimeLineView extends Composite implements Observer {
         }
 
         private RowData mRowData;
-        private Block mBlock;
+        /** the index of the block in the block store */
+        private int mBlock;
         private long mStartTime;
         private long mEndTime;
     }
@@ -0,0 +1,492 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.traceview;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Analyzes traces without the traceview UI, for instance on a build server. SWT isn't needed.
+ * <p/>For each trace, a report with the inclusive and exclusive times and the number of calls of
+ * the methods, the cpu time of the threads, and the hottest call paths is written in JSON or
+ * CSV. The traces are analyzed in parallel. Two traces can also be compared method by method.
+ * <p/>Usage: <code>java -cp traceview.jar com.android.traceview.TraceAnalyzer [options]
+ * trace...</code>. The times are in microseconds.
+ */
+public class TraceAnalyzer {
+
+    private static final String TRACE_EXTENSION = ".trace";
+    private static final int DEFAULT_TOP_COUNT = 10;
+    /** Max length of a hot path, as recursive calls could make them endless. */
+    private static final int MAX_PATH_LENGTH = 64;
+
+    private enum Format {
+        JSON, CSV
+    }
+
+    private Format mFormat = Format.JSON;
+    private int mTopCount = DEFAULT_TOP_COUNT;
+    private File mOutputDir;
+
+    /**
+     * A method in the comparison of two traces.
+     */
+    private static class MethodDiff {
+        final String mName;
+        MethodData mBase;
+        MethodData mNew;
+
+        MethodDiff(String name) {
+            mName = name;
+        }
+
+        long getInclusiveDelta() {
+            return getInclusive(mNew) - getInclusive(mBase);
+        }
+
+        static long getInclusive(MethodData md) {
+            return md != null ? md.getElapsedInclusive() : 0;
+        }
+
+        static long getExclusive(MethodData md) {
+            return md != null ? md.getElapsedExclusive() : 0;
+        }
+
+        static int getCalls(MethodData md) {
+            return md != null ? md.getTotalCalls() : 0;
+        }
+    }
+
+    public static void main(String[] args) {
+        TraceAnalyzer analyzer = new TraceAnalyzer();
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        boolean diff = false;
+
+        int argc = 0;
+        try {
+            while (argc < args.length && args[argc].startsWith("-")) {
+                String arg = args[argc++];
+                if (arg.equals("-csv")) {
+                    analyzer.mFormat = Format.CSV;
+                } else if (arg.equals("-json")) {
+                    analyzer.mFormat = Format.JSON;
+                } else if (arg.equals("-top")) {
+                    analyzer.mTopCount = Integer.parseInt(args[argc++]);
+                } else if (arg.equals("-j")) {
+                    threadCount = Math.max(1, Integer.parseInt(args[argc++]));
+                } else if (arg.equals("-o")) {
+                    analyzer.mOutputDir = new File(args[argc++]);
+                } else if (arg.equals("-diff")) {
+                    diff = true;
+                } else {
+                    printUsage();
+                    System.exit(1);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            printUsage();
+            System.exit(1);
+        } catch (NumberFormatException e) {
+            printUsage();
+            System.exit(1);
+        }
+
+        String[] names = new String[args.length - argc];
+        System.arraycopy(args, argc, names, 0, names.length);
+
+        if (diff) {
+            if (names.length != 2) {
+                printUsage();
+                System.exit(1);
+            }
+            PrintWriter out = new PrintWriter(System.out);
+            try {
+                analyzer.diff(new File(names[0]), new File(names[1]), out);
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            } catch (IllegalStateException e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+            out.flush();
+            return;
+        }
+
+        ArrayList<File> traces = new ArrayList<File>();
+        for (String name : names) {
+            addTraces(new File(name), traces);
+        }
+        if (traces.size() == 0) {
+            printUsage();
+            System.exit(1);
+        }
+
+        if (analyzer.mOutputDir != null) {
+            analyzer.mOutputDir.mkdirs();
+        }
+        if (analyzer.analyze(traces, threadCount) == false) {
+            System.exit(1);
+        }
+    }
+
+    private static void printUsage() {
+        System.out.printf("Usage: java %s [options] trace|directory...%n",
+                TraceAnalyzer.class.getName());
+        System.out.printf("       java %s -diff [options] base-trace new-trace%n",
+                TraceAnalyzer.class.getName());
+        System.out.printf("  -json     write JSON reports (default)%n");
+        System.out.printf("  -csv      write CSV reports%n");
+        System.out.printf("  -top N    number of hot paths in the reports (default %d)%n",
+                DEFAULT_TOP_COUNT);
+        System.out.printf("  -o DIR    write the reports in DIR instead of next to the traces%n");
+        System.out.printf("  -j N      number of traces analyzed at the same time%n");
+        System.out.printf("  -diff     compare two traces method by method, on stdout%n");
+    }
+
+    /**
+     * Adds a trace, or all the traces of a directory.
+     */
+    private static void addTraces(File file, ArrayList<File> traces) {
+        if (file.isDirectory()) {
+            File[] files = file.listFiles();
+            Arrays.sort(files);
+            for (File f : files) {
+                if (f.isFile() && f.getName().endsWith(TRACE_EXTENSION)) {
+                    traces.add(f);
+                }
+            }
+        } else if (file.exists()) {
+            traces.add(file);
+        } else {
+            System.err.printf("trace file '%s' not found\n", file);
+        }
+    }
+
+    /**
+     * Analyzes traces, and writes their reports.
+     * @param traces the trace files.
+     * @param threadCount the number of traces analyzed at the same time.
+     * @return true if all the reports were written.
+     */
+    private boolean analyze(ArrayList<File> traces, int threadCount) {
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        ArrayList<Future<File>> futures = new ArrayList<Future<File>>();
+        for (final File trace : traces) {
+            futures.add(executor.submit(new Callable<File>() {
+                public File call() throws IOException {
+                    return writeReport(trace);
+                }
+            }));
+        }
+        executor.shutdown();
+
+        boolean success = true;
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                File report = futures.get(i).get();
+                System.out.printf("%s -> %s\n", traces.get(i), report);
+            } catch (InterruptedException e) {
+                success = false;
+            } catch (ExecutionException e) {
+                System.err.printf("%s: %s\n", traces.get(i), e.getCause());
+                success = false;
+            }
+        }
+        return success;
+    }
+
+    /**
+     * Analyzes a trace, and writes its report.
+     * @return the report file.
+     */
+    private File writeReport(File trace) throws IOException {
+        DmTraceReader reader = new DmTraceReader(trace.getPath(), false);
+
+        String name = trace.getName();
+        if (name.endsWith(TRACE_EXTENSION)) {
+            name = name.substring(0, name.length() - TRACE_EXTENSION.length());
+        }
+        File dir = mOutputDir != null ? mOutputDir : trace.getAbsoluteFile().getParentFile();
+        File report = new File(dir, name + (mFormat == Format.JSON ? ".json" : ".csv"));
+
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(report), "UTF-8"));
+        try {
+            if (mFormat == Format.JSON) {
+                writeJson(trace.getName(), reader, out);
+            } else {
+                writeCsv(reader, out);
+            }
+        } finally {
+            out.close();
+        }
+        if (out.checkError()) {
+            throw new IOException("Error writing " + report);
+        }
+        return report;
+    }
+
+    private void writeJson(String traceName, DmTraceReader reader, PrintWriter out) {
+        out.print("{\n  \"trace\": ");
+        out.print(quote(traceName));
+
+        out.print(",\n  \"threads\": [");
+        ThreadData[] threads = reader.getThreads();
+        for (int i = 0; i < threads.length; i++) {
+            ThreadData t = threads[i];
+            out.print(i == 0 ? "\n    " : ",\n    ");
+            out.printf("{ \"id\": %d, \"name\": %s, \"cpuTime\": %d }",
+                    t.getId(), quote(t.getName()), t.getCpuTime());
+        }
+
+        out.print("\n  ],\n  \"methods\": [");
+        MethodData[] methods = reader.getMethods();
+        for (int i = 0; i < methods.length; i++) {
+            MethodData md = methods[i];
+            out.print(i == 0 ? "\n    " : ",\n    ");
+            out.printf("{ \"name\": %s, \"inclusive\": %d, \"exclusive\": %d, "
+                    + "\"calls\": %d, \"recursiveCalls\": %d }",
+                    quote(md.getName()), md.getElapsedInclusive(), md.getElapsedExclusive(),
+                    md.getNonRecursiveCalls(), md.getRecursiveCalls());
+        }
+
+        out.print("\n  ],\n  \"hotPaths\": [");
+        ArrayList<MethodData[]> paths = getHotPaths(methods);
+        for (int i = 0; i < paths.size(); i++) {
+            MethodData[] path = paths.get(i);
+            MethodData hot = path[path.length - 1];
+            out.print(i == 0 ? "\n    " : ",\n    ");
+            out.printf("{ \"method\": %s, \"exclusive\": %d, \"path\": [",
+                    quote(hot.getName()), hot.getElapsedExclusive());
+            for (int j = 0; j < path.length; j++) {
+                if (j > 0) {
+                    out.print(", ");
+                }
+                out.print(quote(path[j].getName()));
+            }
+            out.print("] }");
+        }
+        out.print("\n  ]\n}\n");
+    }
+
+    /**
+     * Writes the methods, then the hot paths, as two tables separated by an empty line.
+     */
+    private void writeCsv(DmTraceReader reader, PrintWriter out) {
+        out.print("method,inclusive,exclusive,calls,recursive calls\n");
+        MethodData[] methods = reader.getMethods();
+        for (MethodData md : methods) {
+            out.printf("%s,%d,%d,%d,%d\n", csv(md.getName()), md.getElapsedInclusive(),
+                    md.getElapsedExclusive(), md.getNonRecursiveCalls(),
+                    md.getRecursiveCalls());
+        }
+
+        out.print("\nhot method,exclusive,path\n");
+        for (MethodData[] path : getHotPaths(methods)) {
+            MethodData hot = path[path.length - 1];
+            StringBuilder sb = new StringBuilder();
+            for (MethodData md : path) {
+                if (sb.length() > 0) {
+                    sb.append(" > ");
+                }
+                sb.append(md.getName());
+            }
+            out.printf("%s,%d,%s\n", csv(hot.getName()), hot.getElapsedExclusive(),
+                    csv(sb.toString()));
+        }
+    }
+
+    /**
+     * Returns the hot paths of a trace: for each of the methods with the highest exclusive
+     * times, the path of its most expensive callers, from the outermost one to the method.
+     * @param methods the methods of the trace.
+     */
+    private ArrayList<MethodData[]> getHotPaths(MethodData[] methods) {
+        MethodData[] sorted = methods.clone();
+        Arrays.sort(sorted, new Comparator<MethodData>() {
+            public int compare(MethodData md1, MethodData md2) {
+                if (md2.getElapsedExclusive() > md1.getElapsedExclusive())
+                    return 1;
+                if (md2.getElapsedExclusive() < md1.getElapsedExclusive())
+                    return -1;
+                return md1.getName().compareTo(md2.getName());
+            }
+        });
+
+        ArrayList<MethodData[]> paths = new ArrayList<MethodData[]>();
+        for (MethodData md : sorted) {
+            if (paths.size() == mTopCount) {
+                break;
+            }
+            // the time spent outside of any traced method isn't a hot spot.
+            if (md.getId() == 0) {
+                continue;
+            }
+
+            ArrayList<MethodData> path = new ArrayList<MethodData>();
+            MethodData current = md;
+            while (current != null && path.size() < MAX_PATH_LENGTH) {
+                path.add(0, current);
+                current = getMainParent(current, path);
+            }
+            paths.add(path.toArray(new MethodData[path.size()]));
+        }
+        return paths;
+    }
+
+    /**
+     * Returns the non-recursive caller of a method with the highest inclusive time, skipping the
+     * methods already in a path, or null if there is none.
+     */
+    private static MethodData getMainParent(MethodData md, ArrayList<MethodData> path) {
+        ProfileNode[] nodes = md.getProfileNodes();
+        if (nodes == null) {
+            return null;
+        }
+        for (ProfileNode node : nodes) {
+            if (node.isParent() && node.isRecursive() == false) {
+                // the parents are sorted by decreasing inclusive time.
+                for (ProfileData parent : node.getChildren()) {
+                    if (path.contains(parent.getMethodData()) == false) {
+                        return parent.getMethodData();
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Compares two traces method by method, and writes the methods sorted by decreasing change
+     * of their inclusive time. The methods are matched by name.
+     */
+    private void diff(File base, File changed, PrintWriter out) throws IOException {
+        DmTraceReader baseReader = new DmTraceReader(base.getPath(), false);
+        DmTraceReader newReader = new DmTraceReader(changed.getPath(), false);
+
+        HashMap<String, MethodDiff> map = new HashMap<String, MethodDiff>();
+        for (MethodData md : baseReader.getMethods()) {
+            MethodDiff diff = new MethodDiff(md.getName());
+            diff.mBase = md;
+            map.put(md.getName(), diff);
+        }
+        for (MethodData md : newReader.getMethods()) {
+            MethodDiff diff = map.get(md.getName());
+            if (diff == null) {
+                diff = new MethodDiff(md.getName());
+                map.put(md.getName(), diff);
+            }
+            diff.mNew = md;
+        }
+
+        MethodDiff[] diffs = map.values().toArray(new MethodDiff[map.size()]);
+        Arrays.sort(diffs, new Comparator<MethodDiff>() {
+            public int compare(MethodDiff d1, MethodDiff d2) {
+                long delta1 = Math.abs(d1.getInclusiveDelta());
+                long delta2 = Math.abs(d2.getInclusiveDelta());
+                if (delta2 > delta1)
+                    return 1;
+                if (delta2 < delta1)
+                    return -1;
+                return d1.mName.compareTo(d2.mName);
+            }
+        });
+
+        if (mFormat == Format.JSON) {
+            out.printf("{\n  \"base\": %s,\n  \"new\": %s,\n  \"methods\": [",
+                    quote(base.getName()), quote(changed.getName()));
+            for (int i = 0; i < diffs.length; i++) {
+                MethodDiff d = diffs[i];
+                out.print(i == 0 ? "\n    " : ",\n    ");
+                out.printf("{ \"name\": %s, \"baseInclusive\": %d, \"newInclusive\": %d, "
+                        + "\"baseExclusive\": %d, \"newExclusive\": %d, "
+                        + "\"baseCalls\": %d, \"newCalls\": %d }",
+                        quote(d.mName),
+                        MethodDiff.getInclusive(d.mBase), MethodDiff.getInclusive(d.mNew),
+                        MethodDiff.getExclusive(d.mBase), MethodDiff.getExclusive(d.mNew),
+                        MethodDiff.getCalls(d.mBase), MethodDiff.getCalls(d.mNew));
+            }
+            out.print("\n  ]\n}\n");
+        } else {
+            out.print("method,base inclusive,new inclusive,inclusive delta,"
+                    + "base exclusive,new exclusive,base calls,new calls\n");
+            for (MethodDiff d : diffs) {
+                out.printf("%s,%d,%d,%d,%d,%d,%d,%d\n", csv(d.mName),
+                        MethodDiff.getInclusive(d.mBase), MethodDiff.getInclusive(d.mNew),
+                        d.getInclusiveDelta(),
+                        MethodDiff.getExclusive(d.mBase), MethodDiff.getExclusive(d.mNew),
+                        MethodDiff.getCalls(d.mBase), MethodDiff.getCalls(d.mNew));
+            }
+        }
+    }
+
+    /**
+     * Returns a string as a JSON string literal.
+     */
+    private static String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2);
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+        return sb.toString();
+    }
+
+    /**
+     * Returns a string as a CSV field, quoted if needed.
+     */
+    private static String csv(String s) {
+        if (s.indexOf(',') == -1 && s.indexOf('"') == -1 && s.indexOf('\n') == -1) {
+            return s;
+        }
+        return '"' + s.replace("\"", "\"\"") + '"';
+    }
+}
@@ -33,6 +33,15 @@ public abstract class TraceReader {
         return null;
     }
 
+    /**
+     * Returns the blocks of the timeline. These are the records of
+     * {@link #getThreadTimeRecords()}, unless the reader can refer to its
+     * blocks without creating them.
+     */
+    public TimeLineView.BlockStore getThreadTimeBlocks() {
+        return new TimeLineView.RecordStore(getThreadTimeRecords());
+    }
+
     public HashMap<Integer, String> getThreadLabels() {
         return null;
     }